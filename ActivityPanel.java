@@ -0,0 +1,73 @@
+/**
+ * Panel of the admin window with sparklines of the posts, follows and average
+ * positivity of the last minute, hour or day, for the network or the selected group,
+ * from RollingMetrics.
+ *
+ * The panel redraws on a Swing timer, once per bucket of the shown resolution (at least
+ * once a second), since the windows roll on whether or not anything happens. Each
+ * redraw reads one ring, so it costs the same whatever the history.
+ */
+import javax.swing.*;
+import java.awt.*;
+
+public class ActivityPanel extends JPanel {
+
+  private final JComboBox < RollingMetrics.Resolution > resolution = new JComboBox < > (RollingMetrics.Resolution.values());
+  private final JLabel scope = new JLabel("", JLabel.CENTER);
+  private final Sparkline posts = new Sparkline("Posts", new Color(0x1d9bf0));
+  private final Sparkline follows = new Sparkline("Follows", new Color(0x00ba7c));
+  private final Sparkline positivity = new Sparkline("Positivity", new Color(0xf91880));
+  private final Timer timer = new Timer(1000, e -> refresh());
+  private String groupUid = "Root";
+
+  public ActivityPanel() {
+    super(new BorderLayout());
+    setBackground(Color.WHITE);
+    JPanel header = new JPanel(new GridLayout(2, 1));
+    header.setOpaque(false);
+    header.add(scope);
+    header.add(resolution);
+    JPanel lines = new JPanel(new GridLayout(3, 1));
+    lines.setOpaque(false);
+    lines.add(posts);
+    lines.add(follows);
+    lines.add(positivity);
+    add(header, BorderLayout.NORTH);
+    add(lines, BorderLayout.CENTER);
+
+    resolution.addActionListener(e -> {
+      timer.setDelay((int) Math.min(60000, getResolution().getMillis()));
+      refresh();
+    });
+    timer.start();
+    refresh();
+  }
+
+  /**
+   * Shows the activity of a group, or of the network for Root.
+   */
+  public void setGroup(String groupUid) {
+    this.groupUid = groupUid;
+    refresh();
+  }
+
+  private RollingMetrics.Resolution getResolution() {
+    return (RollingMetrics.Resolution) resolution.getSelectedItem();
+  }
+
+  private void refresh() {
+    RollingMetrics.Window window = RollingMetrics.read(groupUid, getResolution());
+    scope.setText("<html><b style='color:blue'>Activity</b> " + (groupUid.equals("Root") ? "(all)" : "(" + groupUid + ")") + "</html>");
+    posts.setValues(toDoubles(window.getPosts()), String.valueOf(window.getTotalPosts()));
+    follows.setValues(toDoubles(window.getFollows()), String.valueOf(window.getTotalFollows()));
+    double average = window.getAveragePositivity();
+    positivity.setValues(window.getPositivity(), Double.isNaN(average) ? "-" : String.format("%.1f%%", average));
+  }
+
+  private static double[] toDoubles(long[] values) {
+    double[] doubles = new double[values.length];
+    for (int i = 0; i < values.length; i++)
+      doubles[i] = values[i];
+    return doubles;
+  }
+}
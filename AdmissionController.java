@@ -0,0 +1,162 @@
+/**
+ * Global admission control for posts, driven by delivery lag: the time from a post
+ * being admitted to the end of its fan-out, including the time spent waiting for the
+ * lock behind other posts. Time spent queued for admission is not part of it, or a
+ * queue would keep the lag above the threshold by itself; it is tracked as a separate
+ * moving average, reported as queueWaitMillis.
+ *
+ * The lag is tracked as an exponentially weighted moving average, updated lock-free by
+ * every completed post. While it is below the threshold every post is admitted. Above
+ * it only one post at a time is let through, which drains the lock contention and keeps
+ * feeding fresh lag samples; the others are either shed (rejected at once) or queued
+ * for that slot, and a queued post that waits longer than the queue timeout or finds
+ * the queue full is rejected.
+ *
+ * Configured with -Dminitwitter.admission.lagMillis (default 200, 0 disables),
+ * -Dminitwitter.admission.mode=shed|queue (default queue),
+ * -Dminitwitter.admission.queueMillis (default 1000) and
+ * -Dminitwitter.admission.queueLength (default 1000).
+ */
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdmissionController {
+
+  public enum Mode { SHED, QUEUE }
+
+  public static final AdmissionController posts = new AdmissionController(
+    Long.getLong("minitwitter.admission.lagMillis", 200),
+    Mode.valueOf(System.getProperty("minitwitter.admission.mode", "queue").toUpperCase()),
+    Long.getLong("minitwitter.admission.queueMillis", 1000),
+    Integer.getInteger("minitwitter.admission.queueLength", 1000));
+
+  private final long thresholdNanos;
+  private final Mode mode;
+  private final long queueNanos;
+  private final int queueLength;
+
+  // Moving averages of the delivery lag and of the wait of queued posts, in nanoseconds
+  private final AtomicLong lagNanos = new AtomicLong();
+  private final AtomicLong queueWaitNanos = new AtomicLong();
+  private final Semaphore slowLane = new Semaphore(1, true);
+
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder shed = new LongAdder();
+  private final LongAdder timedOut = new LongAdder();
+
+  public AdmissionController(long thresholdMillis, Mode mode, long queueMillis, int queueLength) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.mode = mode;
+    this.queueNanos = TimeUnit.MILLISECONDS.toNanos(queueMillis);
+    this.queueLength = queueLength;
+  }
+
+  /**
+   * An admitted post: when it was admitted and whether it holds the slow lane.
+   */
+  public static final class Ticket {
+    final long admission;
+    final boolean slow;
+
+    Ticket(long admission, boolean slow) {
+      this.admission = admission;
+      this.slow = slow;
+    }
+  }
+
+  /**
+   * Admits a post or throws. Every admitted post must be followed by exactly one call to
+   * complete with the returned ticket.
+   *
+   * @return The ticket of the admitted post.
+   * @throws OperationRejectedException if the post is shed or times out in the queue.
+   */
+  public Ticket admit() {
+    long arrival = System.nanoTime();
+    if (thresholdNanos == 0 || lagNanos.get() <= thresholdNanos) {
+      admitted.increment();
+      return new Ticket(arrival, false);
+    }
+    long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toMillis(lagNanos.get()));
+    // Even when shedding, one post at a time goes through so the lag keeps being measured
+    if (slowLane.tryAcquire()) {
+      admitted.increment();
+      return new Ticket(arrival, true);
+    }
+    if (mode == Mode.SHED || slowLane.getQueueLength() >= queueLength) {
+      shed.increment();
+      throw new OperationRejectedException("Server busy, try again later", retryAfter);
+    }
+    queued.increment();
+    boolean acquired;
+    try {
+      acquired = slowLane.tryAcquire(queueNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+    long admission = System.nanoTime();
+    average(queueWaitNanos, admission - arrival);
+    if (!acquired) {
+      timedOut.increment();
+      throw new OperationRejectedException("Server busy, try again later", retryAfter);
+    }
+    admitted.increment();
+    return new Ticket(admission, true);
+  }
+
+  /**
+   * Records the delivery lag of an admitted post and releases its slow-lane slot.
+   *
+   * @param ticket The value returned by admit.
+   */
+  public void complete(Ticket ticket) {
+    average(lagNanos, System.nanoTime() - ticket.admission);
+    if (ticket.slow)
+      slowLane.release();
+  }
+
+  private static void average(AtomicLong average, long sample) {
+    average.accumulateAndGet(sample, (a, s) -> a + (s - a) / 8);
+  }
+
+  /**
+   * @return The current delivery lag estimate in milliseconds.
+   */
+  public double getLagMillis() {
+    return lagNanos.get() / 1e6;
+  }
+
+  /**
+   * @return The moving average of the time queued posts wait for admission, in milliseconds.
+   */
+  public double getQueueWaitMillis() {
+    return queueWaitNanos.get() / 1e6;
+  }
+
+  public long getShed() {
+    return shed.sum();
+  }
+
+  public long getTimedOut() {
+    return timedOut.sum();
+  }
+
+  /**
+   * @return Configuration, lag and counters, as JSON.
+   */
+  public String statsJson() {
+    return "{\"mode\":" + Json.quote(mode.name().toLowerCase()) +
+      ",\"thresholdMillis\":" + TimeUnit.NANOSECONDS.toMillis(thresholdNanos) +
+      ",\"lagMillis\":" + getLagMillis() +
+      ",\"admitted\":" + admitted.sum() +
+      ",\"queued\":" + queued.sum() +
+      ",\"waiting\":" + slowLane.getQueueLength() +
+      ",\"queueWaitMillis\":" + getQueueWaitMillis() +
+      ",\"shed\":" + getShed() +
+      ",\"timedOut\":" + getTimedOut() + "}";
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Local load test for the embedded HTTP API.
+ * Starts an ApiServer in-process (or targets a running one), seeds users and follow
+ * edges through the API, then runs concurrent clients issuing a mix of feed reads and
+ * posts for a fixed duration and reports requests/sec and latency percentiles.
+ *
+ * The in-process server runs without the per-user rate limits unless they are set, as
+ * OperationReplayer does, since the load would mostly measure them. Requests turned
+ * away with 429 or 503 (admission control, or the limits of a running server) are
+ * counted as rejected, apart from errors.
+ *
+ * Usage: java ApiLoadTest [clients] [seconds] [users] [port]
+ *   port 0 (the default) starts an in-process server on a free port.
+ */
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ApiLoadTest {
+
+  // Fraction of requests that are posts, the rest are feed reads
+  private static final double POST_RATIO = 0.2;
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int users = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    int port = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+    ApiServer server = null;
+    if (port == 0) {
+      // Before TwitterOperations reads them
+      for (String i: new String[] { "minitwitter.rate.posts", "minitwitter.rate.follows" })
+        if (System.getProperty(i) == null)
+          System.setProperty(i, "0");
+      server = new ApiServer(0);
+      server.start();
+      port = server.getPort();
+    }
+    String base = "http://localhost:" + port;
+    HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(clients)).connectTimeout(Duration.ofSeconds(5)).build();
+
+    // Seed users, each following 20 others
+    String prefix = "load" + System.currentTimeMillis() + "_";
+    Random random = new Random(1);
+    for (int i = 0; i < users; i++)
+      send(client, base + "/users", "id=" + prefix + i);
+    for (int i = 0; i < users; i++)
+      for (int j = 0; j < 20; j++)
+        send(client, base + "/follow", "user=" + prefix + i + "&target=" + prefix + random.nextInt(users));
+
+    // Run the mix
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    List < long[] > latencies = Collections.synchronizedList(new ArrayList < > ());
+    AtomicLong errors = new AtomicLong();
+    AtomicLong rejected = new AtomicLong();
+    ExecutorService workers = Executors.newFixedThreadPool(clients);
+    for (int c = 0; c < clients; c++) {
+      final int seed = c;
+      workers.submit(() -> {
+        Random r = new Random(seed);
+        long[] samples = new long[1 << 16];
+        int n = 0;
+        while (System.nanoTime() < deadline) {
+          String user = prefix + r.nextInt(users);
+          long start = System.nanoTime();
+          int status;
+          try {
+            if (r.nextDouble() < POST_RATIO)
+              status = send(client, base + "/post", "user=" + user + "&text=" + URLEncoder.encode("load test message, good day " + r.nextInt(), StandardCharsets.UTF_8));
+            else
+              status = get(client, base + "/feed?limit=20&user=" + user);
+          } catch (Exception e) {
+            status = -1;
+          }
+          long elapsed = System.nanoTime() - start;
+          if (status == 429 || status == 503)
+            rejected.incrementAndGet();
+          else if (status < 200 || status >= 300)
+            errors.incrementAndGet();
+          if (n == samples.length)
+            samples = Arrays.copyOf(samples, n * 2);
+          samples[n++] = elapsed;
+        }
+        latencies.add(Arrays.copyOf(samples, n));
+        return null;
+      });
+    }
+    workers.shutdown();
+    workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+    long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+    System.out.println("Clients:       " + clients);
+    System.out.println("Requests:      " + all.length + " (" + rejected.get() + " rejected, " + errors.get() + " errors)");
+    System.out.printf("Requests/sec:  %.0f%n", all.length / (double) seconds);
+    System.out.printf("Latency ms:    p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+      percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), percentile(all, 1.0));
+
+    if (server != null)
+      server.stop();
+    System.exit(0);
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0)
+      return 0;
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+
+  private static int send(HttpClient client, String url, String form) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+      .header("Content-Type", "application/x-www-form-urlencoded")
+      .POST(HttpRequest.BodyPublishers.ofString(form))
+      .build();
+    return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+
+  private static int get(HttpClient client, String url) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(url)).GET().build();
+    return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+  }
+}
@@ -0,0 +1,537 @@
+/**
+ * Embedded local HTTP API for driving Mini Twitter from other processes and test tools.
+ * Binds to the loopback interface only and calls the same TwitterOperations as the UI.
+ *
+ * Endpoints (parameters may be sent as a query string, a form body or a flat JSON body):
+ *   POST /users   id, group (default Root)   create a user
+ *   GET  /users                              stream all user IDs
+ *   POST /groups  id, parent (default Root)  create a group
+ *   POST /users/move   id, group             move a user to another group
+ *   POST /groups/move  id, parent            move a group and its subtree under another group
+ *   POST /groups/delete id                   delete a group and its subgroups; their users
+ *                                            move to its parent
+ *   POST /follow  user, target               follow another user
+ *   POST /unfollow user, target              stop following another user
+ *   POST /post    user, text                 post a message
+ *   POST /reply   user, to, text             reply to the message with ID to
+ *   GET  /feed    user, cursor, limit        read a page of a feed, newest first
+ *   GET  /thread  id, cursor, limit          read a page of the conversation a message
+ *                                            belongs to, oldest reply first
+ *   GET  /replies id, cursor, limit          read a page of the direct replies to a message
+ *   GET  /stats                              totals and average positivity
+ *   GET  /replication                        replication role, LSNs and lag
+ *   GET  /lexicon                            sentiment lexicon and backfill progress
+ *   POST /lexicon path                       load a lexicon file and re-score all messages
+ *   GET  /limits                             rate limiter and admission control metrics
+ *   GET  /cache                              timeline cache hit rate, evictions and memory
+ *   GET  /archive id | user, limit           look up archived messages (scans the archive)
+ *   GET  /retention                          retention policy and sweeper metrics
+ *   GET  /trace   limit                      the most recent engine operations and timings
+ *   GET  /analytics from, to, user, group,   message count, average positivity and length,
+ *                  bins, min, max            and a positivity histogram, from MessageColumns
+ *   GET  /graph   top                        PageRank top users, degree histograms and
+ *                                            two-hop reach estimates, from FollowGraph
+ *   GET  /leaderboards k                     the k most followed, most prolific and most
+ *                                            positive users, from Leaderboards
+ *   GET  /memory  users, follows, messages   estimated heap per subsystem and entity, and
+ *                                            a projection for the given targets
+ *   GET  /metrics group, resolution          posts, follows and average positivity per
+ *                                            second, minute or hour, from RollingMetrics
+ *
+ * Writes to a replication follower are rejected with 503, and rate limited or shed
+ * requests with 429 and a Retry-After header.
+ *
+ * Each request is handled on its own virtual thread when the JVM supports them
+ * (Java 21+), and on a cached thread pool otherwise. Large responses are streamed
+ * with chunked transfer encoding instead of being buffered.
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ApiServer {
+
+  public static final int DEFAULT_PAGE_SIZE = 50;
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  static {
+    // Without TCP_NODELAY, small responses stall ~40ms on Nagle + delayed ACK
+    if (System.getProperty("sun.net.httpserver.nodelay") == null)
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * Creates the server bound to localhost; call start to begin serving.
+   *
+   * @param port The port to listen on, or 0 for any free port.
+   * @throws IOException if the port cannot be bound.
+   */
+  public ApiServer(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+    executor = newRequestExecutor();
+    server.setExecutor(executor);
+
+    server.createContext("/users", handler(this::users));
+    server.createContext("/groups", handler(this::groups));
+    server.createContext("/users/move", handler(this::moveUser));
+    server.createContext("/groups/move", handler(this::moveGroup));
+    server.createContext("/groups/delete", handler(this::deleteGroup));
+    server.createContext("/follow", handler(this::follow));
+    server.createContext("/unfollow", handler(this::unfollow));
+    server.createContext("/post", handler(this::post));
+    server.createContext("/reply", handler(this::reply));
+    server.createContext("/feed", handler(this::feed));
+    server.createContext("/thread", handler(this::thread));
+    server.createContext("/replies", handler(this::replies));
+    server.createContext("/stats", handler(this::stats));
+    server.createContext("/replication", handler(this::replication));
+    server.createContext("/lexicon", handler(this::lexicon));
+    server.createContext("/limits", handler(this::limits));
+    server.createContext("/cache", handler(this::cache));
+    server.createContext("/archive", handler(this::archive));
+    server.createContext("/retention", handler(this::retention));
+    server.createContext("/trace", handler(this::trace));
+    server.createContext("/analytics", handler(this::analytics));
+    server.createContext("/graph", handler(this::graph));
+    server.createContext("/leaderboards", handler(this::leaderboards));
+    server.createContext("/memory", handler(this::memory));
+    server.createContext("/metrics", handler(this::metrics));
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return The port the server is bound to.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * One virtual thread per request when available, a cached thread pool otherwise.
+   */
+  static ExecutorService newRequestExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "api-request");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  // --- Endpoints ---
+
+  private void users(HttpExchange exchange, Map < String, String > params) throws IOException {
+    if (exchange.getRequestMethod().equals("GET")) {
+      List < String > ids = ReadView.current().getUsers();
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, 0);
+      try (Writer out = writer(exchange)) {
+        out.write("{\"users\":[");
+        for (int i = 0; i < ids.size(); i++) {
+          if (i > 0)
+            out.write(',');
+          out.write(Json.quote(ids.get(i)));
+        }
+        out.write("]}");
+      }
+      return;
+    }
+    requirePost(exchange);
+    User user = TwitterOperations.createUser(require(params, "id"), params.getOrDefault("group", "Root"));
+    respond(exchange, 201, "{\"id\":" + Json.quote(user.getUid()) + ",\"group\":" + Json.quote(user.getUserGroup()) + "}");
+  }
+
+  private void groups(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    UserGroup group = TwitterOperations.createGroup(require(params, "id"), params.getOrDefault("parent", "Root"));
+    respond(exchange, 201, "{\"id\":" + Json.quote(group.getUid()) + "}");
+  }
+
+  private void moveUser(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    boolean moved = TwitterOperations.moveUser(require(params, "id"), require(params, "group"));
+    respond(exchange, 200, "{\"moved\":" + moved + "}");
+  }
+
+  private void moveGroup(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    boolean moved = TwitterOperations.moveGroup(require(params, "id"), require(params, "parent"));
+    respond(exchange, 200, "{\"moved\":" + moved + "}");
+  }
+
+  private void deleteGroup(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    int users = TwitterOperations.deleteGroup(require(params, "id"));
+    respond(exchange, 200, "{\"deleted\":true,\"movedUsers\":" + users + "}");
+  }
+
+  private void follow(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    boolean added = TwitterOperations.follow(require(params, "user"), require(params, "target"));
+    respond(exchange, 200, "{\"followed\":" + added + "}");
+  }
+
+  private void unfollow(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    boolean removed = TwitterOperations.unfollow(require(params, "user"), require(params, "target"));
+    respond(exchange, 200, "{\"unfollowed\":" + removed + "}");
+  }
+
+  private void post(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    Message message = TwitterOperations.post(require(params, "user"), require(params, "text"));
+    respond(exchange, 201, "{\"id\":" + Json.quote(message.getUid()) + ",\"positivity\":" + message.getPositivePercentage() + "}");
+  }
+
+  private void reply(HttpExchange exchange, Map < String, String > params) throws IOException {
+    requirePost(exchange);
+    Message message = TwitterOperations.reply(require(params, "user"), require(params, "to"), require(params, "text"));
+    respond(exchange, 201, "{\"id\":" + Json.quote(message.getUid()) + ",\"root\":" + Json.quote(ConversationIndex.getRoot(message.getUid())) +
+      ",\"positivity\":" + message.getPositivePercentage() + "}");
+  }
+
+  private void thread(HttpExchange exchange, Map < String, String > params) throws IOException {
+    String id = requireMessage(params);
+    conversation(exchange, ConversationIndex.thread(id, params.get("cursor"), pageSize(params)));
+  }
+
+  private void replies(HttpExchange exchange, Map < String, String > params) throws IOException {
+    String id = requireMessage(params);
+    conversation(exchange, ConversationIndex.replies(id, params.get("cursor"), pageSize(params)));
+  }
+
+  private static String requireMessage(Map < String, String > params) {
+    String id = require(params, "id");
+    if (!Message.messageMap.containsKey(id) && !ConversationIndex.contains(id))
+      throw new IllegalArgumentException("Message Not Found: " + id);
+    return id;
+  }
+
+  private static int pageSize(Map < String, String > params) {
+    int limit = params.containsKey("limit") ? parseInt(params.get("limit"), "limit") : DEFAULT_PAGE_SIZE;
+    return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+  }
+
+  // Replies evicted by retention are listed by ID only, marked archived
+  private void conversation(HttpExchange exchange, ConversationIndex.Page page) throws IOException {
+    StringBuilder out = new StringBuilder();
+    out.append("{\"root\":");
+    Message root = Message.messageMap.get(page.getRoot());
+    if (root == null)
+      out.append("{\"id\":" + Json.quote(page.getRoot()) + ",\"archived\":true}");
+    else
+      out.append("{\"id\":" + Json.quote(root.getUid()) + ",\"from\":" + Json.quote(root.getFrom()) + ",\"text\":" + Json.quote(root.getText()) + "}");
+    out.append(",\"total\":" + page.getTotal() + ",\"replies\":[");
+    List < String > ids = page.getMessageIds();
+    for (int i = 0; i < ids.size(); i++) {
+      ConversationIndex.Link link = ConversationIndex.getLink(ids.get(i));
+      Message message = Message.messageMap.get(ids.get(i));
+      if (i > 0)
+        out.append(',');
+      out.append("{\"id\":" + Json.quote(ids.get(i)) + ",\"parent\":" + Json.quote(link.getParent()) + ",\"depth\":" + link.getDepth());
+      if (message == null)
+        out.append(",\"archived\":true}");
+      else
+        out.append(",\"from\":" + Json.quote(message.getFrom()) + ",\"text\":" + Json.quote(message.getText()) + "}");
+    }
+    out.append("],\"nextCursor\":" + Json.quote(page.getNextCursor()) + "}");
+    respond(exchange, 200, out.toString());
+  }
+
+  private void feed(HttpExchange exchange, Map < String, String > params) throws IOException {
+    int limit = pageSize(params);
+    if (params.get("cursor") == null && limit <= TimelineCache.PAGE_SIZE) {
+      feedHead(exchange, TwitterOperations.readFeedHead(require(params, "user"), limit));
+      return;
+    }
+    TimelineReader.FeedPage page = TwitterOperations.readFeed(require(params, "user"), params.get("cursor"), limit);
+
+    StringBuilder out = new StringBuilder();
+    out.append("{\"messages\":[");
+    boolean first = true;
+    for (String i: page.getMessageIds()) {
+      Message message = Message.messageMap.get(i);
+      if (message == null)
+        continue;
+      if (!first)
+        out.append(',');
+      first = false;
+      out.append("{\"id\":" + Json.quote(message.getUid()) + ",\"from\":" + Json.quote(message.getFrom()) + ",\"text\":" + Json.quote(message.getText()) + "}");
+    }
+    out.append("],\"nextCursor\":" + Json.quote(page.getNextCursor()) + "}");
+    respond(exchange, 200, out.toString());
+  }
+
+  private void feedHead(HttpExchange exchange, TimelineCache.Page page) throws IOException {
+    StringBuilder out = new StringBuilder();
+    out.append("{\"messages\":[");
+    List < TimelineCache.Entry > entries = page.getEntries();
+    for (int i = 0; i < entries.size(); i++) {
+      TimelineCache.Entry entry = entries.get(i);
+      if (i > 0)
+        out.append(',');
+      out.append("{\"id\":" + Json.quote(entry.getMessageId()) + ",\"from\":" + Json.quote(entry.getFrom()) + ",\"text\":" + Json.quote(entry.getText()) + "}");
+    }
+    out.append("],\"nextCursor\":" + Json.quote(page.getNextCursor()) + "}");
+    respond(exchange, 200, out.toString());
+  }
+
+  private void stats(HttpExchange exchange, Map < String, String > params) throws IOException {
+    ReadView view = ReadView.current();
+    respond(exchange, 200, "{\"users\":" + view.getUsers().size() +
+      ",\"groups\":" + view.getGroups().size() +
+      ",\"messages\":" + view.getTotalMessages() +
+      ",\"hotMessages\":" + view.getMessages().size() +
+      ",\"archivedMessages\":" + view.getArchivedMessages() +
+      ",\"positivity\":" + view.getAveragePositivity() +
+      ",\"version\":" + view.getVersion() + "}");
+  }
+
+  private void replication(HttpExchange exchange, Map < String, String > params) throws IOException {
+    respond(exchange, 200, ReplicationNode.statusJson());
+  }
+
+  private void lexicon(HttpExchange exchange, Map < String, String > params) throws IOException {
+    if (exchange.getRequestMethod().equals("POST")) {
+      if (TwitterOperations.readOnly)
+        throw new IllegalStateException("Read-only replica: send writes to the leader");
+      try {
+        SentimentEngine.loadLexicon(Paths.get(require(params, "path")));
+      } catch (NoSuchFileException e) {
+        throw new IllegalArgumentException("Lexicon file not found: " + e.getFile());
+      }
+      respond(exchange, 202, SentimentEngine.statusJson());
+      return;
+    }
+    respond(exchange, 200, SentimentEngine.statusJson());
+  }
+
+  private void limits(HttpExchange exchange, Map < String, String > params) throws IOException {
+    respond(exchange, 200, "{\"posts\":" + RateLimiter.posts.statsJson() +
+      ",\"follows\":" + RateLimiter.follows.statsJson() +
+      ",\"admission\":" + AdmissionController.posts.statsJson() + "}");
+  }
+
+  private void cache(HttpExchange exchange, Map < String, String > params) throws IOException {
+    respond(exchange, 200, TimelineCache.shared.statsJson());
+  }
+
+  private void archive(HttpExchange exchange, Map < String, String > params) throws IOException {
+    List < MessageArchive.Record > records;
+    if (params.containsKey("id")) {
+      MessageArchive.Record record = MessageArchive.shared.find(params.get("id"));
+      if (record == null)
+        throw new IllegalArgumentException("Message not archived: " + params.get("id"));
+      records = Collections.singletonList(record);
+    } else {
+      String user = require(params, "user");
+      String limit = params.get("limit");
+      records = MessageArchive.shared.bySender(user, limit == null ? 100 : parseInt(limit, "limit"));
+    }
+    StringBuilder json = new StringBuilder("{\"messages\":[");
+    for (int i = 0; i < records.size(); i++) {
+      MessageArchive.Record record = records.get(i);
+      if (i > 0)
+        json.append(',');
+      json.append("{\"id\":").append(Json.quote(record.getMessageId()))
+        .append(",\"from\":").append(Json.quote(record.getFrom()))
+        .append(",\"text\":").append(Json.quote(record.getText()))
+        .append(",\"time\":").append(record.getCreationTime())
+        .append(",\"positivity\":").append(record.getPositivity()).append('}');
+    }
+    respond(exchange, 200, json.append("]}").toString());
+  }
+
+  private void retention(HttpExchange exchange, Map < String, String > params) throws IOException {
+    respond(exchange, 200, RetentionSweeper.statusJson());
+  }
+
+  private void trace(HttpExchange exchange, Map < String, String > params) throws IOException {
+    int limit = params.containsKey("limit") ? parseInt(params.get("limit"), "limit") : 100;
+    respond(exchange, 200, TraceRecorder.shared.toJson(limit));
+  }
+
+  private void analytics(HttpExchange exchange, Map < String, String > params) throws IOException {
+    MessageColumns.Filter filter = MessageColumns.Filter.all();
+    if (params.containsKey("from") || params.containsKey("to"))
+      filter = filter.between(params.containsKey("from") ? parseLong(params.get("from"), "from") : Long.MIN_VALUE,
+        params.containsKey("to") ? parseLong(params.get("to"), "to") : Long.MAX_VALUE);
+    if (params.containsKey("user"))
+      filter = filter.from(params.get("user"));
+    if (params.containsKey("group")) {
+      UserGroup group = UserGroup.userGroupMap.get(params.get("group"));
+      if (group == null)
+        throw new IllegalArgumentException("No such group: " + params.get("group"));
+      filter = filter.inGroup(group);
+    }
+    int bins = params.containsKey("bins") ? parseInt(params.get("bins"), "bins") : 10;
+    double min = params.containsKey("min") ? parseDouble(params.get("min"), "min") : 0;
+    double max = params.containsKey("max") ? parseDouble(params.get("max"), "max") : 100;
+    MessageColumns.Summary summary = MessageColumns.shared.summarize(filter);
+    long[] histogram = MessageColumns.shared.histogram(filter, bins, min, max);
+    StringBuilder json = new StringBuilder("{\"messages\":").append(summary.getMessages())
+      .append(",\"scored\":").append(summary.getScored())
+      .append(",\"averagePositivity\":").append(summary.getAveragePositivity())
+      .append(",\"averageLength\":").append(summary.getAverageLength())
+      .append(",\"histogram\":{\"min\":").append(min).append(",\"max\":").append(max).append(",\"counts\":[");
+    for (int i = 0; i < histogram.length; i++)
+      json.append(i > 0 ? "," : "").append(histogram[i]);
+    respond(exchange, 200, json.append("]}}").toString());
+  }
+
+  private void graph(HttpExchange exchange, Map < String, String > params) throws IOException {
+    int top = params.containsKey("top") ? parseInt(params.get("top"), "top") : 20;
+    respond(exchange, 200, FollowGraph.analyzeAsync(Math.max(0, Math.min(top, 1000))).join().toJson());
+  }
+
+  private void leaderboards(HttpExchange exchange, Map < String, String > params) throws IOException {
+    int k = params.containsKey("k") ? parseInt(params.get("k"), "k") : 10;
+    respond(exchange, 200, Leaderboards.toJson(Math.max(0, Math.min(k, 1000))));
+  }
+
+  private void memory(HttpExchange exchange, Map < String, String > params) throws IOException {
+    long users = params.containsKey("users") ? parseLong(params.get("users"), "users") : 0;
+    long follows = params.containsKey("follows") ? parseLong(params.get("follows"), "follows") : 0;
+    long messages = params.containsKey("messages") ? parseLong(params.get("messages"), "messages") : 0;
+    respond(exchange, 200, MemoryAccounting.report().toJson(users, follows, messages));
+  }
+
+  private void metrics(HttpExchange exchange, Map < String, String > params) throws IOException {
+    String group = params.getOrDefault("group", "Root");
+    if (!UserGroup.userGroupMap.containsKey(group))
+      throw new IllegalArgumentException("No such group: " + group);
+    RollingMetrics.Resolution resolution;
+    try {
+      resolution = RollingMetrics.Resolution.valueOf(params.getOrDefault("resolution", "second").toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("resolution must be second, minute or hour");
+    }
+    respond(exchange, 200, RollingMetrics.toJson(group, resolution));
+  }
+
+  // --- Plumbing ---
+
+  private interface Endpoint {
+    void handle(HttpExchange exchange, Map < String, String > params) throws IOException;
+  }
+
+  private static HttpHandler handler(Endpoint endpoint) {
+    return exchange -> {
+      try {
+        endpoint.handle(exchange, params(exchange));
+      } catch (IllegalArgumentException e) {
+        respond(exchange, 400, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+      } catch (UnsupportedOperationException e) {
+        respond(exchange, 405, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+      } catch (OperationRejectedException e) {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf((e.getRetryAfterMillis() + 999) / 1000));
+        respond(exchange, 429, "{\"error\":" + Json.quote(e.getMessage()) + ",\"retryAfterMillis\":" + e.getRetryAfterMillis() + "}");
+      } catch (IllegalStateException e) {
+        respond(exchange, 503, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+      } catch (RuntimeException e) {
+        respond(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e)) + "}");
+      } finally {
+        exchange.close();
+      }
+    };
+  }
+
+  private static Map < String, String > params(HttpExchange exchange) throws IOException {
+    Map < String, String > params = new HashMap < > ();
+    parseForm(exchange.getRequestURI().getRawQuery(), params);
+    if (exchange.getRequestMethod().equals("POST")) {
+      String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      String type = exchange.getRequestHeaders().getFirst("Content-Type");
+      if (type != null && type.startsWith("application/json"))
+        params.putAll(Json.parseObject(body));
+      else
+        parseForm(body, params);
+    }
+    return params;
+  }
+
+  private static void parseForm(String form, Map < String, String > params) {
+    if (form == null || form.isEmpty())
+      return;
+    for (String pair: form.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+  }
+
+  private static void requirePost(HttpExchange exchange) {
+    if (!exchange.getRequestMethod().equals("POST"))
+      throw new UnsupportedOperationException("Use POST");
+  }
+
+  private static String require(Map < String, String > params, String name) {
+    String value = params.get(name);
+    if (value == null || value.isEmpty())
+      throw new IllegalArgumentException("Missing parameter: " + name);
+    return value;
+  }
+
+  private static int parseInt(String value, String name) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+  }
+
+  private static long parseLong(String value, String name) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+  }
+
+  private static double parseDouble(String value, String name) {
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+  }
+
+  private static Writer writer(HttpExchange exchange) {
+    return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Append-only store of every user's own posts (their author timeline).
+ * Each message passed to Message.sendMessage is appended to its sender's timeline
+ * together with a global, strictly increasing sequence number. Feeds can then be
+ * assembled at read time by TimelineReader instead of being copied into the news
+ * list of every follower when the message is posted.
+ *
+ * Writers append under the timeline's monitor; readers never lock. A reader first
+ * reads the volatile size and then the arrays, which are always replaced before the
+ * size is published, so every index below the observed size is safe to read.
+ *
+ * Indices are absolute: when retention trims the oldest posts, the arrays are replaced
+ * by a segment starting at the new floor, and indices below the floor read as null.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AuthorTimeline {
+
+  // Global sequence shared by all timelines, used to order the k-way merge
+  private static final AtomicLong sequence = new AtomicLong();
+
+  // Map of author IDs to their timelines
+  public static ConcurrentHashMap < String, AuthorTimeline > timelines = new ConcurrentHashMap < > ();
+
+  /**
+   * The stored part of a timeline: the entries from absolute index base on.
+   */
+  private static final class Segment {
+    final String[] messageIds;
+    final long[] sequences;
+    final int base;
+
+    Segment(String[] messageIds, long[] sequences, int base) {
+      this.messageIds = messageIds;
+      this.sequences = sequences;
+      this.base = base;
+    }
+  }
+
+  private volatile Segment segment = new Segment(new String[4], new long[4], 0);
+  private volatile int size;
+
+  /**
+   * Gets the timeline of the given author, creating an empty one if needed.
+   *
+   * @param authorUid The ID of the author.
+   * @return The author's timeline.
+   */
+  public static AuthorTimeline of(String authorUid) {
+    return timelines.computeIfAbsent(authorUid, k -> new AuthorTimeline());
+  }
+
+  /**
+   * Gets the timeline of the given author without creating it.
+   *
+   * @param authorUid The ID of the author.
+   * @return The author's timeline, or null if they never posted.
+   */
+  public static AuthorTimeline peek(String authorUid) {
+    return timelines.get(authorUid);
+  }
+
+  /**
+   * Appends a message to the timeline of its sender.
+   *
+   * @param message The message being posted.
+   * @return The global sequence number assigned to the message.
+   */
+  public static long append(Message message) {
+    AuthorTimeline timeline = of(message.getFrom());
+    synchronized (timeline) {
+      long seq = sequence.incrementAndGet();
+      int n = timeline.size;
+      Segment s = timeline.segment;
+      int stored = n - s.base;
+      if (stored == s.messageIds.length) {
+        String[] ids = new String[Math.max(4, stored * 2)];
+        long[] seqs = new long[ids.length];
+        System.arraycopy(s.messageIds, 0, ids, 0, stored);
+        System.arraycopy(s.sequences, 0, seqs, 0, stored);
+        s = timeline.segment = new Segment(ids, seqs, s.base);
+      }
+      s.messageIds[stored] = message.getUid();
+      s.sequences[stored] = seq;
+      timeline.size = n + 1; // publishes the new entry to readers
+      return seq;
+    }
+  }
+
+  /**
+   * Drops the oldest entries so that the timeline starts at the given absolute index.
+   *
+   * @param floor The absolute index of the oldest entry to keep.
+   * @return The number of entries dropped.
+   */
+  public synchronized int trimTo(int floor) {
+    Segment s = segment;
+    int n = size;
+    floor = Math.min(floor, n);
+    if (floor <= s.base)
+      return 0;
+    int keep = n - floor;
+    String[] ids = new String[Math.max(4, keep)];
+    long[] seqs = new long[ids.length];
+    System.arraycopy(s.messageIds, floor - s.base, ids, 0, keep);
+    System.arraycopy(s.sequences, floor - s.base, seqs, 0, keep);
+    segment = new Segment(ids, seqs, floor);
+    return floor - s.base;
+  }
+
+  /**
+   * @return The absolute index of the oldest entry still stored.
+   */
+  public int floor() {
+    return segment.base;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The ID of the message at the given absolute index, or null if it was trimmed.
+   */
+  public String messageAt(int index) {
+    Segment s = segment;
+    return index < s.base ? null : s.messageIds[index - s.base];
+  }
+
+  /**
+   * @return The sequence of the entry at the given absolute index, or 0 if it was trimmed.
+   */
+  public long sequenceAt(int index) {
+    Segment s = segment;
+    return index < s.base ? 0 : s.sequences[index - s.base];
+  }
+
+  /**
+   * @return The sequence number of the newest post, or 0 if the timeline is empty.
+   */
+  public long lastSequence() {
+    int n = size;
+    Segment s = segment;
+    return n <= s.base ? 0 : s.sequences[n - 1 - s.base];
+  }
+
+  /**
+   * Binary searches for the newest entry posted strictly before the given sequence.
+   *
+   * @param bound The exclusive upper sequence bound.
+   * @return The absolute index of that entry, or -1 if there is none.
+   */
+  public int indexBefore(long bound) {
+    int n = size;
+    Segment s = segment;
+    long[] seqs = s.sequences;
+    int lo = 0, hi = n - 1 - s.base, found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (seqs[mid] < bound) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found < 0 ? -1 : found + s.base;
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Admin browser for the users, groups or messages, opened from the statistics buttons
+ * of the main window: a table that loads pages as it is scrolled (PagedTableModel),
+ * with an order and an ID prefix filter that are applied by RegistryBrowser rather
+ * than by sorting or filtering the table.
+ *
+ * Opening a browser only takes a ReadView and asks for the first page, so it is quick
+ * however many entries there are. Creation order reads that view; ID order reads the
+ * live SortedIdIndex, which is built on its first use.
+ */
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.util.function.ToIntFunction;
+
+public class BrowserDialog extends JDialog {
+
+  /**
+   * Reads a page of a registry.
+   */
+  private interface Query {
+    RegistryBrowser.Page page(ReadView view, String prefix, RegistryBrowser.Order order, String cursor, int limit);
+  }
+
+  private final PagedTableModel model;
+  private final Query query;
+  private final JComboBox < RegistryBrowser.Order > order;
+  private final JTextField prefix = new JTextField(16);
+  private final JLabel status = new JLabel(" ");
+  private final String noun;
+  private final ToIntFunction < ReadView > total;
+  private ReadView view;
+
+  private BrowserDialog(Frame owner, String title, String noun, ToIntFunction < ReadView > total, String filterLabel,
+    RegistryBrowser.Order[] orders, PagedTableModel model, Query query) {
+    super(owner, title, false);
+    this.model = model;
+    this.query = query;
+    this.noun = noun;
+    this.total = total;
+    order = new JComboBox < > (orders);
+
+    JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    controls.add(new JLabel("Order"));
+    controls.add(order);
+    controls.add(new JLabel(filterLabel));
+    controls.add(prefix);
+
+    JTable table = new JTable(model);
+    table.setFillsViewportHeight(true);
+
+    setLayout(new BorderLayout());
+    add(controls, BorderLayout.NORTH);
+    add(new JScrollPane(table), BorderLayout.CENTER);
+    add(status, BorderLayout.SOUTH);
+
+    order.addActionListener(e -> reload());
+    // Filter once typing pauses, rather than on every key
+    Timer typing = new Timer(250, e -> reload());
+    typing.setRepeats(false);
+    prefix.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent e) {
+        typing.restart();
+      }
+
+      public void removeUpdate(DocumentEvent e) {
+        typing.restart();
+      }
+
+      public void changedUpdate(DocumentEvent e) {
+        typing.restart();
+      }
+    });
+    prefix.addActionListener(e -> {
+      typing.stop();
+      reload();
+    });
+    model.addTableModelListener(e -> updateStatus());
+
+    setSize(700, 500);
+    setLocationRelativeTo(owner);
+    reload();
+  }
+
+  /**
+   * Opens a browser of all users.
+   */
+  public static BrowserDialog users(Frame owner) {
+    PagedTableModel model = new PagedTableModel(new String[] { "User Id", "Group", "Followers", "Following", "Last Updated" }, id -> {
+      User user = User.usersMap.get(id);
+      if (user == null)
+        return null;
+      return new Object[] { id, user.getUserGroup(), user.getFollowers().size(), user.getFollowings().size(),
+        Utils.formatMyDate(user.getLastUpdateTime()) };
+    });
+    return open(new BrowserDialog(owner, "All Users", "users", v -> v.getUsers().size(), "Id starts with",
+      RegistryBrowser.Order.values(), model, RegistryBrowser::users));
+  }
+
+  /**
+   * Opens a browser of all groups.
+   */
+  public static BrowserDialog groups(Frame owner) {
+    PagedTableModel model = new PagedTableModel(new String[] { "Group Id", "Parent", "Members", "Users (all levels)", "Groups (all levels)" }, id -> {
+      UserGroup group = UserGroup.userGroupMap.get(id);
+      if (group == null)
+        return null;
+      UserGroup parent = group.getParent();
+      return new Object[] { id, parent == null ? "" : parent.getUid(), group.getMemberCount(), group.getSubtreeUsers(),
+        group.getSubtreeGroups() };
+    });
+    return open(new BrowserDialog(owner, "All Groups", "groups", v -> v.getGroups().size(), "Id starts with",
+      RegistryBrowser.Order.values(), model, RegistryBrowser::groups));
+  }
+
+  /**
+   * Opens a browser of the messages in memory.
+   */
+  public static BrowserDialog messages(Frame owner) {
+    PagedTableModel model = new PagedTableModel(new String[] { "Posted", "From", "Message", "Positive %" }, id -> {
+      Message message = Message.messageMap.get(id);
+      if (message == null)
+        return null;
+      Double positive = message.getPositivePercentage();
+      return new Object[] { Utils.formatMyDate(message.getCreationTime()), message.getFrom(), message.getText(),
+        positive == null ? "" : positive };
+    });
+    RegistryBrowser.Order[] orders = { RegistryBrowser.Order.NEWEST, RegistryBrowser.Order.OLDEST };
+    return open(new BrowserDialog(owner, "All Messages", "messages in memory", v -> v.getMessages().size(),
+      "Sender Id starts with", orders, model, RegistryBrowser::messages));
+  }
+
+  private static BrowserDialog open(BrowserDialog dialog) {
+    dialog.setVisible(true);
+    return dialog;
+  }
+
+  // Starts the table over from a new view with the current order and filter
+  private void reload() {
+    view = ReadView.current();
+    ReadView pinned = view;
+    String filter = prefix.getText().trim();
+    RegistryBrowser.Order selected = (RegistryBrowser.Order) order.getSelectedItem();
+    model.query((cursor, limit) -> query.page(pinned, filter, selected, cursor, limit));
+  }
+
+  private void updateStatus() {
+    status.setText(" " + model.getLoadedRows() + (model.isExhausted() ? "" : "+") + " shown of " + total.applyAsInt(view) + " " + noun);
+  }
+}
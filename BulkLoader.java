@@ -0,0 +1,437 @@
+/**
+ * Streaming bulk import of existing accounts into Mini Twitter.
+ *
+ * Reads, in this order:
+ *   groups.csv       id,parent          (parent defaults to Root)
+ *   users.csv        id[,name]
+ *   memberships.csv  user,group         (users without a membership go under Root)
+ *   follows.csv      follower,followee
+ *   messages.ndjson  {"from": ..., "text": ..., "id": ..., "time": ..., "replyTo": ...}
+ *                    (id, time in epoch milliseconds and replyTo optional)
+ * Any file may be omitted and may start with a header row.
+ *
+ * Files are streamed in chunks; every chunk is parsed in parallel and then inserted in
+ * one batch into registries that were presized from the line counts. IDs are validated
+ * the way VisitorValidation does (no spaces, no duplicates) and rejected rows are
+ * counted, as are groups whose parents form a cycle, messages with a malformed time and
+ * replies that do not follow their parent. Observers are not notified per item: the registries' insert methods are used
+ * directly and bulkLoadObservers run once when the whole import is complete.
+ *
+ * Usage: java BulkLoader directory [snapshotFile]
+ *   loads the files found in the directory and optionally writes a snapshot.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+public class BulkLoader {
+
+  // Observer Pattern: notified once after every bulk load
+  public static List < Runnable > bulkLoadObservers = new ArrayList < > ();
+
+  private static final int CHUNK_LINES = 64 * 1024;
+
+  /**
+   * Counts of loaded and rejected rows per input file.
+   */
+  public static class Result {
+    public long groups, users, memberships, follows, messages;
+    public long rejectedGroups, rejectedUsers, rejectedMemberships, rejectedFollows, rejectedMessages;
+    public long elapsedMillis;
+
+    @Override
+    public String toString() {
+      return "groups " + groups + " (" + rejectedGroups + " rejected), " +
+        "users " + users + " (" + rejectedUsers + " rejected), " +
+        "memberships " + memberships + " (" + rejectedMemberships + " rejected), " +
+        "follows " + follows + " (" + rejectedFollows + " rejected), " +
+        "messages " + messages + " (" + rejectedMessages + " rejected) in " + elapsedMillis + " ms";
+    }
+  }
+
+  /**
+   * Loads every known input file present in the directory.
+   *
+   * @param directory The directory holding groups.csv, users.csv, memberships.csv, follows.csv and messages.ndjson.
+   * @return The load counts.
+   * @throws IOException if a file cannot be read.
+   */
+  public static Result load(Path directory) throws IOException {
+    return load(existing(directory.resolve("groups.csv")), existing(directory.resolve("users.csv")),
+      existing(directory.resolve("memberships.csv")), existing(directory.resolve("follows.csv")),
+      existing(directory.resolve("messages.ndjson")));
+  }
+
+  /**
+   * Loads the given files; any of them may be null.
+   *
+   * @return The load counts.
+   * @throws IOException if a file cannot be read.
+   */
+  public static synchronized Result load(Path groups, Path users, Path memberships, Path follows, Path messages) throws IOException {
+    long start = System.currentTimeMillis();
+    Result result = new Result();
+    synchronized (TwitterOperations.class) {
+      if (groups != null)
+        loadGroups(groups, result);
+      if (users != null)
+        loadUsers(users, result);
+      if (memberships != null)
+        loadMemberships(memberships, result);
+      attachUngroupedUsers();
+      if (follows != null)
+        loadFollows(follows, result);
+      if (messages != null)
+        loadMessages(messages, result);
+      TimelineReader.invalidateAll();
+      ReadView.publish();
+    }
+    result.elapsedMillis = System.currentTimeMillis() - start;
+
+    Observers.dispatch("bulkLoad", bulkLoadObservers);
+    return result;
+  }
+
+  // --- Sections ---
+
+  private static void loadGroups(Path file, Result result) throws IOException {
+    long lines = countLines(file);
+    presizeGroups(lines);
+    HashSet < String > usedIds = new HashSet < > (UserGroup.userGroups);
+    List < UserGroup > pending = new ArrayList < > ();
+    Map < String, String > parentOf = new HashMap < > ();
+    stream(file, line -> Csv.split(line), "id", rows -> {
+      for (String[] row: rows) {
+        if (row == null || row[0].isEmpty()) {
+          result.rejectedGroups++;
+          continue;
+        }
+        UserGroup group = new UserGroup(row[0]);
+        group.setName(row[0]);
+        if (group.visit(usedIds) != VisitorValidation.VALIDATIONRESULT.SUCCESS) {
+          result.rejectedGroups++;
+          continue;
+        }
+        pending.add(group);
+        parentOf.put(row[0], row.length > 1 && !row[1].isEmpty() ? row[1] : "Root");
+      }
+    });
+    // Groups are registered once every row is read, so rows may come in any order;
+    // a row whose parent chain leads back to itself is rejected, and groups below it go under Root
+    Set < String > cyclic = cyclicGroups(parentOf);
+    for (UserGroup i: pending) {
+      if (cyclic.contains(i.getUid())) {
+        result.rejectedGroups++;
+        continue;
+      }
+      UserGroup.putUserGroup(i);
+      result.groups++;
+    }
+    for (UserGroup i: pending) {
+      if (cyclic.contains(i.getUid()))
+        continue;
+      UserGroup parent = UserGroup.userGroupMap.get(parentOf.get(i.getUid()));
+      if (parent == null)
+        parent = UserGroup.userGroupMap.get("Root");
+      parent.attachGroup(i);
+    }
+  }
+
+  // Groups on a cycle of new parent links, a group being its own parent included;
+  // links to existing groups cannot close a cycle
+  private static Set < String > cyclicGroups(Map < String, String > parentOf) {
+    Set < String > cyclic = new HashSet < > ();
+    Set < String > done = new HashSet < > ();
+    for (String start: parentOf.keySet()) {
+      List < String > path = new ArrayList < > ();
+      Set < String > onPath = new HashSet < > ();
+      for (String i = start; parentOf.containsKey(i) && !done.contains(i); i = parentOf.get(i)) {
+        if (!onPath.add(i)) {
+          cyclic.addAll(path.subList(path.indexOf(i), path.size()));
+          break;
+        }
+        path.add(i);
+      }
+      done.addAll(path);
+    }
+    return cyclic;
+  }
+
+  private static void loadUsers(Path file, Result result) throws IOException {
+    long lines = countLines(file);
+    presizeUsers(lines);
+    HashSet < String > usedIds = new HashSet < > ((int) ((User.users.size() + lines) * 4 / 3 + 1));
+    usedIds.addAll(User.users);
+    stream(file, line -> {
+      String[] row = Csv.split(line);
+      if (row == null || row[0].isEmpty())
+        return null;
+      User user = new User(row[0]);
+      user.setName(row.length > 1 && !row[1].isEmpty() ? row[1] : row[0]);
+      return user;
+    }, "id", rows -> {
+      for (User user: rows) {
+        if (user == null || user.visit(usedIds) != VisitorValidation.VALIDATIONRESULT.SUCCESS) {
+          result.rejectedUsers++;
+          continue;
+        }
+        User.putUser(user);
+        result.users++;
+      }
+    });
+  }
+
+  private static void loadMemberships(Path file, Result result) throws IOException {
+    stream(file, line -> Csv.split(line), "user", rows -> {
+      for (String[] row: rows) {
+        User user = row == null || row.length < 2 ? null : User.usersMap.get(row[0]);
+        UserGroup group = user == null ? null : UserGroup.userGroupMap.get(row[1]);
+        if (group == null || !group.attachUser(user)) {
+          result.rejectedMemberships++;
+          continue;
+        }
+        result.memberships++;
+      }
+    });
+  }
+
+  private static void attachUngroupedUsers() {
+    UserGroup root = UserGroup.userGroupMap.get("Root");
+    for (String i: User.users) {
+      User user = User.usersMap.get(i);
+      if (user.getUserGroup() == null || user.getUserGroup().isEmpty())
+        root.attachUser(user);
+    }
+  }
+
+  private static void loadFollows(Path file, Result result) throws IOException {
+    stream(file, line -> {
+      String[] row = Csv.split(line);
+      if (row == null || row.length < 2)
+        return null;
+      User follower = User.usersMap.get(row[0]);
+      User followee = User.usersMap.get(row[1]);
+      return follower == null || followee == null ? null : new User[] { follower, followee };
+    }, "follower", rows -> {
+      for (User[] edge: rows) {
+        if (edge == null || !edge[0].linkFollowing(edge[1])) {
+          result.rejectedFollows++;
+          continue;
+        }
+        result.follows++;
+      }
+    });
+  }
+
+  private static void loadMessages(Path file, Result result) throws IOException {
+    presizeMessages(countLines(file));
+    stream(file, line -> {
+      Map < String, String > fields;
+      try {
+        fields = Json.parseObject(line);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      String from = fields.get("from");
+      String text = fields.get("text");
+      if (from == null || text == null || !User.usersMap.containsKey(from))
+        return null;
+      long time = System.currentTimeMillis();
+      if (fields.get("time") != null) {
+        try {
+          time = Long.parseLong(fields.get("time"));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        if (time < 0)
+          return null;
+      }
+      String replyTo = fields.get("replyTo");
+      if (replyTo != null && replyTo.isEmpty())
+        return null;
+      Message message = fields.get("id") != null ? new Message(fields.get("id")) : new Message();
+      message.setFrom(from);
+      message.setCreationTime(time);
+      message.setReplyTo(replyTo);
+      message.setText(text);
+      message.calculatePositivity();
+      return message;
+    }, null, rows -> {
+      for (Message message: rows) {
+        // A reply must follow its parent, as for TwitterOperations.reply
+        String replyTo = message == null ? null : message.getReplyTo();
+        if (message == null || Message.messageMap.containsKey(message.getUid()) ||
+          replyTo != null && !Message.messageMap.containsKey(replyTo) && !ConversationIndex.contains(replyTo)) {
+          if (message != null)
+            message.releaseText();
+          result.rejectedMessages++;
+          continue;
+        }
+        Message.deliver(message, User.usersMap.get(message.getFrom()).getFollowers());
+        result.messages++;
+      }
+    });
+  }
+
+  // --- Streaming ---
+
+  private interface Batch < T > {
+    void insert(List < T > rows);
+  }
+
+  /**
+   * Streams the file in chunks, parsing each chunk in parallel and inserting it as one batch.
+   * Blank lines, lines starting with '#' and a header row starting with headerField are skipped.
+   */
+  private static < T > void stream(Path file, Function < String, T > parser, String headerField, Batch < T > batch) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      List < String > chunk = new ArrayList < > (CHUNK_LINES);
+      boolean first = true;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (first) {
+          first = false;
+          if (line.startsWith("\uFEFF"))
+            line = line.substring(1);
+          if (headerField != null && (line.equals(headerField) || line.startsWith(headerField + ",")))
+            continue;
+        }
+        if (line.isBlank() || line.startsWith("#"))
+          continue;
+        chunk.add(line);
+        if (chunk.size() == CHUNK_LINES) {
+          batch.insert(parse(chunk, parser));
+          chunk.clear();
+        }
+      }
+      if (!chunk.isEmpty())
+        batch.insert(parse(chunk, parser));
+    }
+  }
+
+  private static < T > List < T > parse(List < String > chunk, Function < String, T > parser) {
+    List < T > rows = new ArrayList < > (chunk.size());
+    chunk.parallelStream().map(line -> Optional.ofNullable(parser.apply(line))).forEachOrdered(i -> rows.add(i.orElse(null)));
+    return rows;
+  }
+
+  private static long countLines(Path file) throws IOException {
+    long lines = 0;
+    byte[] buffer = new byte[1 << 16];
+    try (java.io.InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0)
+        for (int i = 0; i < n; i++)
+          if (buffer[i] == '\n')
+            lines++;
+    }
+    return lines + 1;
+  }
+
+  private static Path existing(Path file) {
+    return Files.isRegularFile(file) ? file : null;
+  }
+
+  // --- Presizing ---
+
+  private static void presizeUsers(long extra) {
+    int capacity = (int) Math.min(Integer.MAX_VALUE - 8, User.users.size() + extra);
+    ConcurrentHashMap < String, User > usersMap = new ConcurrentHashMap < > (capacity);
+    usersMap.putAll(User.usersMap);
+    User.usersMap = usersMap;
+    SnapshotList < String > users = new SnapshotList < > (capacity);
+    users.addAll(User.users);
+    User.users = users;
+  }
+
+  private static void presizeGroups(long extra) {
+    int capacity = (int) Math.min(Integer.MAX_VALUE - 8, UserGroup.userGroups.size() + extra);
+    ConcurrentHashMap < String, UserGroup > userGroupMap = new ConcurrentHashMap < > (capacity);
+    userGroupMap.putAll(UserGroup.userGroupMap);
+    UserGroup.userGroupMap = userGroupMap;
+    SnapshotList < String > userGroups = new SnapshotList < > (capacity);
+    userGroups.addAll(UserGroup.userGroups);
+    UserGroup.userGroups = userGroups;
+  }
+
+  private static void presizeMessages(long extra) {
+    int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Message.messages.size() + extra);
+    ConcurrentHashMap < String, Message > messageMap = new ConcurrentHashMap < > (capacity);
+    messageMap.putAll(Message.messageMap);
+    Message.messageMap = messageMap;
+    SnapshotList < String > messages = new SnapshotList < > (capacity);
+    messages.addAll(Message.messages);
+    Message.messages = messages;
+  }
+
+  /**
+   * Minimal CSV field splitting with support for double-quoted fields.
+   */
+  static class Csv {
+    static String[] split(String line) {
+      if (line.indexOf('"') < 0)
+        return splitPlain(line);
+      List < String > fields = new ArrayList < > (4);
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (quoted) {
+          if (c == '"') {
+            if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+              field.append('"');
+              i++;
+            } else {
+              quoted = false;
+            }
+          } else {
+            field.append(c);
+          }
+        } else if (c == '"') {
+          quoted = true;
+        } else if (c == ',') {
+          fields.add(field.toString().trim());
+          field.setLength(0);
+        } else {
+          field.append(c);
+        }
+      }
+      if (quoted)
+        return null;
+      fields.add(field.toString().trim());
+      return fields.toArray(new String[0]);
+    }
+
+    // Fast path for the common case of lines without quotes
+    private static String[] splitPlain(String line) {
+      int count = 1;
+      for (int i = line.indexOf(','); i >= 0; i = line.indexOf(',', i + 1))
+        count++;
+      String[] fields = new String[count];
+      int start = 0;
+      for (int f = 0; f < count; f++) {
+        int end = f == count - 1 ? line.length() : line.indexOf(',', start);
+        fields[f] = line.substring(start, end).trim();
+        start = end + 1;
+      }
+      return fields;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java BulkLoader directory [snapshotFile]");
+      System.exit(2);
+    }
+    Result result = load(Paths.get(args[0]));
+    System.out.println("Loaded " + result);
+    if (args.length > 1) {
+      SnapshotStore.save(Paths.get(args[1]));
+      System.out.println("Wrote snapshot " + args[1]);
+    }
+  }
+}
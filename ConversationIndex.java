@@ -0,0 +1,253 @@
+/**
+ * Index of reply threads, so that a whole conversation is read without scanning
+ * Message.messages.
+ *
+ * A message posted as a reply (Message.getReplyTo) belongs to the conversation of its
+ * parent, which is rooted at the first message that was not a reply. For every reply
+ * the index keeps its parent, root and depth, and it keeps two append-only lists: the
+ * replies of each root in the order they were posted, and the direct replies of each
+ * parent. Fetching a page of a thread therefore costs O(page), whatever the size of the
+ * conversation, and a cursor is just a position in the list, which never moves since
+ * replies are only appended. Messages that nobody replied to cost nothing.
+ *
+ * Message.deliver reports every reply here, so replicas index replies as the leader
+ * did, and SnapshotStore rebuilds the index after a load from the replies in the
+ * snapshot and the MessageArchive. Writers are serialized by the TwitterOperations
+ * lock; readers never lock, since the lists are SnapshotLists. Replies evicted by the
+ * RetentionSweeper stay in the index; their bodies are in the archive.
+ */
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ConversationIndex {
+
+  /**
+   * Where a reply sits in its conversation.
+   */
+  public static final class Link {
+    private final String parent;
+    private final String root;
+    private final int depth;
+
+    Link(String parent, String root, int depth) {
+      this.parent = parent;
+      this.root = root;
+      this.depth = depth;
+    }
+
+    public String getParent() {
+      return parent;
+    }
+
+    public String getRoot() {
+      return root;
+    }
+
+    /**
+     * @return 1 for a reply to the root, 2 for a reply to such a reply, and so on.
+     */
+    public int getDepth() {
+      return depth;
+    }
+  }
+
+  /**
+   * A page of replies, oldest first.
+   */
+  public static final class Page {
+    private final String root;
+    private final List < String > messageIds;
+    private final int total;
+    private final String nextCursor;
+
+    Page(String root, List < String > messageIds, int total, String nextCursor) {
+      this.root = root;
+      this.messageIds = messageIds;
+      this.total = total;
+      this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return The ID of the message the conversation started with.
+     */
+    public String getRoot() {
+      return root;
+    }
+
+    public List < String > getMessageIds() {
+      return messageIds;
+    }
+
+    /**
+     * @return The number of replies in the whole list the page was read from.
+     */
+    public int getTotal() {
+      return total;
+    }
+
+    /**
+     * @return The cursor of the next (newer) page, or null if the list is exhausted.
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  // Map of reply IDs to their place in the conversation
+  private static final ConcurrentHashMap < String, Link > links = new ConcurrentHashMap < > ();
+  // Map of root IDs to all their replies, and of parent IDs to their direct replies, in post order
+  private static final ConcurrentHashMap < String, SnapshotList < String > > threads = new ConcurrentHashMap < > ();
+  private static final ConcurrentHashMap < String, SnapshotList < String > > children = new ConcurrentHashMap < > ();
+
+  // --- Reported by Message.deliver ---
+
+  /**
+   * Indexes a message if it is a reply. Callers must hold the TwitterOperations lock.
+   *
+   * @param message The message being delivered.
+   */
+  static void onPost(Message message) {
+    add(message.getUid(), message.getReplyTo());
+  }
+
+  private static void add(String messageId, String parent) {
+    if (parent == null || links.containsKey(messageId))
+      return;
+    // A parent this node never saw (e.g. on a replica that started late) becomes a root
+    Link parentLink = links.get(parent);
+    String root = parentLink == null ? parent : parentLink.root;
+    links.put(messageId, new Link(parent, root, parentLink == null ? 1 : parentLink.depth + 1));
+    threads.computeIfAbsent(root, k -> new SnapshotList < > ()).add(messageId);
+    children.computeIfAbsent(parent, k -> new SnapshotList < > ()).add(messageId);
+  }
+
+  /**
+   * Recomputes the index from the MessageArchive and the registries, e.g. after a
+   * snapshot load. Callers must hold the TwitterOperations lock.
+   */
+  static void rebuild() {
+    links.clear();
+    threads.clear();
+    children.clear();
+    // The archive holds the oldest messages in post order, so parents come before replies
+    try {
+      MessageArchive.shared.scan(i -> {
+        add(i.getMessageId(), i.getReplyTo());
+        return false;
+      }, 0);
+    } catch (IOException e) {
+      System.err.println("Could not read message archive " + MessageArchive.shared.getPath() + ": " + e.getMessage());
+    }
+    for (String i: Message.messages) {
+      Message message = Message.messageMap.get(i);
+      if (message != null)
+        onPost(message);
+    }
+  }
+
+  // --- Queries ---
+
+  /**
+   * @param messageId A message ID.
+   * @return Where the message sits in its conversation, or null if it is not a reply.
+   */
+  public static Link getLink(String messageId) {
+    return links.get(messageId);
+  }
+
+  /**
+   * @param messageId A message ID.
+   * @return The ID of the message its conversation started with; the message itself if
+   *         it is not a reply.
+   */
+  public static String getRoot(String messageId) {
+    Link link = links.get(messageId);
+    return link == null ? messageId : link.root;
+  }
+
+  /**
+   * @return true if the message is a reply or was replied to.
+   */
+  public static boolean contains(String messageId) {
+    return links.containsKey(messageId) || children.containsKey(messageId);
+  }
+
+  /**
+   * @return The number of replies in the conversation of the given message.
+   */
+  public static int threadSize(String messageId) {
+    SnapshotList < String > thread = threads.get(getRoot(messageId));
+    return thread == null ? 0 : thread.size();
+  }
+
+  /**
+   * @return The number of direct replies to the given message.
+   */
+  public static int replyCount(String messageId) {
+    SnapshotList < String > replies = children.get(messageId);
+    return replies == null ? 0 : replies.size();
+  }
+
+  /**
+   * Reads a page of the conversation a message belongs to: every reply under its root,
+   * in the order they were posted.
+   *
+   * @param messageId Any message of the conversation.
+   * @param cursor    The cursor of the previous page, or null for the first replies.
+   * @param limit     The maximum number of replies to return.
+   * @return The page.
+   * @throws IllegalArgumentException if the cursor is malformed.
+   */
+  public static Page thread(String messageId, String cursor, int limit) {
+    String root = getRoot(messageId);
+    return page(root, threads.get(root), cursor, limit);
+  }
+
+  /**
+   * Reads a page of the direct replies to a message, in the order they were posted.
+   *
+   * @param messageId The parent message.
+   * @param cursor    The cursor of the previous page, or null for the first replies.
+   * @param limit     The maximum number of replies to return.
+   * @return The page.
+   * @throws IllegalArgumentException if the cursor is malformed.
+   */
+  public static Page replies(String messageId, String cursor, int limit) {
+    return page(getRoot(messageId), children.get(messageId), cursor, limit);
+  }
+
+  private static Page page(String root, SnapshotList < String > list, String cursor, int limit) {
+    int from = 0;
+    if (cursor != null) {
+      try {
+        from = Integer.parseInt(cursor);
+      } catch (NumberFormatException e) {
+        from = -1;
+      }
+      if (from < 0)
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+    if (list == null)
+      return new Page(root, Collections.emptyList(), 0, null);
+    List < String > replies = list.snapshot();
+    int total = replies.size();
+    int to = (int) Math.min(total, (long) from + Math.max(0, limit));
+    List < String > ids = from >= to ? Collections.emptyList() : new ArrayList < > (replies.subList(from, to));
+    return new Page(root, ids, total, to < total ? String.valueOf(to) : null);
+  }
+
+  /**
+   * @return The number of replies indexed.
+   */
+  public static int size() {
+    return links.size();
+  }
+
+  /**
+   * @return The number of conversations, i.e. of roots with at least one reply.
+   */
+  public static int conversations() {
+    return threads.size();
+  }
+}
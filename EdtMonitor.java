@@ -0,0 +1,126 @@
+/**
+ * Reports Event Dispatch Thread stalls: any single event that takes longer than
+ * -Dminitwitter.edt.stallMillis (default 50) to handle.
+ *
+ * Installed as the system EventQueue, it times every dispatched event. A watchdog thread
+ * checks the event in progress every few milliseconds, and once it is over the limit
+ * takes a stack trace of the EDT, which shows what the handler is stuck on; the stall
+ * is reported when the event finishes, to stderr, the TraceRecorder and as an
+ * EngineEvents.EdtStall JFR event.
+ */
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EdtMonitor extends EventQueue {
+
+  private static final int STACK_DEPTH = 12;
+
+  private static EdtMonitor installed;
+
+  private final long stallNanos;
+  // Start of the event being dispatched, or 0 between events; written by the EDT
+  private volatile long dispatchStart;
+  private volatile Thread dispatchThread;
+  // Stack of the EDT taken by the watchdog during the current stall
+  private volatile StackTraceElement[] stallStack;
+
+  private final AtomicLong stalls = new AtomicLong();
+  private volatile long maxStallMillis;
+
+  private EdtMonitor(long stallMillis) {
+    this.stallNanos = stallMillis * 1000000;
+  }
+
+  /**
+   * Installs the monitor if it is not installed yet. Does nothing in headless mode.
+   */
+  public static synchronized void install() {
+    if (installed != null || GraphicsEnvironment.isHeadless())
+      return;
+    long stallMillis = Long.getLong("minitwitter.edt.stallMillis", 50);
+    installed = new EdtMonitor(stallMillis);
+    Toolkit.getDefaultToolkit().getSystemEventQueue().push(installed);
+    Thread watchdog = new Thread(installed::watch, "edt-monitor");
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  /**
+   * @return The installed monitor, or null.
+   */
+  public static synchronized EdtMonitor get() {
+    return installed;
+  }
+
+  public long getStalls() {
+    return stalls.get();
+  }
+
+  public long getMaxStallMillis() {
+    return maxStallMillis;
+  }
+
+  @Override
+  protected void dispatchEvent(AWTEvent event) {
+    EngineEvents.EdtStall jfrEvent = new EngineEvents.EdtStall();
+    jfrEvent.begin();
+    long start = System.nanoTime();
+    dispatchThread = Thread.currentThread();
+    // Nested loops (modal dialogs) dispatch from inside an event; time the outer one
+    boolean outer = dispatchStart == 0;
+    if (outer) {
+      stallStack = null;
+      dispatchStart = start;
+    }
+    try {
+      super.dispatchEvent(event);
+    } finally {
+      if (outer)
+        dispatchStart = 0;
+      long nanos = System.nanoTime() - start;
+      if (outer && nanos >= stallNanos)
+        report(event, start, nanos, jfrEvent);
+    }
+  }
+
+  private void report(AWTEvent event, long start, long nanos, EngineEvents.EdtStall jfrEvent) {
+    long millis = nanos / 1000000;
+    stalls.incrementAndGet();
+    if (millis > maxStallMillis)
+      maxStallMillis = millis;
+    String type = event.getClass().getSimpleName();
+    StringBuilder stack = new StringBuilder();
+    StackTraceElement[] frames = stallStack;
+    if (frames != null)
+      for (int i = 0; i < Math.min(STACK_DEPTH, frames.length); i++)
+        stack.append("\n    at ").append(frames[i]);
+    System.err.println("EDT stalled " + millis + " ms handling " + type + (frames == null ? "" : ", stuck in:") + stack);
+    TraceRecorder.shared.record("edtStall", type, millis, start);
+    if (jfrEvent.shouldCommit()) {
+      jfrEvent.eventType = type;
+      jfrEvent.stack = stack.toString();
+      jfrEvent.commit();
+    }
+  }
+
+  // Samples the EDT once per event that runs over the limit
+  private void watch() {
+    long sleepMillis = Math.max(1, stallNanos / 1000000 / 5);
+    long sampled = 0;
+    while (true) {
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long start = dispatchStart;
+      Thread thread = dispatchThread;
+      if (start != 0 && start != sampled && thread != null && System.nanoTime() - start >= stallNanos) {
+        StackTraceElement[] frames = thread.getStackTrace();
+        if (dispatchStart == start)
+          stallStack = frames;
+        sampled = start;
+      }
+    }
+  }
+}
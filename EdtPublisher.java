@@ -0,0 +1,81 @@
+/**
+ * Marshals change notifications from engine threads to the Swing Event Dispatch Thread
+ * in batches, so that a burst of changes (a large fan-out, API traffic, a bulk load)
+ * costs the EDT one update instead of one per change.
+ *
+ * coalescing wraps a view refresh: however often it is triggered, at most one run is
+ * queued, and runs are at least an interval apart. batching queues items, such as
+ * tree changes, and hands everything queued so far to the EDT as one list, in order.
+ */
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class EdtPublisher {
+
+  public static final int DEFAULT_INTERVAL_MILLIS = 100;
+
+  /**
+   * @param task The UI work to run on the EDT.
+   * @return A Runnable that may be called from any thread, any number of times.
+   */
+  public static Runnable coalescing(Runnable task) {
+    return coalescing(task, DEFAULT_INTERVAL_MILLIS);
+  }
+
+  /**
+   * @param task           The UI work to run on the EDT.
+   * @param intervalMillis The minimum time between the starts of two runs.
+   * @return A Runnable that may be called from any thread, any number of times.
+   */
+  public static Runnable coalescing(Runnable task, int intervalMillis) {
+    AtomicBoolean pending = new AtomicBoolean();
+    long[] lastRun = { System.nanoTime() - intervalMillis * 1000000L };
+    Runnable publish = () -> {
+      // Cleared first, so that changes made while the task runs schedule another run
+      pending.set(false);
+      lastRun[0] = System.nanoTime();
+      task.run();
+    };
+    return () -> {
+      if (!pending.compareAndSet(false, true))
+        return;
+      SwingUtilities.invokeLater(() -> {
+        // lastRun is only used on the EDT
+        long wait = (lastRun[0] + intervalMillis * 1000000L - System.nanoTime()) / 1000000;
+        if (wait <= 0) {
+          publish.run();
+        } else {
+          Timer timer = new Timer((int) wait, e -> publish.run());
+          timer.setRepeats(false);
+          timer.start();
+        }
+      });
+    };
+  }
+
+  /**
+   * @param task The UI work to run on the EDT with the queued items, oldest first.
+   * @return A Consumer that may be called from any thread to queue an item.
+   */
+  public static < T > Consumer < T > batching(Consumer < List < T > > task) {
+    ConcurrentLinkedQueue < T > queue = new ConcurrentLinkedQueue < > ();
+    AtomicBoolean pending = new AtomicBoolean();
+    return item -> {
+      queue.add(item);
+      if (!pending.compareAndSet(false, true))
+        return;
+      SwingUtilities.invokeLater(() -> {
+        pending.set(false);
+        List < T > batch = new ArrayList < > ();
+        for (T i; (i = queue.poll()) != null;)
+          batch.add(i);
+        if (!batch.isEmpty())
+          task.accept(batch);
+      });
+    };
+  }
+}
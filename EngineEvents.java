@@ -0,0 +1,102 @@
+/**
+ * JDK Flight Recorder events for the engine operations worth explaining in a recording:
+ * posting (with fan-out size), following, positivity scoring, observer dispatch, UI
+ * view rebuilds and Event Dispatch Thread stalls.
+ *
+ * The events are enabled but do not capture stack traces, and the frequent ones have a
+ * 1 ms threshold, so a recording running in production only pays for the slow cases.
+ * Both can be changed per event in a .jfc settings file passed to
+ * -XX:StartFlightRecording:settings=<file>, e.g. an <event name="minitwitter.SendMessage">
+ * element with threshold set to "0 ms" and stackTrace to "true".
+ *
+ * Call sites create the event, call begin, do the work and call commit, which only
+ * records the event if a recording is on and the duration is over the threshold. When
+ * no recording is running, the JIT removes almost all of it.
+ */
+import jdk.jfr.*;
+
+public class EngineEvents {
+
+  @Name("minitwitter.SendMessage")
+  @Label("Send Message")
+  @Category("Mini Twitter")
+  @Description("A message delivered to its sender and followers")
+  @StackTrace(false)
+  @Threshold("1 ms")
+  public static class SendMessage extends Event {
+    @Label("Sender")
+    String sender;
+
+    @Label("Fan-out")
+    @Description("Number of followers the message was delivered to")
+    int fanOut;
+  }
+
+  @Name("minitwitter.AddFollowing")
+  @Label("Add Following")
+  @Category("Mini Twitter")
+  @StackTrace(false)
+  @Threshold("1 ms")
+  public static class AddFollowing extends Event {
+    @Label("Follower")
+    String follower;
+
+    @Label("Followee")
+    String followee;
+
+    @Label("Added")
+    boolean added;
+  }
+
+  @Name("minitwitter.CalculatePositivity")
+  @Label("Calculate Positivity")
+  @Category("Mini Twitter")
+  @StackTrace(false)
+  @Threshold("1 ms")
+  public static class CalculatePositivity extends Event {
+    @Label("Text Length")
+    int textLength;
+
+    @Label("Score")
+    double score;
+  }
+
+  @Name("minitwitter.ObserverDispatch")
+  @Label("Observer Dispatch")
+  @Category("Mini Twitter")
+  @Description("Observers of one kind of change being notified")
+  @StackTrace(false)
+  @Threshold("1 ms")
+  public static class ObserverDispatch extends Event {
+    @Label("Topic")
+    String topic;
+
+    @Label("Observers")
+    int observers;
+  }
+
+  @Name("minitwitter.RefreshViews")
+  @Label("Refresh Views")
+  @Category({ "Mini Twitter", "UI" })
+  @Description("A window rebuilding its views after a change")
+  @StackTrace(false)
+  public static class RefreshViews extends Event {
+    @Label("Window")
+    String window;
+  }
+
+  @Name("minitwitter.EdtStall")
+  @Label("EDT Stall")
+  @Category({ "Mini Twitter", "UI" })
+  @Description("An event that kept the Event Dispatch Thread busy past the stall limit")
+  @StackTrace(false)
+  @Threshold("50 ms")
+  public static class EdtStall extends Event {
+    @Label("Event Type")
+    String eventType;
+
+    @Label("Stack")
+    @Description("Where the EDT was while stalled, as sampled by EdtMonitor")
+    String stack;
+  }
+}
@@ -0,0 +1,471 @@
+/**
+ * Point-in-time copy of the follow graph in compressed sparse row (CSR) form, with the
+ * analytics run on it: PageRank influence ranking, in- and out-degree histograms and
+ * HyperLogLog estimates of each top user's two-hop reach.
+ *
+ * Users are numbered 0..n-1 in ReadView order. The following edges u -> v ("u follows
+ * v") are stored as offsets into one int array per direction: outTargets holds the
+ * users each user follows and inSources the followers of each user, so neither
+ * direction needs a String or a per-user object.
+ *
+ * snapshot reads the users of the current ReadView and their followings lists, which
+ * are O(1) snapshots themselves, so copying the graph never takes the TwitterOperations
+ * lock and posting and following carry on meanwhile. Follows made after the copy began
+ * may or may not be in it. The copy and the analytics run on their own fork/join pool
+ * (-Dminitwitter.graph.threads, default all processors), so they neither block the
+ * engine nor take the common pool away from other parallel work.
+ */
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
+
+public class FollowGraph {
+
+  public static final double DAMPING = 0.85;
+  public static final double TOLERANCE = 1e-6;
+  public static final int MAX_ITERATIONS = 100;
+  // 2^12 registers: a standard error of about 1.6% for the reach estimates
+  public static final int HLL_BITS = 12;
+
+  private static final ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("minitwitter.graph.threads",
+    Runtime.getRuntime().availableProcessors()), p -> {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+    thread.setName("graph-analytics-" + thread.getPoolIndex());
+    return thread;
+  }, null, false);
+
+  // Vertices per parallel task
+  private static final int BLOCK = 4096;
+
+  private final String[] uids;
+  private final int[] outOffsets;
+  private final int[] outTargets;
+  private final int[] inOffsets;
+  private final int[] inSources;
+
+  /**
+   * @param uids       The user of each vertex.
+   * @param outOffsets The followings of vertex v are outTargets[outOffsets[v] .. outOffsets[v + 1]).
+   * @param outTargets The followed vertices.
+   */
+  FollowGraph(String[] uids, int[] outOffsets, int[] outTargets) {
+    this.uids = uids;
+    this.outOffsets = outOffsets;
+    this.outTargets = outTargets;
+    int n = uids.length;
+    // Transpose by counting sort on the target
+    inOffsets = new int[n + 1];
+    for (int i: outTargets)
+      inOffsets[i + 1]++;
+    for (int v = 0; v < n; v++)
+      inOffsets[v + 1] += inOffsets[v];
+    inSources = new int[outTargets.length];
+    int[] next = Arrays.copyOf(inOffsets, n);
+    for (int u = 0; u < n; u++)
+      for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++)
+        inSources[next[outTargets[e]]++] = u;
+  }
+
+  /**
+   * Copies the follow graph of the current ReadView without taking the engine lock.
+   */
+  public static FollowGraph snapshot() {
+    List < String > users = ReadView.current().getUsers();
+    int n = users.size();
+    String[] uids = users.toArray(new String[0]);
+    // Global user numbers to vertices; numbers handed out later map to nothing
+    int[] ids = new int[n];
+    for (int v = 0; v < n; v++)
+      ids[v] = UserIds.intern(uids[v]);
+    int[] vertexOf = new int[UserIds.size()];
+    Arrays.fill(vertexOf, -1);
+    for (int v = 0; v < n; v++)
+      vertexOf[ids[v]] = v;
+
+    int[][] followings = new int[n][];
+    run(() -> IntStream.range(0, n).parallel().forEach(v -> {
+      User user = User.usersMap.get(uids[v]);
+      List < String > following = user == null ? Collections.emptyList() : user.getFollowings().snapshot();
+      int[] targets = new int[following.size()];
+      int count = 0;
+      for (String i: following) {
+        int id = UserIds.find(i);
+        int target = id >= 0 && id < vertexOf.length ? vertexOf[id] : -1;
+        if (target >= 0)
+          targets[count++] = target;
+      }
+      followings[v] = count == targets.length ? targets : Arrays.copyOf(targets, count);
+    }));
+
+    int[] outOffsets = new int[n + 1];
+    for (int v = 0; v < n; v++)
+      outOffsets[v + 1] = outOffsets[v] + followings[v].length;
+    int[] outTargets = new int[outOffsets[n]];
+    for (int v = 0; v < n; v++) {
+      System.arraycopy(followings[v], 0, outTargets, outOffsets[v], followings[v].length);
+      followings[v] = null;
+    }
+    return new FollowGraph(uids, outOffsets, outTargets);
+  }
+
+  /**
+   * Copies the graph and analyzes it on the graph pool.
+   *
+   * @param top The number of users to rank.
+   * @return A future of the report.
+   */
+  public static CompletableFuture < Report > analyzeAsync(int top) {
+    return CompletableFuture.supplyAsync(() -> {
+      long start = System.nanoTime();
+      FollowGraph graph = snapshot();
+      long copied = System.nanoTime();
+      Report report = graph.analyze(top);
+      report.snapshotMillis = (copied - start) / 1000000;
+      return report;
+    }, pool);
+  }
+
+  private static void run(Runnable task) {
+    if (ForkJoinTask.getPool() == pool)
+      task.run();
+    else
+      pool.submit(task).join();
+  }
+
+  public int getUserCount() {
+    return uids.length;
+  }
+
+  public long getEdgeCount() {
+    return outTargets.length;
+  }
+
+  public String getUid(int vertex) {
+    return uids[vertex];
+  }
+
+  public int inDegree(int vertex) {
+    return inOffsets[vertex + 1] - inOffsets[vertex];
+  }
+
+  public int outDegree(int vertex) {
+    return outOffsets[vertex + 1] - outOffsets[vertex];
+  }
+
+  /**
+   * @return The vertices the vertex follows.
+   */
+  public int[] followings(int vertex) {
+    return Arrays.copyOfRange(outTargets, outOffsets[vertex], outOffsets[vertex + 1]);
+  }
+
+  /**
+   * Runs all the analytics.
+   *
+   * @param top The number of users to rank.
+   */
+  public Report analyze(int top) {
+    Report report = new Report();
+    report.users = uids.length;
+    report.edges = outTargets.length;
+    long start = System.nanoTime();
+    double[] rank = pageRank(report);
+    long ranked = System.nanoTime();
+    report.inDegrees = degreeHistogram(true);
+    report.outDegrees = degreeHistogram(false);
+    long counted = System.nanoTime();
+    int[] topVertices = top(rank, top);
+    long[] reach = new long[topVertices.length];
+    run(() -> IntStream.range(0, topVertices.length).parallel().forEach(i -> reach[i] = twoHopReach(topVertices[i])));
+    long reached = System.nanoTime();
+    for (int i = 0; i < topVertices.length; i++) {
+      int v = topVertices[i];
+      report.top.add(new Influencer(uids[v], rank[v], inDegree(v), outDegree(v), reach[i]));
+    }
+    report.pageRankMillis = (ranked - start) / 1000000;
+    report.degreeMillis = (counted - ranked) / 1000000;
+    report.reachMillis = (reached - counted) / 1000000;
+    return report;
+  }
+
+  /**
+   * PageRank over the follow edges, so a user ranks high when followed by users who rank
+   * high. Iterates in parallel blocks of vertices, pulling from each vertex's followers,
+   * until the L1 change is below TOLERANCE or MAX_ITERATIONS. The rank of users who
+   * follow nobody is spread over everyone.
+   *
+   * @param report Receives the iteration count, or null.
+   * @return The rank of each vertex; the ranks sum to 1.
+   */
+  public double[] pageRank(Report report) {
+    int n = uids.length;
+    if (n == 0)
+      return new double[0];
+    double[] rank = new double[n];
+    double[] next = new double[n];
+    double[] share = new double[n];
+    Arrays.fill(rank, 1.0 / n);
+    int blocks = (n + BLOCK - 1) / BLOCK;
+    double[] blockSums = new double[blocks];
+    int iteration = 0;
+    while (iteration < MAX_ITERATIONS) {
+      iteration++;
+      double[] current = rank;
+      run(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+        double dangling = 0;
+        for (int v = b * BLOCK, end = Math.min(n, v + BLOCK); v < end; v++) {
+          int out = outDegree(v);
+          if (out == 0) {
+            share[v] = 0;
+            dangling += current[v];
+          } else {
+            share[v] = current[v] / out;
+          }
+        }
+        blockSums[b] = dangling;
+      }));
+      double dangling = 0;
+      for (double i: blockSums)
+        dangling += i;
+      double base = (1 - DAMPING) / n + DAMPING * dangling / n;
+      double[] target = next;
+      run(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+        double delta = 0;
+        for (int v = b * BLOCK, end = Math.min(n, v + BLOCK); v < end; v++) {
+          double sum = 0;
+          for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++)
+            sum += share[inSources[e]];
+          double value = base + DAMPING * sum;
+          delta += Math.abs(value - current[v]);
+          target[v] = value;
+        }
+        blockSums[b] = delta;
+      }));
+      next = rank;
+      rank = target;
+      double delta = 0;
+      for (double i: blockSums)
+        delta += i;
+      if (delta < TOLERANCE)
+        break;
+    }
+    if (report != null)
+      report.iterations = iteration;
+    return rank;
+  }
+
+  /**
+   * @param in Whether to count followers (in) or followings (out).
+   * @return Counts of users by degree bucket: [0], [1], [2, 3], [4, 7], ... [2^(k-1), 2^k - 1].
+   */
+  public long[] degreeHistogram(boolean in) {
+    int[] offsets = in ? inOffsets : outOffsets;
+    int n = uids.length;
+    int blocks = (n + BLOCK - 1) / BLOCK;
+    long[][] partial = new long[blocks][33];
+    run(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+      long[] counts = partial[b];
+      for (int v = b * BLOCK, end = Math.min(n, v + BLOCK); v < end; v++)
+        counts[32 - Integer.numberOfLeadingZeros(offsets[v + 1] - offsets[v])]++;
+    }));
+    long[] counts = new long[33];
+    int used = 1;
+    for (long[] i: partial)
+      for (int k = 0; k < 33; k++) {
+        counts[k] += i[k];
+        if (i[k] > 0)
+          used = Math.max(used, k + 1);
+      }
+    return Arrays.copyOf(counts, used);
+  }
+
+  /**
+   * Estimates how many distinct users a post by the user could reach through one
+   * round of resharing: the user's followers and their followers, counted with a
+   * HyperLogLog sketch (the user is not counted).
+   *
+   * @param vertex The user's vertex.
+   * @return The estimated number of users within two hops against the follow edges.
+   */
+  public long twoHopReach(int vertex) {
+    byte[] registers = new byte[1 << HLL_BITS];
+    for (int e = inOffsets[vertex]; e < inOffsets[vertex + 1]; e++) {
+      int follower = inSources[e];
+      add(registers, follower);
+      for (int f = inOffsets[follower]; f < inOffsets[follower + 1]; f++)
+        if (inSources[f] != vertex)
+          add(registers, inSources[f]);
+    }
+    return estimate(registers);
+  }
+
+  private static void add(byte[] registers, int value) {
+    // SplitMix64 finalizer, so that consecutive vertex numbers spread over the registers
+    long hash = value * 0x9E3779B97F4A7C15L;
+    hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+    hash ^= hash >>> 31;
+    int index = (int) (hash >>> (64 - HLL_BITS));
+    // Leading zeros of the remaining bits, plus one; the sentinel bit bounds it
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << HLL_BITS) | (1L << (HLL_BITS - 1))) + 1);
+    if (rank > registers[index])
+      registers[index] = rank;
+  }
+
+  private static long estimate(byte[] registers) {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte i: registers) {
+      sum += 1.0 / (1L << i);
+      if (i == 0)
+        zeros++;
+    }
+    double estimate = 0.7213 / (1 + 1.079 / m) * m * (double) m / sum;
+    // Linear counting is more accurate while many registers are still empty
+    if (estimate <= 2.5 * m && zeros > 0)
+      estimate = m * Math.log(m / (double) zeros);
+    return Math.round(estimate);
+  }
+
+  // The vertices with the highest rank, best first
+  private static int[] top(double[] rank, int k) {
+    PriorityQueue < Integer > heap = new PriorityQueue < > (Comparator.comparingDouble(i -> rank[i]));
+    for (int v = 0; v < rank.length; v++) {
+      if (heap.size() < k) {
+        heap.add(v);
+      } else if (k > 0 && rank[v] > rank[heap.peek()]) {
+        heap.poll();
+        heap.add(v);
+      }
+    }
+    int[] top = new int[heap.size()];
+    for (int i = top.length - 1; i >= 0; i--)
+      top[i] = heap.poll();
+    return top;
+  }
+
+  /**
+   * A ranked user.
+   */
+  public static final class Influencer {
+    private final String uid;
+    private final double rank;
+    private final int followers;
+    private final int followings;
+    private final long reach;
+
+    Influencer(String uid, double rank, int followers, int followings, long reach) {
+      this.uid = uid;
+      this.rank = rank;
+      this.followers = followers;
+      this.followings = followings;
+      this.reach = reach;
+    }
+
+    public String getUid() {
+      return uid;
+    }
+
+    public double getRank() {
+      return rank;
+    }
+
+    public int getFollowers() {
+      return followers;
+    }
+
+    public int getFollowings() {
+      return followings;
+    }
+
+    /**
+     * @return The estimated number of users within two hops; see twoHopReach.
+     */
+    public long getReach() {
+      return reach;
+    }
+  }
+
+  /**
+   * The results of analyze, with the time each step took.
+   */
+  public static final class Report {
+    private int users;
+    private long edges;
+    private int iterations;
+    private final List < Influencer > top = new ArrayList < > ();
+    private long[] inDegrees;
+    private long[] outDegrees;
+    private long snapshotMillis;
+    private long pageRankMillis;
+    private long degreeMillis;
+    private long reachMillis;
+
+    public int getUsers() {
+      return users;
+    }
+
+    public long getEdges() {
+      return edges;
+    }
+
+    /**
+     * @return The number of PageRank iterations run.
+     */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * @return The highest ranked users, best first.
+     */
+    public List < Influencer > getTop() {
+      return top;
+    }
+
+    /**
+     * @return Users by follower count bucket; see degreeHistogram.
+     */
+    public long[] getInDegrees() {
+      return inDegrees;
+    }
+
+    /**
+     * @return Users by following count bucket; see degreeHistogram.
+     */
+    public long[] getOutDegrees() {
+      return outDegrees;
+    }
+
+    public String timings() {
+      return "copy " + snapshotMillis + " ms, PageRank " + pageRankMillis + " ms (" + iterations + " iterations), degrees " +
+        degreeMillis + " ms, reach " + reachMillis + " ms";
+    }
+
+    public String toJson() {
+      StringBuilder json = new StringBuilder("{\"users\":").append(users)
+        .append(",\"edges\":").append(edges)
+        .append(",\"iterations\":").append(iterations)
+        .append(",\"millis\":{\"snapshot\":").append(snapshotMillis)
+        .append(",\"pageRank\":").append(pageRankMillis)
+        .append(",\"degrees\":").append(degreeMillis)
+        .append(",\"reach\":").append(reachMillis)
+        .append("},\"inDegrees\":").append(Arrays.toString(inDegrees).replace(" ", ""))
+        .append(",\"outDegrees\":").append(Arrays.toString(outDegrees).replace(" ", ""))
+        .append(",\"top\":[");
+      for (int i = 0; i < top.size(); i++) {
+        Influencer influencer = top.get(i);
+        json.append(i > 0 ? "," : "").append("{\"user\":").append(Json.quote(influencer.uid))
+          .append(",\"rank\":").append(influencer.rank)
+          .append(",\"followers\":").append(influencer.followers)
+          .append(",\"followings\":").append(influencer.followings)
+          .append(",\"reach\":").append(influencer.reach).append('}');
+      }
+      return json.append("]}").toString();
+    }
+  }
+}
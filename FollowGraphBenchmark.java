@@ -0,0 +1,112 @@
+/**
+ * Times FollowGraph analytics on a synthetic follow graph with a skewed (Zipf-like)
+ * follower distribution, after checking PageRank against a plain sequential power
+ * iteration and the reach estimates against exact counts on a small graph.
+ *
+ * Usage: java FollowGraphBenchmark [userCount] [edgeCount]
+ */
+import java.util.*;
+
+public class FollowGraphBenchmark {
+
+  public static void main(String[] args) {
+    int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int edgeCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+    verify(new Random(3));
+
+    long start = System.nanoTime();
+    FollowGraph graph = generate(userCount, edgeCount, new Random(11));
+    System.out.printf("%d users, %d follows, built in %d ms%n", graph.getUserCount(), graph.getEdgeCount(),
+      (System.nanoTime() - start) / 1000000);
+    for (int pass = 0; pass < 3; pass++) {
+      start = System.nanoTime();
+      FollowGraph.Report report = graph.analyze(10);
+      System.out.printf("pass %d: %d ms (%s)%n", pass, (System.nanoTime() - start) / 1000000, report.timings());
+      if (pass == 2) {
+        for (FollowGraph.Influencer i: report.getTop())
+          System.out.printf("  %-10s rank %.6f followers %7d reach %9d%n", i.getUid(), i.getRank(), i.getFollowers(), i.getReach());
+        System.out.println("  in-degree buckets  " + Arrays.toString(report.getInDegrees()));
+        System.out.println("  out-degree buckets " + Arrays.toString(report.getOutDegrees()));
+      }
+    }
+  }
+
+  // Each user follows a random number of users, picked with a bias to low numbers
+  private static FollowGraph generate(int userCount, int edgeCount, Random random) {
+    String[] uids = new String[userCount];
+    for (int i = 0; i < userCount; i++)
+      uids[i] = "user" + i;
+    int[] outOffsets = new int[userCount + 1];
+    int[] outTargets = new int[edgeCount];
+    double perUser = edgeCount / (double) userCount;
+    int edge = 0;
+    for (int u = 0; u < userCount; u++) {
+      int count = u == userCount - 1 ? edgeCount - edge : (int) Math.min(edgeCount - edge, Math.round(-Math.log(1 - random.nextDouble()) * perUser));
+      TreeSet < Integer > targets = new TreeSet < > ();
+      while (targets.size() < Math.min(count, userCount - 1)) {
+        int v = (int) (Math.pow(random.nextDouble(), 3) * userCount);
+        if (v != u)
+          targets.add(v);
+      }
+      for (int v: targets)
+        outTargets[edge++] = v;
+      outOffsets[u + 1] = edge;
+    }
+    return new FollowGraph(uids, outOffsets, Arrays.copyOf(outTargets, edge));
+  }
+
+  private static void verify(Random random) {
+    FollowGraph graph = generate(2000, 20000, random);
+    int n = graph.getUserCount();
+    double[] rank = graph.pageRank(null);
+
+    // Sequential power iteration on follower sets built from the out-edges
+    List < Set < Integer > > inSets = inSets(graph);
+    int[] out = new int[n];
+    for (int u = 0; u < n; u++)
+      out[u] = graph.outDegree(u);
+    double[] expected = new double[n];
+    Arrays.fill(expected, 1.0 / n);
+    for (int iteration = 0; iteration < 200; iteration++) {
+      double dangling = 0;
+      for (int u = 0; u < n; u++)
+        if (out[u] == 0)
+          dangling += expected[u];
+      double[] next = new double[n];
+      for (int v = 0; v < n; v++) {
+        double sum = 0;
+        for (int u: inSets.get(v))
+          sum += expected[u] / out[u];
+        next[v] = (1 - FollowGraph.DAMPING) / n + FollowGraph.DAMPING * (sum + dangling / n);
+      }
+      expected = next;
+    }
+    for (int v = 0; v < n; v++)
+      if (Math.abs(rank[v] - expected[v]) > 1e-6)
+        throw new IllegalStateException("PageRank mismatch at " + v + ": " + rank[v] + " vs " + expected[v]);
+
+    for (int v = 0; v < 50; v++) {
+      Set < Integer > reach = new HashSet < > ();
+      for (int f: inSets.get(v)) {
+        reach.add(f);
+        reach.addAll(inSets.get(f));
+      }
+      reach.remove(v);
+      long estimate = graph.twoHopReach(v);
+      if (Math.abs(estimate - reach.size()) > Math.max(5, reach.size() * 0.06))
+        throw new IllegalStateException("Reach of " + v + ": estimated " + estimate + ", exact " + reach.size());
+    }
+  }
+
+  // Followers of each vertex, from the out-edges of every other vertex
+  private static List < Set < Integer > > inSets(FollowGraph graph) {
+    int n = graph.getUserCount();
+    List < Set < Integer > > sets = new ArrayList < > ();
+    for (int v = 0; v < n; v++)
+      sets.add(new HashSet < > ());
+    for (int u = 0; u < n; u++)
+      for (int v: graph.followings(u))
+        sets.get(v).add(u);
+    return sets;
+  }
+}
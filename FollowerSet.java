@@ -0,0 +1,680 @@
+/**
+ * Compact set of followers, stored as UserIds numbers instead of a list of strings, with
+ * a representation that adapts to the size of the set.
+ *
+ * Up to ARRAY_LIMIT followers, which is most users, the set is one sorted int array.
+ * Beyond that, numbers are split by their high 16 bits into chunks, each held by a
+ * container chosen by its density, as in Roaring bitmaps:
+ * - DeltaContainer: sorted blocks of up to 64 values, each stored as the gap to the
+ *   previous value in a varint (1 byte for gaps below 128). A skip table of the first
+ *   value and byte offset of every block gives binary search to the right block, so a
+ *   membership check decodes at most one block.
+ * - BitmapContainer: 65536 bits (8 KB), used once a delta container would be larger.
+ *
+ * Iteration is in ascending number order, which is user creation order for users
+ * created in this process. Membership checks are O(log n), adds and removes O(log n)
+ * plus the re-encoding of one block; appending a number larger than all others, the
+ * common case when followers are loaded in order, is O(1).
+ *
+ * Like the rest of the user model, a FollowerSet is changed and read under the
+ * TwitterOperations lock. Iterators are not fail-fast and do not support remove.
+ */
+import java.util.*;
+import java.util.function.IntConsumer;
+
+public class FollowerSet extends AbstractCollection < String > {
+
+  static final int ARRAY_LIMIT = 64;
+
+  private int size;
+  // Small sets: sorted numbers in ids[0..size); null once the set uses containers
+  private int[] ids = new int[4];
+  // Large sets: one container per chunk of 65536 numbers, sorted by chunk key
+  private int[] keys;
+  private Container[] containers;
+  private int chunks;
+
+  public FollowerSet() {
+  }
+
+  public FollowerSet(Collection < String > uids) {
+    for (String i: uids)
+      add(i);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(String uid) {
+    return addId(UserIds.intern(uid));
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof String))
+      return false;
+    int id = UserIds.find((String) o);
+    return id >= 0 && containsId(id);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof String))
+      return false;
+    int id = UserIds.find((String) o);
+    return id >= 0 && removeId(id);
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+    ids = new int[4];
+    keys = null;
+    containers = null;
+    chunks = 0;
+  }
+
+  /**
+   * @param id A UserIds number.
+   * @return true if it was added, false if it was already in the set.
+   */
+  public boolean addId(int id) {
+    if (ids != null) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      if (i >= 0)
+        return false;
+      if (size < ARRAY_LIMIT) {
+        i = -i - 1;
+        if (size == ids.length)
+          ids = Arrays.copyOf(ids, Math.min(ARRAY_LIMIT, size * 2));
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = id;
+        size++;
+        return true;
+      }
+      toContainers();
+    }
+    int c = chunk(id >>> 16);
+    if (c < 0)
+      c = insertChunk(-c - 1, id >>> 16);
+    Container container = containers[c];
+    int before = container.size();
+    containers[c] = container.add(id & 0xFFFF);
+    if (containers[c].size() == before)
+      return false;
+    size++;
+    return true;
+  }
+
+  /**
+   * @param id A UserIds number.
+   * @return true if it was removed, false if it was not in the set.
+   */
+  public boolean removeId(int id) {
+    if (ids != null) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      if (i < 0)
+        return false;
+      System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+      size--;
+      return true;
+    }
+    int c = chunk(id >>> 16);
+    if (c < 0)
+      return false;
+    Container container = containers[c];
+    int before = container.size();
+    containers[c] = container.remove(id & 0xFFFF);
+    if (containers[c].size() == before)
+      return false;
+    size--;
+    if (containers[c].size() == 0) {
+      System.arraycopy(keys, c + 1, keys, c, chunks - c - 1);
+      System.arraycopy(containers, c + 1, containers, c, chunks - c - 1);
+      containers[--chunks] = null;
+    }
+    if (size < ARRAY_LIMIT / 2)
+      toSortedArray();
+    return true;
+  }
+
+  public boolean containsId(int id) {
+    if (ids != null)
+      return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    int c = chunk(id >>> 16);
+    return c >= 0 && containers[c].contains(id & 0xFFFF);
+  }
+
+  /**
+   * Passes every number in the set to the action, in ascending order. Faster than
+   * iterating over user IDs when the caller can work with numbers.
+   */
+  public void forEachId(IntConsumer action) {
+    if (ids != null) {
+      for (int i = 0; i < size; i++)
+        action.accept(ids[i]);
+      return;
+    }
+    for (int c = 0; c < chunks; c++)
+      containers[c].forEach(keys[c] << 16, action);
+  }
+
+  @Override
+  public Iterator < String > iterator() {
+    PrimitiveIterator.OfInt i = idIterator();
+    return new Iterator < String > () {
+      @Override
+      public boolean hasNext() {
+        return i.hasNext();
+      }
+
+      @Override
+      public String next() {
+        return UserIds.uid(i.nextInt());
+      }
+    };
+  }
+
+  /**
+   * @return An iterator over the numbers in the set, in ascending order.
+   */
+  public PrimitiveIterator.OfInt idIterator() {
+    if (ids != null) {
+      int[] array = ids;
+      int count = size;
+      return new PrimitiveIterator.OfInt() {
+        int next;
+
+        @Override
+        public boolean hasNext() {
+          return next < count;
+        }
+
+        @Override
+        public int nextInt() {
+          if (next >= count)
+            throw new NoSuchElementException();
+          return array[next++];
+        }
+      };
+    }
+    return new PrimitiveIterator.OfInt() {
+      int chunk = -1;
+      PrimitiveIterator.OfInt current;
+
+      @Override
+      public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+          if (++chunk >= chunks)
+            return false;
+          current = containers[chunk].iterator(keys[chunk] << 16);
+        }
+        return true;
+      }
+
+      @Override
+      public int nextInt() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        return current.nextInt();
+      }
+    };
+  }
+
+  /**
+   * @return An estimate of the heap bytes used by the set.
+   */
+  public long memoryBytes() {
+    long bytes = 40;
+    if (ids != null)
+      return bytes + 16 + 4L * ids.length;
+    bytes += 16 + 4L * keys.length + 16 + 4L * containers.length;
+    for (int c = 0; c < chunks; c++)
+      bytes += containers[c].memoryBytes();
+    return bytes;
+  }
+
+  /**
+   * @return The number of chunks in each representation, for reports:
+   *         {array entries, delta containers, bitmap containers}.
+   */
+  public int[] shape() {
+    if (ids != null)
+      return new int[] { size, 0, 0 };
+    int bitmaps = 0;
+    for (int c = 0; c < chunks; c++)
+      if (containers[c] instanceof BitmapContainer)
+        bitmaps++;
+    return new int[] { 0, chunks - bitmaps, bitmaps };
+  }
+
+  // --- Representation changes ---
+
+  private int chunk(int key) {
+    return Arrays.binarySearch(keys, 0, chunks, key);
+  }
+
+  private int insertChunk(int c, int key) {
+    if (chunks == keys.length) {
+      keys = Arrays.copyOf(keys, chunks * 2);
+      containers = Arrays.copyOf(containers, chunks * 2);
+    }
+    System.arraycopy(keys, c, keys, c + 1, chunks - c);
+    System.arraycopy(containers, c, containers, c + 1, chunks - c);
+    keys[c] = key;
+    containers[c] = new DeltaContainer();
+    chunks++;
+    return c;
+  }
+
+  private void toContainers() {
+    int[] array = ids;
+    ids = null;
+    keys = new int[4];
+    containers = new Container[4];
+    chunks = 0;
+    int count = size;
+    size = 0;
+    for (int i = 0; i < count; i++)
+      addId(array[i]);
+  }
+
+  private void toSortedArray() {
+    int[] array = new int[Math.max(4, size)];
+    int count = 0;
+    for (PrimitiveIterator.OfInt i = idIterator(); i.hasNext();)
+      array[count++] = i.nextInt();
+    ids = array;
+    keys = null;
+    containers = null;
+    chunks = 0;
+  }
+
+  // --- Containers ---
+
+  // Holds the low 16 bits of the numbers of one chunk
+  private abstract static class Container {
+    abstract int size();
+
+    abstract boolean contains(int low);
+
+    // Both return the container now holding the chunk: this, or a converted copy
+    abstract Container add(int low);
+
+    abstract Container remove(int low);
+
+    abstract void forEach(int high, IntConsumer action);
+
+    abstract PrimitiveIterator.OfInt iterator(int high);
+
+    abstract long memoryBytes();
+  }
+
+  private static final class DeltaContainer extends Container {
+    static final int BLOCK = 64;
+    // A delta container larger than this becomes a bitmap
+    static final int MAX_BYTES = 8192;
+
+    int size;
+    int last = -1;
+    // Varint gaps of all blocks, back to back; the first value of a block is in firsts
+    byte[] data = new byte[16];
+    int length;
+    // Skip table: first value, offset of the gaps and number of values of each block
+    char[] firsts = new char[2];
+    int[] offsets = new int[2];
+    byte[] counts = new byte[2];
+    int blocks;
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    // The last block whose first value is at most low, or -1
+    private int block(int low) {
+      int lo = 0, hi = blocks - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (firsts[mid] <= low)
+          lo = mid + 1;
+        else
+          hi = mid - 1;
+      }
+      return hi;
+    }
+
+    private int end(int b) {
+      return b + 1 < blocks ? offsets[b + 1] : length;
+    }
+
+    @Override
+    boolean contains(int low) {
+      if (low > last)
+        return false;
+      int b = block(low);
+      if (b < 0)
+        return false;
+      int value = firsts[b];
+      int pos = offsets[b];
+      for (int k = 1; k < counts[b] && value < low; k++) {
+        int gap = data[pos++];
+        if (gap < 0) {
+          gap &= 0x7F;
+          int shift = 7, next;
+          do {
+            next = data[pos++];
+            gap |= (next & 0x7F) << shift;
+            shift += 7;
+          } while (next < 0);
+        }
+        value += gap;
+      }
+      return value == low;
+    }
+
+    @Override
+    Container add(int low) {
+      if (low > last) {
+        // Appending: a new gap at the end, or a new block
+        if (blocks > 0 && counts[blocks - 1] < BLOCK) {
+          ensureData(length + 3);
+          length = putVarint(data, length, low - last);
+          counts[blocks - 1]++;
+        } else {
+          insertBlock(blocks, (char) low, length, 1);
+        }
+        last = low;
+        size++;
+        return size > MAX_BYTES / 2 && bytes() > MAX_BYTES ? BitmapContainer.of(this) : this;
+      }
+      int b = Math.max(0, block(low));
+      int[] values = decode(b, 1);
+      int count = counts[b];
+      int i = Arrays.binarySearch(values, 0, count, low);
+      if (i >= 0)
+        return this;
+      i = -i - 1;
+      System.arraycopy(values, i, values, i + 1, count - i);
+      values[i] = low;
+      count++;
+      if (count <= BLOCK) {
+        rewrite(b, values, 0, count);
+      } else {
+        // Split a full block in two halves
+        int half = count / 2;
+        rewrite(b, values, 0, half);
+        insertBlock(b + 1, (char) values[half], end(b), 1);
+        rewrite(b + 1, values, half, count - half);
+      }
+      size++;
+      return size > MAX_BYTES / 2 && bytes() > MAX_BYTES ? BitmapContainer.of(this) : this;
+    }
+
+    @Override
+    Container remove(int low) {
+      if (low > last)
+        return this;
+      int b = block(low);
+      if (b < 0)
+        return this;
+      int[] values = decode(b, 0);
+      int count = counts[b];
+      int i = Arrays.binarySearch(values, 0, count, low);
+      if (i < 0)
+        return this;
+      System.arraycopy(values, i + 1, values, i, count - i - 1);
+      count--;
+      if (count == 0) {
+        // A single value has no gaps, so no bytes to drop
+        System.arraycopy(firsts, b + 1, firsts, b, blocks - b - 1);
+        System.arraycopy(offsets, b + 1, offsets, b, blocks - b - 1);
+        System.arraycopy(counts, b + 1, counts, b, blocks - b - 1);
+        blocks--;
+      } else {
+        rewrite(b, values, 0, count);
+      }
+      size--;
+      if (low == last) {
+        if (blocks == 0) {
+          last = -1;
+        } else {
+          int[] tail = decode(blocks - 1, 0);
+          last = tail[counts[blocks - 1] - 1];
+        }
+      }
+      return this;
+    }
+
+    // Decodes block b into a new array with spare room for extra values
+    private int[] decode(int b, int extra) {
+      int count = counts[b];
+      int[] values = new int[count + extra];
+      int value = firsts[b];
+      values[0] = value;
+      int pos = offsets[b];
+      for (int k = 1; k < count; k++) {
+        int gap = 0, shift = 0, next;
+        do {
+          next = data[pos++];
+          gap |= (next & 0x7F) << shift;
+          shift += 7;
+        } while (next < 0);
+        value += gap;
+        values[k] = value;
+      }
+      return values;
+    }
+
+    // Replaces the contents of block b with values[from..from+count)
+    private void rewrite(int b, int[] values, int from, int count) {
+      byte[] encoded = new byte[3 * count];
+      int n = 0;
+      for (int k = from + 1; k < from + count; k++)
+        n = putVarint(encoded, n, values[k] - values[k - 1]);
+      int start = offsets[b], oldEnd = end(b);
+      int shift = n - (oldEnd - start);
+      if (shift != 0) {
+        ensureData(length + shift);
+        System.arraycopy(data, oldEnd, data, oldEnd + shift, length - oldEnd);
+        length += shift;
+        for (int k = b + 1; k < blocks; k++)
+          offsets[k] += shift;
+      }
+      System.arraycopy(encoded, 0, data, start, n);
+      firsts[b] = (char) values[from];
+      counts[b] = (byte) count;
+    }
+
+    private void insertBlock(int b, char first, int offset, int count) {
+      if (blocks == firsts.length) {
+        int capacity = blocks * 2;
+        firsts = Arrays.copyOf(firsts, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+      }
+      System.arraycopy(firsts, b, firsts, b + 1, blocks - b);
+      System.arraycopy(offsets, b, offsets, b + 1, blocks - b);
+      System.arraycopy(counts, b, counts, b + 1, blocks - b);
+      firsts[b] = first;
+      offsets[b] = offset;
+      counts[b] = (byte) count;
+      blocks++;
+    }
+
+    private void ensureData(int capacity) {
+      if (capacity > data.length)
+        data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+    }
+
+    private int bytes() {
+      return length + 7 * blocks;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int b = 0; b < blocks; b++) {
+        int value = firsts[b];
+        action.accept(high | value);
+        int pos = offsets[b];
+        for (int k = 1; k < counts[b]; k++) {
+          int gap = 0, shift = 0, next;
+          do {
+            next = data[pos++];
+            gap |= (next & 0x7F) << shift;
+            shift += 7;
+          } while (next < 0);
+          value += gap;
+          action.accept(high | value);
+        }
+      }
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator(int high) {
+      return new PrimitiveIterator.OfInt() {
+        int block, index, pos, value;
+
+        @Override
+        public boolean hasNext() {
+          return block < blocks;
+        }
+
+        @Override
+        public int nextInt() {
+          if (block >= blocks)
+            throw new NoSuchElementException();
+          if (index == 0) {
+            value = firsts[block];
+            pos = offsets[block];
+          } else {
+            int gap = 0, shift = 0, next;
+            do {
+              next = data[pos++];
+              gap |= (next & 0x7F) << shift;
+              shift += 7;
+            } while (next < 0);
+            value += gap;
+          }
+          if (++index == counts[block]) {
+            block++;
+            index = 0;
+          }
+          return high | value;
+        }
+      };
+    }
+
+    @Override
+    long memoryBytes() {
+      return 48 + 16 + data.length + 16 + 2L * firsts.length + 16 + 4L * offsets.length + 16 + counts.length;
+    }
+
+    private static int putVarint(byte[] out, int pos, int value) {
+      while (value >= 0x80) {
+        out[pos++] = (byte) (value | 0x80);
+        value >>>= 7;
+      }
+      out[pos++] = (byte) value;
+      return pos;
+    }
+  }
+
+  private static final class BitmapContainer extends Container {
+    // Below this size a bitmap goes back to deltas; lower than the conversion point so
+    // that a chunk near the limit does not convert back and forth
+    static final int MIN_SIZE = 2048;
+
+    final long[] words = new long[1024];
+    int size;
+
+    static BitmapContainer of(DeltaContainer deltas) {
+      BitmapContainer bitmap = new BitmapContainer();
+      deltas.forEach(0, low -> bitmap.words[low >>> 6] |= 1L << low);
+      bitmap.size = deltas.size;
+      return bitmap;
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    @Override
+    boolean contains(int low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    Container add(int low) {
+      long word = words[low >>> 6];
+      long bit = 1L << low;
+      if ((word & bit) == 0) {
+        words[low >>> 6] = word | bit;
+        size++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(int low) {
+      long word = words[low >>> 6];
+      long bit = 1L << low;
+      if ((word & bit) == 0)
+        return this;
+      words[low >>> 6] = word & ~bit;
+      size--;
+      if (size >= MIN_SIZE)
+        return this;
+      DeltaContainer deltas = new DeltaContainer();
+      forEach(0, deltas::add);
+      return deltas;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int w = 0; w < words.length; w++) {
+        long word = words[w];
+        while (word != 0) {
+          action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator(int high) {
+      return new PrimitiveIterator.OfInt() {
+        int w = -1;
+        long word;
+
+        @Override
+        public boolean hasNext() {
+          while (word == 0) {
+            if (++w >= words.length)
+              return false;
+            word = words[w];
+          }
+          return true;
+        }
+
+        @Override
+        public int nextInt() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          int value = high | (w << 6) | Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+          return value;
+        }
+      };
+    }
+
+    @Override
+    long memoryBytes() {
+      return 24 + 16 + 8L * words.length;
+    }
+  }
+}
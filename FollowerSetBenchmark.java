@@ -0,0 +1,140 @@
+/**
+ * Compares the memory and speed of follower lists (a SnapshotList of user ID strings, as
+ * used before FollowerSet) with FollowerSet, for one very large account followed by a
+ * random subset of all users at several densities.
+ *
+ * The list is measured twice: with strings shared with the User objects, the best case,
+ * and with a string per entry, as after reading follows from a file or the network.
+ * Heap deltas are noisy for the smaller sets, so the set's own estimate is shown next
+ * to them. Before measuring, random adds and removes are checked against a TreeSet.
+ *
+ * Usage: java FollowerSetBenchmark [userCount]
+ */
+import java.lang.ref.Reference;
+import java.util.*;
+
+public class FollowerSetBenchmark {
+
+  public static void main(String[] args) {
+    int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    verify(new Random(1));
+
+    String[] uids = new String[userCount];
+    for (int i = 0; i < userCount; i++) {
+      uids[i] = "user" + i;
+      UserIds.intern(uids[i]);
+    }
+
+    System.out.printf("%-8s %10s %14s %14s %16s %12s %12s %12s %10s%n", "density", "followers",
+      "shared B/ent", "copied B/ent", "set B/ent (est)", "list Mit/s", "set Mit/s", "ids Mit/s", "contains");
+    for (double density: new double[] { 0.001, 0.01, 0.1, 0.5, 1.0 }) {
+      Random random = new Random(42);
+      List < String > followers = new ArrayList < > ();
+      for (int i = 0; i < userCount; i++)
+        if (density >= 1 || random.nextDouble() < density)
+          followers.add(uids[i]);
+      Collections.shuffle(followers, random);
+
+      long base = usedHeap();
+      SnapshotList < String > shared = new SnapshotList < > ();
+      for (String i: followers)
+        shared.add(i);
+      long sharedBytes = usedHeap() - base;
+
+      base = usedHeap();
+      SnapshotList < String > copied = new SnapshotList < > ();
+      for (String i: followers)
+        copied.add(new String(i.toCharArray()));
+      long copiedBytes = usedHeap() - base;
+      Reference.reachabilityFence(copied);
+      copied = null;
+
+      base = usedHeap();
+      FollowerSet set = new FollowerSet();
+      for (String i: followers)
+        set.add(i);
+      long setBytes = usedHeap() - base;
+
+      double listRate = iterations(shared.size(), () -> {
+        long hash = 0;
+        for (String i: shared)
+          hash += i.length();
+        return hash;
+      });
+      double setRate = iterations(set.size(), () -> {
+        long hash = 0;
+        for (String i: set)
+          hash += i.length();
+        return hash;
+      });
+      double idRate = iterations(set.size(), () -> {
+        long[] hash = { 0 };
+        set.forEachId(i -> hash[0] += i);
+        return hash[0];
+      });
+
+      long start = System.nanoTime();
+      int hits = 0;
+      for (int i = 0; i < 1000000; i++)
+        if (set.contains(uids[random.nextInt(userCount)]))
+          hits++;
+      long containsNanos = (System.nanoTime() - start) / 1000000;
+      if (Math.abs(hits / 1000000.0 - Math.min(1, density)) > 0.01)
+        throw new IllegalStateException("Unexpected hit rate " + hits);
+
+      int n = followers.size();
+      System.out.printf("%-8s %10d %14.2f %14.2f %8.2f (%5.2f) %12.1f %12.1f %12.1f %8dns   %s%n", density, n,
+        sharedBytes / (double) n, copiedBytes / (double) n, setBytes / (double) n, set.memoryBytes() / (double) n,
+        listRate, setRate, idRate, containsNanos, Arrays.toString(set.shape()));
+    }
+  }
+
+  // Random adds and removes over a range spanning several chunks, checked against a TreeSet
+  private static void verify(Random random) {
+    for (int round = 0; round < 20; round++) {
+      FollowerSet set = new FollowerSet();
+      TreeSet < Integer > expected = new TreeSet < > ();
+      int range = 1 << (8 + random.nextInt(11));
+      for (int i = 0; i < 200000; i++) {
+        int id = random.nextInt(range);
+        boolean add = random.nextInt(10) < (i < 100000 ? 8 : 3);
+        boolean changed = add ? set.addId(id) : set.removeId(id);
+        if (changed != (add ? expected.add(id) : expected.remove(id)))
+          throw new IllegalStateException("Mismatch on " + (add ? "add " : "remove ") + id);
+        if (set.size() != expected.size())
+          throw new IllegalStateException("Size mismatch after " + id);
+      }
+      PrimitiveIterator.OfInt ids = set.idIterator();
+      for (int i: expected)
+        if (ids.nextInt() != i)
+          throw new IllegalStateException("Iteration mismatch at " + i);
+      for (int i = 0; i < range; i++)
+        if (set.containsId(i) != expected.contains(i))
+          throw new IllegalStateException("Membership mismatch at " + i);
+    }
+  }
+
+  private interface Pass {
+    long run();
+  }
+
+  // Millions of entries visited per second, best of a few passes
+  private static double iterations(int size, Pass pass) {
+    long best = Long.MAX_VALUE, sink = 0;
+    for (int i = 0; i < 15; i++) {
+      long start = System.nanoTime();
+      sink += pass.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    if (sink == 42)
+      System.out.print("");
+    return size * 1000.0 / Math.max(1, best);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -2,7 +2,9 @@
  * Tree cell renderer for the JTree in Mini Twitter.
  * Implements the Strategy pattern to customize the visual representation of tree nodes.
  * Specifically, this renderer distinguishes group nodes from user nodes by setting a 
- * distinct icon (folder icon) for groups.
+ * distinct icon (folder icon) for groups, and shows each group's subtree sizes, which
+ * are kept by UserGroup, so that collapsed groups whose members are not loaded yet
+ * still tell how big they are.
  */
 import javax.swing.*;
 import javax.swing.tree.DefaultTreeCellRenderer;
@@ -24,6 +26,9 @@ public class GroupTreeCellRenderer extends DefaultTreeCellRenderer {
 
     if (value instanceof GroupTreeNode) {
       setIcon(groupIcon);
+      UserGroup group = UserGroup.userGroupMap.get(((GroupTreeNode) value).getUid());
+      if (group != null)
+        setText(value + "  (" + group.getSubtreeUsers() + " users, " + group.getSubtreeGroups() + " groups)");
     }
 
     return c;
@@ -1,39 +1,93 @@
 /**
  * A specialized tree node for representing user groups within the JTree component.
  * Extends DefaultMutableTreeNode to provide specific behavior for group nodes.
- * 
+ *
+ * Members are loaded lazily: a new node has no children until it is first expanded,
+ * and then gets them a page at a time, followed by a MoreNode while some are not
+ * shown yet. The window does the loading, since it also indexes the nodes.
  */
 
- import javax.swing.*;
  import javax.swing.tree.DefaultMutableTreeNode;
  
  public class GroupTreeNode extends DefaultMutableTreeNode {
  
+   // Members loaded per page when a group is expanded or "show more" is chosen
+   public static final int PAGE_SIZE = 200;
+ 
+   private String uid;
    private String title;
+   private boolean loaded;
+   private MoreNode more;
  
-   public GroupTreeNode(String title) {
+   public GroupTreeNode(String uid, String title) {
      super(title);
+     this.uid = uid;
      this.title = title;
  
    }
  
+   /**
+    * @return The ID of the group shown by this node.
+    */
+   public String getUid() {
+     return uid;
+   }
+ 
    @Override
    public boolean isLeaf() {
      return false;
    }
  
-   public static void expandAll(JTree tree) {
-     expandAllNodes(tree, 0, tree.getRowCount());
+   /**
+    * @return true once the first page of members has been loaded.
+    */
+   public boolean isLoaded() {
+     return loaded;
+   }
+ 
+   public void setLoaded(boolean loaded) {
+     this.loaded = loaded;
+   }
+ 
+   /**
+    * @return The "show more" child, or null if every member is shown.
+    */
+   public MoreNode getMoreNode() {
+     return more;
+   }
+ 
+   public void setMoreNode(MoreNode more) {
+     this.more = more;
+   }
  
+   /**
+    * @return The number of members shown, which are always the first ones of the group.
+    */
+   public int getShownCount() {
+     return getChildCount() - (more == null ? 0 : 1);
    }
-   private static void expandAllNodes(JTree tree, int startingIndex, int rowCount) {
-     for (int i = startingIndex; i < rowCount; ++i) {
-       tree.expandRow(i);
+ 
+   /**
+    * Last child of a group with members not shown yet; choosing it loads the next page.
+    */
+   public static class MoreNode extends DefaultMutableTreeNode {
+     private final GroupTreeNode owner;
+ 
+     public MoreNode(GroupTreeNode owner) {
+       this.owner = owner;
+       setAllowsChildren(false);
+     }
+ 
+     public GroupTreeNode getOwner() {
+       return owner;
      }
  
-     if (tree.getRowCount() != rowCount) {
-       expandAllNodes(tree, rowCount, tree.getRowCount());
+     @Override
+     public String toString() {
+       UserGroup group = UserGroup.userGroupMap.get(owner.getUid());
+       int hidden = group == null ? 0 : group.getMemberCount() - owner.getShownCount();
+       return "Show more (" + hidden + " not shown)";
      }
    }
  
- }
\ No newline at end of file
+ }
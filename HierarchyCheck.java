@@ -0,0 +1,111 @@
+/**
+ * Checks the group hierarchy kept by UserGroup against a recount: after a series of
+ * creates, moves and deletes, including users and groups that share an ID under the
+ * same parent, every member must be listed once under its parent, and the subtree counts
+ * of every group must match a walk of its children. The same holds after a snapshot
+ * round trip. Exits with status 1 on the first mismatch.
+ *
+ * Usage: java HierarchyCheck [operations]
+ */
+import java.nio.file.*;
+import java.util.*;
+
+public class HierarchyCheck {
+
+  public static void main(String[] args) throws Exception {
+    int operations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    System.setProperty("minitwitter.rate.posts", "0");
+    System.setProperty("minitwitter.rate.follows", "0");
+
+    // A user and a group with the same ID under one parent
+    TwitterOperations.createGroup("x", "Root");
+    TwitterOperations.createUser("x", "Root");
+    TwitterOperations.createUser("y", "x");
+    check("user and group sharing an ID");
+
+    Random random = new Random(1);
+    List < String > groups = new ArrayList < > (List.of("x"));
+    List < String > users = new ArrayList < > (List.of("x", "y"));
+    for (int n = 0; n < operations; n++) {
+      // IDs are drawn from one small pool, so users and groups often share them
+      String id = "m" + random.nextInt(operations / 10 + 1);
+      String group = random.nextInt(8) == 0 ? "Root" : groups.isEmpty() ? "Root" : groups.get(random.nextInt(groups.size()));
+      try {
+        switch (random.nextInt(5)) {
+          case 0:
+            TwitterOperations.createGroup(id, group);
+            groups.add(id);
+            break;
+          case 1:
+            TwitterOperations.createUser(id, group);
+            users.add(id);
+            break;
+          case 2:
+            if (!users.isEmpty())
+              TwitterOperations.moveUser(users.get(random.nextInt(users.size())), group);
+            break;
+          case 3:
+            if (!groups.isEmpty())
+              TwitterOperations.moveGroup(groups.get(random.nextInt(groups.size())), group);
+            break;
+          default:
+            if (random.nextInt(4) == 0 && !groups.isEmpty()) {
+              TwitterOperations.deleteGroup(groups.get(random.nextInt(groups.size())));
+              groups.retainAll(UserGroup.userGroupMap.keySet());
+            }
+        }
+      } catch (IllegalArgumentException e) {
+        // Duplicate IDs and moves into a subgroup are rejected; nothing changed
+      }
+    }
+    check(operations + " random operations");
+
+    Path snapshot = Files.createTempFile("hierarchy", ".snapshot");
+    try {
+      SnapshotStore.save(snapshot);
+      SnapshotStore.load(snapshot);
+    } finally {
+      Files.deleteIfExists(snapshot);
+    }
+    check("snapshot round trip");
+    System.out.println("Hierarchy consistent: " + User.usersMap.size() + " users, " + UserGroup.userGroupMap.size() + " groups");
+  }
+
+  private static void check(String step) {
+    synchronized (TwitterOperations.class) {
+      HashSet < String > seenUsers = new HashSet < > (), seenGroups = new HashSet < > ();
+      for (UserGroup group: UserGroup.userGroupMap.values()) {
+        int users = 0, groups = 0;
+        for (UserMember i: group.getChildren()) {
+          boolean isUser = i.getChildType() == UserMember.CHILD_TYPE.USER;
+          if (!(isUser ? seenUsers : seenGroups).add(i.getUid()))
+            fail(step, (isUser ? "user " : "group ") + i.getUid() + " is listed twice");
+          if (isUser) {
+            User user = User.usersMap.get(i.getUid());
+            if (user == null || !group.getUid().equals(user.getUserGroup()))
+              fail(step, "user " + i.getUid() + " is listed under " + group.getUid() + " but is in " + (user == null ? null : user.getUserGroup()));
+            users++;
+          } else {
+            UserGroup child = UserGroup.userGroupMap.get(i.getUid());
+            if (child == null || child.getParent() != group)
+              fail(step, "group " + i.getUid() + " is listed under " + group.getUid() + " but has another parent");
+            users += child.getSubtreeUsers();
+            groups += child.getSubtreeGroups() + 1;
+          }
+        }
+        if (users != group.getSubtreeUsers() || groups != group.getSubtreeGroups())
+          fail(step, "group " + group.getUid() + " counts " + group.getSubtreeUsers() + " users and " + group.getSubtreeGroups() +
+            " groups, its children " + users + " and " + groups);
+      }
+      if (seenUsers.size() != User.usersMap.size())
+        fail(step, seenUsers.size() + " of " + User.usersMap.size() + " users are in the tree");
+      if (seenGroups.size() != UserGroup.userGroupMap.size() - 1)
+        fail(step, seenGroups.size() + " of " + (UserGroup.userGroupMap.size() - 1) + " groups are in the tree");
+    }
+  }
+
+  private static void fail(String step, String message) {
+    System.out.println("FAILED after " + step + ": " + message);
+    System.exit(1);
+  }
+}
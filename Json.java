@@ -0,0 +1,151 @@
+/**
+ * Minimal JSON helpers for the embedded HTTP API, so that Mini Twitter has no
+ * external dependencies. Supports quoting values for output and parsing flat
+ * objects whose values are strings, numbers, booleans or null.
+ */
+import java.util.*;
+
+public class Json {
+
+  /**
+   * Quotes and escapes a string as a JSON string literal.
+   *
+   * @param value The string to quote, may be null.
+   * @return The JSON literal ("null" for null).
+   */
+  public static String quote(String value) {
+    if (value == null)
+      return "null";
+    StringBuilder builder = new StringBuilder(value.length() + 2);
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': builder.append("\\\""); break;
+        case '\\': builder.append("\\\\"); break;
+        case '\n': builder.append("\\n"); break;
+        case '\r': builder.append("\\r"); break;
+        case '\t': builder.append("\\t"); break;
+        default:
+          if (c < 0x20)
+            builder.append(String.format("\\u%04x", (int) c));
+          else
+            builder.append(c);
+      }
+    }
+    return builder.append('"').toString();
+  }
+
+  /**
+   * Parses a flat JSON object into a map of its values rendered as strings.
+   * Nested objects and arrays are rejected.
+   *
+   * @param json The JSON text.
+   * @return The object's fields in document order; null values map to null.
+   * @throws IllegalArgumentException if the text is not a flat JSON object.
+   */
+  public static Map < String, String > parseObject(String json) {
+    Parser parser = new Parser(json);
+    Map < String, String > fields = new LinkedHashMap < > ();
+    parser.skipSpace();
+    parser.expect('{');
+    parser.skipSpace();
+    if (parser.peek() == '}') {
+      parser.pos++;
+    } else {
+      while (true) {
+        parser.skipSpace();
+        String key = parser.string();
+        parser.skipSpace();
+        parser.expect(':');
+        parser.skipSpace();
+        fields.put(key, parser.value());
+        parser.skipSpace();
+        if (parser.peek() == ',') {
+          parser.pos++;
+        } else {
+          parser.expect('}');
+          break;
+        }
+      }
+    }
+    parser.skipSpace();
+    if (parser.pos != json.length())
+      throw new IllegalArgumentException("Trailing characters in JSON at " + parser.pos);
+    return fields;
+  }
+
+  private static class Parser {
+    private final String text;
+    private int pos;
+
+    Parser(String text) {
+      this.text = text;
+    }
+
+    char peek() {
+      if (pos >= text.length())
+        throw new IllegalArgumentException("Unexpected end of JSON");
+      return text.charAt(pos);
+    }
+
+    void expect(char c) {
+      if (peek() != c)
+        throw new IllegalArgumentException("Expected '" + c + "' in JSON at " + pos);
+      pos++;
+    }
+
+    void skipSpace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+        pos++;
+    }
+
+    String value() {
+      char c = peek();
+      if (c == '"')
+        return string();
+      if (c == '{' || c == '[')
+        throw new IllegalArgumentException("Nested JSON values are not supported at " + pos);
+      int start = pos;
+      while (pos < text.length() && ",} \t\r\n".indexOf(text.charAt(pos)) < 0)
+        pos++;
+      String literal = text.substring(start, pos);
+      if (literal.equals("null"))
+        return null;
+      if (literal.isEmpty())
+        throw new IllegalArgumentException("Missing JSON value at " + start);
+      return literal;
+    }
+
+    String string() {
+      expect('"');
+      StringBuilder builder = new StringBuilder();
+      while (true) {
+        char c = peek();
+        pos++;
+        if (c == '"')
+          return builder.toString();
+        if (c != '\\') {
+          builder.append(c);
+          continue;
+        }
+        char escape = peek();
+        pos++;
+        switch (escape) {
+          case 'n': builder.append('\n'); break;
+          case 'r': builder.append('\r'); break;
+          case 't': builder.append('\t'); break;
+          case 'b': builder.append('\b'); break;
+          case 'f': builder.append('\f'); break;
+          case 'u':
+            if (pos + 4 > text.length())
+              throw new IllegalArgumentException("Truncated unicode escape in JSON");
+            builder.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+            pos += 4;
+            break;
+          default: builder.append(escape);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/**
+ * Live leaderboards of the most followed users, the most prolific posters and the most
+ * positive posters, kept up to date as follows, unfollows, posts and re-scoring happen
+ * instead of being computed by scanning every user.
+ *
+ * Counts (followers, posts) are kept in buckets: a sorted map from each count held by
+ * someone to the users holding it, in the order they reached it. A change by one moves
+ * a user to the next bucket in O(log b) for b distinct counts, and the top k is read
+ * from the highest buckets down in O(k). Average positivity is a real number, so those
+ * users are kept in a sorted set by average instead, O(log n) per change and O(k) to
+ * read; only users with at least MIN_SCORED_POSTS scored posts are ranked, so that one
+ * cheerful post does not top the board.
+ *
+ * The registries report changes from their insert paths (User.linkFollowing and
+ * unlinkFollowing, Message.deliver, Message.setPositivePercentage), which replicas and
+ * bulk loaders use too, and SnapshotStore rebuilds the boards after a load. Each board
+ * is guarded by its own monitor, since re-scoring runs outside the TwitterOperations
+ * lock; readers hold it only while copying out the top k. Archived messages still count.
+ */
+import java.io.IOException;
+import java.util.*;
+
+public class Leaderboards {
+
+  public static final int MIN_SCORED_POSTS = Integer.getInteger("minitwitter.leaderboard.minPosts", 5);
+
+  public static final Counts followers = new Counts();
+  public static final Counts posts = new Counts();
+  public static final Averages positivity = new Averages(MIN_SCORED_POSTS);
+
+  /**
+   * One ranked user.
+   */
+  public static final class Entry {
+    private final String uid;
+    private final double value;
+    private final long count;
+
+    Entry(String uid, double value, long count) {
+      this.uid = uid;
+      this.value = value;
+      this.count = count;
+    }
+
+    public String getUid() {
+      return uid;
+    }
+
+    /**
+     * @return The count, or the average for the positivity board.
+     */
+    public double getValue() {
+      return value;
+    }
+
+    /**
+     * @return The count, or the number of scored posts for the positivity board.
+     */
+    public long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Users ranked by a count, in buckets of equal counts.
+   */
+  public static final class Counts {
+    private final HashMap < String, Long > counts = new HashMap < > ();
+    private final TreeMap < Long, LinkedHashSet < String > > buckets = new TreeMap < > ();
+
+    /**
+     * Changes a user's count; users whose count drops to 0 leave the board.
+     */
+    public synchronized void add(String uid, long delta) {
+      Long count = counts.get(uid);
+      set(uid, (count == null ? 0 : count) + delta);
+    }
+
+    public synchronized void set(String uid, long count) {
+      Long old = count > 0 ? counts.put(uid, count) : counts.remove(uid);
+      if (old != null) {
+        if (old == count)
+          return;
+        LinkedHashSet < String > bucket = buckets.get(old);
+        bucket.remove(uid);
+        if (bucket.isEmpty())
+          buckets.remove(old);
+      }
+      if (count > 0)
+        buckets.computeIfAbsent(count, c -> new LinkedHashSet < > ()).add(uid);
+    }
+
+    public synchronized long get(String uid) {
+      Long count = counts.get(uid);
+      return count == null ? 0 : count;
+    }
+
+    /**
+     * @return The k users with the highest counts, highest first; ties in the order the
+     *         users reached the count.
+     */
+    public synchronized List < Entry > top(int k) {
+      List < Entry > top = new ArrayList < > (Math.min(k, 64));
+      for (Map.Entry < Long, LinkedHashSet < String > > i: buckets.descendingMap().entrySet()) {
+        for (String uid: i.getValue()) {
+          if (top.size() >= k)
+            return top;
+          top.add(new Entry(uid, i.getKey(), i.getKey()));
+        }
+      }
+      return top;
+    }
+
+    /**
+     * @return The number of users with a count above 0.
+     */
+    public synchronized int size() {
+      return counts.size();
+    }
+
+    synchronized void clear() {
+      counts.clear();
+      buckets.clear();
+    }
+  }
+
+  /**
+   * Users ranked by the average of the scores of their posts.
+   */
+  public static final class Averages {
+
+    private static final class Score {
+      final String uid;
+      double sum;
+      long count;
+
+      Score(String uid) {
+        this.uid = uid;
+      }
+
+      double average() {
+        return sum / count;
+      }
+    }
+
+    private final int minCount;
+    private final HashMap < String, Score > scores = new HashMap < > ();
+    // The users with at least minCount scores, best average first
+    private final TreeSet < Score > ranked = new TreeSet < > ((a, b) -> {
+      int order = Double.compare(b.average(), a.average());
+      return order != 0 ? order : a.uid.compareTo(b.uid);
+    });
+
+    public Averages(int minCount) {
+      this.minCount = Math.max(1, minCount);
+    }
+
+    /**
+     * Adds, removes or replaces one score of a user.
+     *
+     * @param uid      The user.
+     * @param oldScore The score being replaced, or null when adding.
+     * @param newScore The new score, or null when removing.
+     */
+    public synchronized void update(String uid, Double oldScore, Double newScore) {
+      if (oldScore == null && newScore == null)
+        return;
+      Score score = scores.get(uid);
+      if (score == null) {
+        if (newScore == null)
+          return;
+        scores.put(uid, score = new Score(uid));
+      }
+      // Out of the set while its sort key changes
+      if (score.count >= minCount)
+        ranked.remove(score);
+      if (oldScore != null) {
+        score.sum -= oldScore;
+        score.count--;
+      }
+      if (newScore != null) {
+        score.sum += newScore;
+        score.count++;
+      }
+      if (score.count <= 0)
+        scores.remove(uid);
+      else if (score.count >= minCount)
+        ranked.add(score);
+    }
+
+    /**
+     * @return The k users with the best average score, best first.
+     */
+    public synchronized List < Entry > top(int k) {
+      List < Entry > top = new ArrayList < > (Math.min(k, 64));
+      for (Iterator < Score > i = ranked.iterator(); i.hasNext() && top.size() < k;) {
+        Score score = i.next();
+        top.add(new Entry(score.uid, score.average(), score.count));
+      }
+      return top;
+    }
+
+    /**
+     * @return The average of the user's scores, or NaN if they have none.
+     */
+    public synchronized double get(String uid) {
+      Score score = scores.get(uid);
+      return score == null ? Double.NaN : score.average();
+    }
+
+    /**
+     * @return The number of users ranked.
+     */
+    public synchronized int size() {
+      return ranked.size();
+    }
+
+    synchronized void clear() {
+      scores.clear();
+      ranked.clear();
+    }
+  }
+
+  // --- Reported by the registries ---
+
+  static void onFollow(User followee) {
+    followers.add(followee.getUid(), 1);
+  }
+
+  static void onUnfollow(User followee) {
+    followers.add(followee.getUid(), -1);
+  }
+
+  static void onPost(Message message) {
+    if (message.getFrom() == null)
+      return;
+    posts.add(message.getFrom(), 1);
+    positivity.update(message.getFrom(), null, message.getPositivePercentage());
+  }
+
+  static void onRescore(Message message, Double oldScore, Double newScore) {
+    if (message.getFrom() != null)
+      positivity.update(message.getFrom(), oldScore, newScore);
+  }
+
+  /**
+   * Recomputes the boards from the registries and the MessageArchive, e.g. after a
+   * snapshot load, after MessageColumns was rebuilt. Callers must hold the
+   * TwitterOperations lock.
+   */
+  static void rebuild() {
+    followers.clear();
+    for (User i: User.usersMap.values())
+      followers.set(i.getUid(), i.getFollowers().size());
+    // Holding the positivity monitor, a backfill still re-scoring the replaced messages
+    // either runs before the clear or finds their MessageColumns rows gone afterwards
+    synchronized (positivity) {
+      posts.clear();
+      positivity.clear();
+      try {
+        MessageArchive.shared.scan(i -> {
+          posts.add(i.getFrom(), 1);
+          positivity.update(i.getFrom(), null, i.getPositivity());
+          return false;
+        }, 0);
+      } catch (IOException e) {
+        System.err.println("Could not read message archive " + MessageArchive.shared.getPath() + ": " + e.getMessage());
+      }
+      for (String i: Message.messages) {
+        Message message = Message.messageMap.get(i);
+        if (message != null)
+          onPost(message);
+      }
+    }
+  }
+
+  /**
+   * @param k The number of users per board.
+   * @return The top k of each board as JSON.
+   */
+  public static String toJson(int k) {
+    return "{\"mostFollowed\":" + json(followers.top(k), false) +
+      ",\"mostPosts\":" + json(posts.top(k), false) +
+      ",\"mostPositive\":" + json(positivity.top(k), true) +
+      ",\"minScoredPosts\":" + positivity.minCount + "}";
+  }
+
+  private static String json(List < Entry > entries, boolean average) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      json.append(i > 0 ? "," : "").append("{\"user\":").append(Json.quote(entry.uid));
+      if (average)
+        json.append(",\"average\":").append(entry.value).append(",\"posts\":").append(entry.count);
+      else
+        json.append(",\"count\":").append(entry.count);
+      json.append('}');
+    }
+    return json.append(']').toString();
+  }
+}
@@ -0,0 +1,755 @@
+/**
+ * Estimates the heap retained by each subsystem (registries, follow graph, feeds,
+ * message text, indexes and caches) and what one more user, follow or message costs,
+ * so that machines can be sized for a target population instead of by guesswork.
+ *
+ * Stores that already track their own size (FollowerSet, MessageTextStore,
+ * MessageColumns, TimelineCache, RollingMetrics) report it; everything else is counted
+ * and multiplied by a per-entity cost. The costs start from shallow-size models of a 64-bit JVM with
+ * compressed references (12 byte headers, 4 byte references, 8 byte alignment, hash
+ * tables at their default load factor and lists half grown), with IDs of the average
+ * length seen in the registries. calibrate() replaces them with measured costs: it
+ * builds many instances of each entity with the real classes, outside the registries,
+ * and divides the growth of the heap after a full GC by their number. Calibration
+ * forces several full GCs, so it is run on request (the admin dialog, JMX, or
+ * java MemoryAccounting) rather than at startup.
+ *
+ * A report walks the users once, in batches of USER_BATCH under the engine lock (follower
+ * sets may only be read under it), so its counts may be off by what changes between
+ * batches. Reports are shared for REPORT_MILLIS, since JMX consoles
+ * read each attribute on its own. Registered as the MXBean minitwitter:type=MemoryAccounting.
+ *
+ * Usage: java MemoryAccounting [instances]   prints the models next to measured costs
+ */
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MemoryAccounting {
+
+  public static final long REPORT_MILLIS = 2000;
+  public static final int CALIBRATION_INSTANCES = 100000;
+  // Users counted per hold of the engine lock
+  private static final int USER_BATCH = 1000;
+
+  /**
+   * The things whose count drives the heap size. Costs include the entity's share of
+   * the maps and lists that hold it, and its ID string where it owns one.
+   */
+  public enum Entity {
+    USER("User"),                 // User, its empty followings and news lists, registry entries
+    USER_GROUP("UserGroup"),      // UserGroup, its member map, registry entries
+    USER_MEMBER("UserMember"),    // UserMember and its entry in the group's member map
+    MESSAGE("Message"),           // Message, its score, registry entries
+    NEWS_ENTRY("News entry"),     // one message ID slot in a news feed
+    FOLLOWING("Following"),       // one user ID slot in a followings list
+    AUTHOR_TIMELINE("AuthorTimeline"), // an author's empty timeline and its registry entry
+    TIMELINE_ENTRY("Timeline entry"), // one message in an AuthorTimeline
+    USER_ID("UserIds entry"),     // a user's number in the UserIds dictionary
+    SORTED_ID("Sorted ID"),       // an ID in a SortedIdIndex, once built
+    LEADERBOARD("Leaderboard entry"), // a user on one of the Leaderboards
+    REPLY("Reply");               // a reply's link in the ConversationIndex and its list slots
+
+    private final String label;
+
+    Entity(String label) {
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
+  /**
+   * The subsystems a report divides the heap into.
+   */
+  public enum Subsystem {
+    REGISTRIES("Registries"),
+    FOLLOW_GRAPH("Follow graph"),
+    FEEDS("Feeds"),
+    MESSAGE_TEXT("Message text"),
+    INDEXES("Indexes"),
+    CACHES("Caches");
+
+    private final String label;
+
+    Subsystem(String label) {
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
+  // Measured costs, or null until calibrate() has run
+  private static volatile long[] calibrated;
+  private static volatile Report lastReport;
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "memory-accounting");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Heap use by subsystem at one point in time, with the counts and costs it was
+   * computed from.
+   */
+  public static final class Report {
+    private final long timeMillis = System.currentTimeMillis();
+    private final double[] idLengths;
+    private final long[] models;
+    private final long[] costs;
+    private final boolean calibrated;
+    private final long[] counts = new long[Entity.values().length];
+    private final long[] bytes = new long[Subsystem.values().length];
+    private long users, follows, messages, followerBytes, textBytes, columnBytes, cacheBytes, metricBytes;
+
+    private Report(double[] idLengths, long[] models, long[] costs, boolean calibrated) {
+      this.idLengths = idLengths;
+      this.models = models;
+      this.costs = costs;
+      this.calibrated = calibrated;
+    }
+
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    public boolean isCalibrated() {
+      return calibrated;
+    }
+
+    /**
+     * @return The cost used for the entity: measured if calibrated, else modelled.
+     */
+    public long getCost(Entity entity) {
+      return costs[entity.ordinal()];
+    }
+
+    /**
+     * @return The modelled cost of the entity, with the ID lengths of the registries.
+     */
+    public long getModel(Entity entity) {
+      return models[entity.ordinal()];
+    }
+
+    public long getCount(Entity entity) {
+      return counts[entity.ordinal()];
+    }
+
+    public long getBytes(Subsystem subsystem) {
+      return bytes[subsystem.ordinal()];
+    }
+
+    public long getTotalBytes() {
+      long total = 0;
+      for (long i: bytes)
+        total += i;
+      return total;
+    }
+
+    /**
+     * @return The bytes per user, per follow and per message at the current shape of
+     *         the data: each message's share of the feeds it fans out to, the average
+     *         text size and so on.
+     */
+    public double getBytesPerUser() {
+      return marginal(1, 0, 0);
+    }
+
+    public double getBytesPerFollow() {
+      return marginal(0, 1, 0);
+    }
+
+    public double getBytesPerMessage() {
+      return marginal(0, 0, 1);
+    }
+
+    // Without the fixed cache budget
+    private double marginal(double users, double follows, double messages) {
+      int total = Subsystem.values().length;
+      return project(users, follows, messages)[total] - project(0, 0, 0)[total];
+    }
+
+    /**
+     * Projects the heap needed for a target population, keeping the current ratios
+     * (groups per user, text bytes per message, follower set bytes per follow) and
+     * costs. Caches are projected at their configured budget.
+     *
+     * @return The bytes of each Subsystem, by ordinal, followed by the total.
+     */
+    public long[] projectBytes(long users, long follows, long messages) {
+      double[] projected = project(users, follows, messages);
+      long[] rounded = new long[projected.length];
+      for (int i = 0; i < projected.length; i++)
+        rounded[i] = Math.round(projected[i]);
+      return rounded;
+    }
+
+    private double[] project(double users, double follows, double messages) {
+      double groupsPerUser = this.users == 0 ? 0 : getCount(Entity.USER_GROUP) / (double) this.users;
+      double groups = users * groupsPerUser;
+      // A follower set costs its empty size per user and some bytes per follower
+      double followerPerEdge = this.follows == 0 ? 4 : Math.max(0, followerBytes - EMPTY_FOLLOWER_SET * this.users) / (double) this.follows;
+      double textPerMessage = this.messages == 0 ? 0 : textBytes / (double) this.messages;
+      double authorsPerUser = this.users == 0 ? 1 : getCount(Entity.AUTHOR_TIMELINE) / (double) this.users;
+      // RollingMetrics keeps a fixed-size series per group with activity
+      double seriesPerGroup = getCount(Entity.USER_GROUP) == 0 ? 0 :
+        Math.max(0, metricBytes / RollingMetrics.Series.memoryBytes() - 2) / (double) getCount(Entity.USER_GROUP);
+      double repliesPerMessage = this.messages == 0 ? 0 : getCount(Entity.REPLY) / (double) this.messages;
+      double news = 0;
+      if (Message.fanOutOnWrite) {
+        // Each message goes to its sender's feed and to their followers'
+        double followersPerUser = users > 0 ? follows / users : this.users == 0 ? 0 : this.follows / (double) this.users;
+        news = messages * (1 + followersPerUser);
+        int maxPerFeed = Integer.getInteger("minitwitter.retention.maxPerFeed", 0);
+        if (maxPerFeed > 0 && users > 0)
+          news = Math.min(news, (double) maxPerFeed * users);
+      }
+      double[] projected = new double[Subsystem.values().length + 1];
+      projected[Subsystem.REGISTRIES.ordinal()] = users * cost(Entity.USER) + groups * cost(Entity.USER_GROUP) +
+        (users + groups) * cost(Entity.USER_MEMBER) + messages * cost(Entity.MESSAGE);
+      projected[Subsystem.FOLLOW_GRAPH.ordinal()] = users * EMPTY_FOLLOWER_SET + follows * (followerPerEdge + cost(Entity.FOLLOWING));
+      projected[Subsystem.FEEDS.ordinal()] = news * cost(Entity.NEWS_ENTRY) + messages * cost(Entity.TIMELINE_ENTRY) +
+        Math.min(users * authorsPerUser, messages) * cost(Entity.AUTHOR_TIMELINE);
+      projected[Subsystem.MESSAGE_TEXT.ordinal()] = messages * textPerMessage;
+      projected[Subsystem.INDEXES.ordinal()] = messages * MessageColumns.ROW_BYTES + users * cost(Entity.USER_ID) +
+        (getCount(Entity.SORTED_ID) > 0 ? (users + groups) * cost(Entity.SORTED_ID) : 0) + 3 * users * cost(Entity.LEADERBOARD) +
+        messages * repliesPerMessage * cost(Entity.REPLY) + (2 + groups * seriesPerGroup) * RollingMetrics.Series.memoryBytes();
+      projected[Subsystem.CACHES.ordinal()] = TimelineCache.shared.getMaxBytes();
+      for (int i = 0; i < projected.length - 1; i++)
+        projected[projected.length - 1] += projected[i];
+      return projected;
+    }
+
+    private double cost(Entity entity) {
+      return costs[entity.ordinal()];
+    }
+
+    /**
+     * @return The report as JSON, with a projection if the targets are given (> 0).
+     */
+    public String toJson(long users, long follows, long messages) {
+      StringBuilder json = new StringBuilder("{\"totalBytes\":").append(getTotalBytes())
+        .append(",\"calibrated\":").append(calibrated)
+        .append(",\"idLengths\":{\"users\":").append(Math.round(idLengths[0] * 10) / 10.0)
+        .append(",\"groups\":").append(Math.round(idLengths[1] * 10) / 10.0)
+        .append(",\"messages\":").append(Math.round(idLengths[2] * 10) / 10.0).append('}')
+        .append(",\"subsystems\":{");
+      for (Subsystem i: Subsystem.values())
+        json.append(i.ordinal() > 0 ? "," : "").append(Json.quote(i.name().toLowerCase())).append(':').append(getBytes(i));
+      json.append("},\"entities\":{");
+      for (Entity i: Entity.values())
+        json.append(i.ordinal() > 0 ? "," : "").append(Json.quote(i.name().toLowerCase()))
+          .append(":{\"count\":").append(getCount(i)).append(",\"bytes\":").append(getCost(i))
+          .append(",\"model\":").append(getModel(i)).append('}');
+      json.append("},\"bytesPerUser\":").append(Math.round(getBytesPerUser()))
+        .append(",\"bytesPerFollow\":").append(Math.round(getBytesPerFollow()))
+        .append(",\"bytesPerMessage\":").append(Math.round(getBytesPerMessage()));
+      if (users > 0 || follows > 0 || messages > 0) {
+        long[] projected = projectBytes(users, follows, messages);
+        json.append(",\"projection\":{\"users\":").append(users).append(",\"follows\":").append(follows)
+          .append(",\"messages\":").append(messages).append(",\"totalBytes\":").append(projected[projected.length - 1]);
+        for (Subsystem i: Subsystem.values())
+          json.append(',').append(Json.quote(i.name().toLowerCase())).append(':').append(projected[i.ordinal()]);
+        json.append('}');
+      }
+      return json.append('}').toString();
+    }
+  }
+
+  // --- Models ---
+
+  private static final int HEADER = 12;
+  private static final int REFERENCE = 4;
+  // A FollowerSet with no followers, as FollowerSet.memoryBytes counts it
+  private static final long EMPTY_FOLLOWER_SET = new FollowerSet().memoryBytes();
+
+  private static long align(double bytes) {
+    return ((long) Math.ceil(bytes) + 7) & ~7L;
+  }
+
+  // A Latin-1 String and its byte array
+  private static double string(double length) {
+    return align(HEADER + 3 * 4 + REFERENCE) + align(16 + length);
+  }
+
+  // A ConcurrentHashMap or HashMap node and its table slot at load factor 0.75, half grown
+  private static final double MAP_ENTRY = align(HEADER + 4 + 3 * REFERENCE) + REFERENCE / 0.75 * 1.5;
+  // A LinkedHashMap entry, with its before and after links
+  private static final double LINKED_MAP_ENTRY = align(HEADER + 4 + 5 * REFERENCE) + REFERENCE / 0.75 * 1.5;
+  // A list slot in an array grown by half when full, on average three quarters used
+  private static final double LIST_SLOT = REFERENCE * 4 / 3.0;
+  private static final long SNAPSHOT_LIST = align(HEADER + REFERENCE);
+
+  /**
+   * @return The modelled cost of an entity, whose IDs have the given average length.
+   */
+  public static long model(Entity entity, double idLength) {
+    double id = string(idLength), registry = MAP_ENTRY + LIST_SLOT;
+    switch (entity) {
+      case USER:
+        // uid, name, followers, followings, news, userGroup; newsOffset, creation and update times
+        return Math.round(align(HEADER + 6 * REFERENCE + 3 * 8) + 2 * SNAPSHOT_LIST + id + registry);
+      case USER_GROUP:
+        // uid, name, children, members, parent; two counts; creation and update times
+        return Math.round(align(HEADER + 5 * REFERENCE + 2 * 4 + 2 * 8) + align(HEADER + 4 * 4 + 5 * REFERENCE + 1) + SNAPSHOT_LIST + id + registry);
+      case USER_MEMBER:
+        // The member, its map entry and its slot in the group's member list
+        return Math.round(align(HEADER + 2 * REFERENCE) + LINKED_MAP_ENTRY + LIST_SLOT);
+      case MESSAGE:
+        // uid, from, replyTo, positivePercentage, textLoader; textId, analyticsRow; creation time; the boxed score
+        return Math.round(align(HEADER + 5 * REFERENCE + 2 * 4 + 8) + align(HEADER + 8) + id + registry);
+      case NEWS_ENTRY:
+      case FOLLOWING:
+        return Math.round(LIST_SLOT);
+      case AUTHOR_TIMELINE:
+        // The timeline, its first segment with two arrays of 4, and its map entry
+        return Math.round(align(HEADER + REFERENCE + 4) + align(HEADER + 2 * REFERENCE + 4) + align(16 + 4 * REFERENCE) +
+          align(16 + 4 * 8) + MAP_ENTRY);
+      case TIMELINE_ENTRY:
+        // Arrays grown by doubling, on average three quarters used
+        return Math.round((REFERENCE + 8) * 4 / 3.0);
+      case USER_ID:
+        // Numbers above 127 are boxed
+        return Math.round(MAP_ENTRY + align(HEADER + 4) + LIST_SLOT);
+      case SORTED_ID:
+        // A skip list node, and on average a quarter of an index node above it
+        return Math.round(align(HEADER + 3 * REFERENCE) + align(HEADER + 3 * REFERENCE) / 4.0);
+      case LEADERBOARD:
+        // Its count (boxed) in the map, and its place in the bucket of that count
+        return Math.round(MAP_ENTRY + align(HEADER + 8) + LINKED_MAP_ENTRY);
+      case REPLY:
+        // Its link (parent, root, depth) in the map, and its slots in its thread and its parent's replies
+        return Math.round(MAP_ENTRY + align(HEADER + 2 * REFERENCE + 4) + 2 * LIST_SLOT);
+      default:
+        throw new IllegalArgumentException("No model for " + entity);
+    }
+  }
+
+  // --- Reports ---
+
+  /**
+   * @return A report of the current heap use, at most REPORT_MILLIS old.
+   */
+  public static Report report() {
+    Report report = lastReport;
+    if (report != null && System.currentTimeMillis() - report.timeMillis < REPORT_MILLIS)
+      return report;
+    return lastReport = compute();
+  }
+
+  /**
+   * Computes a report on a background thread.
+   */
+  public static CompletableFuture < Report > reportAsync() {
+    return CompletableFuture.supplyAsync(MemoryAccounting::report, executor);
+  }
+
+  private static Report compute() {
+    List < String > userIds = User.users.snapshot();
+    List < String > groupIds = UserGroup.userGroups.snapshot();
+    List < String > messageIds = Message.messages.snapshot();
+    double[] idLengths = { averageLength(userIds), averageLength(groupIds), averageLength(messageIds) };
+    long[] measured = calibrated;
+    long[] models = new long[Entity.values().length];
+    for (Entity i: Entity.values())
+      models[i.ordinal()] = model(i, idLength(i, idLengths));
+    Report report = new Report(idLengths, models, measured != null ? measured : models, measured != null);
+
+    long news = 0, followings = 0, followerBytes = 0;
+    for (int start = 0; start < userIds.size(); start += USER_BATCH) {
+      synchronized (TwitterOperations.class) {
+        for (int i = start; i < Math.min(userIds.size(), start + USER_BATCH); i++) {
+          User user = User.usersMap.get(userIds.get(i));
+          if (user == null)
+            continue;
+          news += user.getNews().size();
+          followings += user.getFollowings().size();
+          followerBytes += user.getFollowers().memoryBytes();
+        }
+      }
+    }
+    long timeline = 0;
+    for (AuthorTimeline i: AuthorTimeline.timelines.values())
+      timeline += i.size() - i.floor();
+    long[] counts = report.counts;
+    counts[Entity.USER.ordinal()] = userIds.size();
+    counts[Entity.USER_GROUP.ordinal()] = groupIds.size();
+    counts[Entity.USER_MEMBER.ordinal()] = Math.max(0, userIds.size() + groupIds.size() - 1);
+    counts[Entity.MESSAGE.ordinal()] = messageIds.size();
+    counts[Entity.NEWS_ENTRY.ordinal()] = news;
+    counts[Entity.FOLLOWING.ordinal()] = followings;
+    counts[Entity.AUTHOR_TIMELINE.ordinal()] = AuthorTimeline.timelines.size();
+    counts[Entity.TIMELINE_ENTRY.ordinal()] = timeline;
+    counts[Entity.USER_ID.ordinal()] = UserIds.size();
+    counts[Entity.SORTED_ID.ordinal()] = (SortedIdIndex.users.isBuilt() ? userIds.size() : 0) +
+      (SortedIdIndex.groups.isBuilt() ? groupIds.size() : 0);
+    // Posters are on both the posts and the positivity boards
+    counts[Entity.LEADERBOARD.ordinal()] = Leaderboards.followers.size() + 2L * Leaderboards.posts.size();
+    counts[Entity.REPLY.ordinal()] = ConversationIndex.size();
+    report.users = userIds.size();
+    report.follows = followings;
+    report.messages = messageIds.size();
+    report.followerBytes = followerBytes;
+    report.textBytes = MessageTextStore.shared.memoryBytes();
+    report.columnBytes = MessageColumns.shared.memoryBytes();
+    report.metricBytes = RollingMetrics.memoryBytes();
+    report.cacheBytes = TimelineCache.shared.getBytes();
+
+    long[] bytes = report.bytes;
+    bytes[Subsystem.REGISTRIES.ordinal()] = entities(report, Entity.USER, Entity.USER_GROUP, Entity.USER_MEMBER, Entity.MESSAGE);
+    bytes[Subsystem.FOLLOW_GRAPH.ordinal()] = followerBytes + entities(report, Entity.FOLLOWING);
+    bytes[Subsystem.FEEDS.ordinal()] = entities(report, Entity.NEWS_ENTRY, Entity.AUTHOR_TIMELINE, Entity.TIMELINE_ENTRY);
+    bytes[Subsystem.MESSAGE_TEXT.ordinal()] = report.textBytes;
+    bytes[Subsystem.INDEXES.ordinal()] = report.columnBytes + report.metricBytes + entities(report, Entity.USER_ID, Entity.SORTED_ID, Entity.LEADERBOARD, Entity.REPLY);
+    bytes[Subsystem.CACHES.ordinal()] = report.cacheBytes;
+    return report;
+  }
+
+  private static long entities(Report report, Entity... entities) {
+    long bytes = 0;
+    for (Entity i: entities)
+      bytes += report.getCount(i) * report.getCost(i);
+    return bytes;
+  }
+
+  // Average over up to 1000 IDs spread over the whole registry
+  private static double averageLength(List < String > registry) {
+    long length = 0, count = 0;
+    int step = Math.max(1, registry.size() / 1000);
+    for (int i = 0; i < registry.size(); i += step) {
+      length += registry.get(i).length();
+      count++;
+    }
+    return count == 0 ? 16 : length / (double) count;
+  }
+
+  private static double[] idLengths() {
+    return new double[] { averageLength(User.users.snapshot()), averageLength(UserGroup.userGroups.snapshot()),
+      averageLength(Message.messages.snapshot()) };
+  }
+
+  // The length of the IDs an entity holds: user, group or message IDs
+  private static double idLength(Entity entity, double[] idLengths) {
+    switch (entity) {
+      case USER_GROUP:
+        return idLengths[1];
+      case MESSAGE:
+      case NEWS_ENTRY:
+      case TIMELINE_ENTRY:
+        return idLengths[2];
+      default:
+        return idLengths[0];
+    }
+  }
+
+  // --- Calibration ---
+
+  /**
+   * Measures the cost of each entity with the real classes and uses the measurements
+   * in later reports instead of the models.
+   *
+   * @param instances The number of instances of each entity to build.
+   * @return The measured bytes of each Entity, by ordinal.
+   */
+  public static long[] calibrate(int instances) {
+    double[] idLengths = idLengths();
+    long[] measured = new long[Entity.values().length];
+    for (Entity i: Entity.values())
+      measured[i.ordinal()] = Math.max(0, Math.round(measure(i, instances, (int) Math.round(idLength(i, idLengths)))));
+    calibrated = measured;
+    lastReport = null;
+    return measured;
+  }
+
+  public static CompletableFuture < long[] > calibrateAsync() {
+    return CompletableFuture.supplyAsync(() -> calibrate(CALIBRATION_INSTANCES), executor);
+  }
+
+  /**
+   * Drops the measured costs and goes back to the models.
+   */
+  public static void resetCalibration() {
+    calibrated = null;
+    lastReport = null;
+  }
+
+  // IDs unique to the calibration run, padded to the length of live IDs
+  private static String id(int i, int length) {
+    StringBuilder id = new StringBuilder("~cal").append(i);
+    while (id.length() < length)
+      id.append('_');
+    return id.toString();
+  }
+
+  private static double measure(Entity entity, int n, int idLength) {
+    // Things the entities only point to are made before the first reading
+    String shared = id(-1, idLength).replace('~', '#');
+    Object keep;
+    long before = usedHeap();
+    switch (entity) {
+      case USER: {
+        ConcurrentHashMap < String, User > map = new ConcurrentHashMap < > ();
+        SnapshotList < String > list = new SnapshotList < > ();
+        for (int i = 0; i < n; i++) {
+          User user = new User(id(i, idLength));
+          user.setName(user.getUid());
+          map.put(user.getUid(), user);
+          list.add(user.getUid());
+        }
+        keep = new Object[] { map, list };
+        // The empty follower sets are counted in the follow graph
+        before += EMPTY_FOLLOWER_SET * n;
+        break;
+      }
+      case USER_GROUP: {
+        ConcurrentHashMap < String, UserGroup > map = new ConcurrentHashMap < > ();
+        SnapshotList < String > list = new SnapshotList < > ();
+        for (int i = 0; i < n; i++) {
+          UserGroup group = new UserGroup(id(i, idLength));
+          group.setName(group.getUid());
+          map.put(group.getUid(), group);
+          list.add(group.getUid());
+        }
+        keep = new Object[] { map, list };
+        break;
+      }
+      case USER_MEMBER: {
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        LinkedHashMap < String, UserMember > children = new LinkedHashMap < > ();
+        for (String i: ids)
+          children.put(i, new UserMember(i, UserMember.CHILD_TYPE.USER));
+        SnapshotList < UserMember > members = new SnapshotList < > ();
+        for (UserMember i: children.values())
+          members.add(i);
+        keep = new Object[] { ids, children, members };
+        break;
+      }
+      case MESSAGE: {
+        ConcurrentHashMap < String, Message > map = new ConcurrentHashMap < > ();
+        SnapshotList < String > list = new SnapshotList < > ();
+        for (int i = 0; i < n; i++) {
+          Message message = new Message(id(i, idLength));
+          message.setFrom(shared);
+          message.setPositivePercentage(i * 0.001);
+          map.put(message.getUid(), message);
+          list.add(message.getUid());
+        }
+        keep = new Object[] { map, list };
+        break;
+      }
+      case NEWS_ENTRY:
+      case FOLLOWING: {
+        SnapshotList < String > list = new SnapshotList < > ();
+        for (int i = 0; i < n; i++)
+          list.add(shared);
+        keep = list;
+        break;
+      }
+      case AUTHOR_TIMELINE: {
+        // Timelines of authors that do not exist, dropped again once measured
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        for (String i: ids)
+          AuthorTimeline.of(i);
+        long after = usedHeap();
+        for (String i: ids)
+          AuthorTimeline.timelines.remove(i);
+        return (after - before) / (double) n;
+      }
+      case TIMELINE_ENTRY: {
+        // A timeline of an author that does not exist, dropped again once measured
+        Message[] posts = new Message[n];
+        for (int i = 0; i < n; i++) {
+          posts[i] = new Message(id(i, idLength));
+          posts[i].setFrom(shared);
+        }
+        before = usedHeap();
+        for (Message i: posts)
+          AuthorTimeline.append(i);
+        long after = usedHeap();
+        AuthorTimeline.timelines.remove(shared);
+        return (after - before) / (double) n;
+      }
+      case USER_ID: {
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        ConcurrentHashMap < String, Integer > map = new ConcurrentHashMap < > ();
+        String[] numbers = new String[16];
+        for (int i = 0; i < n; i++) {
+          map.put(ids[i], 1000 + i);
+          if (i == numbers.length)
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+          numbers[i] = ids[i];
+        }
+        keep = new Object[] { ids, map, numbers };
+        break;
+      }
+      case SORTED_ID: {
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        keep = new Object[] { ids, new ConcurrentSkipListSet < > (Arrays.asList(ids)) };
+        break;
+      }
+      case LEADERBOARD: {
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        Leaderboards.Counts board = new Leaderboards.Counts();
+        for (int i = 0; i < n; i++)
+          board.set(ids[i], 1000 + i % 1000);
+        keep = new Object[] { ids, board };
+        break;
+      }
+      case REPLY: {
+        // Replies to one root, in lists like the index keeps
+        String[] ids = ids(n, idLength);
+        before = usedHeap();
+        ConcurrentHashMap < String, ConversationIndex.Link > links = new ConcurrentHashMap < > ();
+        SnapshotList < String > thread = new SnapshotList < > (), replies = new SnapshotList < > ();
+        for (String i: ids) {
+          links.put(i, new ConversationIndex.Link(shared, shared, 1));
+          thread.add(i);
+          replies.add(i);
+        }
+        keep = new Object[] { ids, links, thread, replies };
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("No measurement for " + entity);
+    }
+    long after = usedHeap();
+    Reference.reachabilityFence(keep);
+    return (after - before) / (double) n;
+  }
+
+  private static String[] ids(int n, int idLength) {
+    String[] ids = new String[n];
+    for (int i = 0; i < n; i++)
+      ids[i] = id(i, idLength);
+    return ids;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // --- JMX ---
+
+  /**
+   * The management interface, registered as minitwitter:type=MemoryAccounting.
+   */
+  public interface MemoryAccountingMXBean {
+    long getTotalBytes();
+
+    Map < String, Long > getSubsystemBytes();
+
+    Map < String, Long > getEntityBytes();
+
+    boolean isCalibrated();
+
+    long getBytesPerUser();
+
+    long getBytesPerFollow();
+
+    long getBytesPerMessage();
+
+    /**
+     * @return The projected bytes of each subsystem and the total ("total").
+     */
+    Map < String, Long > project(long users, long follows, long messages);
+
+    void calibrate();
+
+    void resetCalibration();
+  }
+
+  private static final class Bean implements MemoryAccountingMXBean {
+    public long getTotalBytes() {
+      return report().getTotalBytes();
+    }
+
+    public Map < String, Long > getSubsystemBytes() {
+      Report report = report();
+      Map < String, Long > bytes = new LinkedHashMap < > ();
+      for (Subsystem i: Subsystem.values())
+        bytes.put(i.toString(), report.getBytes(i));
+      return bytes;
+    }
+
+    public Map < String, Long > getEntityBytes() {
+      Report report = report();
+      Map < String, Long > bytes = new LinkedHashMap < > ();
+      for (Entity i: Entity.values())
+        bytes.put(i.toString(), report.getCost(i));
+      return bytes;
+    }
+
+    public boolean isCalibrated() {
+      return calibrated != null;
+    }
+
+    public long getBytesPerUser() {
+      return Math.round(report().getBytesPerUser());
+    }
+
+    public long getBytesPerFollow() {
+      return Math.round(report().getBytesPerFollow());
+    }
+
+    public long getBytesPerMessage() {
+      return Math.round(report().getBytesPerMessage());
+    }
+
+    public Map < String, Long > project(long users, long follows, long messages) {
+      long[] projected = report().projectBytes(users, follows, messages);
+      Map < String, Long > bytes = new LinkedHashMap < > ();
+      for (Subsystem i: Subsystem.values())
+        bytes.put(i.toString(), projected[i.ordinal()]);
+      bytes.put("total", projected[projected.length - 1]);
+      return bytes;
+    }
+
+    public void calibrate() {
+      MemoryAccounting.calibrate(CALIBRATION_INSTANCES);
+    }
+
+    public void resetCalibration() {
+      MemoryAccounting.resetCalibration();
+    }
+  }
+
+  /**
+   * Registers the MXBean with the platform MBean server, once.
+   */
+  public static synchronized void registerMBean() {
+    try {
+      ObjectName name = new ObjectName("minitwitter:type=MemoryAccounting");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (!server.isRegistered(name))
+        server.registerMBean(new StandardMBean(new Bean(), MemoryAccountingMXBean.class, true), name);
+    } catch (JMException e) {
+      System.err.println("Could not register memory accounting MBean: " + e.getMessage());
+    }
+  }
+
+  public static void main(String[] args) {
+    int instances = args.length > 0 ? Integer.parseInt(args[0]) : CALIBRATION_INSTANCES;
+    long[] measured = calibrate(instances);
+    double[] idLengths = idLengths();
+    System.out.printf("%-20s %8s %10s%n", "entity", "model", "measured");
+    for (Entity i: Entity.values())
+      System.out.printf("%-20s %8d %10d%n", i, model(i, idLength(i, idLengths)), measured[i.ordinal()]);
+  }
+}
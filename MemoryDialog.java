@@ -0,0 +1,128 @@
+/**
+ * Admin dialog for MemoryAccounting: the estimated heap of each subsystem, the cost of
+ * each entity with how many there are, and a projection of the heap needed for a
+ * target number of users, follows and messages.
+ *
+ * Reports and calibration run on the memory accounting thread; the dialog only shows
+ * their results, so calibrating (which forces full GCs) never blocks the window.
+ */
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+
+public class MemoryDialog extends JDialog {
+
+  private final DefaultTableModel subsystems = new DefaultTableModel(new String[] { "Subsystem", "MB", "Share" }, 0);
+  private final DefaultTableModel entities = new DefaultTableModel(new String[] { "Entity", "Count", "Bytes each", "Model", "MB" }, 0);
+  private final JLabel summary = new JLabel(" ");
+  private final JTextField users = new JTextField("1000000", 9);
+  private final JTextField follows = new JTextField("50000000", 9);
+  private final JTextField messages = new JTextField("10000000", 9);
+  private final JLabel projection = new JLabel(" ");
+  private final JButton refresh = new JButton("Refresh");
+  private final JButton calibrate = new JButton("Calibrate");
+  private MemoryAccounting.Report report;
+
+  private MemoryDialog(Frame owner) {
+    super(owner, "Memory Accounting", false);
+
+    JTable subsystemTable = new JTable(subsystems);
+    subsystemTable.setEnabled(false);
+    JTable entityTable = new JTable(entities);
+    entityTable.setEnabled(false);
+    JPanel tables = new JPanel(new GridLayout(2, 1));
+    tables.add(new JScrollPane(subsystemTable));
+    tables.add(new JScrollPane(entityTable));
+
+    JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    buttons.add(refresh);
+    buttons.add(calibrate);
+    buttons.add(summary);
+
+    JPanel target = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    target.add(new JLabel("Users"));
+    target.add(users);
+    target.add(new JLabel("Follows"));
+    target.add(follows);
+    target.add(new JLabel("Messages"));
+    target.add(messages);
+    JButton project = new JButton("Project");
+    target.add(project);
+    JPanel bottom = new JPanel(new BorderLayout());
+    bottom.add(target, BorderLayout.NORTH);
+    bottom.add(projection, BorderLayout.CENTER);
+
+    setLayout(new BorderLayout());
+    add(buttons, BorderLayout.NORTH);
+    add(tables, BorderLayout.CENTER);
+    add(bottom, BorderLayout.SOUTH);
+
+    refresh.addActionListener(e -> reload());
+    project.addActionListener(e -> showProjection());
+    calibrate.addActionListener(e -> {
+      calibrate.setEnabled(false);
+      calibrate.setText("Calibrating...");
+      UiCommands.onEdt(MemoryAccounting.calibrateAsync().whenCompleteAsync((measured, failure) -> {
+        calibrate.setEnabled(true);
+        calibrate.setText("Calibrate");
+      }, UiCommands.EDT), measured -> reload());
+    });
+
+    setSize(640, 620);
+    setLocationRelativeTo(owner);
+    reload();
+  }
+
+  /**
+   * Opens the dialog and computes a first report.
+   */
+  public static MemoryDialog open(Frame owner) {
+    MemoryDialog dialog = new MemoryDialog(owner);
+    dialog.setVisible(true);
+    return dialog;
+  }
+
+  private void reload() {
+    refresh.setEnabled(false);
+    UiCommands.onEdt(MemoryAccounting.reportAsync().whenCompleteAsync((report, failure) -> refresh.setEnabled(true), UiCommands.EDT),
+      this::display);
+  }
+
+  private void display(MemoryAccounting.Report report) {
+    this.report = report;
+    long total = report.getTotalBytes();
+    subsystems.setRowCount(0);
+    for (MemoryAccounting.Subsystem i: MemoryAccounting.Subsystem.values())
+      subsystems.addRow(new Object[] { i, megabytes(report.getBytes(i)),
+        total == 0 ? "" : String.format("%.1f%%", 100.0 * report.getBytes(i) / total) });
+    subsystems.addRow(new Object[] { "Total", megabytes(total), "" });
+    entities.setRowCount(0);
+    for (MemoryAccounting.Entity i: MemoryAccounting.Entity.values())
+      entities.addRow(new Object[] { i, report.getCount(i), report.getCost(i), report.getModel(i),
+        megabytes(report.getCount(i) * report.getCost(i)) });
+    summary.setText(String.format("%s costs; per user %.0f B, per follow %.0f B, per message %.0f B",
+      report.isCalibrated() ? "Measured" : "Modelled", report.getBytesPerUser(), report.getBytesPerFollow(), report.getBytesPerMessage()));
+    showProjection();
+  }
+
+  private void showProjection() {
+    if (report == null)
+      return;
+    long[] projected;
+    try {
+      projected = report.projectBytes(Long.parseLong(users.getText().trim()), Long.parseLong(follows.getText().trim()),
+        Long.parseLong(messages.getText().trim()));
+    } catch (NumberFormatException e) {
+      projection.setText(" Enter whole numbers of users, follows and messages");
+      return;
+    }
+    StringBuilder text = new StringBuilder("<html>&nbsp;Projected heap: <b>").append(megabytes(projected[projected.length - 1])).append(" MB</b><br>&nbsp;");
+    for (MemoryAccounting.Subsystem i: MemoryAccounting.Subsystem.values())
+      text.append(i.ordinal() > 0 ? ", " : "").append(i).append(' ').append(megabytes(projected[i.ordinal()])).append(" MB");
+    projection.setText(text.append("</html>").toString());
+  }
+
+  private static String megabytes(long bytes) {
+    return String.format("%.1f", bytes / 1e6);
+  }
+}
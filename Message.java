@@ -5,24 +5,48 @@
  * uses Composite in conjunction with User, UserGroup, and UserMember. 
  */
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class Message implements VisitorPositivity {
 
   // Composite Pattern: List of all users and a map of user IDs to user objects
-  public static List < String > messages = new ArrayList < > ();
-  public static HashMap < String, Message > messageMap = new HashMap < > ();
+  // Both may be read without the TwitterOperations lock; see ReadView
+  public static SnapshotList < String > messages = new SnapshotList < > ();
+  public static ConcurrentHashMap < String, Message > messageMap = new ConcurrentHashMap < > ();
 
   // Observer Pattern: List of observers for list updates and followers update
   public static List < Runnable > messageObservers = new ArrayList < > ();
 
+  // When false, posts are only appended to the sender's AuthorTimeline and feeds
+  // are merged at read time by TimelineReader instead of being copied to every follower.
+  // Followers' last update times are set in both modes.
+  public static boolean fanOutOnWrite = Boolean.parseBoolean(System.getProperty("minitwitter.fanOutOnWrite", "true"));
+
   private String uid;
-  private String text;
+  // ID of the text in MessageTextStore, or -1 if the message has no text
+  private int textId = -1;
   private String from;
+  // ID of the message this one replies to, or null if it starts a conversation
+  private String replyTo;
   private Double positivePercentage;
+  private long creationTime;
+  // Row of the message in MessageColumns, or -1 before it is delivered
+  private int analyticsRow = -1;
+
+  // Loads the text on first access for messages restored without their body
+  private Supplier < String > textLoader;
 
   // Creates a new Message object with a randomly generated UUID. 
   public Message() {
     this.uid = UUID.randomUUID().toString();
+    this.creationTime = System.currentTimeMillis();
+  }
+
+  // Creates a new Message object with a known ID, skipping UUID generation.
+  public Message(String uid) {
+    this.uid = uid;
+    this.creationTime = System.currentTimeMillis();
   }
 
   public String getUid() {
@@ -33,12 +57,53 @@ public class Message implements VisitorPositivity {
     this.uid = uid;
   }
 
+  /**
+   * Gets the message text, decompressing it from the MessageTextStore on demand.
+   * @return The message text, or null if none was set.
+   */
   public String getText() {
-    return text;
+    if (textId < 0 && textLoader != null) {
+      // Concurrent readers must not store the body twice, leaking a reference
+      synchronized (this) {
+        if (textId < 0 && textLoader != null)
+          setText(textLoader.get());
+      }
+    }
+    return textId < 0 ? null : MessageTextStore.shared.get(textId);
   }
 
+  /**
+   * Sets the message text, storing it deduplicated in the MessageTextStore.
+   * @param text The message text.
+   */
   public void setText(String text) {
-    this.text = text;
+    int old = textId;
+    textId = text == null ? -1 : MessageTextStore.shared.put(text);
+    textLoader = null;
+    if (old >= 0)
+      MessageTextStore.shared.release(old);
+  }
+
+  /**
+   * Releases the text of a message removed from the registries, so that the
+   * MessageTextStore can free it; the text reads as null afterwards.
+   */
+  public void releaseText() {
+    int old = textId;
+    textId = -1;
+    textLoader = null;
+    if (old >= 0)
+      MessageTextStore.shared.release(old);
+  }
+
+  /**
+   * Defers loading of the message text until it is first read.
+   *
+   * @param textLoader Supplies the text on first access.
+   */
+  public void setTextLoader(Supplier < String > textLoader) {
+    this.textId = -1;
+    this.textLoader = textLoader;
   }
 
   public String getFrom() {
@@ -49,51 +114,121 @@ public class Message implements VisitorPositivity {
     this.from = from;
   }
 
+  /**
+   * @return The ID of the message this one replies to, or null if it is not a reply.
+   */
+  public String getReplyTo() {
+    return replyTo;
+  }
+
+  public void setReplyTo(String replyTo) {
+    this.replyTo = replyTo;
+  }
+
   public Double getPositivePercentage() {
     return positivePercentage;
   }
 
   public void setPositivePercentage(Double positivePercentage) {
-    this.positivePercentage = positivePercentage;
+    if (analyticsRow < 0) {
+      this.positivePercentage = positivePercentage;
+      return;
+    }
+    // Re-scoring runs outside the engine lock; the board's monitor keeps the old score
+    // and the board consistent with a concurrent Leaderboards.rebuild
+    synchronized (Leaderboards.positivity) {
+      Double old = this.positivePercentage;
+      this.positivePercentage = positivePercentage;
+      if (MessageColumns.shared.setPositivity(analyticsRow, positivePercentage))
+        Leaderboards.onRescore(this, old, positivePercentage);
+    }
+  }
+
+  void setAnalyticsRow(int analyticsRow) {
+    this.analyticsRow = analyticsRow;
+  }
+
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  public void setCreationTime(long creationTime) {
+    this.creationTime = creationTime;
   }
 
   /**
-   * Analyzes the message text and calculates the percentage of positivity.
-   * Splits the text into words, counts the occurrences of positive words from Utils class,
-   * and sets the `positivePercentage` based off those count of those values.
+   * Analyzes the message text and calculates its positivity with the current
+   * SentimentEngine lexicon (weighted words, with negation), and sets the
+   * `positivePercentage` to the resulting score.
    */
   public void calculatePositivity() {
-    String[] parts = text.replaceAll("[^a-zA-Z\\s]", "").toLowerCase().split("\\s+");  
-    int positive = 0;
-    for (String i : parts) {
-        if (Arrays.stream(Utils.positiveWords).anyMatch(i::equalsIgnoreCase)) {
-            positive++;
-        }
+    EngineEvents.CalculatePositivity event = new EngineEvents.CalculatePositivity();
+    event.begin();
+    long start = TraceRecorder.shared.start();
+    String text = getText();
+    setPositivePercentage(SentimentEngine.score(text));
+    int length = text == null ? 0 : text.length();
+    TraceRecorder.shared.record("calculatePositivity", from, length, start);
+    if (event.shouldCommit()) {
+      event.textLength = length;
+      event.score = positivePercentage;
+      event.commit();
     }
-    setPositivePercentage((positive * 100.0) / (parts.length * 1.0));
   }
 
   /**
    * Sends the given message to the specified followers.
-   * Updates the global list and map of messages, adds the message to the news 
-   * feeds of the sender and followers, and notifies observers of the new message.
+   * Updates the global list and map of messages, appends the message to the sender's
+   * author timeline, adds it to the news feeds of the sender and followers (unless
+   * fan-out on write is disabled), and notifies observers of the new message.
    *
    * @param message   The message to be sent.
    * @param followers A list of IDs of users who should receive the message.
    */
-  public static void sendMessage(Message message, List < String > followers) {
+  public static void sendMessage(Message message, Collection < String > followers) {
+    EngineEvents.SendMessage event = new EngineEvents.SendMessage();
+    event.begin();
+    long start = TraceRecorder.shared.start();
+    deliver(message, followers);
+    Observers.dispatch("messages", messageObservers);
+    TraceRecorder.shared.record("sendMessage", message.getFrom(), followers.size(), start);
+    if (event.shouldCommit()) {
+      event.sender = message.getFrom();
+      event.fanOut = followers.size();
+      event.commit();
+    }
+  }
+
+  /**
+   * Records the message and delivers it to the sender and the given followers
+   * without notifying observers. Used by sendMessage and by bulk loaders.
+   *
+   * @param message   The message to be delivered.
+   * @param followers A list of IDs of users who should receive the message.
+   */
+  static void deliver(Message message, Collection < String > followers) {
     messages.add(message.getUid());
     messageMap.put(message.getUid(), message);
+    long sequence = AuthorTimeline.append(message);
+    ConversationIndex.onPost(message);
+    long now = System.currentTimeMillis();
     for (String i: followers) {
       User follower = User.usersMap.get(i);
-      follower.getNews().add(message.getUid());
-      follower.setLastUpdateTime(System.currentTimeMillis());
+      if (fanOutOnWrite)
+        follower.getNews().add(message.getUid());
+      follower.setLastUpdateTime(now);
     }
     User sender = User.usersMap.get(message.getFrom());
-    sender.getNews().add(message.getUid());
-    sender.setLastUpdateTime(System.currentTimeMillis());
-    for (Runnable r: messageObservers)
-      r.run();
+    if (fanOutOnWrite)
+      sender.getNews().add(message.getUid());
+    sender.setLastUpdateTime(now);
+    PositivityStats.record(message.getPositivePercentage());
+    message.analyticsRow = MessageColumns.shared.append(message);
+    Leaderboards.onPost(message);
+    RollingMetrics.onPost(message);
+    TimelineCache.shared.onDeliver(message, followers, sequence);
+    MutationLog.post(message);
+    ReadView.publish();
   }
 
   /**
@@ -0,0 +1,589 @@
+/**
+ * On-disk cold tier for messages evicted by the RetentionSweeper.
+ *
+ * Archived messages are appended to a single file in batches and never change. A batch
+ * is appended, then committed by a marker once its messages may leave memory, or rolled
+ * back by truncating the file to where the batch started; readers only see batches
+ * followed by their marker, so a batch cut short by a crash or an abandoned eviction is
+ * never counted, and its tail is cut off before the next append.
+ *
+ * The archive keeps running totals (message count and positivity sum) so that statistics
+ * over all messages stay correct after eviction; they are recomputed by one scan of the
+ * file when it is first opened, and afterwards advanced by addToTotals when the archived
+ * messages leave memory, so that a message is never counted in both places. Reading them
+ * never waits for file output. Queries scan the whole file, so they are meant for
+ * occasional lookups, not for serving feeds.
+ *
+ * An archive belongs to one history of the state, its lineage, named by a random ID in
+ * its header. A snapshot records the lineage and the number of archived messages, and
+ * loading it reconciles the archive with it: batches archived after the snapshot was
+ * taken are cut off, since their messages are back in memory (or, if posted later, no
+ * longer exist), and an archive of another lineage is set aside, renamed after its
+ * lineage, and replaced by an empty one. A process that starts without a snapshot starts
+ * a new lineage the same way (startLineage), since the archive's messages are not part
+ * of its state.
+ *
+ * File layout (big-endian): int MAGIC, int VERSION, the lineage as two longs (since
+ * version 4), then the batches. A record is an int
+ * length of the rest, long creation time, double positivity (NaN if none), and the
+ * message ID, sender ID, text and (since version 2) the ID of the message it replies to,
+ * each as an int byte length followed by UTF-8 bytes; a batch is its records followed by
+ * the int COMMIT. Files of versions 1 and 2 had no markers and files before version 4 no
+ * lineage; they are rewritten in the current layout, as one committed batch of a new
+ * lineage, when first opened.
+ *
+ * The file is -Dminitwitter.archive (default minitwitter-archive.bin).
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+
+public class MessageArchive {
+
+  public static final int MAGIC = 0x4D544152; // "MTAR"
+  // Version 2 added the reply-to ID, version 3 the commit markers, version 4 the lineage
+  public static final int VERSION = 4;
+  // Length of the header, and the marker ending a batch in place of a record length
+  private static final int HEADER = 8 + 16;
+  private static final int COMMIT = -1;
+
+  public static final MessageArchive shared = new MessageArchive(Paths.get(System.getProperty("minitwitter.archive", "minitwitter-archive.bin")));
+
+  /**
+   * An archived message.
+   */
+  public static final class Record {
+    private final String messageId;
+    private final String from;
+    private final String text;
+    private final long creationTime;
+    private final Double positivity;
+    private final String replyTo;
+
+    Record(String messageId, String from, String text, long creationTime, Double positivity, String replyTo) {
+      this.messageId = messageId;
+      this.from = from;
+      this.text = text;
+      this.creationTime = creationTime;
+      this.positivity = positivity;
+      this.replyTo = replyTo;
+    }
+
+    static Record of(Message message) {
+      return new Record(message.getUid(), message.getFrom(), message.getText(), message.getCreationTime(), message.getPositivePercentage(),
+        message.getReplyTo());
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    public long getCreationTime() {
+      return creationTime;
+    }
+
+    public Double getPositivity() {
+      return positivity;
+    }
+
+    /**
+     * @return The ID of the message this one replied to, or null if it was not a reply.
+     */
+    public String getReplyTo() {
+      return replyTo;
+    }
+  }
+
+  private static final class Totals {
+    final long count;
+    final double positivitySum;
+    final long positivityCount;
+
+    Totals(long count, double positivitySum, long positivityCount) {
+      this.count = count;
+      this.positivitySum = positivitySum;
+      this.positivityCount = positivityCount;
+    }
+  }
+
+  private final Path path;
+  // File output is guarded by this; the totals are published separately
+  private FileChannel channel;
+  private DataOutputStream out;
+  // Length of the file up to the last marker; anything after it is an uncommitted batch
+  private long committedLength;
+  // The lineage of the file, or of the next file written if there is none yet
+  private UUID lineage;
+  private volatile boolean opened;
+  private volatile Totals totals = new Totals(0, 0, 0);
+
+  public MessageArchive(Path path) {
+    this.path = path;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Appends a batch of records and flushes it to the file. It is invisible to readers
+   * until commit, and must be followed by commit or rollback before the next append.
+   *
+   * @param records The messages to archive, oldest first.
+   * @throws IOException if the file cannot be written; the batch is then rolled back.
+   */
+  public synchronized void append(List < Record > records) throws IOException {
+    try {
+      DataOutputStream out = writer();
+      for (Record i: records)
+        write(out, i);
+      out.flush();
+    } catch (IOException e) {
+      rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Commits the batch appended last by writing its marker.
+   *
+   * @throws IOException if the marker cannot be written; the batch is then rolled back.
+   */
+  public synchronized void commit() throws IOException {
+    try {
+      DataOutputStream out = writer();
+      out.writeInt(COMMIT);
+      out.flush();
+      committedLength = channel.position();
+    } catch (IOException e) {
+      rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Drops the batch appended last, by truncating the file to where it started.
+   */
+  public synchronized void rollback() {
+    if (channel == null)
+      return;
+    // Bytes still buffered are dropped with the stream
+    out = null;
+    try {
+      channel.truncate(committedLength);
+      channel.position(committedLength);
+    } catch (IOException e) {
+      // Readers ignore the uncommitted tail, and the next writer cuts it off
+      closeWriter();
+    }
+  }
+
+  /**
+   * Adds committed records to the totals, once they have been removed from memory.
+   * Callers must hold the TwitterOperations lock.
+   *
+   * @param records Records of a committed batch.
+   */
+  void addToTotals(List < Record > records) {
+    Totals t = opened();
+    double sum = t.positivitySum;
+    long scored = t.positivityCount;
+    for (Record i: records) {
+      if (i.positivity != null) {
+        sum += i.positivity;
+        scored++;
+      }
+    }
+    totals = new Totals(t.count + records.size(), sum, scored);
+  }
+
+  /**
+   * @return The ID of the history this archive belongs to, recorded in snapshots.
+   */
+  public synchronized UUID getLineage() {
+    open();
+    return lineage;
+  }
+
+  /**
+   * Makes the archive consistent with a snapshot that was just loaded: with the same
+   * lineage, batches archived after the snapshot was taken are cut off; an archive of
+   * another lineage is set aside and an empty one of the snapshot's lineage started.
+   * Callers must hold the TwitterOperations lock.
+   *
+   * @param snapshotLineage The lineage recorded in the snapshot, or null if it has none
+   *                        (a snapshot taken before lineages), which keeps the archive.
+   * @param snapshotCount   The number of archived messages recorded in the snapshot.
+   */
+  synchronized void reconcile(UUID snapshotLineage, long snapshotCount) {
+    open();
+    if (snapshotLineage == null)
+      return;
+    if (!snapshotLineage.equals(lineage)) {
+      setAside();
+      // Without the snapshot's archived messages, the new archive starts a history of its own
+      lineage = snapshotCount == 0 ? snapshotLineage : UUID.randomUUID();
+      if (snapshotCount > 0)
+        System.err.println("Message archive " + path + " is not the one of the snapshot; " + snapshotCount + " archived messages are missing");
+      return;
+    }
+    long count = totals.count;
+    if (count < snapshotCount) {
+      System.err.println("Message archive " + path + " has " + count + " of the " + snapshotCount + " messages archived when the snapshot was taken");
+    } else if (count > snapshotCount) {
+      try {
+        truncate(snapshotCount);
+      } catch (IOException e) {
+        System.err.println("Could not truncate message archive " + path + ", setting it aside: " + e.getMessage());
+        setAside();
+      }
+    }
+  }
+
+  /**
+   * Starts a new lineage for a process that starts without loading a snapshot: any
+   * archive left by an earlier run is set aside.
+   */
+  public void startLineage() {
+    synchronized (TwitterOperations.class) {
+      reconcile(UUID.randomUUID(), 0);
+    }
+  }
+
+  // Keeps the first count committed records and writes a marker after them
+  private void truncate(long count) throws IOException {
+    long kept = 0, positivityCount = 0, length = 0;
+    double positivitySum = 0;
+    try (Reader in = new Reader()) {
+      length = in.committed;
+      List < Record > batch;
+      while (kept < count && (batch = in.nextBatch()) != null) {
+        for (int k = 0; k < batch.size() && kept < count; k++) {
+          Record i = batch.get(k);
+          kept++;
+          length = in.ends.get(k);
+          if (i.positivity != null) {
+            positivitySum += i.positivity;
+            positivityCount++;
+          }
+        }
+      }
+    }
+    closeWriter();
+    committedLength = length;
+    // The records kept may end inside a batch, so they are committed again
+    commit();
+    totals = new Totals(kept, positivitySum, positivityCount);
+    System.err.println("Message archive " + path + " cut back to the " + kept + " messages archived when the snapshot was taken");
+  }
+
+  // Renames a non-empty archive after its lineage and starts an empty one
+  private void setAside() {
+    closeWriter();
+    try {
+      if (Files.exists(path) && totals.count > 0) {
+        Path aside = path.resolveSibling(path.getFileName() + "." + lineage);
+        Files.move(path, aside, StandardCopyOption.REPLACE_EXISTING);
+        System.err.println("Message archive of another history set aside as " + aside);
+      } else {
+        Files.deleteIfExists(path);
+      }
+    } catch (IOException e) {
+      System.err.println("Could not set aside message archive " + path + ": " + e.getMessage());
+    }
+    committedLength = 0;
+    totals = new Totals(0, 0, 0);
+  }
+
+  /**
+   * @return The number of archived messages.
+   */
+  public long size() {
+    return opened().count;
+  }
+
+  /**
+   * @return The sum of the positivity of the archived messages that have one.
+   */
+  public double getPositivitySum() {
+    return opened().positivitySum;
+  }
+
+  /**
+   * @return The number of archived messages with a positivity.
+   */
+  public long getPositivityCount() {
+    return opened().positivityCount;
+  }
+
+  // --- Queries (full scans) ---
+
+  /**
+   * @param messageId A message ID.
+   * @return The archived message, or null if it is not in the archive.
+   */
+  public Record find(String messageId) throws IOException {
+    List < Record > found = scan(i -> i.messageId.equals(messageId), 1);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * @param uid   A sender ID.
+   * @param limit The maximum number of messages.
+   * @return The newest archived messages of that sender, newest first.
+   */
+  public List < Record > bySender(String uid, int limit) throws IOException {
+    return scan(i -> uid.equals(i.from), limit);
+  }
+
+  /**
+   * Scans the committed batches of the archive and returns the newest matching records,
+   * newest first.
+   */
+  public List < Record > scan(Predicate < Record > filter, int limit) throws IOException {
+    ArrayDeque < Record > newest = new ArrayDeque < > ();
+    opened();
+    if (!Files.exists(path))
+      return new ArrayList < > ();
+    try (Reader in = new Reader()) {
+      List < Record > batch;
+      while ((batch = in.nextBatch()) != null) {
+        for (Record i: batch) {
+          if (filter.test(i)) {
+            newest.addFirst(i);
+            if (newest.size() > limit)
+              newest.removeLast();
+          }
+        }
+      }
+    }
+    return new ArrayList < > (newest);
+  }
+
+  // --- File access ---
+
+  private Totals opened() {
+    if (!opened)
+      open();
+    return totals;
+  }
+
+  // Computes the totals and the committed length by scanning the existing file, once
+  private synchronized void open() {
+    if (opened)
+      return;
+    long count = 0, positivityCount = 0;
+    double positivitySum = 0;
+    committedLength = 0;
+    lineage = UUID.randomUUID();
+    if (Files.exists(path)) {
+      try {
+        upgrade();
+        try (Reader in = new Reader()) {
+          if (in.lineage != null)
+            lineage = in.lineage;
+          List < Record > batch;
+          while ((batch = in.nextBatch()) != null) {
+            for (Record i: batch) {
+              count++;
+              if (i.positivity != null) {
+                positivitySum += i.positivity;
+                positivityCount++;
+              }
+            }
+          }
+          committedLength = in.committed;
+        }
+      } catch (IOException e) {
+        System.err.println("Could not read message archive " + path + ": " + e.getMessage());
+      }
+    }
+    totals = new Totals(count, positivitySum, positivityCount);
+    opened = true;
+  }
+
+  // Rewrites a file of an older version in the current layout, as one committed batch of a new lineage
+  private void upgrade() throws IOException {
+    int version;
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a Mini Twitter archive: " + path);
+      version = in.readInt();
+    } catch (EOFException e) {
+      // Empty or cut short before any record; rewritten by the first append
+      Files.delete(path);
+      return;
+    }
+    if (version >= VERSION)
+      return;
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (Reader in = new Reader(); DataOutputStream upgraded = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+      upgraded.writeInt(MAGIC);
+      upgraded.writeInt(VERSION);
+      upgraded.writeLong(lineage.getMostSignificantBits());
+      upgraded.writeLong(lineage.getLeastSignificantBits());
+      List < Record > batch;
+      while ((batch = in.nextBatch()) != null)
+        for (Record i: batch)
+          write(upgraded, i);
+      upgraded.writeInt(COMMIT);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Opens the file for appending after the last committed batch
+  private DataOutputStream writer() throws IOException {
+    open();
+    if (out == null) {
+      if (channel == null)
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (committedLength < HEADER) {
+        channel.truncate(0);
+        channel.write(ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION)
+          .putLong(lineage.getMostSignificantBits()).putLong(lineage.getLeastSignificantBits()).flip(), 0);
+        committedLength = HEADER;
+      }
+      // Cuts off a batch left uncommitted by a crash
+      channel.truncate(committedLength);
+      channel.position(committedLength);
+      out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+    }
+    return out;
+  }
+
+  private void closeWriter() {
+    out = null;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Reopened by the next writer
+      }
+      channel = null;
+    }
+  }
+
+  private static void write(DataOutputStream out, Record record) throws IOException {
+    byte[] id = utf8(record.messageId), from = utf8(record.from), text = utf8(record.text), replyTo = utf8(record.replyTo);
+    out.writeInt(8 + 8 + 16 + id.length + from.length + text.length + replyTo.length);
+    out.writeLong(record.creationTime);
+    out.writeDouble(record.positivity == null ? Double.NaN : record.positivity);
+    out.writeInt(id.length);
+    out.write(id);
+    out.writeInt(from.length);
+    out.write(from);
+    out.writeInt(text.length);
+    out.write(text);
+    out.writeInt(replyTo.length);
+    out.write(replyTo);
+  }
+
+  /**
+   * Reads the committed batches of the file in order. Files without markers (versions
+   * 1 and 2) are read as one batch per record.
+   */
+  private final class Reader implements Closeable {
+    private final DataInputStream in;
+    private int version = VERSION;
+    private long position;
+    // The lineage in the header, or null before version 4
+    UUID lineage;
+    // Length of the file up to the end of the last batch returned, and after each of its records
+    long committed;
+    final List < Long > ends = new ArrayList < > ();
+
+    Reader() throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+      try {
+        if (in.readInt() != MAGIC)
+          throw new IOException("Not a Mini Twitter archive: " + path);
+        version = in.readInt();
+        if (version < 1 || version > VERSION)
+          throw new IOException("Unsupported archive version " + version);
+        committed = position = 8;
+        if (version >= 4) {
+          lineage = new UUID(in.readLong(), in.readLong());
+          committed = position = HEADER;
+        }
+      } catch (EOFException e) {
+        // Empty file
+        version = -1;
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return The records of the next committed batch, or null at the end of the file,
+     *         including after an uncommitted or torn final batch.
+     */
+    List < Record > nextBatch() throws IOException {
+      if (version < 0)
+        return null;
+      List < Record > batch = new ArrayList < > ();
+      ends.clear();
+      while (true) {
+        int length;
+        byte[] bytes;
+        try {
+          length = in.readInt();
+          if (length == COMMIT) {
+            position += 4;
+            committed = position;
+            return batch;
+          }
+          bytes = new byte[length];
+          in.readFully(bytes);
+        } catch (EOFException e) {
+          return null;
+        }
+        position += 4 + length;
+        batch.add(record(bytes));
+        ends.add(position);
+        if (version < 3) {
+          committed = position;
+          return batch;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static Record record(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long creationTime = buffer.getLong();
+    double positivity = buffer.getDouble();
+    String id = string(buffer), from = string(buffer), text = string(buffer);
+    String replyTo = buffer.hasRemaining() ? string(buffer) : "";
+    return new Record(id, from, text, creationTime, Double.isNaN(positivity) ? null : positivity, replyTo.isEmpty() ? null : replyTo);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,396 @@
+/**
+ * Column store of per-message facts for analytics: one primitive array per column
+ * (sender number, creation time, positivity, text length in UTF-8 bytes) instead of
+ * one Message object per row, so that aggregates over millions of messages are tight
+ * loops over contiguous arrays rather than a walk over the message map.
+ *
+ * A row is appended by Message.deliver for every message posted or replayed, and rows
+ * are kept when retention archives the message, so the store covers the whole history
+ * of the process (after a snapshot load, the messages in the snapshot). Re-scoring by
+ * a SentimentEngine backfill updates the positivity column in place.
+ *
+ * Rows live in chunks of CHUNK_SIZE, each with the minimum and maximum creation time
+ * of its rows, so a time range filter skips chunks outside the range and scans chunks
+ * inside it without testing each row. The scan loops are branch-light and unrolled
+ * over independent accumulators, which lets the JIT keep several additions in flight.
+ *
+ * Appending is done under the TwitterOperations lock. Scans are lock-free: they read
+ * the row count first and then only rows below it.
+ */
+import java.util.*;
+
+public class MessageColumns {
+
+  public static final MessageColumns shared = new MessageColumns();
+
+  public static final int CHUNK_BITS = 16;
+  public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // sender, time, positivity and length
+  public static final int ROW_BYTES = 4 + 8 + 4 + 4;
+
+  private static final class Chunk {
+    final int[] senders = new int[CHUNK_SIZE];
+    final long[] times = new long[CHUNK_SIZE];
+    // NaN for messages without a score
+    final float[] positivity = new float[CHUNK_SIZE];
+    final int[] lengths = new int[CHUNK_SIZE];
+    // Only ever widened, so a reader never skips a chunk holding rows it can see
+    volatile long minTime = Long.MAX_VALUE;
+    volatile long maxTime = Long.MIN_VALUE;
+  }
+
+  // Replaced as a whole by clear, so that a scan never mixes rows of two tables
+  private static final class Table {
+    // Row numbers continue across clears, so that the row of a message from before a
+    // clear never names a row of the new table
+    final int base;
+    volatile Chunk[] chunks = new Chunk[0];
+    volatile int size;
+
+    Table(int base) {
+      this.base = base;
+    }
+  }
+
+  private volatile Table table = new Table(0);
+
+  /**
+   * Rows to aggregate: a creation time range, and optionally one sender or the users
+   * of a group and its subgroups. Filters are immutable; each method returns a copy.
+   */
+  public static final class Filter {
+    private final long from;
+    private final long to;
+    // A sender number, or -1 for any; -2 for a sender that never posted
+    private final int sender;
+    // Bit set of sender numbers, or null for any
+    private final long[] senders;
+
+    private Filter(long from, long to, int sender, long[] senders) {
+      this.from = from;
+      this.to = to;
+      this.sender = sender;
+      this.senders = senders;
+    }
+
+    public static Filter all() {
+      return new Filter(Long.MIN_VALUE, Long.MAX_VALUE, -1, null);
+    }
+
+    /**
+     * @param fromMillis The earliest creation time, inclusive.
+     * @param toMillis   The latest creation time, exclusive.
+     */
+    public Filter between(long fromMillis, long toMillis) {
+      return new Filter(fromMillis, toMillis, sender, senders);
+    }
+
+    /**
+     * @param uid Only messages posted by this user.
+     */
+    public Filter from(String uid) {
+      int id = UserIds.find(uid);
+      return new Filter(from, to, id < 0 ? -2 : id, senders);
+    }
+
+    /**
+     * Only messages whose sender is now in the group or one of its subgroups.
+     *
+     * @param group The group.
+     */
+    public Filter inGroup(UserGroup group) {
+      long[] bits = new long[(UserIds.size() + 64) >>> 6];
+      ArrayDeque < UserGroup > pending = new ArrayDeque < > ();
+      pending.add(group);
+      while (!pending.isEmpty()) {
+        for (UserMember i: pending.poll().getChildren()) {
+          if (i.getChildType() == UserMember.CHILD_TYPE.GROUP) {
+            UserGroup child = UserGroup.userGroupMap.get(i.getUid());
+            if (child != null)
+              pending.add(child);
+          } else {
+            int id = UserIds.find(i.getUid());
+            if (id >= 0 && (id >>> 6) < bits.length)
+              bits[id >>> 6] |= 1L << id;
+          }
+        }
+      }
+      return new Filter(from, to, sender, bits);
+    }
+
+    boolean bySender() {
+      return sender != -1 || senders != null;
+    }
+  }
+
+  /**
+   * Totals over the rows matching a filter.
+   */
+  public static final class Summary {
+    private final long messages;
+    private final long scored;
+    private final double positivitySum;
+    private final long lengthSum;
+
+    Summary(long messages, long scored, double positivitySum, long lengthSum) {
+      this.messages = messages;
+      this.scored = scored;
+      this.positivitySum = positivitySum;
+      this.lengthSum = lengthSum;
+    }
+
+    public long getMessages() {
+      return messages;
+    }
+
+    /**
+     * @return The number of those messages with a positivity score.
+     */
+    public long getScored() {
+      return scored;
+    }
+
+    public double getPositivitySum() {
+      return positivitySum;
+    }
+
+    /**
+     * @return The average positivity of the scored messages, or 0 if there are none.
+     */
+    public double getAveragePositivity() {
+      return scored == 0 ? 0 : positivitySum / scored;
+    }
+
+    public long getLengthSum() {
+      return lengthSum;
+    }
+
+    public double getAverageLength() {
+      return messages == 0 ? 0 : lengthSum / (double) messages;
+    }
+  }
+
+  /**
+   * Appends a row for a message. Callers must hold the TwitterOperations lock.
+   *
+   * @return The row number, to pass to setPositivity.
+   */
+  int append(Message message) {
+    String from = message.getFrom();
+    return append(from == null ? -1 : UserIds.intern(from), message.getCreationTime(), message.getPositivePercentage(),
+      utf8Length(message.getText()));
+  }
+
+  /**
+   * Appends a row. Callers must hold the TwitterOperations lock.
+   *
+   * @param sender     The sender's number in UserIds, or -1.
+   * @param time       The creation time.
+   * @param positivity The score, or null.
+   * @param length     The length of the text in UTF-8 bytes.
+   * @return The row number.
+   */
+  int append(int sender, long time, Double positivity, int length) {
+    Table t = table;
+    int row = t.size;
+    int c = row >>> CHUNK_BITS;
+    Chunk[] chunks = t.chunks;
+    if (c == chunks.length) {
+      chunks = Arrays.copyOf(chunks, c + 1);
+      chunks[c] = new Chunk();
+      t.chunks = chunks;
+    }
+    Chunk chunk = chunks[c];
+    int i = row & (CHUNK_SIZE - 1);
+    chunk.senders[i] = sender;
+    chunk.times[i] = time;
+    chunk.positivity[i] = positivity == null ? Float.NaN : positivity.floatValue();
+    chunk.lengths[i] = length;
+    if (time < chunk.minTime)
+      chunk.minTime = time;
+    if (time > chunk.maxTime)
+      chunk.maxTime = time;
+    t.size = row + 1;
+    return t.base + row;
+  }
+
+  /**
+   * Updates the score of a row after the message was re-scored.
+   *
+   * @return false if the row was dropped by clear(), i.e. the message is no longer live.
+   */
+  boolean setPositivity(int row, Double positivity) {
+    Table t = table;
+    row -= t.base;
+    if (row < 0 || row >= t.size)
+      return false;
+    t.chunks[row >>> CHUNK_BITS].positivity[row & (CHUNK_SIZE - 1)] = positivity == null ? Float.NaN : positivity.floatValue();
+    return true;
+  }
+
+  /**
+   * Drops all rows, e.g. before the registries are replaced by a snapshot. Callers must
+   * hold the TwitterOperations lock.
+   */
+  void clear() {
+    Table t = table;
+    table = new Table(t.base + t.size);
+  }
+
+  /**
+   * @return The number of rows.
+   */
+  public int size() {
+    return table.size;
+  }
+
+  /**
+   * @return The bytes held by the columns, including unused rows of the last chunk.
+   */
+  public long memoryBytes() {
+    return table.chunks.length * (long) CHUNK_SIZE * ROW_BYTES;
+  }
+
+  /**
+   * @param filter The rows to aggregate.
+   * @return The count, positivity and length totals of the matching rows.
+   */
+  public Summary summarize(Filter filter) {
+    Table t = table;
+    int size = t.size;
+    Chunk[] chunks = t.chunks;
+    long messages = 0, scored = 0, lengthSum = 0;
+    double positivitySum = 0;
+    for (int c = 0; c << CHUNK_BITS < size; c++) {
+      Chunk chunk = chunks[c];
+      int rows = Math.min(CHUNK_SIZE, size - (c << CHUNK_BITS));
+      if (chunk.maxTime < filter.from || chunk.minTime >= filter.to)
+        continue;
+      boolean allTimes = chunk.minTime >= filter.from && chunk.maxTime < filter.to;
+      if (allTimes && !filter.bySender()) {
+        // Whole chunk: four independent accumulators per column
+        float[] p = chunk.positivity;
+        int[] l = chunk.lengths;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        long n0 = 0, n1 = 0, n2 = 0, n3 = 0, l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+        int i = 0;
+        for (; i + 3 < rows; i += 4) {
+          float p0 = p[i], p1 = p[i + 1], p2 = p[i + 2], p3 = p[i + 3];
+          // x == x is false only for NaN, the unscored rows
+          s0 += p0 == p0 ? p0 : 0;
+          s1 += p1 == p1 ? p1 : 0;
+          s2 += p2 == p2 ? p2 : 0;
+          s3 += p3 == p3 ? p3 : 0;
+          n0 += p0 == p0 ? 1 : 0;
+          n1 += p1 == p1 ? 1 : 0;
+          n2 += p2 == p2 ? 1 : 0;
+          n3 += p3 == p3 ? 1 : 0;
+          l0 += l[i];
+          l1 += l[i + 1];
+          l2 += l[i + 2];
+          l3 += l[i + 3];
+        }
+        for (; i < rows; i++) {
+          float p0 = p[i];
+          s0 += p0 == p0 ? p0 : 0;
+          n0 += p0 == p0 ? 1 : 0;
+          l0 += l[i];
+        }
+        messages += rows;
+        scored += n0 + n1 + n2 + n3;
+        positivitySum += s0 + s1 + s2 + s3;
+        lengthSum += l0 + l1 + l2 + l3;
+      } else {
+        long[] times = chunk.times;
+        int[] senders = chunk.senders;
+        float[] p = chunk.positivity;
+        int[] l = chunk.lengths;
+        for (int i = 0; i < rows; i++) {
+          if (!allTimes && (times[i] < filter.from || times[i] >= filter.to))
+            continue;
+          if (!matchesSender(filter, senders[i]))
+            continue;
+          float p0 = p[i];
+          messages++;
+          scored += p0 == p0 ? 1 : 0;
+          positivitySum += p0 == p0 ? p0 : 0;
+          lengthSum += l[i];
+        }
+      }
+    }
+    return new Summary(messages, scored, positivitySum, lengthSum);
+  }
+
+  /**
+   * Counts the scored rows matching a filter by positivity. Scores outside [min, max)
+   * are counted in the first or last bin.
+   *
+   * @param filter The rows to count.
+   * @param bins   The number of equal-width bins.
+   * @param min    The lower bound of the first bin.
+   * @param max    The upper bound of the last bin.
+   * @return The count of each bin.
+   */
+  public long[] histogram(Filter filter, int bins, double min, double max) {
+    if (bins < 1 || !(max > min))
+      throw new IllegalArgumentException("Need at least one bin and max > min");
+    long[] counts = new long[bins];
+    float scale = (float) (bins / (max - min));
+    float offset = (float) min;
+    int last = bins - 1;
+    Table t = table;
+    int size = t.size;
+    Chunk[] chunks = t.chunks;
+    for (int c = 0; c << CHUNK_BITS < size; c++) {
+      Chunk chunk = chunks[c];
+      int rows = Math.min(CHUNK_SIZE, size - (c << CHUNK_BITS));
+      if (chunk.maxTime < filter.from || chunk.minTime >= filter.to)
+        continue;
+      boolean allTimes = chunk.minTime >= filter.from && chunk.maxTime < filter.to;
+      boolean all = allTimes && !filter.bySender();
+      long[] times = chunk.times;
+      int[] senders = chunk.senders;
+      float[] p = chunk.positivity;
+      for (int i = 0; i < rows; i++) {
+        float p0 = p[i];
+        if (p0 != p0)
+          continue;
+        if (!all && (!allTimes && (times[i] < filter.from || times[i] >= filter.to) || !matchesSender(filter, senders[i])))
+          continue;
+        // Clamped into [0, last]; a float-to-int cast saturates instead of wrapping
+        int bin = (int) ((p0 - offset) * scale);
+        counts[Math.max(0, Math.min(last, bin))]++;
+      }
+    }
+    return counts;
+  }
+
+  private static boolean matchesSender(Filter filter, int sender) {
+    if (filter.sender != -1 && sender != filter.sender)
+      return false;
+    long[] bits = filter.senders;
+    return bits == null || sender >= 0 && (sender >>> 6) < bits.length && (bits[sender >>> 6] & (1L << sender)) != 0;
+  }
+
+  /**
+   * @return The length of text encoded as UTF-8, without encoding it.
+   */
+  static int utf8Length(String text) {
+    if (text == null)
+      return 0;
+    int length = 0;
+    for (int i = 0, n = text.length(); i < n; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80)
+        length++;
+      else if (c < 0x800)
+        length += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else
+        length += 3;
+    }
+    return length;
+  }
+}
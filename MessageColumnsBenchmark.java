@@ -0,0 +1,109 @@
+/**
+ * Compares aggregates computed by MessageColumns with the same aggregates computed the
+ * visitor way, by having every Message add its positivity to a List of Double (or, for
+ * the filtered cases, by reading the Message getters one object at a time).
+ *
+ * The messages are synthetic: random senders, creation times spread over 30 days,
+ * positivity in [0, 100) and a few unscored. Each result is checked against the
+ * visitor's before its timing is printed; times are the best of several passes.
+ *
+ * Usage: java MessageColumnsBenchmark [messageCount] [userCount]
+ */
+import java.util.*;
+import java.util.function.LongSupplier;
+
+public class MessageColumnsBenchmark {
+
+  private static final long DAY = 24 * 3600 * 1000L;
+
+  public static void main(String[] args) {
+    int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    int userCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    Random random = new Random(7);
+
+    String[] users = new String[userCount];
+    for (int i = 0; i < userCount; i++)
+      UserIds.intern(users[i] = "user" + i);
+    String[] texts = { "good day", "not a good day at all", "great, happy and fun", "sad", "meh" };
+
+    long start = System.currentTimeMillis() - 30 * DAY;
+    List < Message > messages = new ArrayList < > (messageCount);
+    MessageColumns columns = new MessageColumns();
+    for (int i = 0; i < messageCount; i++) {
+      Message message = new Message("m" + i);
+      message.setFrom(users[random.nextInt(userCount)]);
+      message.setText(texts[random.nextInt(texts.length)]);
+      message.setCreationTime(start + 30 * DAY * i / messageCount + random.nextInt(60000));
+      message.setPositivePercentage(random.nextInt(20) == 0 ? null : random.nextDouble() * 100);
+      columns.append(message);
+      messages.add(message);
+    }
+    System.out.printf("%d messages from %d users, columns %.1f MB%n%n", messageCount, userCount, columns.memoryBytes() / 1e6);
+
+    long from = start + 20 * DAY, to = start + 27 * DAY;
+    String sender = users[42];
+
+    System.out.printf("%-28s %12s %12s %9s%n", "aggregate", "visitor ms", "columns ms", "speedup");
+    compare("average positivity", () -> {
+      List < Double > positiveness = new ArrayList < > ();
+      for (Message i: messages)
+        i.visit(positiveness);
+      double sum = 0;
+      long count = 0;
+      for (Double i: positiveness)
+        if (i != null) {
+          sum += i;
+          count++;
+        }
+      return Math.round(sum / count * 1e6);
+    }, () -> Math.round(columns.summarize(MessageColumns.Filter.all()).getAveragePositivity() * 1e6));
+
+    compare("count, 7 day range", () -> {
+      long count = 0;
+      for (Message i: messages)
+        if (i.getCreationTime() >= from && i.getCreationTime() < to)
+          count++;
+      return count;
+    }, () -> columns.summarize(MessageColumns.Filter.all().between(from, to)).getMessages());
+
+    compare("sum positivity, one sender", () -> {
+      double sum = 0;
+      for (Message i: messages)
+        if (sender.equals(i.getFrom()) && i.getPositivePercentage() != null)
+          sum += i.getPositivePercentage();
+      return Math.round(sum * 1000);
+    }, () -> Math.round(columns.summarize(MessageColumns.Filter.all().from(sender)).getPositivitySum() * 1000));
+
+    compare("histogram, 10 bins", () -> {
+      long[] counts = new long[10];
+      for (Message i: messages) {
+        Double p = i.getPositivePercentage();
+        if (p != null)
+          counts[Math.min(9, (int) (p / 10))]++;
+      }
+      return Arrays.hashCode(counts);
+    }, () -> Arrays.hashCode(columns.histogram(MessageColumns.Filter.all(), 10, 0, 100)));
+  }
+
+  private static void compare(String name, LongSupplier visitor, LongSupplier scan) {
+    long expected = visitor.getAsLong();
+    long actual = scan.getAsLong();
+    // Float columns round each score; allow for it in the positivity sums
+    if (Math.abs(expected - actual) > Math.max(2, Math.abs(expected) / 1000000))
+      throw new IllegalStateException(name + ": visitor " + expected + ", columns " + actual);
+    double visitorMillis = best(visitor), scanMillis = best(scan);
+    System.out.printf("%-28s %12.2f %12.2f %8.1fx%n", name, visitorMillis, scanMillis, visitorMillis / scanMillis);
+  }
+
+  private static double best(LongSupplier pass) {
+    long best = Long.MAX_VALUE, sink = 0;
+    for (int i = 0; i < 10; i++) {
+      long start = System.nanoTime();
+      sink += pass.getAsLong();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    if (sink == 42)
+      System.out.print("");
+    return best / 1e6;
+  }
+}
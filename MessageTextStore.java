@@ -0,0 +1,377 @@
+/**
+ * Deduplicated, block-compressed storage for message text.
+ *
+ * Identical bodies (retweets, bot posts, templated announcements) are stored once:
+ * every body is looked up by a 64-bit content hash before being appended. New bodies
+ * are appended as UTF-8 to an open block; once the block is full it is sealed and
+ * deflated. All blocks after the first are compressed with a shared preset dictionary
+ * taken from the first block, which lets short tweets compress well on their own.
+ *
+ * Text is decompressed on demand when a message is read (feeds, admin dialogs) and the
+ * most recently used decompressed blocks are kept in a small hot cache.
+ *
+ * The store is split into stripes selected by content hash, each with its own lock,
+ * blocks and cache, so that concurrent callers (API readers, lazily loaded bodies) rarely contend while
+ * identical bodies still always land in the same stripe and are deduplicated.
+ * A text ID carries its stripe in the top bits.
+ *
+ * Every put takes a reference on its body and release gives it back. A body without
+ * references is dropped from the dedup index and reads as null; a sealed block whose
+ * bodies are all released is freed, and so is the page of per-ID bookkeeping once all
+ * its IDs are released. Text IDs are not reused.
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class MessageTextStore {
+
+  // Store used by every Message
+  public static final MessageTextStore shared = new MessageTextStore();
+
+  private static final int BLOCK_SIZE = 8 * 1024;
+  private static final int DICTIONARY_SIZE = 8 * 1024;
+  private static final int HOT_BLOCKS = 8;
+  private static final int PAGE_BITS = 10;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  private static final int STRIPE_BITS = 5;
+  private static final int LOCAL_BITS = 31 - STRIPE_BITS;
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  public MessageTextStore() {
+    for (int i = 0; i < stripes.length; i++)
+      stripes[i] = new Stripe();
+  }
+
+  /**
+   * Stores a message body, reusing the existing copy if the same text was stored before.
+   *
+   * @param text The message text.
+   * @return The text ID to pass to get.
+   */
+  public int put(String text) {
+    long hash = hash(text);
+    int stripe = (int) (hash >>> (64 - STRIPE_BITS));
+    return (stripe << LOCAL_BITS) | stripes[stripe].put(text, hash);
+  }
+
+  /**
+   * Gets a stored message body, decompressing its block if needed.
+   *
+   * @param id The ID returned by put.
+   * @return The message text.
+   */
+  public String get(int id) {
+    return stripes[id >>> LOCAL_BITS].get(id & ((1 << LOCAL_BITS) - 1));
+  }
+
+  /**
+   * Gives back the reference a put returned, freeing the body once no message uses it.
+   *
+   * @param id The ID returned by put.
+   */
+  public void release(int id) {
+    stripes[id >>> LOCAL_BITS].release(id & ((1 << LOCAL_BITS) - 1));
+  }
+
+  /**
+   * @return The number of bodies stored, not counting deduplicated or released ones.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe i: stripes)
+      size += i.size();
+    return size;
+  }
+
+  /**
+   * @return The number of put calls answered with an existing body.
+   */
+  public long getDedupHits() {
+    long hits = 0;
+    for (Stripe i: stripes)
+      hits += i.getDedupHits();
+    return hits;
+  }
+
+  /**
+   * @return The number of sealed blocks freed because all their bodies were released.
+   */
+  public long getFreedBlocks() {
+    long freed = 0;
+    for (Stripe i: stripes)
+      freed += i.getFreedBlocks();
+    return freed;
+  }
+
+  /**
+   * @return An estimate of the heap bytes retained by the store.
+   */
+  public long memoryBytes() {
+    long bytes = 0;
+    for (Stripe i: stripes)
+      bytes += i.memoryBytes();
+    return bytes;
+  }
+
+  // 64-bit FNV-1a over the UTF-16 code units
+  private static long hash(String text) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < text.length(); i++) {
+      h ^= text.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /**
+   * One independently locked part of the store.
+   */
+  private static class Stripe {
+
+    // Block, offset, length and reference count of every stored body, four ints per text
+    // ID in pages of PAGE_SIZE IDs; a released body has a length of -1, and a full page
+    // whose bodies are all released is dropped
+    private int[][] pages = new int[16][];
+    private int[] liveInPage = new int[16];
+    private int count;
+    private int live;
+
+    // Sealed, compressed blocks (null once freed) and the dictionary shared by all but the first
+    private final List < byte[] > blocks = new ArrayList < > ();
+    private byte[] dictionary;
+    // Bodies still referenced in each block, the open one included
+    private int[] liveIn = new int[64];
+    private long freedBlocks;
+
+    // Open block still accepting bodies, uncompressed
+    private byte[] openBlock = new byte[BLOCK_SIZE];
+    private int openSize;
+
+    // Content hash -> text ID, open addressing
+    private long[] hashKeys = new long[1024];
+    private int[] hashValues = new int[1024];
+    private int hashCount;
+
+    private long dedupHits;
+
+    private final LinkedHashMap < Integer, byte[] > hotCache = new LinkedHashMap < Integer, byte[] > (32, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry < Integer, byte[] > eldest) {
+        return size() > HOT_BLOCKS;
+      }
+    };
+
+    /**
+     * @param text The message text.
+     * @param hash The content hash of the text.
+     * @return The ID of the body within this stripe.
+     */
+    synchronized int put(String text, long hash) {
+      int slot = findSlot(hash);
+      if (hashKeys[slot] == hash && hashValues[slot] != 0) {
+        int id = hashValues[slot] - 1;
+        if (text.equals(get(id))) {
+          dedupHits++;
+          pages[id >>> PAGE_BITS][(id & (PAGE_SIZE - 1)) * 4 + 3]++;
+          return id;
+        }
+        // 64-bit collision: store the body without indexing it
+        return append(text.getBytes(StandardCharsets.UTF_8));
+      }
+      int id = append(text.getBytes(StandardCharsets.UTF_8));
+      hashKeys[slot] = hash;
+      hashValues[slot] = id + 1;
+      if (++hashCount * 2 > hashKeys.length)
+        rehash();
+      return id;
+    }
+
+    synchronized String get(int id) {
+      int[] page = pages[id >>> PAGE_BITS];
+      int at = (id & (PAGE_SIZE - 1)) * 4;
+      if (page == null || page[at + 2] < 0)
+        return null;
+      int block = page[at];
+      byte[] data = block == blocks.size() ? openBlock : decompressed(block);
+      return new String(data, page[at + 1], page[at + 2], StandardCharsets.UTF_8);
+    }
+
+    synchronized void release(int id) {
+      int[] page = pages[id >>> PAGE_BITS];
+      int at = (id & (PAGE_SIZE - 1)) * 4;
+      if (page == null || page[at + 3] == 0 || --page[at + 3] > 0)
+        return;
+      unindex(hash(get(id)), id);
+      page[at + 2] = -1;
+      live--;
+      int block = page[at];
+      if (--liveIn[block] == 0 && block < blocks.size())
+        free(block);
+      int index = id >>> PAGE_BITS;
+      if (--liveInPage[index] == 0 && index < count >>> PAGE_BITS)
+        pages[index] = null;
+    }
+
+    synchronized int size() {
+      return live;
+    }
+
+    synchronized long getFreedBlocks() {
+      return freedBlocks;
+    }
+
+    synchronized long getDedupHits() {
+      return dedupHits;
+    }
+
+    synchronized long memoryBytes() {
+      long bytes = openBlock.length + (dictionary == null ? 0 : dictionary.length);
+      for (byte[] i: blocks)
+        bytes += i == null ? 0 : 16 + i.length;
+      for (int[] i: pages)
+        bytes += i == null ? 0 : 16 + 4L * i.length;
+      bytes += 8L * pages.length + 12L * hashKeys.length + 4L * liveIn.length;
+      return bytes;
+    }
+
+    private int append(byte[] bytes) {
+      if (openSize + bytes.length > BLOCK_SIZE && openSize > 0)
+        seal();
+      if (bytes.length > openBlock.length - openSize)
+        openBlock = Arrays.copyOf(openBlock, openSize + bytes.length);
+      System.arraycopy(bytes, 0, openBlock, openSize, bytes.length);
+      int index = count >>> PAGE_BITS;
+      if (index == pages.length) {
+        pages = Arrays.copyOf(pages, index * 2);
+        liveInPage = Arrays.copyOf(liveInPage, index * 2);
+      }
+      if (pages[index] == null)
+        pages[index] = new int[4 * PAGE_SIZE];
+      int at = (count & (PAGE_SIZE - 1)) * 4;
+      pages[index][at] = blocks.size();
+      pages[index][at + 1] = openSize;
+      pages[index][at + 2] = bytes.length;
+      pages[index][at + 3] = 1;
+      liveInPage[index]++;
+      liveIn[blocks.size()]++;
+      live++;
+      openSize += bytes.length;
+      return count++;
+    }
+
+    private void seal() {
+      byte[] raw = Arrays.copyOf(openBlock, openSize);
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      boolean useDictionary = dictionary != null;
+      if (useDictionary)
+        deflater.setDictionary(dictionary);
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] buffer = new byte[raw.length + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length)
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      deflater.end();
+
+      int block = blocks.size();
+      blocks.add(Arrays.copyOf(buffer, length));
+      if (!useDictionary)
+        dictionary = Arrays.copyOfRange(raw, Math.max(0, raw.length - DICTIONARY_SIZE), raw.length);
+      if (block + 1 == liveIn.length)
+        liveIn = Arrays.copyOf(liveIn, liveIn.length * 2);
+      if (liveIn[block] == 0)
+        free(block);
+      else
+        hotCache.put(block, raw);
+      openBlock = new byte[BLOCK_SIZE];
+      openSize = 0;
+    }
+
+    private void free(int block) {
+      blocks.set(block, null);
+      hotCache.remove(block);
+      freedBlocks++;
+    }
+
+    private byte[] decompressed(int block) {
+      byte[] raw = hotCache.get(block);
+      if (raw != null)
+        return raw;
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(blocks.get(block));
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int length = 0;
+        while (!inflater.finished()) {
+          if (length == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          int n = inflater.inflate(buffer, length, buffer.length - length);
+          if (n == 0 && inflater.needsDictionary())
+            inflater.setDictionary(dictionary);
+          else if (n == 0 && !inflater.finished())
+            // The buffer has room, so a truncated block would never make progress
+            throw new IllegalStateException("Corrupted text block " + block + ": truncated");
+          length += n;
+        }
+        raw = Arrays.copyOf(buffer, length);
+      } catch (DataFormatException e) {
+        throw new IllegalStateException("Corrupted text block " + block, e);
+      } finally {
+        inflater.end();
+      }
+      hotCache.put(block, raw);
+      return raw;
+    }
+
+    private int findSlot(long hash) {
+      int mask = hashKeys.length - 1;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while (hashValues[slot] != 0 && hashKeys[slot] != hash)
+        slot = (slot + 1) & mask;
+      return slot;
+    }
+
+    // Removes the index entry of a released body, shifting back the entries probed past it
+    private void unindex(long hash, int id) {
+      int slot = findSlot(hash);
+      if (hashValues[slot] != id + 1)
+        return;
+      int mask = hashKeys.length - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; hashValues[next] != 0; next = (next + 1) & mask) {
+        long key = hashKeys[next];
+        int home = (int) (key ^ (key >>> 32)) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          hashKeys[hole] = key;
+          hashValues[hole] = hashValues[next];
+          hole = next;
+        }
+      }
+      hashKeys[hole] = 0;
+      hashValues[hole] = 0;
+      hashCount--;
+    }
+
+    private void rehash() {
+      long[] oldKeys = hashKeys;
+      int[] oldValues = hashValues;
+      hashKeys = new long[oldKeys.length * 2];
+      hashValues = new int[oldValues.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != 0) {
+          int slot = findSlot(oldKeys[i]);
+          hashKeys[slot] = oldKeys[i];
+          hashValues[slot] = oldValues[i];
+        }
+      }
+    }
+  }
+}
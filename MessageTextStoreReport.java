@@ -0,0 +1,90 @@
+/**
+ * Reports heap bytes per message for plain String bodies versus the MessageTextStore,
+ * on a generated corpus with the kind of repetition seen in real traffic: retweets of
+ * popular posts, bot posts and templated announcements mixed with unique messages.
+ *
+ * Usage: java MessageTextStoreReport [messageCount]
+ */
+import java.util.*;
+
+public class MessageTextStoreReport {
+
+  private static final String[] WORDS = {
+    "good", "great", "today", "coffee", "meeting", "release", "weekend", "team", "launch", "cool",
+    "awesome", "news", "update", "thanks", "everyone", "project", "java", "twitter", "morning", "excellent"
+  };
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    List < String > corpus = generateCorpus(count, new Random(42));
+
+    // Before: one String per message
+    long base = usedHeap();
+    String[] plain = new String[count];
+    for (int i = 0; i < count; i++)
+      plain[i] = new String(corpus.get(i).toCharArray());
+    long plainBytes = usedHeap() - base;
+    plain = null;
+
+    // After: deduplicated, compressed text IDs
+    base = usedHeap();
+    MessageTextStore store = new MessageTextStore();
+    int[] ids = new int[count];
+    for (int i = 0; i < count; i++)
+      ids[i] = store.put(corpus.get(i));
+    long storeBytes = usedHeap() - base;
+
+    // Decode a sample to make sure the round trip is exact and measure read cost
+    Random random = new Random(7);
+    long start = System.nanoTime();
+    for (int i = 0; i < 100000; i++) {
+      int index = random.nextInt(count);
+      if (!store.get(ids[index]).equals(corpus.get(index)))
+        throw new IllegalStateException("Mismatch at message " + index);
+    }
+    long readNanos = (System.nanoTime() - start) / 100000;
+
+    System.out.println("Messages:               " + count);
+    System.out.println("Distinct bodies:        " + store.size());
+    System.out.println("Deduplicated puts:      " + store.getDedupHits());
+    System.out.printf("String bytes/message:   %.1f%n", plainBytes / (double) count);
+    System.out.printf("Store bytes/message:    %.1f (estimate %.1f)%n", storeBytes / (double) count, store.memoryBytes() / (double) count);
+    System.out.println("Random read (ns):       " + readNanos);
+  }
+
+  private static List < String > generateCorpus(int count, Random random) {
+    List < String > popular = new ArrayList < > ();
+    for (int i = 0; i < 500; i++)
+      popular.add(sentence(random, 12) + " #" + i);
+    List < String > corpus = new ArrayList < > (count);
+    for (int i = 0; i < count; i++) {
+      int kind = random.nextInt(10);
+      if (kind < 3) // retweets of popular posts
+        corpus.add("RT " + popular.get(random.nextInt(popular.size())));
+      else if (kind < 5) // bot posts
+        corpus.add("Bot update: build " + random.nextInt(200) + " is " + (random.nextBoolean() ? "green" : "red"));
+      else if (kind < 6) // templated announcements
+        corpus.add("Welcome to Mini Twitter, user" + random.nextInt(100000) + "! Have a great day.");
+      else
+        corpus.add(sentence(random, 6 + random.nextInt(14)));
+    }
+    return corpus;
+  }
+
+  private static String sentence(Random random, int words) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0)
+        builder.append(' ');
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
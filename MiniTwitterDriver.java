@@ -1,10 +1,86 @@
 /*
  * Standard driver file
+ *
+ * If a snapshot file is given (first argument or -Dminitwitter.snapshot), the state is
+ * loaded from it before the window is shown and written back to it on exit.
+ * If -Dminitwitter.api.port is set, the local HTTP API is started on that port.
+ * If -Dminitwitter.lexicon names a sentiment lexicon file, it replaces the built-in one
+ * and the loaded messages are re-scored in the background.
+ * If any -Dminitwitter.retention.* limit is set, old messages are moved to the archive
+ * in the background (see RetentionSweeper).
+ * Event Dispatch Thread stalls over -Dminitwitter.edt.stallMillis (default 50) are
+ * reported on stderr (see EdtMonitor).
+ * If -Dminitwitter.record names a file, the operations issued from the windows are
+ * recorded to it for OperationReplayer (see OperationTrace).
+ * Heap estimates per subsystem are published over JMX (see MemoryAccounting).
  */
 
+ import java.io.IOException;
+ import java.nio.file.*;
+
  public class MiniTwitterDriver {
     public static void main(String[] args) {
-  
+
+      String snapshot = args.length > 0 ? args[0] : System.getProperty("minitwitter.snapshot");
+      boolean loaded = false;
+      if (snapshot != null) {
+        Path path = Paths.get(snapshot);
+        if (Files.exists(path)) {
+          try {
+            long start = System.currentTimeMillis();
+            SnapshotStore.load(path);
+            loaded = true;
+            System.out.println("Loaded snapshot " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+          } catch (IOException e) {
+            System.err.println("Could not load snapshot " + path + ": " + e.getMessage());
+          }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            SnapshotStore.save(path);
+          } catch (IOException e) {
+            System.err.println("Could not save snapshot " + path + ": " + e.getMessage());
+          }
+        }));
+      }
+      // Messages archived by an earlier run are not part of a state started from scratch
+      if (!loaded)
+        MessageArchive.shared.startLineage();
+
+      String lexicon = System.getProperty("minitwitter.lexicon");
+      if (lexicon != null) {
+        try {
+          SentimentEngine.loadLexicon(Paths.get(lexicon));
+        } catch (IOException | IllegalArgumentException e) {
+          System.err.println("Could not load lexicon " + lexicon + ": " + e.getMessage());
+        }
+      }
+
+      RetentionSweeper.startIfConfigured();
+
+      String apiPort = System.getProperty("minitwitter.api.port");
+      if (apiPort != null) {
+        try {
+          ApiServer apiServer = new ApiServer(Integer.parseInt(apiPort));
+          apiServer.start();
+          System.out.println("HTTP API listening on localhost:" + apiServer.getPort());
+        } catch (IOException e) {
+          System.err.println("Could not start HTTP API: " + e.getMessage());
+        }
+      }
+
+      String record = System.getProperty("minitwitter.record");
+      if (record != null) {
+        try {
+          OperationTrace.startRecording(Paths.get(record));
+          Runtime.getRuntime().addShutdownHook(new Thread(OperationTrace::stopRecording));
+        } catch (IOException e) {
+          System.err.println("Could not record operations to " + record + ": " + e.getMessage());
+        }
+      }
+
+      MemoryAccounting.registerMBean();
+      EdtMonitor.install();
       MiniTwitterWindow mainWindow = MiniTwitterWindow.getInstance();
     }
-  }
\ No newline at end of file
+  }
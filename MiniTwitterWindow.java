@@ -7,10 +7,16 @@
  * Design Patterns Used:
  * - Singleton: Ensures only one instance of this window.
  * - Observer: Uses observers to update the UI when data changes.
+ *
+ * Button actions run their engine operations through UiCommands, off the Event
+ * Dispatch Thread, and changes reach the window in batches through EdtPublisher.
  */
 
  import javax.swing.*;
+ import javax.swing.event.TreeExpansionEvent;
+ import javax.swing.event.TreeWillExpandListener;
  import javax.swing.tree.DefaultMutableTreeNode;
+ import javax.swing.tree.DefaultTreeModel;
  import javax.swing.tree.TreePath;
  import java.awt.*;
  import java.awt.event.ComponentAdapter;
@@ -25,9 +31,14 @@
    private JPanel mainPanel;
    private JPanel leftPanel;
  
-   // Tree view for user/group hierarchy
+   // Tree view for user/group hierarchy, built once and then updated in place from
+   // UserGroup.treeObservers. Group members are loaded a page at a time when a group
+   // is expanded; the loaded nodes are indexed by user and group ID
    private DefaultMutableTreeNode rootTree;
    private JTree jtree;
+   private DefaultTreeModel treeModel;
+   private final HashMap < String, GroupTreeNode > groupNodes = new HashMap < > ();
+   private final HashMap < String, UserTreeNode > userNodes = new HashMap < > ();
  
    private JPanel centerPanel;
  
@@ -66,9 +77,21 @@
      setTitle("Mini Twitter");
  
      // Observer Pattern: Register for updates from User, UserGroup, and Message
-     User.listObservers.add(this::refreshViews);
-     UserGroup.listObservers.add(this::refreshViews);
-     Message.messageObservers.add(this::refreshViews);
+     // Changes come from the command thread and API threads; the EDT gets them in
+     // batches, with one view rebuild per burst of changes
+     Runnable refresh = EdtPublisher.coalescing(this::refreshViews);
+     User.listObservers.add(refresh);
+     UserGroup.listObservers.add(refresh);
+     UserGroup.treeObservers.add(EdtPublisher.batching(changes -> {
+       for (UserGroup.TreeChange i: changes)
+         applyTreeChange(i);
+     }));
+     Message.messageObservers.add(refresh);
+     User.followersObservers.add(refresh);
+     BulkLoader.bulkLoadObservers.add(() -> Utils.runOnEdt(() -> {
+       leftPanel = null;
+       refresh.run();
+     }));
  
      Dimension dimension = Toolkit.getDefaultToolkit().getScreenSize();
      screenSize = new Dimension(dimension.width * 2 / 3, dimension.height * 3 / 4);
@@ -83,10 +106,15 @@
    }
  
    /**
-    * Refreshes the entire UI when a change in user/group/message data is observed.
-    * Rebuilds the main panel, left panel (tree view), and center panel with updated data.
+    * Refreshes the UI when a change in user/group/message data is observed.
+    * Rebuilds the main panel and the center panel with updated data; the tree view is
+    * kept, since tree changes are applied to it one by one, unless it was dropped
+    * after a bulk load.
     */
    public void refreshViews() {
+     EngineEvents.RefreshViews event = new EngineEvents.RefreshViews();
+     event.begin();
+     long start = TraceRecorder.shared.start();
      if (mainPanel != null) {
        mainPanel.setVisible(false);
        remove(mainPanel);
@@ -96,16 +124,29 @@
      mainPanel.setBackground(Color.WHITE);
      add(mainPanel);
  
-     addLeftPanel();
+     if (leftPanel == null) {
+       addLeftPanel();
+     } else {
+       leftPanel.setPreferredSize(new Dimension(screenSize.width / 3, screenSize.height - 40));
+       mainPanel.add(leftPanel, BorderLayout.WEST);
+     }
      addCenterPanel();
+     addRightPanel();
  
      // Auto selects the Root tree to be able to quickly add new users by default
-     TreePath rootPath = new TreePath(rootTree);
-     jtree.setSelectionPath(rootPath);
+     if (jtree.getSelectionPath() == null)
+       jtree.setSelectionPath(new TreePath(rootTree));
+     TraceRecorder.shared.record("refreshViews", "Admin", 0, start);
+     if (event.shouldCommit()) {
+       event.window = "Admin";
+       event.commit();
+     }
    }
  
    // --- UI Building and Layout ---
    private JButton validateButton;
+   private JButton moveNode;
+   private JButton deleteGroup;
    private JButton lastUpdatedUser;
  
    /**
@@ -120,12 +161,12 @@
  
      // Top part of the center panel
      JPanel topButtonPanel = new JPanel();
-     GridLayout gridLayout = new GridLayout(4, 1);
+     GridLayout gridLayout = new GridLayout(5, 1);
      topButtonPanel.setLayout(gridLayout);
  
      // Bottom part of the center panel
      JPanel bottomButtonPanel = new JPanel();
-     GridLayout gridLayoutBtm = new GridLayout(3, 2);
+     GridLayout gridLayoutBtm = new GridLayout(4, 2);
      bottomButtonPanel.setLayout(gridLayoutBtm);
  
      centerPanel.add(topButtonPanel, BorderLayout.NORTH);
@@ -155,6 +196,14 @@
      addGroup = new JButton("Add Group");
      Utils.addSplitButtons(topButtonPanel, groupIdPanel, addGroup);
  
+     // Hierarchy edits on the selected node; moves go into the group typed above
+     JPanel hierarchyPanel = new JPanel(new GridLayout(1, 2));
+     moveNode = new JButton("Move Into Group Id");
+     deleteGroup = new JButton("Delete Group");
+     hierarchyPanel.add(moveNode);
+     hierarchyPanel.add(deleteGroup);
+     topButtonPanel.add(hierarchyPanel);
+ 
      // User View and Validation buttons
      openUserView = new JButton("Open User View");
      topButtonPanel.add(openUserView);
@@ -162,21 +211,17 @@
      validateButton = new JButton("User/Group ID verification");
      topButtonPanel.add(validateButton);
  
-     // Statistics buttons providing information
-     JButton usersButton = new JButton("<html><center>Users<br>" + User.users.size() + "</html>");
-     JButton groupsButton = new JButton("<html><center>Groups<br>" + UserGroup.userGroups.size() + "</html>");
-     JButton messagesButton = new JButton("<html><center>Messages<br>" + Message.messages.size() + "</html>");
- 
-     // Calculate and display average message positivity
-     List < Double > messagePositivity = new ArrayList < > ();
-     messagePositivity.clear();  // Clear the list before each calculation
-     for (String i : Message.messages) {
-         Message.messageMap.get(i).visit(messagePositivity);
-     }
+     // Statistics buttons providing information, all from one point-in-time view so that
+     // they agree with each other and never wait for writers
+     ReadView view = ReadView.current();
+     JButton usersButton = new JButton("<html><center>Users<br>" + view.getUsers().size() + "</html>");
+     JButton groupsButton = new JButton("<html><center>Groups<br>" + view.getGroups().size() + "</html>");
+     JButton messagesButton = new JButton("<html><center>Messages<br>" + view.getTotalMessages() + "</html>");
  
-     OptionalDouble optionalDouble = messagePositivity.stream().mapToDouble(a -> a).average();
-     JButton positiveButton = new JButton("<html><center>Positive<br>" +
-                                         (optionalDouble.isPresent() ? optionalDouble.getAsDouble() : "0") + "%</html>");
+     // Display average message positivity, kept up to date by PositivityStats
+     double positivityPercentage = view.getAveragePositivity();
+     JButton positiveButton = new JButton("<html><center>Positive<br>" + positivityPercentage + "%" +
+                                         (PositivityStats.isBackfilling() ? "<br>(re-scoring)" : "") + "</html>");
  
      JButton lastUpdatedUserButton = new JButton("<html><center>Last Updated User</html>");
  
@@ -186,24 +231,37 @@
      bottomButtonPanel.add(messagesButton);
      bottomButtonPanel.add(positiveButton);
  
-     // Add action listeners using lambda expressions
-     usersButton.addActionListener(e -> JOptionPane.showMessageDialog(null, " - " + String.join("\n - ", User.users), "All Users", JOptionPane.INFORMATION_MESSAGE));
+     // Add action listeners using lambda expressions; the browsers read their pages on
+     // demand, so nothing is listed until one is opened
+     usersButton.addActionListener(e -> BrowserDialog.users(this));
  
-     groupsButton.addActionListener(e -> JOptionPane.showMessageDialog(null, " - " + String.join("\n - ", UserGroup.userGroups), "All Groups", JOptionPane.INFORMATION_MESSAGE));
+     groupsButton.addActionListener(e -> BrowserDialog.groups(this));
  
-     List < String > messages = new ArrayList < > ();
-     for (String i: Message.messages)
-       messages.add(Message.messageMap.get(i).getFrom() + ": " + Message.messageMap.get(i).getText());
-     messagesButton.addActionListener(e -> JOptionPane.showMessageDialog(null, " - " + String.join("\n - ", messages), "All Messages", JOptionPane.INFORMATION_MESSAGE));
+     messagesButton.addActionListener(e -> BrowserDialog.messages(this));
  
      positiveButton.addActionListener(e -> {
-       double positivityPercentage = optionalDouble.isPresent() ? optionalDouble.getAsDouble() : 0.0;
-       JOptionPane.showMessageDialog(null, "Positive Percentage: " + positivityPercentage + "%\n\n Words Affecting Positivity:\n" + Arrays.toString(Utils.positiveWords), "Message Positivity", JOptionPane.INFORMATION_MESSAGE);
+       JOptionPane.showMessageDialog(null, "Positive Percentage: " + positivityPercentage + "%\n\n Sentiment Lexicon:\n" + SentimentEngine.getLexicon(), "Message Positivity", JOptionPane.INFORMATION_MESSAGE);
      });
  
      lastUpdatedUser = new JButton("<html><center>Last User Updated</html>");
      bottomButtonPanel.add(lastUpdatedUser);
  
+     // Follow graph analytics run on their own pool; the button is off until they finish
+     JButton influencersButton = new JButton("<html><center>Top Influencers</html>");
+     bottomButtonPanel.add(influencersButton);
+     influencersButton.addActionListener(e -> {
+       influencersButton.setEnabled(false);
+       influencersButton.setText("<html><center>Analyzing...</html>");
+       UiCommands.onEdt(FollowGraph.analyzeAsync(20).whenCompleteAsync((report, failure) -> {
+         influencersButton.setEnabled(true);
+         influencersButton.setText("<html><center>Top Influencers</html>");
+       }, UiCommands.EDT), this::showInfluencers);
+     });
+ 
+     JButton memoryButton = new JButton("<html><center>Memory</html>");
+     bottomButtonPanel.add(memoryButton);
+     memoryButton.addActionListener(e -> MemoryDialog.open(this));
+ 
      mainPanel.add(centerPanel, BorderLayout.CENTER);
      configureButtons();
    }
@@ -219,20 +277,11 @@
        if (!user.isEmpty()) {
          DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) jtree.getLastSelectedPathComponent();
          if (selectedNode != null && selectedNode instanceof GroupTreeNode) { // Check if it's a group node
-           UserGroup userGroup = UserGroup.userGroupMap.get(selectedNode.getUserObject()); // Get UserGroup from the node
+           UserGroup userGroup = UserGroup.userGroupMap.get(((GroupTreeNode) selectedNode).getUid()); // Get UserGroup from the node
  
-           // Validate the new user ID and add user to selected group
-           if (User.usersMap.containsKey(user)) {
-             JOptionPane.showMessageDialog(null, "User Already Exists!", "Error", JOptionPane.ERROR_MESSAGE);
-             return;
-           }
- 
-           User tmpUser = new User();
-           tmpUser.setName(user);
-           tmpUser.setUid(user);
-           User.addUser(tmpUser);
-           userGroup.addUser(tmpUser);
-           userId.setText("");
+           // The new user ID is validated by TwitterOperations, off the EDT
+           JTextField field = userId;
+           UiCommands.onEdt(UiCommands.createUser(user, userGroup.getUid()), created -> field.setText(""));
          } else {
            JOptionPane.showMessageDialog(null, "Please select a group to add the user under.", "Error", JOptionPane.ERROR_MESSAGE);
          }
@@ -243,21 +292,48 @@
        //            System.out.println(jtree.getLastSelectedPathComponent());
        String userGroup = groupId.getText();
        if (!userGroup.isEmpty()) {
-         String selectedSegment = jtree.getLastSelectedPathComponent() == null ? "Root" : jtree.getLastSelectedPathComponent().toString();
-         UserGroup usersGroup = UserGroup.userGroupMap.get(selectedSegment);
-         if (UserGroup.userGroups.contains(selectedSegment)) {
-           UserGroup tmpUserGroup = new UserGroup();
-           tmpUserGroup.setName(userGroup);
-           tmpUserGroup.setUid(userGroup);
-           UserGroup.addUserGroup(tmpUserGroup);
-           usersGroup.addGroup(tmpUserGroup);
-           groupId.setText("");
+         Object selectedNode = jtree.getLastSelectedPathComponent();
+         String selectedSegment = selectedNode == null ? "Root" : selectedNode instanceof GroupTreeNode ? ((GroupTreeNode) selectedNode).getUid() : null;
+         UserGroup usersGroup = selectedSegment == null ? null : UserGroup.userGroupMap.get(selectedSegment);
+         if (usersGroup != null) {
+           JTextField field = groupId;
+           UiCommands.onEdt(UiCommands.createGroup(userGroup, usersGroup.getUid()), created -> field.setText(""));
          }
        }
      });
  
+     moveNode.addActionListener(e -> {
+       String target = groupId.getText();
+       Object selectedNode = jtree.getLastSelectedPathComponent();
+       if (!(selectedNode instanceof GroupTreeNode || selectedNode instanceof UserTreeNode) || target.isEmpty()) {
+         JOptionPane.showMessageDialog(null, "Select a user or group and enter the Group Id to move it into.", "Error", JOptionPane.ERROR_MESSAGE);
+         return;
+       }
+       JTextField field = groupId;
+       UiCommands.onEdt(selectedNode instanceof GroupTreeNode ?
+         UiCommands.moveGroup(((GroupTreeNode) selectedNode).getUid(), target) :
+         UiCommands.moveUser(((UserTreeNode) selectedNode).getUid(), target), moved -> field.setText(""));
+     });
+ 
+     deleteGroup.addActionListener(e -> {
+       Object selectedNode = jtree.getLastSelectedPathComponent();
+       if (!(selectedNode instanceof GroupTreeNode) || selectedNode == rootTree) {
+         JOptionPane.showMessageDialog(null, "Please select a group other than Root.", "Error", JOptionPane.ERROR_MESSAGE);
+         return;
+       }
+       UserGroup userGroup = UserGroup.userGroupMap.get(((GroupTreeNode) selectedNode).getUid());
+       if (userGroup == null)
+         return;
+       int answer = JOptionPane.showConfirmDialog(null, "Delete " + userGroup.getUid() + " and its " + userGroup.getSubtreeGroups() +
+         " subgroups?\nIts " + userGroup.getSubtreeUsers() + " users move to the parent group.", "Delete Group", JOptionPane.OK_CANCEL_OPTION);
+       if (answer != JOptionPane.OK_OPTION)
+         return;
+       UiCommands.onEdt(UiCommands.deleteGroup(userGroup.getUid()), moved -> {});
+     });
+ 
      openUserView.addActionListener(e -> {
-       String selectedSegment = jtree.getLastSelectedPathComponent() == null ? "Root" : jtree.getLastSelectedPathComponent().toString();
+       Object selectedNode = jtree.getLastSelectedPathComponent();
+       String selectedSegment = selectedNode instanceof UserTreeNode ? ((UserTreeNode) selectedNode).getUid() : "";
        if (User.usersMap.containsKey(selectedSegment)) {
          UserWindow userWindow = new UserWindow(User.usersMap.get(selectedSegment));
  
@@ -283,8 +359,9 @@
        };
  
        //validate users
+       ReadView current = ReadView.current();
        HashSet < String > userIds = new HashSet < > ();
-       for (String i: User.users) {
+       for (String i: current.getUsers()) {
          User user = User.usersMap.get(i);
          VisitorValidation.VALIDATIONRESULT validity = user.visit(userIds);
          if (validity != VisitorValidation.VALIDATIONRESULT.SUCCESS) {
@@ -296,7 +373,7 @@
  
        //Validate User Groups
        HashSet < String > userGroupIds = new HashSet < > ();
-       for (String i: UserGroup.userGroups) {
+       for (String i: current.getGroups()) {
          UserGroup userGroup = UserGroup.userGroupMap.get(i);
          VisitorValidation.VALIDATIONRESULT validity = userGroup.visit(userGroupIds);
          if (validity != VisitorValidation.VALIDATIONRESULT.SUCCESS) {
@@ -311,9 +388,11 @@
  
      lastUpdatedUser.addActionListener(e -> {
        User lastUpdated = null;
-       for (User user: User.usersMap.values())
+       for (String i: ReadView.current().getUsers()) {
+         User user = User.usersMap.get(i);
          if (lastUpdated == null || user.getLastUpdateTime() > lastUpdated.getLastUpdateTime())
            lastUpdated = user;
+       }
        if (lastUpdated != null)
          JOptionPane.showMessageDialog(null, "Last Updated User Id is : " + lastUpdated.getUid());
        else
@@ -322,6 +401,77 @@
      });
    }
  
+   /**
+    * Shows the highest ranked users of a follow graph analysis, with the degree
+    * distributions.
+    */
+   private void showInfluencers(FollowGraph.Report report) {
+     String[] columns = { "#", "User Id", "PageRank", "Followers", "Following", "2-hop Reach (est.)" };
+     Object[][] rows = new Object[report.getTop().size()][];
+     for (int i = 0; i < rows.length; i++) {
+       FollowGraph.Influencer influencer = report.getTop().get(i);
+       rows[i] = new Object[] { i + 1, influencer.getUid(), String.format("%.6f", influencer.getRank()),
+         influencer.getFollowers(), influencer.getFollowings(), influencer.getReach() };
+     }
+     JTable table = new JTable(rows, columns);
+     table.setEnabled(false);
+     JScrollPane scroll = new JScrollPane(table);
+     scroll.setPreferredSize(new Dimension(560, 340));
+ 
+     JPanel panel = new JPanel(new BorderLayout(0, 8));
+     panel.add(new JLabel(report.getUsers() + " users, " + report.getEdges() + " follows (" + report.timings() + ")"), BorderLayout.NORTH);
+     panel.add(scroll, BorderLayout.CENTER);
+     panel.add(new JLabel("<html>Users by followers: " + degrees(report.getInDegrees()) +
+       "<br>Users by following: " + degrees(report.getOutDegrees()) + "</html>"), BorderLayout.SOUTH);
+     JOptionPane.showMessageDialog(this, panel, "Top Influencers", JOptionPane.PLAIN_MESSAGE);
+   }
+ 
+   // Degree buckets as "0: n, 1: n, 2-3: n, ..."
+   private static String degrees(long[] counts) {
+     StringBuilder text = new StringBuilder();
+     for (int k = 0; k < counts.length; k++) {
+       long low = k == 0 ? 0 : 1L << (k - 1), high = k == 0 ? 0 : (1L << k) - 1;
+       text.append(k > 0 ? ", " : "").append(low == high ? "" + low : low + "-" + high).append(": ").append(counts[k]);
+     }
+     return text.toString();
+   }
+ 
+   // Kept across rebuilds, since it redraws itself as its windows roll
+   private final ActivityPanel activityPanel = new ActivityPanel();
+ 
+   /**
+    * Adds the right panel to the main panel, with the top users of each of the
+    * Leaderboards and the recent activity of the selected group. The boards are kept
+    * up to date as changes happen, so reading them costs the same however many users
+    * there are.
+    */
+   private void addRightPanel() {
+     JPanel rightPanel = new JPanel(new GridLayout(4, 1));
+     rightPanel.setBackground(Color.WHITE);
+     rightPanel.add(leaderboard("Most Followed", Leaderboards.followers.top(LEADERBOARD_SIZE), false));
+     rightPanel.add(leaderboard("Most Posts", Leaderboards.posts.top(LEADERBOARD_SIZE), false));
+     rightPanel.add(leaderboard("Most Positive", Leaderboards.positivity.top(LEADERBOARD_SIZE), true));
+     rightPanel.add(activityPanel);
+     rightPanel.setPreferredSize(new Dimension(screenSize.width / 6, screenSize.height - 40));
+     mainPanel.add(rightPanel, BorderLayout.EAST);
+   }
+ 
+   private static final int LEADERBOARD_SIZE = 5;
+ 
+   private static JLabel leaderboard(String title, List < Leaderboards.Entry > entries, boolean average) {
+     StringBuilder html = new StringBuilder("<html><b style='color:blue'>").append(title).append("</b>");
+     for (int i = 0; i < entries.size(); i++) {
+       Leaderboards.Entry entry = entries.get(i);
+       html.append("<br>").append(i + 1).append(". ").append(entry.getUid()).append(" (")
+         .append(average ? String.format("%.2f%%", entry.getValue()) : String.valueOf(entry.getCount())).append(")");
+     }
+     if (entries.isEmpty())
+       html.append("<br>-");
+     JLabel label = new JLabel(html.append("</html>").toString(), JLabel.CENTER);
+     label.setVerticalAlignment(JLabel.TOP);
+     return label;
+   }
+ 
    /**
     * Adds the left panel to the main panel.
     * The left panel contains a tree view (`JTree`) displaying the hierarchy of
@@ -335,12 +485,47 @@
  
      JLabel jLabel = new JLabel("       Tree View   ", JLabel.CENTER);
      leftPanel.add(jLabel, BorderLayout.NORTH);
-     rootTree = new GroupTreeNode(UserGroup.userGroupMap.get("Root").getName());
-     populateTreeView(rootTree, UserGroup.userGroupMap.get("Root"));
-     jtree = new JTree(rootTree);
+     groupNodes.clear();
+     userNodes.clear();
+     rootTree = new GroupTreeNode("Root", UserGroup.userGroupMap.get("Root").getName());
+     groupNodes.put("Root", (GroupTreeNode) rootTree);
+     treeModel = new DefaultTreeModel(rootTree);
+     jtree = new JTree(treeModel);
      jtree.setCellRenderer(new GroupTreeCellRenderer());
-     GroupTreeNode.expandAll(jtree);
-     leftPanel.add(jtree, BorderLayout.CENTER);
+     jtree.addTreeWillExpandListener(new TreeWillExpandListener() {
+       @Override
+       public void treeWillExpand(TreeExpansionEvent event) {
+         Object node = event.getPath().getLastPathComponent();
+         if (node instanceof GroupTreeNode && !((GroupTreeNode) node).isLoaded())
+           loadPage((GroupTreeNode) node);
+       }
+ 
+       @Override
+       public void treeWillCollapse(TreeExpansionEvent event) {
+       }
+     });
+     // The activity panel follows the selected group
+     jtree.addTreeSelectionListener(e -> {
+       if (e.getPath().getLastPathComponent() instanceof GroupTreeNode group)
+         activityPanel.setGroup(group.getUid());
+     });
+     // Choosing "show more" replaces it with the next page of members
+     jtree.addTreeSelectionListener(e -> {
+       if (e.getPath().getLastPathComponent() instanceof GroupTreeNode.MoreNode more)
+         SwingUtilities.invokeLater(() -> {
+           GroupTreeNode owner = more.getOwner();
+           if (owner.getMoreNode() != more)
+             return;
+           int first = owner.getShownCount();
+           loadPage(owner);
+           if (first < owner.getChildCount())
+             jtree.setSelectionPath(new TreePath(((DefaultMutableTreeNode) owner.getChildAt(first)).getPath()));
+         });
+     });
+     // Root starts expanded, so its first page is loaded here; nothing else is loaded
+     // until it is expanded, whatever the size of the hierarchy
+     loadPage((GroupTreeNode) rootTree);
+     leftPanel.add(new JScrollPane(jtree), BorderLayout.CENTER);
  
      leftPanel.setPreferredSize(new Dimension(screenSize.width / 3, screenSize.height - 40));
  
@@ -350,30 +535,90 @@
    }
  
    /**
-    * Recursively populates the tree view with user groups and users.
-    * 
-    * @param rootTree The root node of the tree.
-    * @param userGroup The UserGroup object to add to the tree.
+    * Loads the next page of a group's members into its node, after the members already
+    * shown, and adds a "show more" node if some are still left out.
+    *
+    * @param node The node of the group.
     */
- 
-   private void populateTreeView(DefaultMutableTreeNode rootTree, UserGroup userGroup) {
+   private void loadPage(GroupTreeNode node) {
+     UserGroup userGroup = UserGroup.userGroupMap.get(node.getUid());
+     node.setLoaded(true);
      if (userGroup == null)
        return;
+     if (node.getMoreNode() != null) {
+       treeModel.removeNodeFromParent(node.getMoreNode());
+       node.setMoreNode(null);
+     }
+     List < UserMember > members = userGroup.getChildren();
+     int from = node.getShownCount();
+     int to = Math.min(members.size(), from + GroupTreeNode.PAGE_SIZE);
+     for (int i = from; i < to; i++)
+       node.add(createNode(members.get(i)));
+     if (to < members.size()) {
+       node.setMoreNode(new GroupTreeNode.MoreNode(node));
+       node.add(node.getMoreNode());
+     }
+     int[] indices = new int[node.getChildCount() - from];
+     for (int i = 0; i < indices.length; i++)
+       indices[i] = from + i;
+     treeModel.nodesWereInserted(node, indices);
+   }
  
-     // Loop through each user or subgroup in the user group
-     for (UserMember child: userGroup.getChildren()) {
-       DefaultMutableTreeNode tree = null;
-       if (child.getChildType() == UserMember.CHILD_TYPE.GROUP || child.getUid().equals("Root")) {
-         String title = UserGroup.userGroupMap.get(child.getUid()).getName();
-         tree = new GroupTreeNode(title);
-         tree.setAllowsChildren(true);
-         populateTreeView(tree, UserGroup.userGroupMap.get(child.getUid()));
-       } else {
-         tree = new DefaultMutableTreeNode(User.usersMap.get(child.getUid()).getName());
-       }
-       //            tree.setParent(rootTree);
-       rootTree.add(tree);
+   // Creates and indexes the node of a member; groups start unloaded
+   private DefaultMutableTreeNode createNode(UserMember member) {
+     String uid = member.getUid();
+     if (member.getChildType() == UserMember.CHILD_TYPE.GROUP) {
+       UserGroup userGroup = UserGroup.userGroupMap.get(uid);
+       GroupTreeNode node = new GroupTreeNode(uid, userGroup == null ? uid : userGroup.getName());
+       groupNodes.put(uid, node);
+       return node;
+     }
+     User user = User.usersMap.get(uid);
+     UserTreeNode node = new UserTreeNode(uid, user == null ? uid : user.getName());
+     userNodes.put(uid, node);
+     return node;
+   }
+ 
+   // Drops a removed node and everything loaded below it from the index
+   private void forget(DefaultMutableTreeNode node) {
+     for (Enumeration < ? > i = node.depthFirstEnumeration(); i.hasMoreElements();) {
+       Object child = i.nextElement();
+       if (child instanceof GroupTreeNode group)
+         groupNodes.remove(group.getUid(), group);
+       else if (child instanceof UserTreeNode user)
+         userNodes.remove(user.getUid(), user);
      }
    }
  
- }
\ No newline at end of file
+   /**
+    * Applies one change of the group hierarchy to the tree view, touching only the
+    * nodes involved.
+    *
+    * @param change The change reported by UserGroup.
+    */
+   private void applyTreeChange(UserGroup.TreeChange change) {
+     if (treeModel == null)
+       return;
+     String uid = change.getMember().getUid();
+     boolean group = change.getMember().getChildType() == UserMember.CHILD_TYPE.GROUP;
+     DefaultMutableTreeNode node = group ? groupNodes.get(uid) : userNodes.get(uid);
+     if (node != null && node.getParent() != null)
+       treeModel.removeNodeFromParent(node);
+     // Subtree counts shown on the ancestors have changed
+     jtree.repaint();
+ 
+     GroupTreeNode parent = change.getKind() == UserGroup.TreeChange.Kind.DELETED ? null : groupNodes.get(change.getNewParent());
+     if (parent == null || !parent.isLoaded() || parent.getMoreNode() != null) {
+       // Not shown: the member is appended to its group, so it comes with a later page
+       if (node != null)
+         forget(node);
+       if (parent != null && parent.getMoreNode() != null)
+         treeModel.nodeChanged(parent.getMoreNode());
+       return;
+     }
+     if (node == null)
+       node = createNode(change.getMember());
+     treeModel.insertNodeInto(node, parent, parent.getChildCount());
+     jtree.expandPath(new TreePath(parent.getPath()));
+   }
+ }
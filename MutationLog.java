@@ -0,0 +1,282 @@
+/**
+ * Compact binary log of the mutations applied to the registries, used for replication.
+ *
+ * The registry insert methods (User.putUser, User.linkFollowing, UserGroup.putUserGroup,
+ * UserGroup.attachUser, UserGroup.attachGroup and Message.deliver), User.unlinkFollowing
+ * and the hierarchy changes (UserGroup.relocateUser, relocateGroup and removeGroup)
+ * report every change here. When at least one listener is registered (e.g. a ReplicationLeader), each change
+ * is encoded as one record and handed to the listeners together with its log sequence
+ * number (LSN). When nobody listens, recording costs a single volatile read.
+ *
+ * Record layout: byte type, then the fields, with strings written as a varint byte
+ * length followed by UTF-8 bytes and doubles and longs as 8 big-endian bytes.
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class MutationLog {
+
+  // Record types
+  public static final byte ADD_USER = 1;     // uid, name
+  public static final byte ADD_GROUP = 2;    // uid, name
+  public static final byte ATTACH_GROUP = 3; // parent uid, child uid
+  public static final byte ATTACH_USER = 4;  // group uid, user uid
+  public static final byte FOLLOW = 5;       // follower uid, followee uid
+  public static final byte POST = 6;         // message uid, from uid, text, positivity, creation time, reply-to uid
+  public static final byte MOVE_USER = 7;    // group uid, user uid
+  public static final byte MOVE_GROUP = 8;   // parent uid, group uid
+  public static final byte DELETE_GROUP = 9; // group uid
+  public static final byte UNFOLLOW = 10;    // follower uid, followee uid
+
+  /**
+   * Receives every encoded record in LSN order.
+   */
+  public interface Listener {
+    void onRecord(long lsn, byte[] record);
+  }
+
+  private static final List < Listener > listeners = new CopyOnWriteArrayList < > ();
+  private static volatile boolean enabled;
+  private static long lsn;
+
+  public static synchronized void addListener(Listener listener) {
+    listeners.add(listener);
+    enabled = true;
+  }
+
+  public static synchronized void removeListener(Listener listener) {
+    listeners.remove(listener);
+    enabled = !listeners.isEmpty();
+  }
+
+  /**
+   * @return The LSN of the last record emitted.
+   */
+  public static synchronized long lastLsn() {
+    return lsn;
+  }
+
+  // --- Recording, called by the registries ---
+
+  static void addUser(User user) {
+    if (enabled)
+      emit(new Writer(ADD_USER).string(user.getUid()).string(user.getName()));
+  }
+
+  static void addGroup(UserGroup group) {
+    if (enabled)
+      emit(new Writer(ADD_GROUP).string(group.getUid()).string(group.getName()));
+  }
+
+  static void attachGroup(UserGroup parent, UserGroup child) {
+    if (enabled)
+      emit(new Writer(ATTACH_GROUP).string(parent.getUid()).string(child.getUid()));
+  }
+
+  static void attachUser(UserGroup group, User user) {
+    if (enabled)
+      emit(new Writer(ATTACH_USER).string(group.getUid()).string(user.getUid()));
+  }
+
+  static void moveUser(UserGroup group, User user) {
+    if (enabled)
+      emit(new Writer(MOVE_USER).string(group.getUid()).string(user.getUid()));
+  }
+
+  static void moveGroup(UserGroup parent, UserGroup group) {
+    if (enabled)
+      emit(new Writer(MOVE_GROUP).string(parent.getUid()).string(group.getUid()));
+  }
+
+  static void deleteGroup(UserGroup group) {
+    if (enabled)
+      emit(new Writer(DELETE_GROUP).string(group.getUid()));
+  }
+
+  static void follow(User follower, User followee) {
+    if (enabled)
+      emit(new Writer(FOLLOW).string(follower.getUid()).string(followee.getUid()));
+  }
+
+  static void unfollow(User follower, User followee) {
+    if (enabled)
+      emit(new Writer(UNFOLLOW).string(follower.getUid()).string(followee.getUid()));
+  }
+
+  static void post(Message message) {
+    if (enabled) {
+      Double positivity = message.getPositivePercentage();
+      emit(new Writer(POST).string(message.getUid()).string(message.getFrom()).string(message.getText())
+        .number(positivity == null ? Double.NaN : positivity).number(message.getCreationTime())
+        .string(message.getReplyTo()));
+    }
+  }
+
+  private static synchronized void emit(Writer writer) {
+    byte[] record = writer.toBytes();
+    lsn++;
+    for (Listener i: listeners)
+      i.onRecord(lsn, record);
+  }
+
+  // --- Applying, used by replicas ---
+
+  /**
+   * Applies one record to the local registries through the same insert methods the
+   * leader used, without notifying observers. Callers notify once per batch.
+   *
+   * @param record The encoded record.
+   * @throws IllegalArgumentException if the record is malformed or of an unknown type.
+   */
+  public static void apply(byte[] record) {
+    ByteBuffer in = ByteBuffer.wrap(record);
+    byte type = in.get();
+    switch (type) {
+      case ADD_USER: {
+        User user = new User(readString(in));
+        user.setName(readString(in));
+        if (!User.usersMap.containsKey(user.getUid()))
+          User.putUser(user);
+        break;
+      }
+      case ADD_GROUP: {
+        UserGroup group = new UserGroup(readString(in));
+        group.setName(readString(in));
+        if (!UserGroup.userGroupMap.containsKey(group.getUid()))
+          UserGroup.putUserGroup(group);
+        break;
+      }
+      case ATTACH_GROUP: {
+        UserGroup parent = UserGroup.userGroupMap.get(readString(in));
+        UserGroup child = UserGroup.userGroupMap.get(readString(in));
+        if (parent != null && child != null)
+          parent.attachGroup(child);
+        break;
+      }
+      case ATTACH_USER: {
+        UserGroup group = UserGroup.userGroupMap.get(readString(in));
+        User user = User.usersMap.get(readString(in));
+        if (group != null && user != null)
+          group.attachUser(user);
+        break;
+      }
+      case FOLLOW: {
+        User follower = User.usersMap.get(readString(in));
+        User followee = User.usersMap.get(readString(in));
+        if (follower != null && followee != null && follower.linkFollowing(followee))
+          TimelineReader.invalidate(follower.getUid());
+        break;
+      }
+      case POST: {
+        Message message = new Message(readString(in));
+        message.setFrom(readString(in));
+        message.setText(readString(in));
+        double positivity = in.getDouble();
+        message.setPositivePercentage(Double.isNaN(positivity) ? null : positivity);
+        if (in.remaining() >= 8)
+          message.setCreationTime(in.getLong());
+        if (in.hasRemaining()) {
+          String replyTo = readString(in);
+          message.setReplyTo(replyTo.isEmpty() ? null : replyTo);
+        }
+        User sender = User.usersMap.get(message.getFrom());
+        if (sender != null && !Message.messageMap.containsKey(message.getUid()))
+          Message.deliver(message, sender.getFollowers());
+        break;
+      }
+      case MOVE_USER: {
+        UserGroup group = UserGroup.userGroupMap.get(readString(in));
+        User user = User.usersMap.get(readString(in));
+        if (group != null && user != null)
+          group.relocateUser(user);
+        break;
+      }
+      case MOVE_GROUP: {
+        UserGroup parent = UserGroup.userGroupMap.get(readString(in));
+        UserGroup group = UserGroup.userGroupMap.get(readString(in));
+        if (parent != null && group != null)
+          parent.relocateGroup(group);
+        break;
+      }
+      case DELETE_GROUP: {
+        UserGroup group = UserGroup.userGroupMap.get(readString(in));
+        if (group != null && group.getParent() != null)
+          UserGroup.removeGroup(group);
+        break;
+      }
+      case UNFOLLOW: {
+        User follower = User.usersMap.get(readString(in));
+        User followee = User.usersMap.get(readString(in));
+        if (follower != null && followee != null && follower.unlinkFollowing(followee))
+          TimelineReader.invalidate(follower.getUid());
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown mutation record type " + type);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = 0, shift = 0;
+    byte b;
+    do {
+      b = in.get();
+      length |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  /**
+   * Growable encoder for one record.
+   */
+  private static class Writer {
+    private byte[] bytes = new byte[64];
+    private int size;
+
+    Writer(byte type) {
+      bytes[size++] = type;
+    }
+
+    Writer string(String value) {
+      byte[] utf = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+      ensure(5 + utf.length);
+      int length = utf.length;
+      while ((length & ~0x7f) != 0) {
+        bytes[size++] = (byte) ((length & 0x7f) | 0x80);
+        length >>>= 7;
+      }
+      bytes[size++] = (byte) length;
+      System.arraycopy(utf, 0, bytes, size, utf.length);
+      size += utf.length;
+      return this;
+    }
+
+    Writer number(double value) {
+      ensure(8);
+      ByteBuffer.wrap(bytes, size, 8).putDouble(value);
+      size += 8;
+      return this;
+    }
+
+    Writer number(long value) {
+      ensure(8);
+      ByteBuffer.wrap(bytes, size, 8).putLong(value);
+      size += 8;
+      return this;
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensure(int extra) {
+      if (size + extra > bytes.length)
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Notifies observer lists on behalf of the model classes, timing each dispatch for the
+ * TraceRecorder and as an EngineEvents.ObserverDispatch JFR event, since an observer
+ * that does too much work (such as a view rebuild) slows down the operation that
+ * triggered it.
+ */
+import java.util.List;
+import java.util.function.Consumer;
+
+public class Observers {
+
+  /**
+   * Runs every observer in the list.
+   *
+   * @param topic     The kind of change, for example "messages".
+   * @param observers The observers to run.
+   */
+  public static void dispatch(String topic, List < Runnable > observers) {
+    EngineEvents.ObserverDispatch event = new EngineEvents.ObserverDispatch();
+    event.begin();
+    long start = TraceRecorder.shared.start();
+    for (Runnable r: observers)
+      r.run();
+    finish(event, start, topic, observers.size());
+  }
+
+  /**
+   * Passes a change to every observer in the list.
+   *
+   * @param topic     The kind of change.
+   * @param observers The observers to call.
+   * @param change    The change.
+   */
+  public static < T > void dispatch(String topic, List < Consumer < T > > observers, T change) {
+    EngineEvents.ObserverDispatch event = new EngineEvents.ObserverDispatch();
+    event.begin();
+    long start = TraceRecorder.shared.start();
+    for (Consumer < T > i: observers)
+      i.accept(change);
+    finish(event, start, topic, observers.size());
+  }
+
+  private static void finish(EngineEvents.ObserverDispatch event, long start, String topic, int observers) {
+    TraceRecorder.shared.record("dispatch", topic, observers, start);
+    if (event.shouldCommit()) {
+      event.topic = topic;
+      event.observers = observers;
+      event.commit();
+    }
+  }
+}
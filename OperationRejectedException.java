@@ -0,0 +1,17 @@
+/**
+ * Thrown by TwitterOperations when a request is refused by a RateLimiter or by the
+ * AdmissionController. The caller may retry after getRetryAfterMillis.
+ */
+public class OperationRejectedException extends IllegalStateException {
+
+  private final long retryAfterMillis;
+
+  public OperationRejectedException(String message, long retryAfterMillis) {
+    super(message);
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
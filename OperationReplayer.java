@@ -0,0 +1,208 @@
+/**
+ * Replays an OperationTrace recorded from the windows, headless, and reports the
+ * throughput and the latency of each kind of operation. Given a baseline file, it
+ * compares the run against it and exits with status 1 when the run is slower, so that
+ * a recorded session can gate changes to the hot paths.
+ *
+ * Operations run one at a time on one thread, in recorded order, like UiCommands runs
+ * them. At speed 1 each one is issued at its recorded time, at speed N N times sooner,
+ * and at "max" as soon as the previous one completes. Latency is the service time of
+ * the TwitterOperations call; an operation issued late because the previous one ran
+ * past its slot counts as lag. Throughput is only compared at "max", since otherwise
+ * the trace sets it.
+ *
+ * A run is slower than the baseline when, for an operation with at least MIN_SAMPLES
+ * samples in both, the median or 99th percentile latency grew by more than the
+ * tolerance (-Dminitwitter.replay.tolerance, default 0.25) plus a small fixed slack,
+ * or when the throughput fell by more than the tolerance. Runs are only compared with
+ * a baseline of the same trace at the same speed. If the baseline file does not exist,
+ * the run is written to it instead.
+ *
+ * The trace should be replayed against the state it was recorded on, e.g. the snapshot
+ * the app was started with; operations that fail (say, on a user that does not exist)
+ * are counted as errors and the replay goes on. Rate limits and admission control are
+ * off unless set with their usual properties.
+ *
+ * Usage: java OperationReplayer trace [speed|max] [baseline] [snapshot]
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class OperationReplayer {
+
+  public static final int MIN_SAMPLES = 20;
+  // Allowed on top of the tolerance, for timer and JIT noise on sub-millisecond calls
+  // and for a GC pause landing in the tail
+  public static final double P50_SLACK_MILLIS = 0.01;
+  public static final double P99_SLACK_MILLIS = 1;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: java OperationReplayer trace [speed|max] [baseline] [snapshot]");
+      System.exit(2);
+    }
+    double speed = args.length > 1 && !args[1].equals("max") ? Double.parseDouble(args[1]) : 0;
+    Path baseline = args.length > 2 ? Paths.get(args[2]) : null;
+    double tolerance = Double.parseDouble(System.getProperty("minitwitter.replay.tolerance", "0.25"));
+
+    // Before TwitterOperations reads them
+    for (String i: new String[] { "minitwitter.rate.posts", "minitwitter.rate.follows", "minitwitter.admission.lagMillis" })
+      if (System.getProperty(i) == null)
+        System.setProperty(i, "0");
+
+    if (args.length > 3) {
+      long start = System.currentTimeMillis();
+      SnapshotStore.load(Paths.get(args[3]));
+      System.out.println("Loaded snapshot " + args[3] + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    List < OperationTrace.Operation > trace = OperationTrace.read(Paths.get(args[0]));
+    System.out.printf("Replaying %d operations at %s%n", trace.size(), speed > 0 ? speed + "x" : "max speed");
+
+    Properties run = replay(trace, speed);
+    print(run);
+
+    if (baseline == null)
+      return;
+    if (!Files.exists(baseline)) {
+      try (Writer out = Files.newBufferedWriter(baseline)) {
+        run.store(out, "OperationReplayer baseline for " + args[0]);
+      }
+      System.out.println("Wrote baseline " + baseline);
+      return;
+    }
+    Properties base = new Properties();
+    try (Reader in = Files.newBufferedReader(baseline)) {
+      base.load(in);
+    }
+    List < String > regressions = compare(base, run, tolerance);
+    if (regressions.isEmpty()) {
+      System.out.println("No regression against " + baseline + " (tolerance " + tolerance + ")");
+      return;
+    }
+    for (String i: regressions)
+      System.out.println("REGRESSION " + i);
+    System.exit(1);
+  }
+
+  /**
+   * Runs the operations and collects the results as properties: speed, operations,
+   * errors, elapsedMillis, throughput and lagMillis, and for each operation type and
+   * for "all" its count, errors, p50, p99 and max in milliseconds.
+   */
+  static Properties replay(List < OperationTrace.Operation > trace, double speed) {
+    int types = OperationTrace.Type.values().length;
+    long[][] latencies = new long[types + 1][];
+    int[] counts = new int[types + 1];
+    int[] errors = new int[types + 1];
+    for (OperationTrace.Operation i: trace)
+      counts[i.getType().ordinal()]++;
+    for (int t = 0; t < types; t++)
+      latencies[t] = new long[counts[t]];
+    latencies[types] = new long[trace.size()];
+    Arrays.fill(counts, 0);
+
+    List < String > posted = new ArrayList < > ();
+    long maxLag = 0;
+    long start = System.nanoTime();
+    for (OperationTrace.Operation i: trace) {
+      long due = speed > 0 ? start + (long) (i.getOffsetNanos() / speed) : 0;
+      long now;
+      while (speed > 0 && (now = System.nanoTime()) < due)
+        LockSupport.parkNanos(due - now);
+      long issued = System.nanoTime();
+      if (speed > 0)
+        maxLag = Math.max(maxLag, issued - due);
+      int t = i.getType().ordinal();
+      try {
+        i.apply(posted);
+      } catch (RuntimeException e) {
+        errors[t]++;
+        errors[types]++;
+      }
+      long latency = System.nanoTime() - issued;
+      latencies[t][counts[t]++] = latency;
+      latencies[types][counts[types]++] = latency;
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Properties run = new Properties();
+    run.setProperty("speed", speed > 0 ? String.valueOf(speed) : "max");
+    run.setProperty("operations", String.valueOf(trace.size()));
+    run.setProperty("elapsedMillis", format(elapsed / 1e6));
+    run.setProperty("throughput", format(trace.size() / (elapsed / 1e9)));
+    run.setProperty("lagMillis", format(maxLag / 1e6));
+    for (int t = 0; t <= types; t++) {
+      String name = t < types ? OperationTrace.Type.values()[t].name() : "all";
+      if (counts[t] == 0)
+        continue;
+      long[] sorted = latencies[t];
+      Arrays.sort(sorted);
+      run.setProperty(name + ".count", String.valueOf(counts[t]));
+      run.setProperty(name + ".errors", String.valueOf(errors[t]));
+      run.setProperty(name + ".p50", format(percentile(sorted, 0.50)));
+      run.setProperty(name + ".p99", format(percentile(sorted, 0.99)));
+      run.setProperty(name + ".max", format(percentile(sorted, 1.0)));
+    }
+    return run;
+  }
+
+  /**
+   * @return A line for each way the run is slower than the baseline.
+   */
+  static List < String > compare(Properties base, Properties run, double tolerance) {
+    List < String > regressions = new ArrayList < > ();
+    if (!base.getProperty("operations", "").equals(run.getProperty("operations")))
+      regressions.add("baseline has " + base.getProperty("operations") + " operations, this run " + run.getProperty("operations"));
+    if (!base.getProperty("speed", "").equals(run.getProperty("speed")))
+      regressions.add("baseline ran at speed " + base.getProperty("speed") + ", this run at " + run.getProperty("speed"));
+    if (!regressions.isEmpty())
+      return regressions;
+    if (run.getProperty("speed").equals("max") && base.getProperty("speed", "").equals("max")) {
+      double before = Double.parseDouble(base.getProperty("throughput")), after = Double.parseDouble(run.getProperty("throughput"));
+      if (after < before * (1 - tolerance))
+        regressions.add(String.format("throughput %.0f/s, baseline %.0f/s", after, before));
+    }
+    for (String name: names()) {
+      if (Integer.parseInt(base.getProperty(name + ".count", "0")) < MIN_SAMPLES ||
+        Integer.parseInt(run.getProperty(name + ".count", "0")) < MIN_SAMPLES)
+        continue;
+      for (String p: new String[] { "p50", "p99" }) {
+        double before = Double.parseDouble(base.getProperty(name + "." + p)), after = Double.parseDouble(run.getProperty(name + "." + p));
+        if (after > before * (1 + tolerance) + (p.equals("p50") ? P50_SLACK_MILLIS : P99_SLACK_MILLIS))
+          regressions.add(String.format("%s %s %.3f ms, baseline %.3f ms", name, p, after, before));
+      }
+    }
+    return regressions;
+  }
+
+  private static void print(Properties run) {
+    System.out.printf("%s operations in %s ms, %s/s, %s errors, max lag %s ms%n", run.getProperty("operations"),
+      run.getProperty("elapsedMillis"), run.getProperty("throughput"), run.getProperty("all.errors", "0"), run.getProperty("lagMillis"));
+    System.out.printf("%-14s %8s %7s %10s %10s %10s%n", "operation", "count", "errors", "p50 ms", "p99 ms", "max ms");
+    for (String name: names())
+      if (run.getProperty(name + ".count") != null)
+        System.out.printf("%-14s %8s %7s %10s %10s %10s%n", name, run.getProperty(name + ".count"), run.getProperty(name + ".errors"),
+          run.getProperty(name + ".p50"), run.getProperty(name + ".p99"), run.getProperty(name + ".max"));
+  }
+
+  private static List < String > names() {
+    List < String > names = new ArrayList < > ();
+    for (OperationTrace.Type i: OperationTrace.Type.values())
+      names.add(i.name());
+    names.add("all");
+    return names;
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0)
+      return 0;
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.4f", value);
+  }
+}
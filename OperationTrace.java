@@ -0,0 +1,327 @@
+/**
+ * Compact binary trace of the engine operations issued from the windows, for replaying
+ * real sessions against later builds (see OperationReplayer).
+ *
+ * Every command the windows run through UiCommands (creating users and groups, follows
+ * and unfollows, posts, replies and hierarchy changes) is written here while a recording is
+ * active, with the time it was issued. Records are written by the command thread in
+ * the order the commands run, and flushed one by one, since they arrive at human speed.
+ * When nothing records, a command costs a single volatile read.
+ *
+ * File layout (big-endian): int MAGIC, int VERSION, long start time in epoch
+ * milliseconds, then one record per operation: byte type, the nanoseconds since the
+ * previous record as a varint, then the arguments, each as a varint byte length
+ * followed by UTF-8 bytes. A trace cut short by a crash reads up to its last whole
+ * record.
+ *
+ * Replayed posts get new message IDs, so a reply to a message posted during the
+ * recording names its parent as "#n", the n-th post or reply of the trace (counting
+ * from 0, failed ones included), and the replay resolves it to the message that post
+ * created. Replies to older messages keep their IDs.
+ *
+ * A recording is started with -Dminitwitter.record=path (see MiniTwitterDriver).
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class OperationTrace {
+
+  public static final int MAGIC = 0x4D544F54; // "MTOT"
+  public static final int VERSION = 1;
+
+  /**
+   * The recorded operations, with the arguments each takes.
+   */
+  public enum Type {
+    CREATE_USER(2),  // uid, group uid
+    CREATE_GROUP(2), // uid, parent uid
+    FOLLOW(2),       // follower uid, followee uid
+    UNFOLLOW(2),     // follower uid, followee uid
+    POST(2),         // from uid, text
+    MOVE_USER(2),    // uid, group uid
+    MOVE_GROUP(2),   // uid, parent uid
+    DELETE_GROUP(1), // uid
+    REPLY(3);        // from uid, parent message ID or #n, text
+
+    private final int arguments;
+
+    Type(int arguments) {
+      this.arguments = arguments;
+    }
+  }
+
+  /**
+   * One recorded operation.
+   */
+  public static final class Operation {
+    private final Type type;
+    private final long offsetNanos;
+    private final String[] arguments;
+
+    Operation(Type type, long offsetNanos, String[] arguments) {
+      this.type = type;
+      this.offsetNanos = offsetNanos;
+      this.arguments = arguments;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    /**
+     * @return The time the operation was issued, in nanoseconds after the recording started.
+     */
+    public long getOffsetNanos() {
+      return offsetNanos;
+    }
+
+    public String getArgument(int index) {
+      return arguments[index];
+    }
+
+    /**
+     * Runs the operation through TwitterOperations, as UiCommands did.
+     *
+     * @return The result of the operation.
+     */
+    public Object apply() {
+      return apply(new ArrayList < > ());
+    }
+
+    /**
+     * Runs the operation as part of a replay, resolving "#n" parents.
+     *
+     * @param posted The IDs of the messages created by the posts and replies replayed so
+     *               far, in order, with null for those that failed; a post or reply
+     *               adds its own.
+     * @return The result of the operation.
+     */
+    public Object apply(List < String > posted) {
+      if (type != Type.POST && type != Type.REPLY)
+        return run(null);
+      Message message = null;
+      try {
+        String parent = null;
+        if (type == Type.REPLY) {
+          parent = arguments[1];
+          if (parent.startsWith("#")) {
+            int n = Integer.parseInt(parent.substring(1));
+            parent = n < posted.size() ? posted.get(n) : null;
+          }
+        }
+        message = (Message) run(parent);
+        return message;
+      } finally {
+        posted.add(message == null ? null : message.getUid());
+      }
+    }
+
+    private Object run(String parent) {
+      switch (type) {
+        case CREATE_USER:
+          return TwitterOperations.createUser(arguments[0], arguments[1]);
+        case CREATE_GROUP:
+          return TwitterOperations.createGroup(arguments[0], arguments[1]);
+        case FOLLOW:
+          return TwitterOperations.follow(arguments[0], arguments[1]);
+        case UNFOLLOW:
+          return TwitterOperations.unfollow(arguments[0], arguments[1]);
+        case POST:
+          return TwitterOperations.post(arguments[0], arguments[1]);
+        case MOVE_USER:
+          return TwitterOperations.moveUser(arguments[0], arguments[1]);
+        case MOVE_GROUP:
+          return TwitterOperations.moveGroup(arguments[0], arguments[1]);
+        case DELETE_GROUP:
+          return TwitterOperations.deleteGroup(arguments[0]);
+        case REPLY:
+          return TwitterOperations.reply(arguments[0], parent, arguments[2]);
+        default:
+          throw new IllegalStateException("Unknown operation " + type);
+      }
+    }
+  }
+
+  // --- Recording ---
+
+  private static volatile OperationTrace recording;
+
+  private final Path path;
+  private final DataOutputStream out;
+  private long lastNanos;
+  private long count;
+  // The number of posts and replies recorded, and the one whose message is awaited
+  private int posts;
+  private int pendingPost = -1;
+  // Message IDs created by the recorded posts and replies, to their number
+  private final HashMap < String, Integer > postNumbers = new HashMap < > ();
+
+  private OperationTrace(Path path) throws IOException {
+    this.path = path;
+    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(System.currentTimeMillis());
+    out.flush();
+    lastNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts recording to the given file, replacing it, and stops any recording in
+   * progress.
+   */
+  public static synchronized void startRecording(Path path) throws IOException {
+    stopRecording();
+    recording = new OperationTrace(path);
+  }
+
+  /**
+   * Stops the recording in progress, if any, and closes its file.
+   *
+   * @return The number of operations recorded, or 0 if nothing was recording.
+   */
+  public static synchronized long stopRecording() {
+    return recording == null ? 0 : stop(recording);
+  }
+
+  private static synchronized long stop(OperationTrace trace) {
+    if (recording != trace)
+      return 0;
+    recording = null;
+    synchronized (trace) {
+      try {
+        trace.out.close();
+      } catch (IOException e) {
+        System.err.println("Could not close operation trace " + trace.path + ": " + e.getMessage());
+      }
+      return trace.count;
+    }
+  }
+
+  public static boolean isRecording() {
+    return recording != null;
+  }
+
+  /**
+   * Records one operation if a recording is active. A write error stops the recording.
+   *
+   * @param issuedNanos The System.nanoTime at which the operation was issued.
+   * @param type        The operation.
+   * @param arguments   Its arguments, as listed in Type.
+   */
+  static void record(long issuedNanos, Type type, String... arguments) {
+    OperationTrace trace = recording;
+    if (trace == null)
+      return;
+    synchronized (trace) {
+      if (recording != trace)
+        return;
+      if (type == Type.REPLY) {
+        Integer n = trace.postNumbers.get(arguments[1]);
+        if (n != null)
+          arguments = new String[] { arguments[0], "#" + n, arguments[2] };
+      }
+      if (type == Type.POST || type == Type.REPLY)
+        trace.pendingPost = trace.posts++;
+      try {
+        trace.out.writeByte(type.ordinal());
+        writeVarLong(trace.out, Math.max(0, issuedNanos - trace.lastNanos));
+        trace.lastNanos = Math.max(trace.lastNanos, issuedNanos);
+        for (String i: arguments) {
+          byte[] utf = (i == null ? "" : i).getBytes(StandardCharsets.UTF_8);
+          writeVarLong(trace.out, utf.length);
+          trace.out.write(utf);
+        }
+        trace.out.flush();
+        trace.count++;
+        return;
+      } catch (IOException e) {
+        System.err.println("Could not write operation trace " + trace.path + ", recording stopped: " + e.getMessage());
+      }
+    }
+    // Outside the trace's monitor, which stop takes after the class's
+    stop(trace);
+  }
+
+  /**
+   * Reports the message created by the post or reply recorded last, so that later
+   * replies to it can be recorded as "#n".
+   *
+   * @return The message.
+   */
+  static Message posted(Message message) {
+    OperationTrace trace = recording;
+    if (trace == null)
+      return message;
+    synchronized (trace) {
+      if (trace.pendingPost >= 0)
+        trace.postNumbers.put(message.getUid(), trace.pendingPost);
+      trace.pendingPost = -1;
+    }
+    return message;
+  }
+
+  // --- Reading ---
+
+  /**
+   * Reads a whole trace.
+   *
+   * @throws IOException if the file cannot be read or is not an operation trace.
+   */
+  public static List < Operation > read(Path path) throws IOException {
+    List < Operation > operations = new ArrayList < > ();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not an operation trace: " + path);
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported operation trace version " + version);
+      in.readLong();
+      Type[] types = Type.values();
+      long offset = 0;
+      while (true) {
+        int type = in.read();
+        if (type < 0)
+          break;
+        if (type >= types.length)
+          throw new IOException("Unknown operation type " + type + " in " + path);
+        try {
+          offset += readVarLong(in);
+          String[] arguments = new String[types[type].arguments];
+          for (int i = 0; i < arguments.length; i++) {
+            byte[] utf = new byte[(int) readVarLong(in)];
+            in.readFully(utf);
+            arguments[i] = new String(utf, StandardCharsets.UTF_8);
+          }
+          operations.add(new Operation(types[type], offset, arguments));
+        } catch (EOFException e) {
+          // The last record was cut short
+          break;
+        }
+      }
+    }
+    return operations;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.readByte();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Table model that loads its rows a page at a time as the table is scrolled, for
+ * registries too large to copy into a table up front.
+ *
+ * Only the rows fetched so far are held. While more remain, one extra row reads
+ * "Loading...", and painting it, or a row close to it, fetches the next page, so
+ * nothing is fetched beyond what has been scrolled into view. Pages are
+ * fetched and turned into rows on a background thread and appended on the Event
+ * Dispatch Thread, so neither opening a browser nor scrolling one waits for the engine.
+ *
+ * query starts over with a new fetcher; pages of an earlier query still in flight are
+ * dropped when they arrive.
+ */
+import javax.swing.table.AbstractTableModel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+public class PagedTableModel extends AbstractTableModel {
+
+  public static final int PAGE_SIZE = 200;
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "browser-pages");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Reads one page of IDs.
+   */
+  public interface Fetcher {
+    RegistryBrowser.Page fetch(String cursor, int limit);
+  }
+
+  private final String[] columns;
+  // Turns an ID into a row, or null to leave it out
+  private final Function < String, Object[] > rowMapper;
+
+  private final List < Object[] > rows = new ArrayList < > ();
+  private Fetcher fetcher;
+  private String cursor;
+  private boolean exhausted = true;
+  private boolean loading;
+  private String error;
+  private int generation;
+
+  public PagedTableModel(String[] columns, Function < String, Object[] > rowMapper) {
+    this.columns = columns;
+    this.rowMapper = rowMapper;
+  }
+
+  /**
+   * Drops the rows and starts reading from the first page of fetcher.
+   */
+  public void query(Fetcher fetcher) {
+    this.fetcher = fetcher;
+    generation++;
+    rows.clear();
+    cursor = null;
+    exhausted = false;
+    loading = false;
+    error = null;
+    fireTableDataChanged();
+    loadMore();
+  }
+
+  /**
+   * @return The number of rows fetched so far.
+   */
+  public int getLoadedRows() {
+    return rows.size();
+  }
+
+  /**
+   * @return Whether every page has been fetched.
+   */
+  public boolean isExhausted() {
+    return exhausted;
+  }
+
+  @Override
+  public int getRowCount() {
+    return rows.size() + (exhausted ? 0 : 1);
+  }
+
+  @Override
+  public int getColumnCount() {
+    return columns.length;
+  }
+
+  @Override
+  public String getColumnName(int column) {
+    return columns[column];
+  }
+
+  @Override
+  public Object getValueAt(int row, int column) {
+    if (row >= rows.size() - PAGE_SIZE / 2)
+      loadMore();
+    if (row < rows.size())
+      return rows.get(row)[column];
+    return column > 0 ? "" : error != null ? error : "Loading...";
+  }
+
+  private void loadMore() {
+    if (loading || exhausted || error != null)
+      return;
+    loading = true;
+    int requested = generation;
+    Fetcher pages = fetcher;
+    String from = cursor;
+    CompletableFuture.supplyAsync(() -> {
+      RegistryBrowser.Page page = pages.fetch(from, PAGE_SIZE);
+      List < Object[] > mapped = new ArrayList < > (page.getIds().size());
+      for (String i: page.getIds()) {
+        Object[] row = rowMapper.apply(i);
+        if (row != null)
+          mapped.add(row);
+      }
+      return new AbstractMap.SimpleImmutableEntry < > (page.getNextCursor(), mapped);
+    }, executor).whenCompleteAsync((result, failure) -> {
+      if (requested != generation)
+        return;
+      loading = false;
+      if (failure != null) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        error = "Error: " + cause.getMessage();
+        fireTableRowsUpdated(rows.size(), rows.size());
+        return;
+      }
+      int first = rows.size();
+      rows.addAll(result.getValue());
+      cursor = result.getKey();
+      exhausted = cursor == null;
+      if (rows.size() > first)
+        fireTableRowsInserted(first, rows.size() - 1);
+      if (exhausted)
+        fireTableRowsDeleted(rows.size(), rows.size());
+      else if (rows.size() == first)
+        // A filtered page without matches: repainting the "Loading..." row fetches the
+        // next one if the row is still in sight
+        fireTableRowsUpdated(rows.size(), rows.size());
+    }, UiCommands.EDT);
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Running positivity statistics over all messages, so the average does not have to be
+ * recomputed by visiting every message.
+ *
+ * The totals live in one immutable State behind an AtomicReference and are updated with
+ * compare-and-set, so posting never blocks on a reader or on a backfill. While a
+ * SentimentEngine backfill is re-scoring the history, messages scored with the new
+ * lexicon are also added to a pending total; when the backfill completes, the totals are
+ * replaced in one step by the backfill's totals plus the pending ones.
+ */
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PositivityStats {
+
+  private static final class State {
+    final double sum;
+    final long count;
+    // Scores recorded since the running backfill started, or 0 when none is running
+    final double pendingSum;
+    final long pendingCount;
+    final boolean backfilling;
+
+    State(double sum, long count, double pendingSum, long pendingCount, boolean backfilling) {
+      this.sum = sum;
+      this.count = count;
+      this.pendingSum = pendingSum;
+      this.pendingCount = pendingCount;
+      this.backfilling = backfilling;
+    }
+  }
+
+  private static final AtomicReference < State > state = new AtomicReference < > (new State(0, 0, 0, 0, false));
+
+  /**
+   * Adds the score of a newly delivered message.
+   *
+   * @param score The message's positivity, or null if it has none.
+   */
+  public static void record(Double score) {
+    if (score == null)
+      return;
+    State s, next;
+    do {
+      s = state.get();
+      next = s.backfilling ?
+        new State(s.sum + score, s.count + 1, s.pendingSum + score, s.pendingCount + 1, true) :
+        new State(s.sum + score, s.count + 1, 0, 0, false);
+    } while (!state.compareAndSet(s, next));
+  }
+
+  /**
+   * @return The average positivity of all messages, or 0 if there are none.
+   */
+  public static double average() {
+    State s = state.get();
+    return s.count == 0 ? 0 : s.sum / s.count;
+  }
+
+  /**
+   * @return The number of messages with a positivity score.
+   */
+  public static long count() {
+    return state.get().count;
+  }
+
+  /**
+   * @return true while a backfill is re-scoring the history.
+   */
+  public static boolean isBackfilling() {
+    return state.get().backfilling;
+  }
+
+  /**
+   * Starts tracking the scores recorded from now on separately. Called by SentimentEngine
+   * under the TwitterOperations lock at the moment the lexicon is switched.
+   */
+  static void beginBackfill() {
+    State s;
+    do {
+      s = state.get();
+    } while (!state.compareAndSet(s, new State(s.sum, s.count, 0, 0, true)));
+  }
+
+  /**
+   * Replaces the totals with the re-scored history plus everything recorded since the
+   * backfill started.
+   *
+   * @param sum   The sum of the re-scored positivity of the history.
+   * @param count The number of re-scored messages.
+   */
+  static void completeBackfill(double sum, long count) {
+    State s;
+    do {
+      s = state.get();
+    } while (!state.compareAndSet(s, new State(sum + s.pendingSum, count + s.pendingCount, 0, 0, false)));
+  }
+
+  /**
+   * Recomputes the totals from Message.messageMap and the MessageArchive, e.g. after the
+   * registries were replaced by a snapshot. Callers must hold the TwitterOperations lock.
+   */
+  public static void rebuild() {
+    double sum = 0;
+    long count = 0;
+    for (Message i: Message.messageMap.values()) {
+      Double score = i.getPositivePercentage();
+      if (score != null) {
+        sum += score;
+        count++;
+      }
+    }
+    MessageArchive archive = MessageArchive.shared;
+    state.set(new State(sum + archive.getPositivitySum(), count + archive.getPositivityCount(), 0, 0, false));
+  }
+}
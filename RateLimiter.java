@@ -0,0 +1,120 @@
+/**
+ * Lock-free per-user rate limiter using the generic cell rate algorithm (GCRA), the
+ * token-bucket equivalent that needs a single timestamp per user instead of a token
+ * count and a refill time.
+ *
+ * Each user has a theoretical arrival time (TAT) in an AtomicLong. A request is allowed
+ * if pushing the TAT one emission interval (1 / rate) further keeps it within the burst
+ * allowance of now, and the new TAT is installed with compare-and-set. A check is one
+ * map lookup, one System.nanoTime call and usually one CAS.
+ *
+ * TwitterOperations only asks about registered users, so the map holds at most one entry
+ * per user; the entries of users that are gone are dropped by forgetRemovedUsers.
+ *
+ * Limits come from -Dminitwitter.rate.<name>=<per second> and
+ * -Dminitwitter.rate.<name>.burst=<requests>; a rate of 0 or less disables the limiter.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateLimiter {
+
+  // Limiters used by TwitterOperations
+  public static final RateLimiter posts = RateLimiter.fromProperties("posts", 10, 20);
+  public static final RateLimiter follows = RateLimiter.fromProperties("follows", 20, 100);
+
+  private final String name;
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final ConcurrentHashMap < String, AtomicLong > arrivals = new ConcurrentHashMap < > ();
+
+  private final LongAdder allowed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * @param name      The name used in metrics.
+   * @param perSecond The sustained number of requests per second per user, or 0 for no limit.
+   * @param burst     The number of requests a user may make at once.
+   */
+  public RateLimiter(String name, double perSecond, int burst) {
+    this.name = name;
+    this.intervalNanos = perSecond > 0 ? (long) (1e9 / perSecond) : 0;
+    this.burstNanos = intervalNanos * Math.max(1, burst);
+  }
+
+  private static RateLimiter fromProperties(String name, double perSecond, int burst) {
+    String rate = System.getProperty("minitwitter.rate." + name);
+    return new RateLimiter(name,
+      rate != null ? Double.parseDouble(rate) : perSecond,
+      Integer.getInteger("minitwitter.rate." + name + ".burst", burst));
+  }
+
+  /**
+   * Takes one request from the user's allowance.
+   *
+   * @param uid The ID of the user making the request.
+   * @return 0 if the request is allowed, otherwise the number of milliseconds after which
+   *         it would be (at least 1).
+   */
+  public long tryAcquire(String uid) {
+    if (intervalNanos == 0)
+      return 0;
+    AtomicLong arrival = arrivals.get(uid);
+    if (arrival == null)
+      arrival = arrivals.computeIfAbsent(uid, k -> new AtomicLong(Long.MIN_VALUE));
+    long now = System.nanoTime();
+    while (true) {
+      long tat = arrival.get();
+      long next = (tat == Long.MIN_VALUE || tat - now < 0 ? now : tat) + intervalNanos;
+      long ahead = next - now - burstNanos;
+      if (ahead > 0) {
+        rejected.increment();
+        return Math.max(1, ahead / 1000000);
+      }
+      if (arrival.compareAndSet(tat, next)) {
+        allowed.increment();
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Forgets the state of a user, e.g. when they are removed.
+   */
+  public void forget(String uid) {
+    arrivals.remove(uid);
+  }
+
+  /**
+   * Forgets the state of every user no longer in User.usersMap, in the limiters used by
+   * TwitterOperations, e.g. after the registries were replaced by a snapshot.
+   */
+  public static void forgetRemovedUsers() {
+    for (RateLimiter i: new RateLimiter[] { posts, follows })
+      i.arrivals.keySet().removeIf(uid -> !User.usersMap.containsKey(uid));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getAllowed() {
+    return allowed.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * @return Configuration and counters, as JSON.
+   */
+  public String statsJson() {
+    return "{\"perSecond\":" + (intervalNanos == 0 ? 0 : 1e9 / intervalNanos) +
+      ",\"burst\":" + (intervalNanos == 0 ? 0 : burstNanos / intervalNanos) +
+      ",\"allowed\":" + getAllowed() +
+      ",\"rejected\":" + getRejected() +
+      ",\"trackedUsers\":" + arrivals.size() + "}";
+  }
+}
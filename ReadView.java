@@ -0,0 +1,98 @@
+/**
+ * An immutable, point-in-time view of the registries for readers such as the UI, the
+ * stats panel and the API, which may read it from any thread without taking the
+ * TwitterOperations lock.
+ *
+ * Every change to a registry publishes a new view through publish(), while still holding
+ * the lock, so a view is always consistent: its lists, message totals and average
+ * positivity were all taken between two operations. Getting the current view is one
+ * volatile read, and publishing one costs a few small objects, since the lists are
+ * O(1) snapshots of SnapshotLists.
+ *
+ * Message and user objects are looked up in the concurrent ID maps. A message listed by
+ * an old view may have been archived by retention since, in which case the lookup
+ * returns null.
+ */
+import java.util.List;
+
+public class ReadView {
+
+  private static volatile ReadView current = capture(0);
+
+  private final long version;
+  private final List < String > users;
+  private final List < String > groups;
+  private final List < String > messages;
+  private final long archivedMessages;
+  private final double averagePositivity;
+
+  private ReadView(long version, List < String > users, List < String > groups, List < String > messages, long archivedMessages, double averagePositivity) {
+    this.version = version;
+    this.users = users;
+    this.groups = groups;
+    this.messages = messages;
+    this.archivedMessages = archivedMessages;
+    this.averagePositivity = averagePositivity;
+  }
+
+  /**
+   * @return The latest published view.
+   */
+  public static ReadView current() {
+    return current;
+  }
+
+  /**
+   * Publishes a view of the registries as they are now. Callers must hold the
+   * TwitterOperations lock.
+   */
+  static void publish() {
+    current = capture(current.version + 1);
+  }
+
+  private static ReadView capture(long version) {
+    return new ReadView(version,
+      User.users.snapshot(),
+      UserGroup.userGroups.snapshot(),
+      Message.messages.snapshot(),
+      MessageArchive.shared.size(),
+      PositivityStats.average());
+  }
+
+  /**
+   * @return The number of views published before this one.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public List < String > getUsers() {
+    return users;
+  }
+
+  public List < String > getGroups() {
+    return groups;
+  }
+
+  /**
+   * @return The IDs of the messages in memory, oldest first.
+   */
+  public List < String > getMessages() {
+    return messages;
+  }
+
+  public long getArchivedMessages() {
+    return archivedMessages;
+  }
+
+  /**
+   * @return The number of messages ever posted, in memory or archived.
+   */
+  public long getTotalMessages() {
+    return messages.size() + archivedMessages;
+  }
+
+  public double getAveragePositivity() {
+    return averagePositivity;
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Pages through the user, group and message registries for the admin browsers, with
+ * the sorting and filtering done here rather than in the table, so that a page costs
+ * the same however large the registries are.
+ *
+ * In creation order, pages are read by position from a ReadView, which is O(1) per
+ * entry; a prefix filter skips the entries that do not match, looking at no more than
+ * SCAN_BUDGET of them per page, so a rare prefix yields short (even empty) pages rather
+ * than one long scan. In ID order, users and groups are read from their SortedIdIndex,
+ * where a prefix is a range and a page costs O(log n + limit).
+ *
+ * Cursors are opaque strings; callers pass back the nextCursor of a page to read the
+ * next one.
+ */
+import java.util.*;
+import java.util.function.Predicate;
+
+public class RegistryBrowser {
+
+  // Entries looked at per page when filtering in creation order
+  public static final int SCAN_BUDGET = 100000;
+
+  /**
+   * The orders a registry can be read in. Messages are only kept in creation order.
+   */
+  public enum Order {
+    NEWEST("Newest first"),
+    OLDEST("Oldest first"),
+    ID("ID, A to Z"),
+    ID_DESCENDING("ID, Z to A");
+
+    private final String label;
+
+    Order(String label) {
+      this.label = label;
+    }
+
+    public boolean isById() {
+      return this == ID || this == ID_DESCENDING;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
+  /**
+   * One page of IDs.
+   */
+  public static class Page {
+    private final List < String > ids;
+    private final String nextCursor;
+
+    public Page(List < String > ids, String nextCursor) {
+      this.ids = ids;
+      this.nextCursor = nextCursor;
+    }
+
+    public List < String > getIds() {
+      return ids;
+    }
+
+    /**
+     * @return The cursor of the next page, or null if there are no more entries.
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  /**
+   * @param view   The view to read in creation order.
+   * @param prefix Only users whose ID starts with this, or null or empty for all.
+   * @param order  The order to read in.
+   * @param cursor The nextCursor of the previous page, or null for the first page.
+   * @param limit  The maximum number of users.
+   * @return A page of user IDs.
+   */
+  public static Page users(ReadView view, String prefix, Order order, String cursor, int limit) {
+    if (order.isById())
+      return byId(SortedIdIndex.users, prefix, order, cursor, limit);
+    return byPosition(view.getUsers(), prefix == null || prefix.isEmpty() ? null : id -> id.startsWith(prefix), order, cursor, limit);
+  }
+
+  /**
+   * @param view   The view to read in creation order.
+   * @param prefix Only groups whose ID starts with this, or null or empty for all.
+   * @param order  The order to read in.
+   * @param cursor The nextCursor of the previous page, or null for the first page.
+   * @param limit  The maximum number of groups.
+   * @return A page of group IDs.
+   */
+  public static Page groups(ReadView view, String prefix, Order order, String cursor, int limit) {
+    if (order.isById())
+      return byId(SortedIdIndex.groups, prefix, order, cursor, limit);
+    return byPosition(view.getGroups(), prefix == null || prefix.isEmpty() ? null : id -> id.startsWith(prefix), order, cursor, limit);
+  }
+
+  /**
+   * Messages archived since the view was taken are left out.
+   *
+   * @param view       The view to read.
+   * @param fromPrefix Only messages whose sender's ID starts with this, or null or empty for all.
+   * @param order      NEWEST or OLDEST.
+   * @param cursor     The nextCursor of the previous page, or null for the first page.
+   * @param limit      The maximum number of messages.
+   * @return A page of message IDs.
+   */
+  public static Page messages(ReadView view, String fromPrefix, Order order, String cursor, int limit) {
+    if (order.isById())
+      throw new IllegalArgumentException("Messages can only be read in creation order");
+    boolean all = fromPrefix == null || fromPrefix.isEmpty();
+    return byPosition(view.getMessages(), id -> {
+      Message message = Message.messageMap.get(id);
+      return message != null && (all || message.getFrom() != null && message.getFrom().startsWith(fromPrefix));
+    }, order, cursor, limit);
+  }
+
+  private static Page byId(SortedIdIndex index, String prefix, Order order, String cursor, int limit) {
+    List < String > ids = index.page(prefix, order == Order.ID_DESCENDING, cursor, limit);
+    return new Page(ids, ids.size() < limit ? null : ids.get(ids.size() - 1));
+  }
+
+  private static Page byPosition(List < String > list, Predicate < String > filter, Order order, String cursor, int limit) {
+    boolean newest = order == Order.NEWEST;
+    // Position of the next entry to look at, counted from the end when newest first
+    int position = cursor == null ? 0 : Integer.parseInt(cursor);
+    int size = list.size();
+    List < String > ids = new ArrayList < > (Math.min(limit, 1024));
+    int scanned = 0;
+    while (position < size && ids.size() < limit && scanned < SCAN_BUDGET) {
+      String id = list.get(newest ? size - 1 - position : position);
+      position++;
+      scanned++;
+      if (filter == null || filter.test(id))
+        ids.add(id);
+    }
+    return new Page(ids, position < size ? Integer.toString(position) : null);
+  }
+}
@@ -0,0 +1,297 @@
+/**
+ * Follower side of leader/follower replication.
+ *
+ * Connects to a ReplicationLeader, installs the bootstrap snapshot, which is written to
+ * a file as it arrives rather than held in memory, and then applies the
+ * streamed MutationLog records in batches: every complete frame already received is
+ * applied under one TwitterOperations lock, and observers are notified once per batch
+ * rather than once per record. After each batch the applied LSN is sent back to the
+ * leader.
+ *
+ * While a follower is running TwitterOperations is read-only, so the local UI and HTTP
+ * API serve feeds and stats but reject writes. If the connection drops the follower
+ * reconnects every RECONNECT_MILLIS and bootstraps again from a fresh snapshot.
+ *
+ * Lag is reported both in records (leader LSN minus applied LSN) and in milliseconds
+ * (how long ago the leader emitted the last record applied, while more are pending,
+ * measured against the leader clock carried in each frame, so it assumes roughly
+ * synchronized clocks).
+ */
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class ReplicationFollower {
+
+  public static final long RECONNECT_MILLIS = 1000;
+  public static final int MAX_BATCH = 4096;
+
+  private final InetSocketAddress leader;
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile SocketChannel channel;
+
+  // Progress, written by the apply thread and read by statusJson
+  private volatile boolean connected;
+  private volatile long appliedLsn;
+  private volatile long leaderLsn;
+  private volatile long appliedLeaderTime;
+  private volatile long batches;
+  private volatile long records;
+
+  public ReplicationFollower(InetSocketAddress leader) {
+    this.leader = leader;
+    thread = new Thread(this::run, "replication-follower");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    TwitterOperations.readOnly = true;
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    SocketChannel current = channel;
+    if (current != null)
+      try {
+        current.close();
+      } catch (IOException e) {
+        // Shutting down anyway
+      }
+  }
+
+  public long getAppliedLsn() {
+    return appliedLsn;
+  }
+
+  /**
+   * @return The number of leader records not yet applied.
+   */
+  public long getLagRecords() {
+    return Math.max(0, leaderLsn - appliedLsn);
+  }
+
+  /**
+   * @return How far behind the leader this follower is, in milliseconds; 0 when caught up.
+   */
+  public long getLagMillis() {
+    if (!connected)
+      return -1;
+    if (appliedLsn >= leaderLsn)
+      return 0;
+    return Math.max(0, System.currentTimeMillis() - appliedLeaderTime);
+  }
+
+  /**
+   * @return Role, connection state, LSNs and lag, as JSON.
+   */
+  public String statusJson() {
+    return "{\"role\":\"follower\",\"leader\":" + Json.quote(leader.getHostString() + ":" + leader.getPort()) +
+      ",\"connected\":" + connected +
+      ",\"appliedLsn\":" + appliedLsn +
+      ",\"leaderLsn\":" + leaderLsn +
+      ",\"lagRecords\":" + getLagRecords() +
+      ",\"lagMillis\":" + getLagMillis() +
+      ",\"batches\":" + batches +
+      ",\"records\":" + records + "}";
+  }
+
+  // --- Replication loop ---
+
+  private void run() {
+    while (running) {
+      try (SocketChannel socket = SocketChannel.open(leader)) {
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel = socket;
+        connected = true;
+        replicate(socket);
+      } catch (IOException e) {
+        if (running && connected)
+          System.err.println("Replication connection to " + leader + " lost: " + e.getMessage());
+      } finally {
+        connected = false;
+        channel = null;
+      }
+      if (running)
+        try {
+          Thread.sleep(RECONNECT_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+    }
+  }
+
+  private void replicate(SocketChannel socket) throws IOException {
+    ByteBuffer in = ByteBuffer.allocate(256 * 1024);
+    ByteBuffer ack = ByteBuffer.allocate(8);
+    List < byte[] > batch = new ArrayList < > ();
+    IncomingSnapshot snapshot = null;
+    try {
+      while (running) {
+        if (socket.read(in) < 0)
+          throw new EOFException("leader closed the connection");
+        in.flip();
+
+        // Collect every complete frame already received
+        long batchLsn = -1, batchTime = 0;
+        while (true) {
+          if (snapshot != null) {
+            if (!snapshot.receive(in))
+              break;
+            installSnapshot(snapshot.file, snapshot.lsn, snapshot.time);
+            snapshot = null;
+            continue;
+          }
+          // Every frame has a full header, which tells a snapshot from the rest
+          if (in.remaining() < ReplicationLeader.FRAME_HEADER)
+            break;
+          int length = in.getInt(in.position());
+          if (in.get(in.position() + 4) == ReplicationLeader.SNAPSHOT) {
+            applyBatch(batch, batchLsn, batchTime);
+            batch.clear();
+            batchLsn = -1;
+            in.getInt();
+            in.get();
+            long lsn = in.getLong();
+            long time = in.getLong();
+            leaderLsn = Math.max(leaderLsn, lsn);
+            snapshot = new IncomingSnapshot(length - (ReplicationLeader.FRAME_HEADER - 4), lsn, time);
+            continue;
+          }
+          if (in.remaining() < 4 + length) {
+            if (in.capacity() < 4 + length) {
+              // Grow for a record larger than the buffer
+              ByteBuffer larger = ByteBuffer.allocate(4 + length);
+              larger.put(in);
+              in = larger;
+              in.flip();
+            }
+            break;
+          }
+          in.getInt();
+          byte kind = in.get();
+          long lsn = in.getLong();
+          long time = in.getLong();
+          byte[] payload = new byte[length - 17];
+          in.get(payload);
+          leaderLsn = Math.max(leaderLsn, lsn);
+
+          if (kind == ReplicationLeader.RECORD) {
+            batch.add(payload);
+            batchLsn = lsn;
+            batchTime = time;
+            if (batch.size() >= MAX_BATCH) {
+              applyBatch(batch, batchLsn, batchTime);
+              batch.clear();
+              batchLsn = -1;
+            }
+          }
+          // Heartbeats only carry the leader LSN, recorded above
+        }
+        applyBatch(batch, batchLsn, batchTime);
+        batch.clear();
+        in.compact();
+
+        ack.clear();
+        ack.putLong(appliedLsn).flip();
+        while (ack.hasRemaining())
+          socket.write(ack);
+      }
+    } finally {
+      if (snapshot != null)
+        snapshot.abandon();
+    }
+  }
+
+  /**
+   * The payload of a snapshot frame, written to a temporary file as it arrives.
+   */
+  private static class IncomingSnapshot {
+    final Path file;
+    final FileChannel out;
+    final long lsn;
+    final long time;
+    long remaining;
+
+    IncomingSnapshot(long size, long lsn, long time) throws IOException {
+      // Bodies are loaded lazily from the snapshot file, so it must outlive the load
+      file = Files.createTempFile("minitwitter-replica", ".snap");
+      file.toFile().deleteOnExit();
+      out = FileChannel.open(file, StandardOpenOption.WRITE);
+      this.lsn = lsn;
+      this.time = time;
+      remaining = size;
+    }
+
+    /**
+     * Writes the part of the payload at the front of the buffer.
+     *
+     * @return true once the whole payload was written, and the file closed.
+     */
+    boolean receive(ByteBuffer in) throws IOException {
+      int count = (int) Math.min(in.remaining(), remaining);
+      ByteBuffer part = in.slice();
+      part.limit(count);
+      while (part.hasRemaining())
+        out.write(part);
+      in.position(in.position() + count);
+      remaining -= count;
+      if (remaining > 0)
+        return false;
+      out.close();
+      return true;
+    }
+
+    void abandon() {
+      try {
+        out.close();
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        // Left in the temporary directory until exit
+      }
+    }
+  }
+
+  /**
+   * Applies a batch of records under one lock and notifies observers once.
+   */
+  private void applyBatch(List < byte[] > batch, long lsn, long leaderTime) {
+    if (batch.isEmpty())
+      return;
+    synchronized (TwitterOperations.class) {
+      for (byte[] i: batch)
+        MutationLog.apply(i);
+    }
+    appliedLeaderTime = leaderTime;
+    appliedLsn = lsn;
+    batches++;
+    records += batch.size();
+    notifyObservers();
+  }
+
+  private void installSnapshot(Path file, long lsn, long leaderTime) throws IOException {
+    synchronized (TwitterOperations.class) {
+      SnapshotStore.load(file);
+      TimelineReader.invalidateAll();
+    }
+    appliedLeaderTime = leaderTime;
+    appliedLsn = lsn;
+    leaderLsn = lsn;
+    notifyObservers();
+  }
+
+  private static void notifyObservers() {
+    Observers.dispatch("bulkLoad", BulkLoader.bulkLoadObservers);
+    Observers.dispatch("followers", User.followersObservers);
+    Observers.dispatch("messages", Message.messageObservers);
+  }
+}
@@ -0,0 +1,410 @@
+/**
+ * Leader side of leader/follower replication.
+ *
+ * Listens for followers on a TCP port and streams the MutationLog to them over
+ * non-blocking NIO channels, all served by a single selector thread. A newly connected
+ * follower first receives a SnapshotStore image taken under the TwitterOperations lock,
+ * tagged with the LSN it covers, and then every record after that LSN. The image is
+ * written to a temporary file under the lock and streamed from it to the socket in
+ * chunks once the lock is released, so its size is not bounded by the heap. Records are
+ * queued per follower and written with gathering writes, so a burst of mutations is
+ * sent in as few syscalls as the socket allows.
+ *
+ * A heartbeat carrying the current LSN and leader clock is sent every HEARTBEAT_MILLIS
+ * so idle followers can report their lag, and followers send their applied LSN back.
+ * A follower whose queue of records exceeds MAX_QUEUED_BYTES is disconnected; it
+ * re-bootstraps from a fresh snapshot when it reconnects. The snapshot itself does not
+ * count against the cap, only the records queued after it.
+ *
+ * Frame layout (big-endian): int length of the rest, byte kind, long LSN,
+ * long leader time in ms, then the payload (a MutationLog record or a snapshot image).
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicationLeader implements MutationLog.Listener {
+
+  // Frame kinds
+  public static final byte RECORD = 0;
+  public static final byte HEARTBEAT = 1;
+  public static final byte SNAPSHOT = 2;
+
+  public static final int FRAME_HEADER = 4 + 1 + 8 + 8;
+  public static final long HEARTBEAT_MILLIS = 500;
+  public static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+  // Bytes of the bootstrap snapshot sent to one follower per flush, so others get a turn
+  static final long SNAPSHOT_CHUNK = 4L * 1024 * 1024;
+
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final Thread thread;
+  private final List < Follower > followers = new ArrayList < > ();
+  private final ConcurrentLinkedQueue < Follower > pendingRegistrations = new ConcurrentLinkedQueue < > ();
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+  private volatile boolean running = true;
+
+  /**
+   * Binds the replication port; call start to begin accepting followers.
+   *
+   * @param address The address to listen on.
+   * @throws IOException if the port cannot be bound.
+   */
+  public ReplicationLeader(InetSocketAddress address) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(address);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    thread = new Thread(this::run, "replication-leader");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    MutationLog.addListener(this);
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    MutationLog.removeListener(this);
+    selector.wakeup();
+    try {
+      thread.join(1000);
+      server.close();
+      selector.close();
+    } catch (IOException | InterruptedException e) {
+      // Shutting down anyway
+    }
+  }
+
+  /**
+   * @return The port followers connect to.
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * @return Role, last LSN and per-follower acknowledged LSN and queue size, as JSON.
+   */
+  public String statusJson() {
+    long lsn = MutationLog.lastLsn();
+    StringBuilder builder = new StringBuilder("{\"role\":\"leader\",\"lsn\":").append(lsn).append(",\"followers\":[");
+    synchronized (followers) {
+      for (int i = 0; i < followers.size(); i++) {
+        Follower follower = followers.get(i);
+        if (i > 0)
+          builder.append(',');
+        builder.append("{\"address\":").append(Json.quote(follower.address))
+          .append(",\"ackedLsn\":").append(follower.ackedLsn)
+          .append(",\"lagRecords\":").append(Math.max(0, lsn - follower.ackedLsn))
+          .append(",\"queuedBytes\":").append(follower.queuedBytes.get()).append('}');
+      }
+    }
+    return builder.append("]}").toString();
+  }
+
+  // --- Producing ---
+
+  /**
+   * Queues a record for every connected follower. Called by MutationLog in LSN order.
+   */
+  @Override
+  public void onRecord(long lsn, byte[] record) {
+    ByteBuffer frame = frame(RECORD, lsn, record);
+    synchronized (followers) {
+      for (Follower i: followers)
+        i.enqueue(frame.duplicate());
+    }
+    if (wakeupPending.compareAndSet(false, true))
+      selector.wakeup();
+  }
+
+  static ByteBuffer frame(byte kind, long lsn, byte[] payload) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + payload.length);
+    putHeader(frame, kind, lsn, payload.length);
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  private static void putHeader(ByteBuffer frame, byte kind, long lsn, int payloadLength) {
+    frame.putInt(FRAME_HEADER - 4 + payloadLength);
+    frame.put(kind);
+    frame.putLong(lsn);
+    frame.putLong(System.currentTimeMillis());
+  }
+
+  /**
+   * Takes the bootstrap snapshot for a new follower. Holding the TwitterOperations lock
+   * keeps mutations out, so the snapshot covers exactly the records up to the returned
+   * LSN and the follower is registered before the next record is emitted. The file is
+   * sent by the selector thread, ahead of the records queued meanwhile.
+   */
+  private void bootstrap(Follower follower) {
+    Path tmp = null;
+    try {
+      tmp = Files.createTempFile("minitwitter-bootstrap", ".snap");
+      synchronized (TwitterOperations.class) {
+        SnapshotStore.save(tmp);
+        long lsn = MutationLog.lastLsn();
+        long size = Files.size(tmp);
+        if (size > Integer.MAX_VALUE - FRAME_HEADER)
+          throw new IOException("Snapshot of " + size + " bytes is too large for a frame");
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        putHeader(header, SNAPSHOT, lsn, (int) size);
+        header.flip();
+        follower.sendSnapshot(header, tmp, FileChannel.open(tmp, StandardOpenOption.READ), size);
+        tmp = null;
+        follower.ackedLsn = lsn;
+        synchronized (followers) {
+          followers.add(follower);
+        }
+      }
+      pendingRegistrations.add(follower);
+      selector.wakeup();
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Could not bootstrap follower " + follower.address + ": " + e);
+      follower.close();
+    } finally {
+      // Owned by the follower once handed over
+      if (tmp != null)
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          // Left in the temporary directory
+        }
+    }
+  }
+
+  // --- Selector loop ---
+
+  private void run() {
+    long nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+    while (running) {
+      try {
+        selector.select(Math.max(1, nextHeartbeat - System.currentTimeMillis()));
+        wakeupPending.set(false);
+
+        Follower registered;
+        while ((registered = pendingRegistrations.poll()) != null)
+          if (registered.channel.isOpen())
+            registered.key = registered.channel.register(selector, SelectionKey.OP_READ, registered);
+
+        for (SelectionKey key: selector.selectedKeys()) {
+          if (!key.isValid())
+            continue;
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isReadable()) {
+            readAcks((Follower) key.attachment());
+          }
+        }
+        selector.selectedKeys().clear();
+
+        long now = System.currentTimeMillis();
+        if (now >= nextHeartbeat) {
+          ByteBuffer heartbeat = frame(HEARTBEAT, MutationLog.lastLsn(), new byte[0]);
+          synchronized (followers) {
+            for (Follower i: followers)
+              i.enqueue(heartbeat.duplicate());
+          }
+          nextHeartbeat = now + HEARTBEAT_MILLIS;
+        }
+        flushAll();
+      } catch (IOException | ClosedSelectorException e) {
+        if (running)
+          System.err.println("Replication leader error: " + e);
+      }
+    }
+    synchronized (followers) {
+      for (Follower i: followers)
+        i.close();
+      followers.clear();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null)
+      return;
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Follower follower = new Follower(channel);
+    // Snapshots can be large, so they are taken off the selector thread
+    Thread bootstrapThread = new Thread(() -> bootstrap(follower), "replication-bootstrap");
+    bootstrapThread.setDaemon(true);
+    bootstrapThread.start();
+  }
+
+  private void readAcks(Follower follower) {
+    try {
+      int read;
+      while ((read = follower.channel.read(follower.ackBuffer)) > 0) {
+        // Acknowledgements are 8-byte applied LSNs; only the newest matters
+        follower.ackBuffer.flip();
+        while (follower.ackBuffer.remaining() >= 8)
+          follower.ackedLsn = follower.ackBuffer.getLong();
+        follower.ackBuffer.compact();
+      }
+      if (read < 0)
+        drop(follower, "disconnected");
+    } catch (IOException e) {
+      drop(follower, e.getMessage());
+    }
+  }
+
+  private void flushAll() {
+    List < Follower > snapshot;
+    synchronized (followers) {
+      snapshot = new ArrayList < > (followers);
+    }
+    for (Follower i: snapshot) {
+      if (i.key == null)
+        continue;
+      if (i.queuedBytes.get() > MAX_QUEUED_BYTES) {
+        drop(i, "fell too far behind");
+        continue;
+      }
+      try {
+        i.flush();
+      } catch (IOException e) {
+        drop(i, e.getMessage());
+      }
+    }
+  }
+
+  private void drop(Follower follower, String reason) {
+    synchronized (followers) {
+      followers.remove(follower);
+    }
+    System.err.println("Replication follower " + follower.address + " dropped: " + reason);
+    follower.close();
+  }
+
+  /**
+   * A connected follower and its outbound queue.
+   */
+  private static class Follower {
+    final SocketChannel channel;
+    final String address;
+    final ConcurrentLinkedQueue < ByteBuffer > queue = new ConcurrentLinkedQueue < > ();
+    final AtomicLong queuedBytes = new AtomicLong();
+    final ByteBuffer ackBuffer = ByteBuffer.allocate(64);
+    final ByteBuffer[] batch = new ByteBuffer[256];
+    volatile long ackedLsn;
+    SelectionKey key;
+    // Frames taken off the queue but not yet fully written
+    int batchStart, batchSize;
+    // The bootstrap snapshot, sent before any queued frame, and how far it was sent
+    ByteBuffer snapshotHeader;
+    Path snapshotFile;
+    FileChannel snapshot;
+    long snapshotPosition, snapshotSize;
+
+    Follower(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      this.address = String.valueOf(channel.getRemoteAddress());
+    }
+
+    void enqueue(ByteBuffer frame) {
+      queuedBytes.addAndGet(frame.remaining());
+      queue.add(frame);
+    }
+
+    synchronized void sendSnapshot(ByteBuffer header, Path file, FileChannel channel, long size) {
+      snapshotHeader = header;
+      snapshotFile = file;
+      snapshot = channel;
+      snapshotPosition = 0;
+      snapshotSize = size;
+    }
+
+    /**
+     * Writes as many queued frames as the socket accepts, batching them into gathering
+     * writes, and asks for OP_WRITE when the socket buffer is full. The bootstrap
+     * snapshot goes first, at most SNAPSHOT_CHUNK bytes per call.
+     */
+    void flush() throws IOException {
+      if (!flushSnapshot()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      while (true) {
+        if (batchStart == batchSize) {
+          batchStart = batchSize = 0;
+          ByteBuffer next;
+          while (batchSize < batch.length && (next = queue.poll()) != null)
+            batch[batchSize++] = next;
+          if (batchSize == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+          }
+        }
+        long written = channel.write(batch, batchStart, batchSize - batchStart);
+        queuedBytes.addAndGet(-written);
+        while (batchStart < batchSize && !batch[batchStart].hasRemaining())
+          batch[batchStart++] = null;
+        if (batchStart < batchSize) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+    }
+
+    // Sends the next part of the snapshot; true once all of it was sent
+    private synchronized boolean flushSnapshot() throws IOException {
+      if (snapshot == null)
+        return true;
+      if (snapshotHeader.hasRemaining()) {
+        channel.write(snapshotHeader);
+        if (snapshotHeader.hasRemaining())
+          return false;
+      }
+      long end = Math.min(snapshotSize, snapshotPosition + SNAPSHOT_CHUNK);
+      while (snapshotPosition < end) {
+        long sent = snapshot.transferTo(snapshotPosition, end - snapshotPosition, channel);
+        if (sent == 0)
+          return false;
+        snapshotPosition += sent;
+      }
+      if (snapshotPosition < snapshotSize)
+        return false;
+      closeSnapshot();
+      return true;
+    }
+
+    private synchronized void closeSnapshot() {
+      if (snapshot == null)
+        return;
+      try {
+        snapshot.close();
+        Files.deleteIfExists(snapshotFile);
+      } catch (IOException e) {
+        // Left in the temporary directory
+      }
+      snapshot = null;
+      snapshotFile = null;
+      snapshotHeader = null;
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Already gone
+      }
+      closeSnapshot();
+    }
+  }
+}
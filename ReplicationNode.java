@@ -0,0 +1,95 @@
+/**
+ * Headless Mini Twitter node for running a replicated setup, e.g. several instances
+ * on one machine:
+ *
+ *   java ReplicationNode leader 7000 8080            leader, replication on 7000, HTTP API on 8080
+ *   java ReplicationNode follower localhost:7000 8081 follower of that leader, read-only API on 8081
+ *
+ * Writes go to the leader's API; GET /replication on any node reports its LSNs and lag.
+ * The leader loads and saves -Dminitwitter.snapshot like MiniTwitterDriver; followers
+ * always bootstrap from the leader.
+ * Retention is not replicated: each node runs its own RetentionSweeper from the same
+ * -Dminitwitter.retention.* settings, so nodes on one machine need their own
+ * -Dminitwitter.archive. A leader started without a snapshot sets aside any archive left
+ * by an earlier run.
+ */
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+
+public class ReplicationNode {
+
+  // The replication role of this process, if any
+  private static volatile ReplicationLeader leader;
+  private static volatile ReplicationFollower follower;
+
+  public static void setLeader(ReplicationLeader replicationLeader) {
+    leader = replicationLeader;
+  }
+
+  public static void setFollower(ReplicationFollower replicationFollower) {
+    follower = replicationFollower;
+  }
+
+  /**
+   * @return The replication status of this process as JSON.
+   */
+  public static String statusJson() {
+    if (leader != null)
+      return leader.statusJson();
+    if (follower != null)
+      return follower.statusJson();
+    return "{\"role\":\"standalone\",\"lsn\":" + MutationLog.lastLsn() + "}";
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: java ReplicationNode leader <port> [apiPort]");
+      System.err.println("       java ReplicationNode follower <host:port> [apiPort]");
+      System.exit(1);
+    }
+
+    if (args[0].equals("leader")) {
+      String snapshot = System.getProperty("minitwitter.snapshot");
+      if (snapshot != null) {
+        Path path = Paths.get(snapshot);
+        if (Files.exists(path))
+          SnapshotStore.load(path);
+        else
+          MessageArchive.shared.startLineage();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            SnapshotStore.save(path);
+          } catch (IOException e) {
+            System.err.println("Could not save snapshot " + path + ": " + e.getMessage());
+          }
+        }));
+      } else {
+        MessageArchive.shared.startLineage();
+      }
+      ReplicationLeader replicationLeader = new ReplicationLeader(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1])));
+      replicationLeader.start();
+      setLeader(replicationLeader);
+      System.out.println("Replication leader listening on localhost:" + replicationLeader.getPort());
+    } else if (args[0].equals("follower")) {
+      int colon = args[1].lastIndexOf(':');
+      InetSocketAddress address = new InetSocketAddress(args[1].substring(0, colon), Integer.parseInt(args[1].substring(colon + 1)));
+      ReplicationFollower replicationFollower = new ReplicationFollower(address);
+      replicationFollower.start();
+      setFollower(replicationFollower);
+      System.out.println("Replicating from " + args[1]);
+    } else {
+      throw new IllegalArgumentException("Unknown role: " + args[0]);
+    }
+
+    RetentionSweeper.startIfConfigured();
+
+    if (args.length > 2) {
+      ApiServer apiServer = new ApiServer(Integer.parseInt(args[2]));
+      apiServer.start();
+      System.out.println("HTTP API listening on localhost:" + apiServer.getPort());
+    }
+    Thread.currentThread().join();
+  }
+}
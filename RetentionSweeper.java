@@ -0,0 +1,302 @@
+/**
+ * Background retention: moves old messages to the MessageArchive and trims news feeds,
+ * a little at a time, so that memory stays bounded without pausing posting.
+ *
+ * The policy has three independent limits, each 0 (off) by default:
+ * -Dminitwitter.retention.maxAgeMillis evicts messages older than that,
+ * -Dminitwitter.retention.maxTotal keeps at most that many messages in memory, and
+ * -Dminitwitter.retention.maxPerFeed keeps at most that many entries per news feed (in
+ * pull mode, per author timeline, since feeds are merged from those).
+ * -Dminitwitter.retention.intervalMillis (default 1000) is the pause between sweeps.
+ *
+ * Messages are evicted oldest first, in batches. A batch is copied out under the
+ * TwitterOperations lock and appended to the archive without it. Under the lock again it
+ * is committed in the archive and removed from the registries, the author timelines and
+ * the timeline cache; if a snapshot load replaced the registries meanwhile, it is rolled
+ * back instead, so an archived message is never also kept in memory. Removed messages
+ * release their text, so the MessageTextStore frees blocks whose bodies are all archived.
+ * Feeds are then trimmed in batches of users, the lock being released between batches.
+ * Trimmed entries keep their positions, so feed cursors stay valid.
+ */
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RetentionSweeper {
+
+  private static final int MESSAGE_BATCH = 1000;
+  private static final int USER_BATCH = 1000;
+  // Users visited per sweep, so that a sweep stays short with many users
+  private static final int USERS_PER_SWEEP = 100000;
+
+  private static volatile RetentionSweeper running;
+
+  private final long maxAgeMillis;
+  private final int maxTotal;
+  private final int maxPerFeed;
+  private final long intervalMillis;
+  private final MessageArchive archive;
+
+  private ScheduledExecutorService executor;
+  // Feed trimming state: the next user to visit, and eviction rounds already covered
+  private int userCursor;
+  private long evictionRounds;
+  private long passRound;
+  private long trimmedRound;
+
+  private final AtomicLong sweeps = new AtomicLong();
+  private final AtomicLong archived = new AtomicLong();
+  private final AtomicLong trimmedEntries = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile long lastSweepMillis;
+  private volatile long maxLockMicros;
+
+  public RetentionSweeper(long maxAgeMillis, int maxTotal, int maxPerFeed, long intervalMillis, MessageArchive archive) {
+    this.maxAgeMillis = maxAgeMillis;
+    this.maxTotal = maxTotal;
+    this.maxPerFeed = maxPerFeed;
+    this.intervalMillis = intervalMillis;
+    this.archive = archive;
+  }
+
+  /**
+   * Starts the sweeper if any retention limit is configured.
+   *
+   * @return The sweeper, or null if retention is off.
+   */
+  public static synchronized RetentionSweeper startIfConfigured() {
+    RetentionSweeper sweeper = new RetentionSweeper(
+      Long.getLong("minitwitter.retention.maxAgeMillis", 0),
+      Integer.getInteger("minitwitter.retention.maxTotal", 0),
+      Integer.getInteger("minitwitter.retention.maxPerFeed", 0),
+      Long.getLong("minitwitter.retention.intervalMillis", 1000),
+      MessageArchive.shared);
+    if (!sweeper.isEnabled() || running != null)
+      return running;
+    sweeper.start();
+    running = sweeper;
+    return sweeper;
+  }
+
+  public boolean isEnabled() {
+    return maxAgeMillis > 0 || maxTotal > 0 || maxPerFeed > 0;
+  }
+
+  public synchronized void start() {
+    if (executor != null)
+      return;
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "retention-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        sweep();
+      } catch (RuntimeException e) {
+        failures.incrementAndGet();
+        System.err.println("Retention sweep failed: " + e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Runs one sweep: archives every message outside the policy, then trims feeds.
+   */
+  public void sweep() {
+    long start = System.currentTimeMillis();
+    int evicted, total = 0;
+    do {
+      evicted = evictBatch();
+      total += evicted;
+    } while (evicted == MESSAGE_BATCH);
+    if (total > 0)
+      evictionRounds++;
+    // Feeds only need a pass after evictions, unless they are capped themselves
+    if (maxPerFeed > 0 || trimmedRound < evictionRounds)
+      trimFeeds();
+    sweeps.incrementAndGet();
+    lastSweepMillis = System.currentTimeMillis() - start;
+  }
+
+  // --- Messages ---
+
+  // Archives and removes up to one batch of the oldest messages, returning how many
+  private int evictBatch() {
+    List < Message > batch = new ArrayList < > ();
+    List < String > registry;
+    long lockStart;
+    synchronized (TwitterOperations.class) {
+      lockStart = System.nanoTime();
+      registry = Message.messages;
+      long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+      int excess = maxTotal > 0 ? registry.size() - maxTotal : 0;
+      for (int i = 0; i < registry.size() && batch.size() < MESSAGE_BATCH; i++) {
+        Message message = Message.messageMap.get(registry.get(i));
+        if (i >= excess && (message == null || message.getCreationTime() >= cutoff))
+          break;
+        batch.add(message);
+      }
+    }
+    lockHeld(lockStart);
+    if (batch.isEmpty())
+      return 0;
+
+    // The slow part, text decoding and file output, runs without the lock
+    List < MessageArchive.Record > records = new ArrayList < > (batch.size());
+    for (Message i: batch)
+      if (i != null)
+        records.add(MessageArchive.Record.of(i));
+    try {
+      archive.append(records);
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      System.err.println("Could not write message archive " + archive.getPath() + ": " + e.getMessage());
+      return 0;
+    }
+
+    synchronized (TwitterOperations.class) {
+      lockStart = System.nanoTime();
+      // A snapshot load in between replaces the registries; the batch is then left alone
+      boolean current = registry == Message.messages && registry.size() >= batch.size();
+      for (int i = 0; current && i < batch.size(); i++)
+        if (batch.get(i) != null && !batch.get(i).getUid().equals(registry.get(i)))
+          current = false;
+      if (!current) {
+        archive.rollback();
+        return 0;
+      }
+      try {
+        archive.commit();
+      } catch (IOException e) {
+        failures.incrementAndGet();
+        System.err.println("Could not write message archive " + archive.getPath() + ": " + e.getMessage());
+        return 0;
+      }
+      HashSet < String > authors = new HashSet < > ();
+      for (Message i: batch) {
+        if (i == null)
+          continue;
+        Message.messageMap.remove(i.getUid());
+        authors.add(i.getFrom());
+        i.releaseText();
+      }
+      registry.subList(0, batch.size()).clear();
+      // Evicted messages are the oldest of each author, but maxPerFeed may have trimmed past some
+      for (String i: authors) {
+        AuthorTimeline timeline = AuthorTimeline.peek(i);
+        if (timeline == null)
+          continue;
+        int floor = timeline.floor();
+        while (floor < timeline.size() && !Message.messageMap.containsKey(timeline.messageAt(floor)))
+          floor++;
+        timeline.trimTo(floor);
+      }
+      TimelineCache.shared.dropArchived();
+      archive.addToTotals(records);
+      ReadView.publish();
+    }
+    lockHeld(lockStart);
+    archived.addAndGet(records.size());
+    return batch.size();
+  }
+
+  // --- Feeds ---
+
+  // Visits a bounded number of users, resuming where the previous sweep stopped
+  private void trimFeeds() {
+    int visited = 0;
+    while (visited < USERS_PER_SWEEP) {
+      long lockStart;
+      int end;
+      synchronized (TwitterOperations.class) {
+        lockStart = System.nanoTime();
+        List < String > users = User.users;
+        if (userCursor >= users.size())
+          userCursor = 0;
+        if (userCursor == 0)
+          passRound = evictionRounds;
+        end = Math.min(users.size(), userCursor + USER_BATCH);
+        for (int i = userCursor; i < end; i++) {
+          User user = User.usersMap.get(users.get(i));
+          if (user != null)
+            trimFeed(user);
+        }
+        visited += end - userCursor;
+        userCursor = end;
+      }
+      lockHeld(lockStart);
+      if (end == 0 || userCursor >= User.users.size()) {
+        trimmedRound = passRound;
+        userCursor = 0;
+        break;
+      }
+    }
+  }
+
+  // Called under the TwitterOperations lock
+  private void trimFeed(User user) {
+    if (Message.fanOutOnWrite) {
+      List < String > news = user.getNews();
+      int count = 0;
+      while (count < news.size() && !Message.messageMap.containsKey(news.get(count)))
+        count++;
+      if (maxPerFeed > 0 && news.size() - count > maxPerFeed)
+        count = news.size() - maxPerFeed;
+      if (count > 0) {
+        user.trimNews(count);
+        TimelineCache.shared.trimBefore(user.getUid(), user.getNewsOffset());
+        trimmedEntries.addAndGet(count);
+      }
+    } else if (maxPerFeed > 0) {
+      AuthorTimeline timeline = AuthorTimeline.peek(user.getUid());
+      if (timeline == null || timeline.size() - timeline.floor() <= maxPerFeed)
+        return;
+      trimmedEntries.addAndGet(timeline.trimTo(timeline.size() - maxPerFeed));
+      // Cached merged heads may hold the trimmed entries
+      TimelineReader.invalidate(user.getUid());
+      for (String i: user.getFollowers())
+        TimelineReader.invalidate(i);
+    }
+  }
+
+  private void lockHeld(long lockStart) {
+    long micros = (System.nanoTime() - lockStart) / 1000;
+    if (micros > maxLockMicros)
+      maxLockMicros = micros;
+  }
+
+  // --- Status ---
+
+  /**
+   * @return The status of the running sweeper as JSON, or {"enabled":false}.
+   */
+  public static String statusJson() {
+    RetentionSweeper sweeper = running;
+    return sweeper == null ? "{\"enabled\":false}" : sweeper.statsJson();
+  }
+
+  public String statsJson() {
+    return "{\"enabled\":true" +
+      ",\"maxAgeMillis\":" + maxAgeMillis +
+      ",\"maxTotal\":" + maxTotal +
+      ",\"maxPerFeed\":" + maxPerFeed +
+      ",\"intervalMillis\":" + intervalMillis +
+      ",\"sweeps\":" + sweeps.get() +
+      ",\"archived\":" + archived.get() +
+      ",\"freedTextBlocks\":" + MessageTextStore.shared.getFreedBlocks() +
+      ",\"trimmedFeedEntries\":" + trimmedEntries.get() +
+      ",\"failures\":" + failures.get() +
+      ",\"lastSweepMillis\":" + lastSweepMillis +
+      ",\"maxLockMicros\":" + maxLockMicros +
+      ",\"archivePath\":" + Json.quote(archive.getPath().toString()) + "}";
+  }
+}
@@ -0,0 +1,336 @@
+/**
+ * Rolling counts of posts and follows and the average positivity of posts over the last
+ * minute (per second), hour (per minute) and day (per hour), for the whole network and
+ * for each UserGroup, so that the admin window can show recent activity instead of
+ * all-time totals.
+ *
+ * Each Series is a fixed ring of buckets per Resolution, so it takes the same memory
+ * however much happens. A bucket is a run of slots in one AtomicLongArray: the bucket
+ * number it holds (time / bucket length), then the posts, follows, scored posts and the
+ * sum of their scores in millionths. Recording finds the bucket of its time, claims it
+ * by compare-and-set if it still holds an older bucket, clearing it, and adds with
+ * atomic increments, so writers never block. Reading a window walks its buckets once
+ * and skips those that hold another bucket number, in O(buckets).
+ *
+ * Message.deliver reports posts at their creation time. Replicated posts and bulk-loaded
+ * messages with a time field therefore fall in the buckets of that time or, when older
+ * than a ring, are not counted; bulk-loaded messages without one count as posted at
+ * load time. User.linkFollowing reports follows when they are linked, bulk-loaded ones
+ * included. A post or follow
+ * counts for the network and for the user's group and each group above it, except Root,
+ * whose series is the network's. Later re-scoring does not change recorded averages.
+ * Group series are created on the first event in the group and dropped with the group.
+ */
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RollingMetrics {
+
+  /**
+   * The bucket lengths kept, with the number of buckets in each ring.
+   */
+  public enum Resolution {
+    SECOND("Last minute", 1000L, 60),
+    MINUTE("Last hour", 60 * 1000L, 60),
+    HOUR("Last day", 60 * 60 * 1000L, 24);
+
+    private final String label;
+    private final long millis;
+    private final int buckets;
+
+    Resolution(String label, long millis, int buckets) {
+      this.label = label;
+      this.millis = millis;
+      this.buckets = buckets;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public int getBuckets() {
+      return buckets;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
+  // Slots of a bucket
+  private static final int BUCKET = 0, POSTS = 1, FOLLOWS = 2, SCORED = 3, SCORE_SUM = 4, SLOTS = 5;
+  // Held in the bucket slot while a writer clears a bucket for reuse
+  private static final long CLEARING = Long.MIN_VALUE;
+  private static final double SCORE_SCALE = 1e6;
+
+  public static final Series network = new Series();
+  private static final ConcurrentHashMap < String, Series > groups = new ConcurrentHashMap < > ();
+  // Read in place of groups that have no series yet
+  private static final Series EMPTY = new Series();
+
+  /**
+   * The rolling counters of one scope.
+   */
+  public static final class Series {
+    private final AtomicLongArray[] rings = new AtomicLongArray[Resolution.values().length];
+
+    Series() {
+      for (Resolution i: Resolution.values()) {
+        AtomicLongArray ring = new AtomicLongArray(i.buckets * SLOTS);
+        for (int b = 0; b < i.buckets; b++)
+          ring.set(b * SLOTS + BUCKET, -1);
+        rings[i.ordinal()] = ring;
+      }
+    }
+
+    /**
+     * Adds events at the given time to every ring.
+     *
+     * @param timeMillis When they happened.
+     * @param posts      The number of posts.
+     * @param follows    The number of follows.
+     * @param score      The score of the post, or null if none.
+     */
+    public void record(long timeMillis, int posts, int follows, Double score) {
+      for (Resolution i: Resolution.values()) {
+        AtomicLongArray ring = rings[i.ordinal()];
+        long bucket = Math.floorDiv(timeMillis, i.millis);
+        int base = (int) Math.floorMod(bucket, (long) i.buckets) * SLOTS;
+        if (!claim(ring, base, bucket))
+          continue;
+        if (posts != 0)
+          ring.addAndGet(base + POSTS, posts);
+        if (follows != 0)
+          ring.addAndGet(base + FOLLOWS, follows);
+        if (score != null) {
+          ring.incrementAndGet(base + SCORED);
+          ring.addAndGet(base + SCORE_SUM, Math.round(score * SCORE_SCALE));
+        }
+      }
+    }
+
+    // Makes the slots at base hold the bucket; false if they hold a newer one
+    private static boolean claim(AtomicLongArray ring, int base, long bucket) {
+      while (true) {
+        long held = ring.get(base + BUCKET);
+        if (held == bucket)
+          return true;
+        if (held == CLEARING) {
+          Thread.onSpinWait();
+          continue;
+        }
+        if (held > bucket)
+          return false;
+        if (ring.compareAndSet(base + BUCKET, held, CLEARING)) {
+          for (int i = 1; i < SLOTS; i++)
+            ring.set(base + i, 0);
+          ring.set(base + BUCKET, bucket);
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Reads the ring of a resolution up to the bucket holding the given time.
+     *
+     * @param resolution The bucket length.
+     * @param nowMillis  The end of the window.
+     * @return The window, oldest bucket first.
+     */
+    public Window read(Resolution resolution, long nowMillis) {
+      AtomicLongArray ring = rings[resolution.ordinal()];
+      int n = resolution.buckets;
+      long last = Math.floorDiv(nowMillis, resolution.millis);
+      long[] posts = new long[n], follows = new long[n], scored = new long[n];
+      double[] scoreSums = new double[n];
+      for (int i = 0; i < n; i++) {
+        long bucket = last - n + 1 + i;
+        int base = (int) Math.floorMod(bucket, (long) n) * SLOTS;
+        if (ring.get(base + BUCKET) != bucket)
+          continue;
+        long p = ring.get(base + POSTS), f = ring.get(base + FOLLOWS), s = ring.get(base + SCORED), sum = ring.get(base + SCORE_SUM);
+        // Reused for a newer bucket while being read
+        if (ring.get(base + BUCKET) != bucket)
+          continue;
+        posts[i] = p;
+        follows[i] = f;
+        scored[i] = s;
+        scoreSums[i] = sum / SCORE_SCALE;
+      }
+      return new Window(resolution, (last - n + 1) * resolution.millis, posts, follows, scored, scoreSums);
+    }
+
+    /**
+     * @return The heap taken by a series, the same for every series.
+     */
+    public static long memoryBytes() {
+      long bytes = 16 + 16 + 4L * Resolution.values().length;
+      for (Resolution i: Resolution.values())
+        bytes += 16 + 16 + 8L * i.buckets * SLOTS;
+      return bytes;
+    }
+  }
+
+  /**
+   * The buckets of one ring at one point in time, oldest first.
+   */
+  public static final class Window {
+    private final Resolution resolution;
+    private final long startMillis;
+    private final long[] posts;
+    private final long[] follows;
+    private final long[] scored;
+    private final double[] scoreSums;
+
+    Window(Resolution resolution, long startMillis, long[] posts, long[] follows, long[] scored, double[] scoreSums) {
+      this.resolution = resolution;
+      this.startMillis = startMillis;
+      this.posts = posts;
+      this.follows = follows;
+      this.scored = scored;
+      this.scoreSums = scoreSums;
+    }
+
+    public Resolution getResolution() {
+      return resolution;
+    }
+
+    /**
+     * @return The start of the oldest bucket.
+     */
+    public long getStartMillis() {
+      return startMillis;
+    }
+
+    public long[] getPosts() {
+      return posts.clone();
+    }
+
+    public long[] getFollows() {
+      return follows.clone();
+    }
+
+    /**
+     * @return The average score of the posts of each bucket, NaN where none was scored.
+     */
+    public double[] getPositivity() {
+      double[] averages = new double[scored.length];
+      for (int i = 0; i < averages.length; i++)
+        averages[i] = scored[i] == 0 ? Double.NaN : scoreSums[i] / scored[i];
+      return averages;
+    }
+
+    public long getTotalPosts() {
+      long total = 0;
+      for (long i: posts)
+        total += i;
+      return total;
+    }
+
+    public long getTotalFollows() {
+      long total = 0;
+      for (long i: follows)
+        total += i;
+      return total;
+    }
+
+    /**
+     * @return The average score of the posts of the whole window, or NaN if none.
+     */
+    public double getAveragePositivity() {
+      long count = 0;
+      double sum = 0;
+      for (int i = 0; i < scored.length; i++) {
+        count += scored[i];
+        sum += scoreSums[i];
+      }
+      return count == 0 ? Double.NaN : sum / count;
+    }
+  }
+
+  // --- Reported by the registries ---
+
+  static void onPost(Message message) {
+    User sender = User.usersMap.get(message.getFrom());
+    long time = message.getCreationTime();
+    Double score = message.getPositivePercentage();
+    network.record(time, 1, 0, score);
+    for (UserGroup i = groupOf(sender); i != null && i.getParent() != null; i = i.getParent())
+      groups.computeIfAbsent(i.getUid(), k -> new Series()).record(time, 1, 0, score);
+  }
+
+  static void onFollow(User follower) {
+    long now = System.currentTimeMillis();
+    network.record(now, 0, 1, null);
+    for (UserGroup i = groupOf(follower); i != null && i.getParent() != null; i = i.getParent())
+      groups.computeIfAbsent(i.getUid(), k -> new Series()).record(now, 0, 1, null);
+  }
+
+  private static UserGroup groupOf(User user) {
+    return user == null || user.getUserGroup() == null ? null : UserGroup.userGroupMap.get(user.getUserGroup());
+  }
+
+  static void onDeleteGroups(Collection < String > uids) {
+    for (String i: uids)
+      groups.remove(i);
+  }
+
+  // --- Queries ---
+
+  /**
+   * @param groupUid A group ID, or null or "Root" for the whole network.
+   * @return The series of the scope, or null if nothing happened in the group yet.
+   */
+  public static Series of(String groupUid) {
+    return groupUid == null || groupUid.equals("Root") ? network : groups.get(groupUid);
+  }
+
+  /**
+   * Reads a window of a scope; a group without a series reads as empty.
+   */
+  public static Window read(String groupUid, Resolution resolution) {
+    Series series = of(groupUid);
+    return (series == null ? EMPTY : series).read(resolution, System.currentTimeMillis());
+  }
+
+  /**
+   * @return The number of group series.
+   */
+  public static int groupSeries() {
+    return groups.size();
+  }
+
+  /**
+   * @return The heap taken by all series.
+   */
+  public static long memoryBytes() {
+    return (2L + groups.size()) * Series.memoryBytes();
+  }
+
+  /**
+   * @return The window as JSON, with one value per bucket, oldest first.
+   */
+  public static String toJson(String groupUid, Resolution resolution) {
+    Window window = read(groupUid, resolution);
+    StringBuilder json = new StringBuilder("{\"scope\":").append(Json.quote(groupUid == null ? "Root" : groupUid))
+      .append(",\"resolution\":").append(Json.quote(resolution.name().toLowerCase()))
+      .append(",\"bucketMillis\":").append(resolution.millis)
+      .append(",\"start\":").append(window.getStartMillis())
+      .append(",\"totalPosts\":").append(window.getTotalPosts())
+      .append(",\"totalFollows\":").append(window.getTotalFollows())
+      .append(",\"averagePositivity\":").append(number(window.getAveragePositivity()))
+      .append(",\"posts\":").append(Arrays.toString(window.posts).replace(" ", ""))
+      .append(",\"follows\":").append(Arrays.toString(window.follows).replace(" ", ""))
+      .append(",\"positivity\":[");
+    double[] positivity = window.getPositivity();
+    for (int i = 0; i < positivity.length; i++)
+      json.append(i > 0 ? "," : "").append(number(positivity[i]));
+    return json.append("]}").toString();
+  }
+
+  private static String number(double value) {
+    return Double.isNaN(value) ? "null" : String.valueOf(Math.round(value * 100) / 100.0);
+  }
+}
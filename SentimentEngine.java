@@ -0,0 +1,180 @@
+/**
+ * Scores message positivity with the current SentimentLexicon and re-scores the whole
+ * message history when the lexicon changes.
+ *
+ * Switching the lexicon happens under the TwitterOperations lock: from then on new posts
+ * are scored with the new lexicon, and every message that existed at the switch is
+ * re-scored by a backfill on a background thread. The backfill splits the history into
+ * chunks of CHUNK_SIZE messages scored in parallel on the common ForkJoin pool, and
+ * publishes the new PositivityStats totals in one step when it completes. Posting is
+ * never blocked by it; the only pause is copying the message references at the switch.
+ *
+ * Backfills run one at a time. Switching the lexicon again cancels the running backfill
+ * at its next chunk, and the new one re-scores everything.
+ */
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+public class SentimentEngine {
+
+  public static final int CHUNK_SIZE = 4096;
+
+  private static volatile SentimentLexicon lexicon = SentimentLexicon.defaultLexicon();
+  private static final AtomicLong generation = new AtomicLong();
+  private static volatile Backfill lastBackfill;
+
+  private static final ExecutorService backfillExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "sentiment-backfill");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Progress and outcome of one backfill.
+   */
+  public static class Backfill {
+    final long generation;
+    final SentimentLexicon lexicon;
+    final int messages;
+    final AtomicLong scored = new AtomicLong();
+    volatile boolean done;
+    volatile boolean cancelled;
+    volatile long elapsedMillis;
+
+    Backfill(long generation, SentimentLexicon lexicon, int messages) {
+      this.generation = generation;
+      this.lexicon = lexicon;
+      this.messages = messages;
+    }
+
+    public int getMessages() {
+      return messages;
+    }
+
+    public long getScored() {
+      return scored.get();
+    }
+
+    public boolean isDone() {
+      return done;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /**
+   * Scores a text with the current lexicon.
+   *
+   * @param text The message text.
+   * @return The positivity score (see SentimentLexicon.score).
+   */
+  public static double score(String text) {
+    return lexicon.score(text);
+  }
+
+  public static SentimentLexicon getLexicon() {
+    return lexicon;
+  }
+
+  /**
+   * Loads a lexicon file (or reuses its cached compilation) and switches to it.
+   *
+   * @param file The lexicon file.
+   * @return A future completing when the history has been re-scored.
+   * @throws IOException if the file cannot be read.
+   */
+  public static CompletableFuture < Backfill > loadLexicon(Path file) throws IOException {
+    return setLexicon(SentimentLexicon.load(file));
+  }
+
+  /**
+   * Switches to the given lexicon and starts re-scoring the message history.
+   *
+   * @param newLexicon The lexicon to use from now on.
+   * @return A future completing when the history has been re-scored, or completing with
+   *         a cancelled Backfill if another switch superseded it.
+   */
+  public static CompletableFuture < Backfill > setLexicon(SentimentLexicon newLexicon) {
+    Backfill backfill;
+    Message[] history;
+    double archivedSum;
+    long archivedCount;
+    synchronized (TwitterOperations.class) {
+      lexicon = newLexicon;
+      history = Message.messageMap.values().toArray(new Message[0]);
+      // Archived messages keep the score they were archived with
+      archivedSum = MessageArchive.shared.getPositivitySum();
+      archivedCount = MessageArchive.shared.getPositivityCount();
+      backfill = new Backfill(generation.incrementAndGet(), newLexicon, history.length);
+      PositivityStats.beginBackfill();
+    }
+    lastBackfill = backfill;
+    return CompletableFuture.supplyAsync(() -> run(backfill, history, archivedSum, archivedCount), backfillExecutor);
+  }
+
+  private static Backfill run(Backfill backfill, Message[] history, double archivedSum, long archivedCount) {
+    long start = System.currentTimeMillis();
+    int chunks = (history.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    double[] sums = new double[chunks];
+    long[] counts = new long[chunks];
+    IntStream.range(0, chunks).parallel().forEach(c -> {
+      if (generation.get() != backfill.generation)
+        return;
+      int from = c * CHUNK_SIZE, to = Math.min(history.length, from + CHUNK_SIZE);
+      double sum = 0;
+      for (int i = from; i < to; i++) {
+        double score = backfill.lexicon.score(history[i].getText());
+        history[i].setPositivePercentage(score);
+        sum += score;
+      }
+      sums[c] = sum;
+      counts[c] = to - from;
+      backfill.scored.addAndGet(to - from);
+    });
+    backfill.elapsedMillis = System.currentTimeMillis() - start;
+
+    if (generation.get() != backfill.generation) {
+      backfill.cancelled = true;
+    } else {
+      double sum = archivedSum;
+      long count = archivedCount;
+      for (int c = 0; c < chunks; c++) {
+        sum += sums[c];
+        count += counts[c];
+      }
+      PositivityStats.completeBackfill(sum, count);
+    }
+    backfill.done = true;
+    Observers.dispatch("messages", Message.messageObservers);
+    return backfill;
+  }
+
+  /**
+   * @return The current lexicon and the progress of the latest backfill, as JSON.
+   */
+  public static String statusJson() {
+    SentimentLexicon current = lexicon;
+    StringBuilder builder = new StringBuilder("{\"lexicon\":").append(Json.quote(current.getSource()))
+      .append(",\"positiveWords\":").append(current.getPositiveWords())
+      .append(",\"negativeWords\":").append(current.getNegativeWords())
+      .append(",\"negations\":").append(current.getNegations())
+      .append(",\"averagePositivity\":").append(PositivityStats.average());
+    Backfill backfill = lastBackfill;
+    if (backfill != null)
+      builder.append(",\"backfill\":{\"messages\":").append(backfill.messages)
+        .append(",\"scored\":").append(backfill.getScored())
+        .append(",\"done\":").append(backfill.done)
+        .append(",\"cancelled\":").append(backfill.cancelled)
+        .append(",\"elapsedMillis\":").append(backfill.elapsedMillis).append('}');
+    return builder.append('}').toString();
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Compiled, immutable sentiment lexicon: a weight per word (positive or negative)
+ * and a set of negation words that flip the sign of the weighted words following them.
+ *
+ * Lexicon files are plain text, one entry per line:
+ *
+ *   # comment
+ *   great 2.0
+ *   good 1
+ *   awful -2
+ *   !not
+ *
+ * Words are matched case-insensitively on their ASCII letters only, so "don't" is
+ * written "dont". A line "!word" declares a negation word; when a file declares none,
+ * DEFAULT_NEGATIONS are used. Compiled lexicons are cached per file and reused until
+ * the file's size or modification time changes.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SentimentLexicon {
+
+  public static final String[] DEFAULT_NEGATIONS = { "not", "no", "never", "dont", "doesnt", "didnt", "isnt", "wasnt", "cant", "wont" };
+
+  // Number of words after a negation word whose weights are flipped
+  public static final int NEGATION_SCOPE = 3;
+
+  private static final ConcurrentHashMap < Path, SentimentLexicon > cache = new ConcurrentHashMap < > ();
+
+  private final String source;
+  private final HashMap < String, Float > weights;
+  private final HashSet < String > negations;
+  private final int positiveWords;
+  private final int negativeWords;
+
+  private SentimentLexicon(String source, HashMap < String, Float > weights, HashSet < String > negations) {
+    this.source = source;
+    this.weights = weights;
+    this.negations = negations;
+    int positive = 0, negative = 0;
+    for (float i: weights.values()) {
+      if (i > 0)
+        positive++;
+      else if (i < 0)
+        negative++;
+    }
+    this.positiveWords = positive;
+    this.negativeWords = negative;
+  }
+
+  /**
+   * @return The built-in lexicon: every word of Utils.positiveWords with weight 1.
+   */
+  public static SentimentLexicon defaultLexicon() {
+    HashMap < String, Float > weights = new HashMap < > ();
+    for (String i: Utils.positiveWords)
+      weights.put(i.toLowerCase(), 1f);
+    return new SentimentLexicon("built-in", weights, new HashSet < > (Arrays.asList(DEFAULT_NEGATIONS)));
+  }
+
+  /**
+   * Loads and compiles a lexicon file, or returns the cached compilation if the file
+   * has not changed since it was last loaded.
+   *
+   * @param file The lexicon file.
+   * @return The compiled lexicon.
+   * @throws IOException if the file cannot be read.
+   * @throws IllegalArgumentException if a line is malformed.
+   */
+  public static SentimentLexicon load(Path file) throws IOException {
+    Path key = file.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+    String source = key + "@" + attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+    SentimentLexicon cached = cache.get(key);
+    if (cached != null && cached.source.equals(source))
+      return cached;
+
+    HashMap < String, Float > weights = new HashMap < > ();
+    HashSet < String > negations = new HashSet < > ();
+    try (BufferedReader reader = Files.newBufferedReader(key, StandardCharsets.UTF_8)) {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        if (line.startsWith("!")) {
+          negations.add(normalize(line.substring(1)));
+          continue;
+        }
+        String[] parts = line.split("\\s+");
+        if (parts.length != 2)
+          throw new IllegalArgumentException("Line " + number + ": expected \"word weight\"");
+        try {
+          weights.put(normalize(parts[0]), Float.parseFloat(parts[1]));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Line " + number + ": invalid weight " + parts[1]);
+        }
+      }
+    }
+    if (negations.isEmpty())
+      negations.addAll(Arrays.asList(DEFAULT_NEGATIONS));
+    SentimentLexicon lexicon = new SentimentLexicon(source, weights, negations);
+    cache.put(key, lexicon);
+    return lexicon;
+  }
+
+  private static String normalize(String word) {
+    StringBuilder builder = new StringBuilder(word.length());
+    for (int i = 0; i < word.length(); i++) {
+      char c = word.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+        builder.append(Character.toLowerCase(c));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Scores a text as 100 times the sum of the weights of its words divided by the number
+   * of words. A word within NEGATION_SCOPE words after a negation word counts with the
+   * opposite sign; the scope also ends at . , ; : ! or ?. With the default lexicon this
+   * is the percentage of positive words, as before.
+   *
+   * @param text The text to score.
+   * @return The score, 0 for an empty text.
+   */
+  public double score(String text) {
+    if (text == null)
+      return 0;
+    StringBuilder word = new StringBuilder(16);
+    double sum = 0;
+    int words = 0;
+    int negated = 0;
+    boolean clauseEnd = false;
+    for (int i = 0, n = text.length(); i <= n; i++) {
+      char c = i < n ? text.charAt(i) : ' ';
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+        word.append(Character.toLowerCase(c));
+      } else if (Character.isWhitespace(c)) {
+        if (word.length() > 0) {
+          String token = word.toString();
+          word.setLength(0);
+          words++;
+          Float weight = weights.get(token);
+          if (negations.contains(token)) {
+            negated = NEGATION_SCOPE;
+          } else {
+            if (weight != null)
+              sum += negated > 0 ? -weight : weight;
+            if (negated > 0)
+              negated--;
+          }
+        }
+        if (clauseEnd) {
+          negated = 0;
+          clauseEnd = false;
+        }
+      } else if (c == '.' || c == ',' || c == ';' || c == ':' || c == '!' || c == '?') {
+        clauseEnd = true;
+      }
+      // Other characters are dropped without splitting the word
+    }
+    return sum * 100.0 / Math.max(1, words);
+  }
+
+  /**
+   * @return Where the lexicon came from (file, modification time and size), or "built-in".
+   */
+  public String getSource() {
+    return source;
+  }
+
+  public int getPositiveWords() {
+    return positiveWords;
+  }
+
+  public int getNegativeWords() {
+    return negativeWords;
+  }
+
+  public int getNegations() {
+    return negations.size();
+  }
+
+  @Override
+  public String toString() {
+    return source + " (" + positiveWords + " positive, " + negativeWords + " negative, " + negations.size() + " negations)";
+  }
+}
@@ -0,0 +1,261 @@
+/**
+ * A list with one writer at a time and any number of lock-free readers, which can take an
+ * immutable point-in-time view of it in O(1).
+ *
+ * The contents are an (array, from, to) range published through a volatile field. A slot
+ * of the array is never changed once a range covering it has been published, so a
+ * snapshot is just the current range. Appending fills the next free slot and publishes
+ * a longer range, and removing from the front publishes a shorter one; both are
+ * amortized O(1) like ArrayList. Any other change (insert, set, removal elsewhere)
+ * copies the array first.
+ *
+ * Writers must be serialized by the caller (in Mini Twitter, by the TwitterOperations
+ * lock). Iterators walk a snapshot, so they never throw ConcurrentModificationException.
+ */
+import java.util.*;
+
+public class SnapshotList < E > extends AbstractList < E > implements RandomAccess {
+
+  private static final Object[] EMPTY = new Object[0];
+  private static final int MIN_CAPACITY = 10;
+
+  private static final class Range {
+    final Object[] items;
+    final int from;
+    final int to;
+
+    Range(Object[] items, int from, int to) {
+      this.items = items;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private static final Range EMPTY_RANGE = new Range(EMPTY, 0, 0);
+
+  private volatile Range range;
+
+  public SnapshotList() {
+    range = EMPTY_RANGE;
+  }
+
+  /**
+   * @param capacity The number of elements to make room for.
+   */
+  public SnapshotList(int capacity) {
+    range = capacity == 0 ? EMPTY_RANGE : new Range(new Object[capacity], 0, 0);
+  }
+
+  public SnapshotList(Collection < ? extends E > elements) {
+    // toArray returns a fresh array, which can be used as is unless it has a narrower type
+    Object[] items = elements.toArray();
+    if (items.getClass() != Object[].class)
+      items = Arrays.copyOf(items, items.length, Object[].class);
+    range = new Range(items, 0, items.length);
+  }
+
+  /**
+   * @param list A list.
+   * @return The list itself if it is a SnapshotList, otherwise a SnapshotList copy of it.
+   */
+  @SuppressWarnings("unchecked")
+  public static < E > SnapshotList < E > of(List < E > list) {
+    return list instanceof SnapshotList ? (SnapshotList < E >) list : new SnapshotList < > (list);
+  }
+
+  /**
+   * @return An immutable view of the current contents, unaffected by later changes.
+   */
+  public List < E > snapshot() {
+    return new View < > (range);
+  }
+
+  // --- Reads ---
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E get(int index) {
+    Range r = range;
+    Objects.checkIndex(index, r.to - r.from);
+    return (E) r.items[r.from + index];
+  }
+
+  @Override
+  public int size() {
+    Range r = range;
+    return r.to - r.from;
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    Range r = range;
+    for (int i = r.from; i < r.to; i++)
+      if (Objects.equals(o, r.items[i]))
+        return i - r.from;
+    return -1;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  @Override
+  public Iterator < E > iterator() {
+    return snapshot().iterator();
+  }
+
+  // --- Writes ---
+
+  @Override
+  public boolean add(E element) {
+    Range r = range;
+    Object[] items = r.items;
+    int from = r.from, to = r.to;
+    if (to == items.length) {
+      int size = to - from;
+      items = Arrays.copyOfRange(items, from, from + Math.max(MIN_CAPACITY, size + (size >> 1)));
+      from = 0;
+      to = size;
+    }
+    items[to] = element;
+    range = new Range(items, from, to + 1);
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean addAll(Collection < ? extends E > elements) {
+    if (elements.isEmpty())
+      return false;
+    Object[] added = elements.toArray();
+    Range r = range;
+    int size = r.to - r.from;
+    Object[] items = r.items;
+    int from = r.from;
+    if (r.to + added.length > items.length) {
+      items = Arrays.copyOfRange(items, from, from + Math.max(size + added.length, size + (size >> 1)));
+      from = 0;
+    }
+    System.arraycopy(added, 0, items, from + size, added.length);
+    range = new Range(items, from, from + size + added.length);
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public void add(int index, E element) {
+    Range r = range;
+    int size = r.to - r.from;
+    if (index == size) {
+      add(element);
+      return;
+    }
+    Objects.checkIndex(index, size);
+    Object[] items = new Object[Math.max(MIN_CAPACITY, size + 1 + (size >> 1))];
+    System.arraycopy(r.items, r.from, items, 0, index);
+    items[index] = element;
+    System.arraycopy(r.items, r.from + index, items, index + 1, size - index);
+    range = new Range(items, 0, size + 1);
+    modCount++;
+  }
+
+  @Override
+  public E set(int index, E element) {
+    Range r = range;
+    E old = get(index);
+    Object[] items = Arrays.copyOfRange(r.items, r.from, r.items.length);
+    items[index] = element;
+    range = new Range(items, 0, r.to - r.from);
+    return old;
+  }
+
+  @Override
+  public E remove(int index) {
+    E old = get(index);
+    removeRange(index, index + 1);
+    return old;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    int index = indexOf(o);
+    if (index < 0)
+      return false;
+    removeRange(index, index + 1);
+    return true;
+  }
+
+  @Override
+  public boolean removeIf(java.util.function.Predicate < ? super E > filter) {
+    // One pass into a new array; the iterator of a snapshot cannot remove
+    Range r = range;
+    Object[] items = new Object[Math.max(MIN_CAPACITY, r.to - r.from)];
+    int kept = 0;
+    for (int i = r.from; i < r.to; i++) {
+      @SuppressWarnings("unchecked")
+      E element = (E) r.items[i];
+      if (!filter.test(element))
+        items[kept++] = element;
+    }
+    if (kept == r.to - r.from)
+      return false;
+    range = new Range(items, 0, kept);
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    range = EMPTY_RANGE;
+    modCount++;
+  }
+
+  @Override
+  protected void removeRange(int fromIndex, int toIndex) {
+    Range r = range;
+    int size = r.to - r.from;
+    if (fromIndex >= toIndex)
+      return;
+    if (fromIndex == 0 && toIndex == size) {
+      clear();
+      return;
+    }
+    int removed = toIndex - fromIndex;
+    if (fromIndex == 0 && r.from + removed <= r.items.length / 2) {
+      // Dropping from the front only moves the start of the range
+      range = new Range(r.items, r.from + removed, r.to);
+    } else {
+      // Copying also releases the slots dropped from the front earlier
+      int keep = size - removed;
+      Object[] items = new Object[Math.max(MIN_CAPACITY, keep + (keep >> 1))];
+      System.arraycopy(r.items, r.from, items, 0, fromIndex);
+      System.arraycopy(r.items, r.from + toIndex, items, fromIndex, size - toIndex);
+      range = new Range(items, 0, keep);
+    }
+    modCount++;
+  }
+
+  /**
+   * An immutable range of a SnapshotList.
+   */
+  private static final class View < E > extends AbstractList < E > implements RandomAccess {
+    private final Range range;
+
+    View(Range range) {
+      this.range = range;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+      Objects.checkIndex(index, range.to - range.from);
+      return (E) range.items[range.from + index];
+    }
+
+    @Override
+    public int size() {
+      return range.to - range.from;
+    }
+  }
+}
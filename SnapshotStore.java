@@ -0,0 +1,585 @@
+/**
+ * Versioned binary snapshot of the Mini Twitter state, used to start quickly at large scale.
+ * Rebuilds User.usersMap, UserGroup.userGroupMap, the follow lists, the news feeds and
+ * Message.messageMap without going through the observers or generating any UUIDs.
+ *
+ * Layout (big-endian):
+ *   header:  int MAGIC, int VERSION, int sectionCount
+ *   section: int tag, long length, byte[length] payload
+ *
+ * Every section is columnar: strings are stored as an offset array followed by one UTF-8
+ * blob, and follow/news lists as CSR adjacency arrays (per-row offsets + flat targets).
+ * Sections are memory mapped on load and decoded with parallel loaders. Message bodies
+ * stay in the mapped file and are only decoded when a message's text is first read.
+ *
+ * The ARCHIVE section records the lineage of the MessageArchive and how many messages it
+ * held, so that a load can cut off what was archived after the snapshot was taken.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+public class SnapshotStore {
+
+  public static final int MAGIC = 0x4D54534E; // "MTSN"
+  // Version 2 added message creation times, version 3 the reply-to IDs, version 4 the archive section
+  public static final int VERSION = 4;
+
+  // Section tags
+  static final int USERS = 1;
+  static final int GROUPS = 2;
+  static final int FOLLOWINGS = 3;
+  static final int FOLLOWERS = 4;
+  static final int MESSAGES = 5;
+  static final int NEWS = 6;
+  static final int BODIES = 7;
+  static final int ARCHIVE = 8;
+
+  // Mapped window size for the body section, which may exceed 2GB
+  private static final long BODY_WINDOW = 1L << 30;
+
+  // --- Saving ---
+
+  /**
+   * Writes the current state of all registries to the given file. The TwitterOperations
+   * lock is held while writing, so that the ID lists, the indexes built from them and the
+   * follow and news lists written in several passes all describe the same state; writers
+   * wait until the snapshot is on disk.
+   *
+   * @param path The snapshot file to (over)write.
+   * @throws IOException if the file cannot be written.
+   */
+  public static void save(Path path) throws IOException {
+    synchronized (TwitterOperations.class) {
+      write(path);
+    }
+  }
+
+  private static void write(Path path) throws IOException {
+    List < String > userIds = User.users;
+    List < String > groupIds = UserGroup.userGroups;
+    List < String > messageIds = Message.messages;
+
+    HashMap < String, Integer > userIndex = indexOf(userIds);
+    HashMap < String, Integer > groupIndex = indexOf(groupIds);
+    HashMap < String, Integer > messageIndex = indexOf(messageIds);
+
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      SectionWriter out = new SectionWriter(channel);
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(8);
+
+      // ID dictionary of users
+      int userCount = userIds.size();
+      out.begin(USERS);
+      out.putStrings(userIds);
+      List < String > names = new ArrayList < > (userCount);
+      for (String i: userIds)
+        names.add(User.usersMap.get(i).getName());
+      out.putStrings(names);
+      for (String i: userIds) {
+        String group = User.usersMap.get(i).getUserGroup();
+        Integer index = group == null ? null : groupIndex.get(group);
+        out.putInt(index == null ? -1 : index);
+      }
+      for (String i: userIds)
+        out.putLong(User.usersMap.get(i).getCreationTime());
+      for (String i: userIds)
+        out.putLong(User.usersMap.get(i).getLastUpdateTime());
+      out.end();
+
+      // Group tree; children refer to users as index and to groups as -(index + 1)
+      out.begin(GROUPS);
+      out.putStrings(groupIds);
+      List < String > groupNames = new ArrayList < > (groupIds.size());
+      for (String i: groupIds)
+        groupNames.add(UserGroup.userGroupMap.get(i).getName());
+      out.putStrings(groupNames);
+      for (String i: groupIds)
+        out.putLong(UserGroup.userGroupMap.get(i).getCreationTime());
+      for (String i: groupIds)
+        out.putLong(UserGroup.userGroupMap.get(i).getLastUpdateTime());
+      int offset = 0;
+      out.putInt(offset);
+      for (String i: groupIds) {
+        offset += UserGroup.userGroupMap.get(i).getChildren().size();
+        out.putInt(offset);
+      }
+      for (String i: groupIds) {
+        for (UserMember child: UserGroup.userGroupMap.get(i).getChildren()) {
+          if (child.getChildType() == UserMember.CHILD_TYPE.USER)
+            out.putInt(userIndex.get(child.getUid()));
+          else
+            out.putInt(-groupIndex.get(child.getUid()) - 1);
+        }
+      }
+      out.end();
+
+      out.begin(FOLLOWINGS);
+      putAdjacency(out, userIds, userIndex, u -> u.getFollowings());
+      out.end();
+
+      out.begin(FOLLOWERS);
+      putAdjacency(out, userIds, userIndex, u -> u.getFollowers());
+      out.end();
+
+      // Bodies are written first so that the message index knows their offsets
+      int messageCount = messageIds.size();
+      long[] bodyOffsets = new long[messageCount];
+      int[] bodyLengths = new int[messageCount];
+      out.begin(BODIES);
+      long bodyOffset = 0;
+      for (int i = 0; i < messageCount; i++) {
+        String text = Message.messageMap.get(messageIds.get(i)).getText();
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        bodyOffsets[i] = bodyOffset;
+        bodyLengths[i] = bytes.length;
+        out.putBytes(bytes);
+        bodyOffset += bytes.length;
+      }
+      out.end();
+
+      out.begin(MESSAGES);
+      out.putStrings(messageIds);
+      for (String i: messageIds) {
+        Integer from = userIndex.get(Message.messageMap.get(i).getFrom());
+        out.putInt(from == null ? -1 : from);
+      }
+      for (String i: messageIds) {
+        Double positivity = Message.messageMap.get(i).getPositivePercentage();
+        out.putDouble(positivity == null ? Double.NaN : positivity);
+      }
+      for (long i: bodyOffsets)
+        out.putLong(i);
+      for (int i: bodyLengths)
+        out.putInt(i);
+      for (String i: messageIds)
+        out.putLong(Message.messageMap.get(i).getCreationTime());
+      // Parents may have been archived, so they are referred to by ID; empty if none
+      List < String > replyTo = new ArrayList < > (messageCount);
+      for (String i: messageIds)
+        replyTo.add(Message.messageMap.get(i).getReplyTo());
+      out.putStrings(replyTo);
+      out.end();
+
+      out.begin(NEWS);
+      putAdjacency(out, userIds, messageIndex, u -> u.getNews());
+      out.end();
+
+      // Archived messages are counted when they leave memory, under the lock held here
+      out.begin(ARCHIVE);
+      UUID lineage = MessageArchive.shared.getLineage();
+      out.putLong(lineage.getMostSignificantBits());
+      out.putLong(lineage.getLeastSignificantBits());
+      out.putLong(MessageArchive.shared.size());
+      out.end();
+
+      out.flush();
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static HashMap < String, Integer > indexOf(List < String > ids) {
+    HashMap < String, Integer > index = new HashMap < > (ids.size() * 4 / 3 + 1);
+    for (int i = 0; i < ids.size(); i++)
+      index.put(ids.get(i), i);
+    return index;
+  }
+
+  private interface ListGetter {
+    Collection < String > get(User user);
+  }
+
+  private static void putAdjacency(SectionWriter out, List < String > userIds, HashMap < String, Integer > targetIndex, ListGetter getter) throws IOException {
+    // Targets missing from the index (e.g. messages archived by retention) are skipped
+    int offset = 0;
+    out.putInt(offset);
+    for (String i: userIds) {
+      for (String j: getter.get(User.usersMap.get(i)))
+        if (targetIndex.containsKey(j))
+          offset++;
+      out.putInt(offset);
+    }
+    for (String i: userIds)
+      for (String j: getter.get(User.usersMap.get(i))) {
+        Integer target = targetIndex.get(j);
+        if (target != null)
+          out.putInt(target);
+      }
+  }
+
+  /**
+   * Buffers writes to a file channel and back-patches section lengths.
+   */
+  private static class SectionWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private long sectionStart;
+
+    SectionWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void begin(int tag) throws IOException {
+      putInt(tag);
+      putLong(0); // patched by end()
+      sectionStart = position();
+    }
+
+    void end() throws IOException {
+      flush();
+      long length = position() - sectionStart;
+      ByteBuffer patch = ByteBuffer.allocate(8).putLong(0, length);
+      channel.write(patch, sectionStart - 8);
+    }
+
+    long position() throws IOException {
+      return channel.position() + buffer.position();
+    }
+
+    void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes)
+        flush();
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      buffer.clear();
+    }
+
+    void putInt(int value) throws IOException {
+      ensure(4);
+      buffer.putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+      ensure(8);
+      buffer.putLong(value);
+    }
+
+    void putDouble(double value) throws IOException {
+      ensure(8);
+      buffer.putDouble(value);
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+      int written = 0;
+      while (written < bytes.length) {
+        if (!buffer.hasRemaining())
+          flush();
+        int n = Math.min(buffer.remaining(), bytes.length - written);
+        buffer.put(bytes, written, n);
+        written += n;
+      }
+    }
+
+    // String column: int count, int[count + 1] offsets, UTF-8 blob
+    void putStrings(List < String > values) throws IOException {
+      byte[][] encoded = new byte[values.size()][];
+      for (int i = 0; i < encoded.length; i++)
+        encoded[i] = values.get(i) == null ? new byte[0] : values.get(i).getBytes(StandardCharsets.UTF_8);
+      putInt(encoded.length);
+      int offset = 0;
+      putInt(offset);
+      for (byte[] i: encoded) {
+        offset += i.length;
+        putInt(offset);
+      }
+      for (byte[] i: encoded)
+        putBytes(i);
+    }
+  }
+
+  // --- Loading ---
+
+  /**
+   * Replaces all registries with the contents of the given snapshot.
+   * Observers are not notified; this is meant to run before the UI is shown.
+   *
+   * @param path The snapshot file to read.
+   * @throws IOException if the file cannot be read or is not a supported snapshot.
+   */
+  public static void load(Path path) throws IOException {
+    Map < Integer, ByteBuffer > sections = new HashMap < > ();
+    BodyRegion bodies;
+    int version;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(12);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != MAGIC)
+        throw new IOException("Not a Mini Twitter snapshot: " + path);
+      version = header.getInt(4);
+      if (version < 1 || version > VERSION)
+        throw new IOException("Unsupported snapshot version " + version);
+      int sectionCount = header.getInt(8);
+
+      long position = 12;
+      BodyRegion bodyRegion = null;
+      for (int s = 0; s < sectionCount; s++) {
+        ByteBuffer sectionHeader = ByteBuffer.allocate(12);
+        readFully(channel, sectionHeader, position);
+        int tag = sectionHeader.getInt(0);
+        long length = sectionHeader.getLong(4);
+        position += 12;
+        if (tag == BODIES) {
+          bodyRegion = new BodyRegion(channel, position, length);
+        } else {
+          if (length > Integer.MAX_VALUE)
+            throw new IOException("Snapshot section " + tag + " is too large to map");
+          sections.put(tag, channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+        position += length;
+      }
+      bodies = bodyRegion;
+      // Mapped buffers stay valid after the channel is closed
+    }
+    for (int tag: new int[] { USERS, GROUPS, FOLLOWINGS, FOLLOWERS, MESSAGES, NEWS })
+      if (!sections.containsKey(tag))
+        throw new IOException("Snapshot is missing section " + tag);
+    if (bodies == null)
+      throw new IOException("Snapshot is missing section " + BODIES);
+
+    // ID dictionaries
+    ByteBuffer usersSection = sections.get(USERS);
+    String[] userIds = getStrings(usersSection);
+    String[] userNames = getStrings(usersSection);
+    int userCount = userIds.length;
+    int[] userGroups = getInts(usersSection, userCount);
+    long[] userCreated = getLongs(usersSection, userCount);
+    long[] userUpdated = getLongs(usersSection, userCount);
+
+    ByteBuffer groupsSection = sections.get(GROUPS);
+    String[] groupIds = getStrings(groupsSection);
+    String[] groupNames = getStrings(groupsSection);
+    int groupCount = groupIds.length;
+    long[] groupCreated = getLongs(groupsSection, groupCount);
+    long[] groupUpdated = getLongs(groupsSection, groupCount);
+    int[] childOffsets = getInts(groupsSection, groupCount + 1);
+    int[] children = getInts(groupsSection, childOffsets[groupCount]);
+
+    ByteBuffer messagesSection = sections.get(MESSAGES);
+    String[] messageIds = getStrings(messagesSection);
+    int messageCount = messageIds.length;
+    int[] messageFrom = getInts(messagesSection, messageCount);
+    double[] positivity = getDoubles(messagesSection, messageCount);
+    long[] bodyOffsets = getLongs(messagesSection, messageCount);
+    int[] bodyLengths = getInts(messagesSection, messageCount);
+    long[] messageCreated;
+    if (version >= 2) {
+      messageCreated = getLongs(messagesSection, messageCount);
+    } else {
+      messageCreated = new long[messageCount];
+      Arrays.fill(messageCreated, System.currentTimeMillis());
+    }
+    String[] messageReplyTo = version >= 3 ? getStrings(messagesSection) : null;
+
+    int[][] followings = getAdjacency(sections.get(FOLLOWINGS), userCount);
+    int[][] followers = getAdjacency(sections.get(FOLLOWERS), userCount);
+    int[][] news = getAdjacency(sections.get(NEWS), userCount);
+
+    // Numbered in snapshot order before the parallel part, so that follower sets get
+    // small gaps and interning does not contend
+    int[] userNumbers = new int[userCount];
+    for (int i = 0; i < userCount; i++)
+      userNumbers[i] = UserIds.intern(userIds[i]);
+
+    // Parallel construction of the entities
+    User[] users = new User[userCount];
+    IntStream.range(0, userCount).parallel().forEach(i -> {
+      User user = new User(userIds[i]);
+      user.setName(userNames[i]);
+      user.setUserGroup(userGroups[i] < 0 ? null : groupIds[userGroups[i]]);
+      user.setCreationTime(userCreated[i]);
+      user.setLastUpdateTime(userUpdated[i]);
+      user.setFollowings(resolve(followings, i, userIds));
+      user.setFollowers(followerSet(followers, i, userNumbers));
+      user.setNews(resolve(news, i, messageIds));
+      users[i] = user;
+    });
+
+    UserGroup[] groups = new UserGroup[groupCount];
+    IntStream.range(0, groupCount).parallel().forEach(i -> {
+      UserGroup group = new UserGroup(groupIds[i]);
+      group.setName(groupNames[i]);
+      group.setCreationTime(groupCreated[i]);
+      group.setLastUpdateTime(groupUpdated[i]);
+      List < UserMember > members = new ArrayList < > (childOffsets[i + 1] - childOffsets[i]);
+      for (int c = childOffsets[i]; c < childOffsets[i + 1]; c++) {
+        int ref = children[c];
+        if (ref >= 0)
+          members.add(new UserMember(userIds[ref], UserMember.CHILD_TYPE.USER));
+        else
+          members.add(new UserMember(groupIds[-ref - 1], UserMember.CHILD_TYPE.GROUP));
+      }
+      group.setChildren(members);
+      groups[i] = group;
+    });
+
+    Message[] messages = new Message[messageCount];
+    IntStream.range(0, messageCount).parallel().forEach(i -> {
+      Message message = new Message(messageIds[i]);
+      message.setFrom(messageFrom[i] < 0 ? null : userIds[messageFrom[i]]);
+      message.setPositivePercentage(Double.isNaN(positivity[i]) ? null : positivity[i]);
+      message.setCreationTime(messageCreated[i]);
+      if (messageReplyTo != null && !messageReplyTo[i].isEmpty())
+        message.setReplyTo(messageReplyTo[i]);
+      long bodyOffset = bodyOffsets[i];
+      int bodyLength = bodyLengths[i];
+      message.setTextLoader(() -> bodies.read(bodyOffset, bodyLength));
+      messages[i] = message;
+    });
+
+    // Registries are filled from presized collections, bypassing the observers
+    ConcurrentHashMap < String, User > usersMap = new ConcurrentHashMap < > (userCount);
+    for (User i: users)
+      usersMap.put(i.getUid(), i);
+    ConcurrentHashMap < String, UserGroup > userGroupMap = new ConcurrentHashMap < > (groupCount);
+    for (UserGroup i: groups)
+      userGroupMap.put(i.getUid(), i);
+    ConcurrentHashMap < String, Message > messageMap = new ConcurrentHashMap < > (messageCount);
+    for (Message i: messages)
+      messageMap.put(i.getUid(), i);
+
+    ByteBuffer archiveSection = sections.get(ARCHIVE);
+    UUID archiveLineage = archiveSection == null ? null : new UUID(archiveSection.getLong(), archiveSection.getLong());
+    long archivedCount = archiveSection == null ? 0 : archiveSection.getLong();
+
+    synchronized (TwitterOperations.class) {
+      // Before anything below reads the archive
+      MessageArchive.shared.reconcile(archiveLineage, archivedCount);
+      // Restored messages load their bodies lazily; the replaced ones no longer need theirs
+      for (Message i: Message.messageMap.values())
+        i.releaseText();
+      User.users = new SnapshotList < > (Arrays.asList(userIds));
+      User.usersMap = usersMap;
+      UserGroup.userGroups = new SnapshotList < > (Arrays.asList(groupIds));
+      UserGroup.userGroupMap = userGroupMap;
+      Message.messages = new SnapshotList < > (Arrays.asList(messageIds));
+      Message.messageMap = messageMap;
+      UserGroup.rebuildIndex();
+      SortedIdIndex.users.reset();
+      SortedIdIndex.groups.reset();
+      RateLimiter.forgetRemovedUsers();
+
+      AuthorTimeline.timelines.clear();
+      for (Message i: messages)
+        if (i.getFrom() != null)
+          AuthorTimeline.append(i);
+      ConversationIndex.rebuild();
+      // Body lengths are the UTF-8 lengths the columns keep, so the texts stay unloaded
+      MessageColumns.shared.clear();
+      for (int i = 0; i < messageCount; i++)
+        messages[i].setAnalyticsRow(MessageColumns.shared.append(messageFrom[i] < 0 ? -1 : userNumbers[messageFrom[i]],
+          messageCreated[i], messages[i].getPositivePercentage(), bodyLengths[i]));
+      PositivityStats.rebuild();
+      Leaderboards.rebuild();
+      TimelineReader.invalidateAll();
+      ReadView.publish();
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0)
+        throw new IOException("Truncated snapshot");
+    }
+  }
+
+  private static int[] getInts(ByteBuffer buffer, int count) {
+    int[] values = new int[count];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + count * 4);
+    return values;
+  }
+
+  private static long[] getLongs(ByteBuffer buffer, int count) {
+    long[] values = new long[count];
+    buffer.asLongBuffer().get(values);
+    buffer.position(buffer.position() + count * 8);
+    return values;
+  }
+
+  private static double[] getDoubles(ByteBuffer buffer, int count) {
+    double[] values = new double[count];
+    buffer.asDoubleBuffer().get(values);
+    buffer.position(buffer.position() + count * 8);
+    return values;
+  }
+
+  private static String[] getStrings(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    int[] offsets = getInts(buffer, count + 1);
+    int base = buffer.position();
+    String[] values = new String[count];
+    IntStream.range(0, count).parallel().forEach(i -> {
+      byte[] bytes = new byte[offsets[i + 1] - offsets[i]];
+      buffer.get(base + offsets[i], bytes);
+      values[i] = new String(bytes, StandardCharsets.UTF_8);
+    });
+    buffer.position(base + offsets[count]);
+    return values;
+  }
+
+  // Returns { offsets, targets }
+  private static int[][] getAdjacency(ByteBuffer buffer, int rows) {
+    int[] offsets = getInts(buffer, rows + 1);
+    int[] targets = getInts(buffer, offsets[rows]);
+    return new int[][] { offsets, targets };
+  }
+
+  private static List < String > resolve(int[][] adjacency, int row, String[] ids) {
+    int from = adjacency[0][row], to = adjacency[0][row + 1];
+    String[] list = new String[to - from];
+    for (int i = from; i < to; i++)
+      list[i - from] = ids[adjacency[1][i]];
+    return new SnapshotList < > (Arrays.asList(list));
+  }
+
+  private static FollowerSet followerSet(int[][] adjacency, int row, int[] numbers) {
+    FollowerSet set = new FollowerSet();
+    for (int i = adjacency[0][row]; i < adjacency[0][row + 1]; i++)
+      set.addId(numbers[adjacency[1][i]]);
+    return set;
+  }
+
+  /**
+   * Memory mapped view of the message bodies, split into windows so that it can exceed 2GB.
+   */
+  private static class BodyRegion {
+    private final MappedByteBuffer[] windows;
+
+    BodyRegion(FileChannel channel, long start, long length) throws IOException {
+      int count = (int) ((length + BODY_WINDOW - 1) / BODY_WINDOW);
+      windows = new MappedByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long offset = i * BODY_WINDOW;
+        windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(BODY_WINDOW, length - offset));
+      }
+    }
+
+    String read(long offset, int length) {
+      byte[] bytes = new byte[length];
+      int copied = 0;
+      while (copied < length) {
+        long at = offset + copied;
+        MappedByteBuffer window = windows[(int) (at / BODY_WINDOW)];
+        int index = (int) (at % BODY_WINDOW);
+        int n = Math.min(length - copied, window.capacity() - index);
+        window.get(index, bytes, copied, n);
+        copied += n;
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Sorted index of the IDs in a registry (users or groups), for reading them in ID
+ * order or by ID prefix a page at a time without sorting the registry.
+ *
+ * The index is built the first time it is queried, so processes that never browse by
+ * ID pay nothing for it. It is built from a snapshot of the registry outside the
+ * TwitterOperations lock; writers that add or remove IDs meanwhile update the index
+ * being built as well, and removals are replayed once the snapshot is in. From then on
+ * the registries keep it up to date under the lock, and reset drops it when the
+ * registry is replaced wholesale by a snapshot load.
+ *
+ * Queries are lock-free and weakly consistent, like the skip list they read.
+ */
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
+
+public class SortedIdIndex {
+
+  public static final SortedIdIndex users = new SortedIdIndex(() -> User.users);
+  public static final SortedIdIndex groups = new SortedIdIndex(() -> UserGroup.userGroups);
+
+  private final Supplier < SnapshotList < String > > registry;
+
+  // The built index, or null until the first query
+  private volatile ConcurrentSkipListSet < String > ids;
+  // The index being built, and the IDs removed since its snapshot was taken
+  private volatile ConcurrentSkipListSet < String > building;
+  private Set < String > removedWhileBuilding;
+  // Incremented by reset, so that a build started before it is discarded
+  private long generation;
+
+  public SortedIdIndex(Supplier < SnapshotList < String > > registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Adds an ID added to the registry. Callers must hold the TwitterOperations lock.
+   */
+  void add(String id) {
+    ConcurrentSkipListSet < String > set = ids;
+    if (set != null)
+      set.add(id);
+    set = building;
+    if (set != null) {
+      set.add(id);
+      removedWhileBuilding.remove(id);
+    }
+  }
+
+  /**
+   * Removes IDs removed from the registry. Callers must hold the TwitterOperations lock.
+   */
+  void removeAll(Collection < String > removed) {
+    ConcurrentSkipListSet < String > set = ids;
+    if (set != null)
+      set.removeAll(removed);
+    set = building;
+    if (set != null) {
+      set.removeAll(removed);
+      removedWhileBuilding.addAll(removed);
+    }
+  }
+
+  /**
+   * Drops the index after the registry was replaced; the next query rebuilds it.
+   * Callers must hold the TwitterOperations lock.
+   */
+  void reset() {
+    ids = null;
+    building = null;
+    removedWhileBuilding = null;
+    generation++;
+  }
+
+  /**
+   * @return Whether the index has been built.
+   */
+  public boolean isBuilt() {
+    return ids != null;
+  }
+
+  /**
+   * Reads IDs in order.
+   *
+   * @param prefix     Only IDs starting with this, or null or empty for all.
+   * @param descending Whether to read from the last ID backwards.
+   * @param after      The last ID of the previous page, or null to start at the first.
+   * @param limit      The maximum number of IDs.
+   * @return The IDs following after, at most limit of them.
+   */
+  public List < String > page(String prefix, boolean descending, String after, int limit) {
+    NavigableSet < String > view = ids();
+    if (prefix != null && !prefix.isEmpty())
+      view = view.subSet(prefix, true, prefix + Character.MAX_VALUE, true);
+    if (descending)
+      view = view.descendingSet();
+    if (after != null)
+      view = view.tailSet(after, false);
+    List < String > page = new ArrayList < > (Math.min(limit, 1024));
+    for (Iterator < String > i = view.iterator(); i.hasNext() && page.size() < limit;)
+      page.add(i.next());
+    return page;
+  }
+
+  private synchronized NavigableSet < String > ids() {
+    while (true) {
+      ConcurrentSkipListSet < String > set = ids;
+      if (set != null)
+        return set;
+      List < String > snapshot;
+      long started;
+      set = new ConcurrentSkipListSet < > ();
+      synchronized (TwitterOperations.class) {
+        building = set;
+        removedWhileBuilding = new HashSet < > ();
+        snapshot = registry.get().snapshot();
+        started = generation;
+      }
+      set.addAll(snapshot);
+      synchronized (TwitterOperations.class) {
+        if (generation != started)
+          continue;
+        set.removeAll(removedWhileBuilding);
+        building = null;
+        removedWhileBuilding = null;
+        ids = set;
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * A small line chart of a series of values with its title and latest value, for showing
+ * recent activity in little space. Values that are NaN (no data) leave a gap.
+ */
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Path2D;
+
+public class Sparkline extends JComponent {
+
+  private final String title;
+  private final Color color;
+  private double[] values = new double[0];
+  private String summary = "";
+
+  public Sparkline(String title, Color color) {
+    this.title = title;
+    this.color = color;
+    setPreferredSize(new Dimension(160, 48));
+  }
+
+  /**
+   * Replaces the values, oldest first, and repaints.
+   *
+   * @param values  The values to draw.
+   * @param summary Text shown after the title, such as the window's total.
+   */
+  public void setValues(double[] values, String summary) {
+    this.values = values;
+    this.summary = summary;
+    repaint();
+  }
+
+  @Override
+  protected void paintComponent(Graphics graphics) {
+    Graphics2D g = (Graphics2D) graphics.create();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      int width = getWidth(), height = getHeight();
+      FontMetrics metrics = g.getFontMetrics();
+      int top = metrics.getHeight() + 2, bottom = height - 3;
+      g.setColor(Color.DARK_GRAY);
+      g.drawString(title + "  " + summary, 2, metrics.getAscent());
+      g.setColor(Color.LIGHT_GRAY);
+      g.drawLine(0, bottom, width, bottom);
+      if (values.length < 2 || bottom <= top)
+        return;
+
+      double min = 0, max = 0;
+      for (double i: values) {
+        if (!Double.isNaN(i)) {
+          min = Math.min(min, i);
+          max = Math.max(max, i);
+        }
+      }
+      if (max == min)
+        max = min + 1;
+      double step = (width - 4) / (double) (values.length - 1);
+      Path2D.Double line = new Path2D.Double();
+      boolean drawing = false;
+      for (int i = 0; i < values.length; i++) {
+        if (Double.isNaN(values[i])) {
+          drawing = false;
+          continue;
+        }
+        double x = 2 + i * step, y = bottom - (values[i] - min) / (max - min) * (bottom - top);
+        if (drawing)
+          line.lineTo(x, y);
+        else
+          line.moveTo(x, y);
+        drawing = true;
+      }
+      g.setColor(color);
+      g.setStroke(new BasicStroke(1.5f));
+      g.draw(line);
+    } finally {
+      g.dispose();
+    }
+  }
+}
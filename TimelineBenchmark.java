@@ -0,0 +1,82 @@
+/**
+ * Measures feed reads with fan-out on write disabled, where TimelineReader merges the
+ * author timelines of everyone a reader follows at read time: the latency of reading
+ * the newest page and an older page for a reader following many accounts, as the API's
+ * feed endpoint does through TwitterOperations.readFeed.
+ *
+ * Three cases are timed: the newest page unchanged since the last read (the head
+ * cache), the newest page after a followed account posted (a full merge), and the page
+ * after it (a merge below a cursor). Also checks that posting still updates the
+ * followers' last update times in this mode, and exits with status 1 if not.
+ *
+ * Usage: java TimelineBenchmark [followings] [postsPerAccount] [reads]
+ */
+import java.util.*;
+
+public class TimelineBenchmark {
+
+  private static final int PAGE = 20;
+
+  public static void main(String[] args) {
+    int followings = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int postsPerAccount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int reads = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+    System.setProperty("minitwitter.rate.posts", "0");
+    System.setProperty("minitwitter.rate.follows", "0");
+    Message.fanOutOnWrite = false;
+
+    TwitterOperations.createUser("reader", "Root");
+    for (int i = 0; i < followings; i++) {
+      TwitterOperations.createUser("a" + i, "Root");
+      TwitterOperations.follow("reader", "a" + i);
+    }
+    for (int n = 0; n < postsPerAccount; n++)
+      for (int i = 0; i < followings; i++)
+        TwitterOperations.post("a" + i, "post " + n + " of a" + i);
+
+    User reader = User.usersMap.get("reader");
+    reader.setLastUpdateTime(0);
+    TwitterOperations.post("a0", "checking the update time");
+    if (reader.getLastUpdateTime() == 0) {
+      System.out.println("FAILED: posting did not update the follower's last update time");
+      System.exit(1);
+    }
+
+    System.out.printf("reader follows %d accounts, %d messages, page %d%n", followings, Message.messages.size(), PAGE);
+    Random random = new Random(1);
+    // Warm up every path before timing
+    time("warm-up", reads / 2, () -> {
+      TwitterOperations.post("a" + random.nextInt(followings), "warm-up");
+      TwitterOperations.readFeed("reader", TwitterOperations.readFeed("reader", null, PAGE).getNextCursor(), PAGE);
+    }, () -> {});
+
+    time("newest page, unchanged", reads, () -> TwitterOperations.readFeed("reader", null, PAGE), () -> {});
+    time("newest page, after a post", reads, () -> TwitterOperations.readFeed("reader", null, PAGE),
+      () -> TwitterOperations.post("a" + random.nextInt(followings), "between reads"));
+    String[] cursor = { TwitterOperations.readFeed("reader", null, PAGE).getNextCursor() };
+    time("older page", reads, () -> TwitterOperations.readFeed("reader", cursor[0], PAGE), () -> {});
+  }
+
+  // Times reads, running setup untimed before each one
+  private static void time(String name, int reads, Runnable read, Runnable setup) {
+    long[] latencies = new long[reads];
+    for (int i = 0; i < reads; i++) {
+      setup.run();
+      long start = System.nanoTime();
+      read.run();
+      latencies[i] = System.nanoTime() - start;
+    }
+    if (name.equals("warm-up"))
+      return;
+    Arrays.sort(latencies);
+    System.out.printf("%-26s p50 %.3f ms  p99 %.3f ms  max %.3f ms%n", name,
+      percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0)
+      return 0;
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
@@ -0,0 +1,511 @@
+/**
+ * Byte-bounded cache of resolved feed heads: for recently active readers, the newest
+ * PAGE_SIZE feed entries with their sender and text already looked up, so a hot reader's
+ * feed is served by one cache lookup instead of a merge plus a Message.messageMap lookup
+ * and a text decompression per message.
+ *
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window (1% of the budget);
+ * entries leaving the window compete for the main area, a segmented LRU (probation and
+ * protected), and are only admitted if a count-min sketch of recent reads says they are
+ * read more often than the entry they would evict. The sketch's counters are halved
+ * periodically so the frequencies follow the current workload. Sizes are estimated per
+ * entry, so the budget is in bytes rather than entries.
+ *
+ * Entries are kept exact rather than expired: Message.deliver appends the new message
+ * to the cached head of the sender and of each follower that is cached, dropping the
+ * oldest entry, retention drops the entries it trims or archives, and follows, bulk
+ * loads and snapshot loads invalidate.
+ *
+ * The budget comes from -Dminitwitter.timelineCache.bytes (default 32 MB; 0 disables).
+ */
+import java.util.*;
+
+public class TimelineCache {
+
+  public static final int PAGE_SIZE = 200;
+
+  public static final TimelineCache shared = new TimelineCache(Long.getLong("minitwitter.timelineCache.bytes", 32L * 1024 * 1024));
+
+  /**
+   * A resolved feed entry.
+   */
+  public static final class Entry {
+    private final String messageId;
+    private final String from;
+    private final String text;
+    // Cursor bound of the entry (news index or timeline sequence)
+    final long position;
+
+    Entry(String messageId, String from, String text, long position) {
+      this.messageId = messageId;
+      this.from = from;
+      this.text = text;
+      this.position = position;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    // Object header and fields, plus the text (ID and sender are shared with the registries)
+    long bytes() {
+      return 32 + 40 + (text == null ? 0 : text.length());
+    }
+  }
+
+  // Queues
+  private static final byte WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+  // Fixed cost of a cached head: node, map entry and ring array
+  private static final long NODE_BYTES = 64 + 48 + 16 + 4L * PAGE_SIZE;
+
+  /**
+   * A cached head: a ring of at most PAGE_SIZE entries, oldest first, linked into one of
+   * the LRU queues.
+   */
+  private static final class Node {
+    final String uid;
+    final Entry[] ring = new Entry[PAGE_SIZE];
+    int start, size;
+    // True while the head holds the whole feed (there is no older page)
+    boolean complete;
+    byte cursorKind;
+    long bytes = NODE_BYTES;
+    byte queue;
+    Node prev, next;
+
+    Node(String uid) {
+      this.uid = uid;
+    }
+
+    void append(Entry entry) {
+      if (size == PAGE_SIZE) {
+        bytes -= ring[start].bytes();
+        ring[start] = entry;
+        start = (start + 1) % PAGE_SIZE;
+        complete = false;
+      } else {
+        ring[(start + size++) % PAGE_SIZE] = entry;
+      }
+      bytes += entry.bytes();
+    }
+
+    Entry get(int index) {
+      return ring[(start + index) % PAGE_SIZE];
+    }
+
+    // Drops the oldest entries; whatever was older is gone too, so the head becomes complete
+    void dropOldest(int count) {
+      for (int i = 0; i < count; i++) {
+        bytes -= ring[start].bytes();
+        ring[start] = null;
+        start = (start + 1) % PAGE_SIZE;
+      }
+      size -= count;
+      complete = true;
+    }
+  }
+
+  private final long maxBytes;
+  private final long windowMax;
+  private final long protectedMax;
+  private final HashMap < String, Node > map = new HashMap < > ();
+  // Sentinels of the circular LRU lists, least recently used first
+  private final Node[] heads = { new Node(null), new Node(null), new Node(null) };
+  private final long[] queueBytes = new long[3];
+  private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+
+  private long hits, misses, loads, appends, evictions, rejections, invalidations;
+
+  /**
+   * @param maxBytes The estimated memory budget of the cache, or 0 to disable it.
+   */
+  public TimelineCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.windowMax = Math.max(NODE_BYTES, maxBytes / 100);
+    this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+    for (Node i: heads)
+      i.prev = i.next = i;
+  }
+
+  /**
+   * Reads the newest entries of a user's feed, from the cache when possible.
+   *
+   * @param reader The user whose feed is read.
+   * @param limit  The maximum number of entries, at most PAGE_SIZE to be cacheable.
+   * @return A page whose entries are newest first, with the cursor of the next page.
+   */
+  public Page read(User reader, int limit) {
+    Page page = lookup(reader.getUid(), limit);
+    if (page != null)
+      return page;
+    // Load under the engine lock, which deliveries also hold, so no post is missed in between
+    synchronized (TwitterOperations.class) {
+      synchronized (this) {
+        page = maxBytes == 0 ? null : pageOf(map.get(reader.getUid()), limit);
+      }
+      if (page != null)
+        return page;
+      Node node = load(reader);
+      synchronized (this) {
+        loads++;
+        if (node.bytes <= maxBytes - windowMax && !map.containsKey(node.uid))
+          insert(node);
+        return pageOf(node, limit);
+      }
+    }
+  }
+
+  /**
+   * A page of resolved feed entries, newest first.
+   */
+  public static final class Page {
+    private final List < Entry > entries;
+    private final String nextCursor;
+
+    Page(List < Entry > entries, String nextCursor) {
+      this.entries = entries;
+      this.nextCursor = nextCursor;
+    }
+
+    public List < Entry > getEntries() {
+      return entries;
+    }
+
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  private synchronized Page lookup(String uid, int limit) {
+    if (maxBytes == 0 || limit > PAGE_SIZE)
+      return null;
+    sketch.increment(uid);
+    Node node = map.get(uid);
+    if (node == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    touch(node);
+    return pageOf(node, limit);
+  }
+
+  private static Page pageOf(Node node, int limit) {
+    if (node == null)
+      return null;
+    int n = Math.min(limit, node.size);
+    List < Entry > entries = new ArrayList < > (n);
+    for (int i = node.size - 1; i >= node.size - n; i--)
+      entries.add(node.get(i));
+    boolean more = n < node.size || !node.complete;
+    String next = more && n > 0 ? TimelineReader.encodeCursor(entries.get(n - 1).position, node.cursorKind) : null;
+    // The oldest news entry has no older page
+    if (next != null && node.cursorKind == TimelineReader.NEWS_CURSOR && entries.get(n - 1).position == 0)
+      next = null;
+    return new Page(entries, next);
+  }
+
+  private static Node load(User reader) {
+    TimelineReader.FeedPage page = TimelineReader.read(reader, null, PAGE_SIZE);
+    Node node = new Node(reader.getUid());
+    node.cursorKind = Message.fanOutOnWrite ? TimelineReader.NEWS_CURSOR : TimelineReader.TIMELINE_CURSOR;
+    List < String > ids = page.getMessageIds();
+    long[] positions = page.getPositions();
+    for (int i = ids.size() - 1; i >= 0; i--) {
+      Message message = Message.messageMap.get(ids.get(i));
+      if (message != null)
+        node.append(new Entry(message.getUid(), message.getFrom(), message.getText(), positions[i]));
+    }
+    node.complete = page.getNextCursor() == null;
+    return node;
+  }
+
+  // --- Precise updates ---
+
+  /**
+   * Appends a just delivered message to the cached heads of its sender and followers.
+   * Called by Message.deliver under the engine lock.
+   *
+   * @param message   The delivered message.
+   * @param followers The IDs of the followers it was delivered to.
+   * @param sequence  The message's AuthorTimeline sequence.
+   */
+  public synchronized void onDeliver(Message message, Collection < String > followers, long sequence) {
+    if (map.isEmpty())
+      return;
+    String text = null;
+    Entry shared = null;
+    Iterator < String > readers = followers.iterator();
+    for (String uid = message.getFrom(); uid != null; uid = readers.hasNext() ? readers.next() : null) {
+      Node node = map.get(uid);
+      if (node == null)
+        continue;
+      if (text == null)
+        text = message.getText();
+      Entry entry;
+      if (node.cursorKind == TimelineReader.NEWS_CURSOR) {
+        User user = User.usersMap.get(uid);
+        entry = new Entry(message.getUid(), message.getFrom(), text, user.getNewsOffset() + user.getNews().size() - 1);
+      } else {
+        if (shared == null)
+          shared = new Entry(message.getUid(), message.getFrom(), text, sequence);
+        entry = shared;
+      }
+      long before = node.bytes;
+      node.append(entry);
+      queueBytes[node.queue] += node.bytes - before;
+      appends++;
+    }
+    evict();
+  }
+
+  /**
+   * Drops the cached entries of a reader below the given position, after retention
+   * trimmed their news list.
+   *
+   * @param uid   The ID of the reader.
+   * @param floor The position of the oldest entry still in the feed.
+   */
+  public synchronized void trimBefore(String uid, long floor) {
+    Node node = map.get(uid);
+    if (node == null)
+      return;
+    int count = 0;
+    while (count < node.size && node.get(count).position < floor)
+      count++;
+    resize(node, count);
+  }
+
+  /**
+   * Drops the cached entries of every reader whose messages were archived. Messages are
+   * archived oldest first, so they are always at the old end of a cached head.
+   */
+  public synchronized void dropArchived() {
+    for (Node i: map.values()) {
+      int count = 0;
+      while (count < i.size && !Message.messageMap.containsKey(i.get(count).getMessageId()))
+        count++;
+      resize(i, count);
+    }
+  }
+
+  private void resize(Node node, int dropped) {
+    if (dropped == 0)
+      return;
+    long before = node.bytes;
+    node.dropOldest(dropped);
+    queueBytes[node.queue] += node.bytes - before;
+  }
+
+  /**
+   * Drops the cached head of a user whose feed changed in a way that cannot be appended.
+   */
+  public synchronized void invalidate(String uid) {
+    Node node = map.remove(uid);
+    if (node != null) {
+      unlink(node);
+      invalidations++;
+    }
+  }
+
+  /**
+   * Drops every cached head.
+   */
+  public synchronized void invalidateAll() {
+    invalidations += map.size();
+    map.clear();
+    for (Node i: heads)
+      i.prev = i.next = i;
+    Arrays.fill(queueBytes, 0);
+  }
+
+  // --- W-TinyLFU ---
+
+  private void insert(Node node) {
+    map.put(node.uid, node);
+    link(node, WINDOW);
+    evict();
+  }
+
+  private void touch(Node node) {
+    unlink(node);
+    if (node.queue == PROBATION) {
+      link(node, PROTECTED);
+      // Demote the least recently used protected heads back to probation
+      while (queueBytes[PROTECTED] > protectedMax && heads[PROTECTED].next != node) {
+        Node demoted = heads[PROTECTED].next;
+        unlink(demoted);
+        link(demoted, PROBATION);
+      }
+    } else {
+      link(node, node.queue);
+    }
+  }
+
+  private void evict() {
+    // Heads leaving the window become candidates for the main area
+    while (queueBytes[WINDOW] > windowMax && heads[WINDOW].next != heads[WINDOW]) {
+      Node candidate = heads[WINDOW].next;
+      unlink(candidate);
+      link(candidate, PROBATION);
+      admit(candidate);
+    }
+    // Appends can also grow the main area past its budget
+    while (queueBytes[PROBATION] + queueBytes[PROTECTED] > maxBytes - windowMax) {
+      Node victim = victim(null);
+      if (victim == null)
+        break;
+      remove(victim);
+      evictions++;
+    }
+  }
+
+  /**
+   * Keeps the candidate only if it is read more often than each head it displaces.
+   */
+  private void admit(Node candidate) {
+    int candidateFrequency = sketch.frequency(candidate.uid);
+    while (queueBytes[PROBATION] + queueBytes[PROTECTED] > maxBytes - windowMax) {
+      Node victim = victim(candidate);
+      if (victim == null || sketch.frequency(victim.uid) >= candidateFrequency) {
+        remove(candidate);
+        rejections++;
+        return;
+      }
+      remove(victim);
+      evictions++;
+    }
+  }
+
+  private Node victim(Node exclude) {
+    for (byte queue: new byte[] { PROBATION, PROTECTED }) {
+      Node victim = heads[queue].next;
+      if (victim == exclude)
+        victim = victim.next;
+      if (victim != heads[queue])
+        return victim;
+    }
+    return null;
+  }
+
+  private void remove(Node node) {
+    map.remove(node.uid);
+    unlink(node);
+  }
+
+  private void link(Node node, byte queue) {
+    Node head = heads[queue];
+    node.queue = queue;
+    node.prev = head.prev;
+    node.next = head;
+    head.prev.next = node;
+    head.prev = node;
+    queueBytes[queue] += node.bytes;
+  }
+
+  private void unlink(Node node) {
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+    node.prev = node.next = null;
+    queueBytes[node.queue] -= node.bytes;
+  }
+
+  // --- Metrics ---
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getBytes() {
+    return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+  }
+
+  public synchronized double getHitRate() {
+    return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+  }
+
+  /**
+   * @return Hit rate, counters and memory use, as JSON.
+   */
+  public synchronized String statsJson() {
+    return "{\"entries\":" + map.size() +
+      ",\"bytes\":" + getBytes() +
+      ",\"maxBytes\":" + maxBytes +
+      ",\"hits\":" + hits +
+      ",\"misses\":" + misses +
+      ",\"hitRate\":" + getHitRate() +
+      ",\"loads\":" + loads +
+      ",\"appends\":" + appends +
+      ",\"evictions\":" + evictions +
+      ",\"rejections\":" + rejections +
+      ",\"invalidations\":" + invalidations + "}";
+  }
+
+  /**
+   * Count-min sketch of read frequencies with four 4-bit counters per key, halved after
+   * every 10 * width increments so that old popularity fades.
+   */
+  private static final class FrequencySketch {
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int width) {
+      // 16 counters of 4 bits per long
+      table = new long[width / 16];
+      mask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    private int index(int hash, int row) {
+      int h = (hash + row) * 0x9E3779B9;
+      h ^= h >>> 15;
+      h *= 0x85EBCA6B;
+      h ^= h >>> 13;
+      return h & mask;
+    }
+
+    private static int spread(String key) {
+      int h = key.hashCode() * 0x27D4EB2F;
+      return h ^ (h >>> 16);
+    }
+
+    int frequency(String key) {
+      int hash = spread(key);
+      int frequency = 15;
+      for (int row = 0; row < 4; row++) {
+        int i = index(hash, row);
+        frequency = Math.min(frequency, (int) ((table[i >>> 4] >>> ((i & 15) << 2)) & 0xf));
+      }
+      return frequency;
+    }
+
+    void increment(String key) {
+      int hash = spread(key);
+      boolean added = false;
+      for (int row = 0; row < 4; row++) {
+        int i = index(hash, row);
+        int shift = (i & 15) << 2;
+        if (((table[i >>> 4] >>> shift) & 0xf) < 15) {
+          table[i >>> 4] += 1L << shift;
+          added = true;
+        }
+      }
+      if (added && ++additions == sampleSize) {
+        for (int i = 0; i < table.length; i++)
+          table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        additions /= 2;
+      }
+    }
+  }
+}
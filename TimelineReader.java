@@ -0,0 +1,280 @@
+/**
+ * Assembles a user's news feed at read time from the author timelines of the user
+ * and everyone they follow, instead of relying on the materialized news list.
+ *
+ * A feed page is produced by a heap-based k-way merge: every source timeline is
+ * positioned (by binary search) at its newest entry below the cursor, and the heap
+ * repeatedly pops the newest remaining entry. Reading a page therefore costs
+ * O(k log n + limit log k) for k followings, independently of how much was posted.
+ *
+ * Cursors are opaque strings; callers pass back the nextCursor of a page to read
+ * the following (older) page. The first page of each reader can optionally be
+ * cached, and the cache entry is reused until one of the sources posts again.
+ */
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class TimelineReader {
+
+  // Optional per-reader cache of the merged head (first page)
+  public static boolean headCacheEnabled = true;
+  public static int headCacheCapacity = 10000;
+
+  private static final Map < String, HeadEntry > headCache = new LinkedHashMap < String, HeadEntry > (16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry < String, HeadEntry > eldest) {
+      return size() > headCacheCapacity;
+    }
+  };
+
+  /**
+   * A single page of a merged feed, newest message first.
+   */
+  public static class FeedPage {
+    private final List < String > messageIds;
+    private final String nextCursor;
+    // Cursor bound of each message (news index or timeline sequence), when known
+    private final long[] positions;
+
+    public FeedPage(List < String > messageIds, String nextCursor) {
+      this(messageIds, nextCursor, null);
+    }
+
+    FeedPage(List < String > messageIds, String nextCursor, long[] positions) {
+      this.messageIds = messageIds;
+      this.nextCursor = nextCursor;
+      this.positions = positions;
+    }
+
+    public List < String > getMessageIds() {
+      return messageIds;
+    }
+
+    /**
+     * @return The cursor of the next (older) page, or null if the feed is exhausted.
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+
+    long[] getPositions() {
+      return positions;
+    }
+  }
+
+  // Cursor kinds
+  static final byte TIMELINE_CURSOR = 1;
+  static final byte NEWS_CURSOR = 2;
+
+  private static class HeadEntry {
+    int limit;
+    int sourceCount;
+    long newestSequence;
+    FeedPage page;
+  }
+
+  /**
+   * Reads a page of the given user's feed from wherever feeds are currently kept:
+   * the materialized news list with fan-out on write, the author timelines otherwise.
+   *
+   * @param reader The user whose feed is read.
+   * @param cursor The cursor returned with the previous page, or null for the newest page.
+   * @param limit  The maximum number of messages in the page.
+   * @return The feed page, newest message first.
+   */
+  public static FeedPage read(User reader, String cursor, int limit) {
+    return Message.fanOutOnWrite ? readNews(reader, cursor, limit) : readFeed(reader, cursor, limit);
+  }
+
+  /**
+   * Reads a page of the given user's materialized news list, newest message first.
+   *
+   * @param reader The user whose news is read.
+   * @param cursor The cursor returned with the previous page, or null for the newest page.
+   * @param limit  The maximum number of messages in the page.
+   * @return The feed page.
+   */
+  public static FeedPage readNews(User reader, String cursor, int limit) {
+    List < String > news = reader.getNews();
+    // Cursors are absolute positions; entries before the offset were trimmed by retention
+    long offset = reader.getNewsOffset();
+    int end = cursor == null ? news.size() : (int) Math.max(0, decodeCursor(cursor, NEWS_CURSOR) - offset);
+    end = Math.min(end, news.size());
+    int start = Math.max(0, end - limit);
+    List < String > ids = new ArrayList < > (end - start);
+    long[] positions = new long[end - start];
+    for (int i = end - 1; i >= start; i--) {
+      positions[ids.size()] = offset + i;
+      ids.add(news.get(i));
+    }
+    return new FeedPage(ids, start > 0 ? encodeCursor(offset + start, NEWS_CURSOR) : null, positions);
+  }
+
+  /**
+   * Reads a page of the given user's feed merged from author timelines.
+   *
+   * @param reader The user whose feed is read.
+   * @param cursor The cursor returned with the previous page, or null for the newest page.
+   * @param limit  The maximum number of messages in the page.
+   * @return The feed page.
+   */
+  public static FeedPage readFeed(User reader, String cursor, int limit) {
+    AuthorTimeline[] sources = sourcesOf(reader);
+    if (cursor != null)
+      return merge(sources, decodeCursor(cursor, TIMELINE_CURSOR), limit);
+
+    long newest = 0;
+    for (AuthorTimeline t: sources)
+      newest = Math.max(newest, t.lastSequence());
+    if (headCacheEnabled) {
+      synchronized (headCache) {
+        HeadEntry entry = headCache.get(reader.getUid());
+        if (entry != null && entry.limit == limit && entry.sourceCount == sources.length && entry.newestSequence == newest)
+          return entry.page;
+      }
+    }
+
+    FeedPage page = merge(sources, Long.MAX_VALUE, limit);
+    if (headCacheEnabled) {
+      HeadEntry entry = new HeadEntry();
+      entry.limit = limit;
+      entry.sourceCount = sources.length;
+      entry.newestSequence = newest;
+      entry.page = page;
+      synchronized (headCache) {
+        headCache.put(reader.getUid(), entry);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Drops the cached head of the given reader, e.g. after they follow someone new.
+   *
+   * @param readerUid The ID of the reader.
+   */
+  public static void invalidate(String readerUid) {
+    synchronized (headCache) {
+      headCache.remove(readerUid);
+    }
+    TimelineCache.shared.invalidate(readerUid);
+  }
+
+  /**
+   * Drops every cached head, e.g. after a bulk load changed many follow lists.
+   */
+  public static void invalidateAll() {
+    synchronized (headCache) {
+      headCache.clear();
+    }
+    TimelineCache.shared.invalidateAll();
+  }
+
+  private static AuthorTimeline[] sourcesOf(User reader) {
+    List < String > followings = reader.getFollowings();
+    List < AuthorTimeline > sources = new ArrayList < > (followings.size() + 1);
+    AuthorTimeline own = AuthorTimeline.peek(reader.getUid());
+    if (own != null)
+      sources.add(own);
+    for (String i: followings) {
+      AuthorTimeline t = AuthorTimeline.peek(i);
+      if (t != null)
+        sources.add(t);
+    }
+    return sources.toArray(new AuthorTimeline[0]);
+  }
+
+  private static FeedPage merge(AuthorTimeline[] sources, long bound, int limit) {
+    // Max-heap of sources keyed by the sequence of their current entry
+    int[] heap = new int[sources.length];
+    int[] position = new int[sources.length];
+    long[] key = new long[sources.length];
+    int heapSize = 0;
+    for (int s = 0; s < sources.length; s++) {
+      int index = sources[s].indexBefore(bound);
+      if (index >= 0) {
+        position[s] = index;
+        key[s] = sources[s].sequenceAt(index);
+        heap[heapSize] = s;
+        siftUp(heap, key, heapSize++);
+      }
+    }
+
+    List < String > ids = new ArrayList < > (Math.min(limit, 256));
+    long[] sequences = new long[Math.min(limit, 256)];
+    long lastSequence = 0;
+    while (heapSize > 0 && ids.size() < limit) {
+      int s = heap[0];
+      if (ids.size() == sequences.length)
+        sequences = Arrays.copyOf(sequences, Math.min(limit, sequences.length * 2));
+      sequences[ids.size()] = key[s];
+      ids.add(sources[s].messageAt(position[s]));
+      lastSequence = key[s];
+      // Entries below the floor were trimmed by retention
+      if (--position[s] >= sources[s].floor()) {
+        key[s] = sources[s].sequenceAt(position[s]);
+      } else {
+        heap[0] = heap[--heapSize];
+      }
+      siftDown(heap, key, heapSize, 0);
+    }
+    String next = heapSize > 0 ? encodeCursor(lastSequence, TIMELINE_CURSOR) : null;
+    return new FeedPage(ids, next, Arrays.copyOf(sequences, ids.size()));
+  }
+
+  private static void siftUp(int[] heap, long[] key, int i) {
+    int s = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (key[heap[parent]] >= key[s])
+        break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = s;
+  }
+
+  private static void siftDown(int[] heap, long[] key, int size, int i) {
+    if (size == 0)
+      return;
+    int s = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && key[heap[child + 1]] > key[heap[child]])
+        child++;
+      if (key[heap[child]] <= key[s])
+        break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = s;
+  }
+
+  /**
+   * Encodes the exclusive bound of the next page (a timeline sequence or a news index)
+   * as an opaque string.
+   */
+  static String encodeCursor(long bound, byte kind) {
+    byte[] bytes = ByteBuffer.allocate(9).put(kind).putLong(bound).array();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  /**
+   * Decodes a cursor produced by encodeCursor.
+   *
+   * @throws IllegalArgumentException if the cursor is malformed or of another kind.
+   */
+  static long decodeCursor(String cursor, byte kind) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(cursor);
+    } catch (IllegalArgumentException e) {
+      bytes = new byte[0];
+    }
+    if (bytes.length != 9 || bytes[0] != kind)
+      throw new IllegalArgumentException("Invalid feed cursor: " + cursor);
+    return ByteBuffer.wrap(bytes, 1, 8).getLong();
+  }
+}
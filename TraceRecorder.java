@@ -0,0 +1,165 @@
+/**
+ * Ring buffer of the most recent engine operations with their timings, for seeing what
+ * the engine was doing just before a slowdown. Dumped on demand (GET /trace).
+ *
+ * Recording an operation costs two System.nanoTime calls and one small object written
+ * to a slot of a fixed array; nothing is formatted until the buffer is dumped. Slots are
+ * claimed with an atomic counter, so concurrent writers never wait on each other, and
+ * the oldest entries are simply overwritten.
+ *
+ * -Dminitwitter.trace.size sets the number of operations kept (default 4096, 0 turns
+ * recording off).
+ */
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TraceRecorder {
+
+  public static final TraceRecorder shared = new TraceRecorder(Integer.getInteger("minitwitter.trace.size", 4096));
+
+  // Wall clock time of nanoTime 0, so that entries only need to call nanoTime
+  private static final long EPOCH_MILLIS = System.currentTimeMillis();
+  private static final long EPOCH_NANOS = System.nanoTime();
+
+  /**
+   * One recorded operation.
+   */
+  public static final class Entry {
+    private final long sequence;
+    private final String operation;
+    private final String subject;
+    private final long value;
+    private final long startNanos;
+    private final long durationNanos;
+    private final String thread;
+
+    Entry(long sequence, String operation, String subject, long value, long startNanos, long durationNanos, String thread) {
+      this.sequence = sequence;
+      this.operation = operation;
+      this.subject = subject;
+      this.value = value;
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.thread = thread;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return The user, topic or window the operation was about, or null.
+     */
+    public String getSubject() {
+      return subject;
+    }
+
+    /**
+     * @return An operation-specific count, such as the fan-out of a post.
+     */
+    public long getValue() {
+      return value;
+    }
+
+    public long getStartMillis() {
+      return EPOCH_MILLIS + (startNanos - EPOCH_NANOS) / 1000000;
+    }
+
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    public String getThread() {
+      return thread;
+    }
+  }
+
+  private final AtomicReferenceArray < Entry > ring;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param capacity The number of operations kept, or 0 to record nothing.
+   */
+  public TraceRecorder(int capacity) {
+    ring = new AtomicReferenceArray < > (Math.max(0, capacity));
+  }
+
+  public boolean isEnabled() {
+    return ring.length() > 0;
+  }
+
+  /**
+   * @return The start time to pass to record, or 0 if recording is off.
+   */
+  public long start() {
+    return ring.length() > 0 ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records an operation that began at start.
+   *
+   * @param operation  The operation name; callers pass constants.
+   * @param subject    What the operation was about, or null.
+   * @param value      An operation-specific count.
+   * @param startNanos The value returned by start.
+   */
+  public void record(String operation, String subject, long value, long startNanos) {
+    int capacity = ring.length();
+    if (capacity == 0)
+      return;
+    long end = System.nanoTime();
+    long n = sequence.getAndIncrement();
+    ring.lazySet((int) (n % capacity), new Entry(n, operation, subject, value, startNanos, end - startNanos, Thread.currentThread().getName()));
+  }
+
+  /**
+   * @return The total number of operations recorded, including overwritten ones.
+   */
+  public long getRecorded() {
+    return sequence.get();
+  }
+
+  /**
+   * @param limit The maximum number of operations.
+   * @return The most recent operations, newest first.
+   */
+  public List < Entry > recent(int limit) {
+    List < Entry > entries = new ArrayList < > ();
+    for (int i = 0; i < ring.length(); i++) {
+      Entry entry = ring.get(i);
+      if (entry != null)
+        entries.add(entry);
+    }
+    entries.sort((a, b) -> Long.compare(b.sequence, a.sequence));
+    return entries.size() > limit ? new ArrayList < > (entries.subList(0, limit)) : entries;
+  }
+
+  /**
+   * @param limit The maximum number of operations.
+   * @return The most recent operations as JSON, newest first.
+   */
+  public String toJson(int limit) {
+    StringBuilder json = new StringBuilder("{\"capacity\":").append(ring.length())
+      .append(",\"recorded\":").append(getRecorded())
+      .append(",\"operations\":[");
+    List < Entry > entries = recent(limit);
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (i > 0)
+        json.append(',');
+      json.append("{\"seq\":").append(entry.sequence)
+        .append(",\"op\":").append(Json.quote(entry.operation))
+        .append(",\"subject\":").append(entry.subject == null ? "null" : Json.quote(entry.subject))
+        .append(",\"value\":").append(entry.value)
+        .append(",\"start\":").append(entry.getStartMillis())
+        .append(",\"micros\":").append(entry.durationNanos / 1000)
+        .append(",\"thread\":").append(Json.quote(entry.thread)).append('}');
+    }
+    return json.append("]}").toString();
+  }
+}
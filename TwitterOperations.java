@@ -0,0 +1,305 @@
+/**
+ * Core engine operations of Mini Twitter, shared by every entry point
+ * (the Swing windows and the embedded HTTP API).
+ *
+ * Each operation validates its input, performs the change through the
+ * User, UserGroup and Message registries (which notify their observers)
+ * and throws IllegalArgumentException with a user-facing message when the
+ * request cannot be honoured. Mutations are serialized on this class so
+ * that concurrent callers never interleave inside the registries.
+ *
+ * On a replication follower the operations are read-only: writes throw
+ * IllegalStateException and must be sent to the leader instead.
+ *
+ * Follows and posts are rate limited per user by RateLimiter, and posts also pass the
+ * AdmissionController; both checks run before taking the lock and reject with
+ * OperationRejectedException.
+ */
+import java.util.*;
+
+public class TwitterOperations {
+
+  // Set on replication followers, whose state only changes through the leader's log
+  public static volatile boolean readOnly;
+
+  private static void checkWritable() {
+    if (readOnly)
+      throw new IllegalStateException("Read-only replica: send writes to the leader");
+  }
+
+  // Rejects unknown users before they are rate limited, so that made-up IDs get no limiter state
+  private static void checkUser(String uid) {
+    if (uid == null || !User.usersMap.containsKey(uid))
+      throw new IllegalArgumentException("User Not Found: " + uid);
+  }
+
+  private static void checkRate(RateLimiter limiter, String uid) {
+    long retryAfter = limiter.tryAcquire(uid);
+    if (retryAfter > 0)
+      throw new OperationRejectedException("Too many " + limiter.getName() + ", try again in " + retryAfter + " ms", retryAfter);
+  }
+
+  /**
+   * Creates a user and adds them under the given group.
+   *
+   * @param uid      The ID (and name) of the new user.
+   * @param groupUid The ID of the group to add the user to.
+   * @return The created user.
+   */
+  public static synchronized User createUser(String uid, String groupUid) {
+    checkWritable();
+    if (uid == null || uid.isEmpty())
+      throw new IllegalArgumentException("User Id is required");
+    if (User.usersMap.containsKey(uid))
+      throw new IllegalArgumentException("User Already Exists!");
+    UserGroup userGroup = UserGroup.userGroupMap.get(groupUid);
+    if (userGroup == null)
+      throw new IllegalArgumentException("Group Not Found: " + groupUid);
+
+    User user = new User();
+    user.setName(uid);
+    user.setUid(uid);
+    User.addUser(user);
+    userGroup.addUser(user);
+    return user;
+  }
+
+  /**
+   * Creates a group and adds it under the given parent group.
+   *
+   * @param uid       The ID (and name) of the new group.
+   * @param parentUid The ID of the parent group.
+   * @return The created group.
+   */
+  public static synchronized UserGroup createGroup(String uid, String parentUid) {
+    checkWritable();
+    if (uid == null || uid.isEmpty())
+      throw new IllegalArgumentException("Group Id is required");
+    if (UserGroup.userGroupMap.containsKey(uid))
+      throw new IllegalArgumentException("Group Already Exists!");
+    UserGroup parent = UserGroup.userGroupMap.get(parentUid);
+    if (parent == null)
+      throw new IllegalArgumentException("Group Not Found: " + parentUid);
+
+    UserGroup userGroup = new UserGroup();
+    userGroup.setName(uid);
+    userGroup.setUid(uid);
+    UserGroup.addUserGroup(userGroup);
+    parent.addGroup(userGroup);
+    return userGroup;
+  }
+
+  /**
+   * Moves a user into another group.
+   *
+   * @param uid      The ID of the user.
+   * @param groupUid The ID of the group to move them to.
+   * @return false if the user was already in that group.
+   */
+  public static synchronized boolean moveUser(String uid, String groupUid) {
+    checkWritable();
+    User user = User.usersMap.get(uid);
+    if (user == null)
+      throw new IllegalArgumentException("User Not Found: " + uid);
+    UserGroup group = UserGroup.userGroupMap.get(groupUid);
+    if (group == null)
+      throw new IllegalArgumentException("Group Not Found: " + groupUid);
+    return group.moveUser(user);
+  }
+
+  /**
+   * Moves a group, with all its users and subgroups, under another group.
+   *
+   * @param uid       The ID of the group to move.
+   * @param parentUid The ID of the new parent group.
+   * @return false if the group was already directly under that parent.
+   */
+  public static synchronized boolean moveGroup(String uid, String parentUid) {
+    checkWritable();
+    UserGroup group = UserGroup.userGroupMap.get(uid);
+    if (group == null)
+      throw new IllegalArgumentException("Group Not Found: " + uid);
+    UserGroup parent = UserGroup.userGroupMap.get(parentUid);
+    if (parent == null)
+      throw new IllegalArgumentException("Group Not Found: " + parentUid);
+    if (group.getParent() == null)
+      throw new IllegalArgumentException("Cannot move " + uid);
+    if (parent.isWithin(group))
+      throw new IllegalArgumentException("Cannot move a group into itself or its subgroups");
+    return parent.moveGroup(group);
+  }
+
+  /**
+   * Deletes a group and all its subgroups. Their users are moved to the parent of the
+   * deleted group.
+   *
+   * @param uid The ID of the group to delete.
+   * @return The number of users moved to the parent.
+   */
+  public static synchronized int deleteGroup(String uid) {
+    checkWritable();
+    UserGroup group = UserGroup.userGroupMap.get(uid);
+    if (group == null)
+      throw new IllegalArgumentException("Group Not Found: " + uid);
+    if (group.getParent() == null)
+      throw new IllegalArgumentException("Cannot delete " + uid);
+    int users = group.getSubtreeUsers();
+    UserGroup.deleteGroup(group);
+    return users;
+  }
+
+  /**
+   * Makes one user follow another.
+   *
+   * @param followerUid The ID of the user who follows.
+   * @param followeeUid The ID of the user being followed.
+   * @return true if the relationship was added, false if it already existed or is a self-follow.
+   */
+  public static boolean follow(String followerUid, String followeeUid) {
+    checkWritable();
+    checkUser(followerUid);
+    checkRate(RateLimiter.follows, followerUid);
+    synchronized (TwitterOperations.class) {
+      return link(followerUid, followeeUid);
+    }
+  }
+
+  /**
+   * Makes one user stop following another. Counts against the same rate limit as follows.
+   *
+   * @param followerUid The ID of the user who follows.
+   * @param followeeUid The ID of the user being followed.
+   * @return true if the relationship was removed, false if it did not exist.
+   */
+  public static boolean unfollow(String followerUid, String followeeUid) {
+    checkWritable();
+    checkUser(followerUid);
+    checkRate(RateLimiter.follows, followerUid);
+    synchronized (TwitterOperations.class) {
+      User follower = User.usersMap.get(followerUid);
+      if (follower == null)
+        throw new IllegalArgumentException("User Not Found: " + followerUid);
+      User followee = User.usersMap.get(followeeUid);
+      if (followee == null)
+        throw new IllegalArgumentException("User Not Found");
+      return follower.removeFollowing(followee);
+    }
+  }
+
+  private static boolean link(String followerUid, String followeeUid) {
+    User follower = User.usersMap.get(followerUid);
+    if (follower == null)
+      throw new IllegalArgumentException("User Not Found: " + followerUid);
+    User followee = User.usersMap.get(followeeUid);
+    if (followee == null)
+      throw new IllegalArgumentException("User Not Found");
+    return follower.addFollowing(followee);
+  }
+
+  /**
+   * Posts a message from the given user to all of their followers.
+   *
+   * @param fromUid The ID of the sender.
+   * @param text    The message text.
+   * @return The sent message.
+   */
+  public static Message post(String fromUid, String text) {
+    checkWritable();
+    checkUser(fromUid);
+    checkRate(RateLimiter.posts, fromUid);
+    AdmissionController.Ticket ticket = AdmissionController.posts.admit();
+    try {
+      synchronized (TwitterOperations.class) {
+        return send(fromUid, text, null);
+      }
+    } finally {
+      AdmissionController.posts.complete(ticket);
+    }
+  }
+
+  /**
+   * Posts a reply to a message from the given user to all of their followers. Replies
+   * count as posts for the rate limit and admission control.
+   *
+   * @param fromUid  The ID of the sender.
+   * @param parentId The ID of the message replied to. It must be in memory or already
+   *                 part of a conversation.
+   * @param text     The message text.
+   * @return The sent reply.
+   */
+  public static Message reply(String fromUid, String parentId, String text) {
+    checkWritable();
+    checkUser(fromUid);
+    checkRate(RateLimiter.posts, fromUid);
+    AdmissionController.Ticket ticket = AdmissionController.posts.admit();
+    try {
+      synchronized (TwitterOperations.class) {
+        if (parentId == null || !Message.messageMap.containsKey(parentId) && !ConversationIndex.contains(parentId))
+          throw new IllegalArgumentException("Message Not Found: " + parentId);
+        return send(fromUid, text, parentId);
+      }
+    } finally {
+      AdmissionController.posts.complete(ticket);
+    }
+  }
+
+  private static Message send(String fromUid, String text, String replyTo) {
+    User sender = User.usersMap.get(fromUid);
+    if (sender == null)
+      throw new IllegalArgumentException("User Not Found: " + fromUid);
+    if (text == null || text.isEmpty())
+      throw new IllegalArgumentException("Enter Message First");
+
+    Message message = new Message();
+    message.setText(text);
+    message.setFrom(sender.getUid());
+    message.setReplyTo(replyTo);
+    message.calculatePositivity();
+    Message.sendMessage(message, sender.getFollowers());
+    return message;
+  }
+
+  /**
+   * Reads a page of a user's feed, newest message first.
+   *
+   * @param uid    The ID of the reader.
+   * @param cursor The cursor of the previous page, or null for the newest page.
+   * @param limit  The maximum number of messages to return.
+   * @return The feed page.
+   */
+  public static synchronized TimelineReader.FeedPage readFeed(String uid, String cursor, int limit) {
+    User reader = User.usersMap.get(uid);
+    if (reader == null)
+      throw new IllegalArgumentException("User Not Found: " + uid);
+    return TimelineReader.read(reader, cursor, limit);
+  }
+
+  /**
+   * Reads the newest entries of a user's feed through the TimelineCache, so hot readers
+   * are served without taking the engine lock.
+   *
+   * @param uid   The ID of the reader.
+   * @param limit The maximum number of entries, at most TimelineCache.PAGE_SIZE.
+   * @return The resolved entries, newest first, and the cursor of the next page.
+   */
+  public static TimelineCache.Page readFeedHead(String uid, int limit) {
+    User reader = User.usersMap.get(uid);
+    if (reader == null)
+      throw new IllegalArgumentException("User Not Found: " + uid);
+    return TimelineCache.shared.read(reader, limit);
+  }
+
+  /**
+   * @return The number of messages ever posted, in memory or in the MessageArchive.
+   */
+  public static long totalMessages() {
+    return Message.messages.size() + MessageArchive.shared.size();
+  }
+
+  /**
+   * @return The average positivity of all messages, or 0 if there are none.
+   */
+  public static double averagePositivity() {
+    return PositivityStats.average();
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Runs the engine operations started from the windows on a background thread, so that
+ * the Event Dispatch Thread never waits for the engine lock, a large fan-out or a
+ * hierarchy change. Each method returns a future of the TwitterOperations result.
+ *
+ * Commands run one at a time, in the order they were issued, so a user's actions take
+ * effect in the order they were made. The windows learn about the changes through the
+ * usual observers; onEdt hands a result, or the error, back to the EDT.
+ *
+ * Each command is also written to the OperationTrace while a recording is active.
+ *
+ * Reads that may wait for the engine lock, such as a news feed page missing the
+ * TimelineCache, run through read on a second thread, one at a time and in order, so a
+ * refresh never waits behind a command either.
+ */
+import javax.swing.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public class UiCommands {
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "ui-commands");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static final ExecutorService reads = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "ui-reads");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Runs tasks on the EDT, for the *Async methods of CompletableFuture.
+   */
+  public static final Executor EDT = Utils::runOnEdt;
+
+  public static CompletableFuture < User > createUser(String uid, String groupUid) {
+    return submit(() -> TwitterOperations.createUser(uid, groupUid), OperationTrace.Type.CREATE_USER, uid, groupUid);
+  }
+
+  public static CompletableFuture < UserGroup > createGroup(String uid, String parentUid) {
+    return submit(() -> TwitterOperations.createGroup(uid, parentUid), OperationTrace.Type.CREATE_GROUP, uid, parentUid);
+  }
+
+  public static CompletableFuture < Boolean > follow(String followerUid, String followeeUid) {
+    return submit(() -> TwitterOperations.follow(followerUid, followeeUid), OperationTrace.Type.FOLLOW, followerUid, followeeUid);
+  }
+
+  public static CompletableFuture < Boolean > unfollow(String followerUid, String followeeUid) {
+    return submit(() -> TwitterOperations.unfollow(followerUid, followeeUid), OperationTrace.Type.UNFOLLOW, followerUid, followeeUid);
+  }
+
+  public static CompletableFuture < Message > post(String fromUid, String text) {
+    return submit(() -> OperationTrace.posted(TwitterOperations.post(fromUid, text)), OperationTrace.Type.POST, fromUid, text);
+  }
+
+  public static CompletableFuture < Message > reply(String fromUid, String parentId, String text) {
+    return submit(() -> OperationTrace.posted(TwitterOperations.reply(fromUid, parentId, text)), OperationTrace.Type.REPLY, fromUid, parentId, text);
+  }
+
+  public static CompletableFuture < Boolean > moveUser(String uid, String groupUid) {
+    return submit(() -> TwitterOperations.moveUser(uid, groupUid), OperationTrace.Type.MOVE_USER, uid, groupUid);
+  }
+
+  public static CompletableFuture < Boolean > moveGroup(String uid, String parentUid) {
+    return submit(() -> TwitterOperations.moveGroup(uid, parentUid), OperationTrace.Type.MOVE_GROUP, uid, parentUid);
+  }
+
+  public static CompletableFuture < Integer > deleteGroup(String uid) {
+    return submit(() -> TwitterOperations.deleteGroup(uid), OperationTrace.Type.DELETE_GROUP, uid);
+  }
+
+  /**
+   * Runs a read for a window off the EDT. It is not traced.
+   *
+   * @param read The read, which must not touch Swing components.
+   * @return A future of its result, for onEdt.
+   */
+  public static < T > CompletableFuture < T > read(Supplier < T > read) {
+    return CompletableFuture.supplyAsync(read, reads);
+  }
+
+  private static < T > CompletableFuture < T > submit(Supplier < T > operation, OperationTrace.Type type, String... arguments) {
+    long issued = System.nanoTime();
+    return CompletableFuture.supplyAsync(() -> {
+      OperationTrace.record(issued, type, arguments);
+      return operation.get();
+    }, executor);
+  }
+
+  /**
+   * Passes the result of a command to onSuccess on the EDT, or shows its error in a
+   * dialog.
+   *
+   * @param command   A future returned by one of the commands.
+   * @param onSuccess The UI work to do with the result.
+   */
+  public static < T > void onEdt(CompletableFuture < T > command, Consumer < T > onSuccess) {
+    command.whenCompleteAsync((result, error) -> {
+      if (error == null) {
+        onSuccess.accept(result);
+        return;
+      }
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      JOptionPane.showMessageDialog(null, cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    }, EDT);
+  }
+}
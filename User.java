@@ -6,12 +6,14 @@
  */
 
  import java.util.*;
+ import java.util.concurrent.ConcurrentHashMap;
 
  public class User implements VisitorValidation {
  
    // Composite Pattern: List of all users and a map of user IDs to user objects
-   public static List < String > users = new ArrayList < > ();
-   public static HashMap < String, User > usersMap = new HashMap < > ();
+   // Both may be read without the TwitterOperations lock; see ReadView
+   public static SnapshotList < String > users = new SnapshotList < > ();
+   public static ConcurrentHashMap < String, User > usersMap = new ConcurrentHashMap < > ();
  
    // Observer Pattern: List of observers for list updates and followers update
    public static List < Runnable > listObservers = new ArrayList < > ();
@@ -21,11 +23,15 @@
    private String uid;
    private String name;
  
-   private List < String > followers;
+   private FollowerSet followers;
  
-   private List < String > followings;
+   private SnapshotList < String > followings;
  
-   private List < String > news;
+   private SnapshotList < String > news;
+ 
+   // Number of entries trimmed from the front of news by retention, so that news
+   // positions used as feed cursors stay valid after trimming
+   private long newsOffset;
  
    private String userGroup;
  
@@ -41,9 +47,25 @@
    public User() {
      uid = UUID.randomUUID().toString();
      name = "";
-     followers = new ArrayList < > ();
-     followings = new ArrayList < > ();
-     news = new ArrayList < > ();
+     followers = new FollowerSet();
+     followings = new SnapshotList < > ();
+     news = new SnapshotList < > ();
+     creationTime = System.currentTimeMillis();
+     lastUpdateTime = creationTime;
+   }
+ 
+   /**
+    * Creates a User with a known ID, skipping UUID generation.
+    * Used by bulk loaders that restore many users at once.
+    *
+    * @param uid The ID of the user.
+    */
+   public User(String uid) {
+     this.uid = uid;
+     name = "";
+     followers = new FollowerSet();
+     followings = new SnapshotList < > ();
+     news = new SnapshotList < > ();
      creationTime = System.currentTimeMillis();
      lastUpdateTime = creationTime;
    }
@@ -64,28 +86,49 @@
      this.name = name;
    }
  
-   public List < String > getFollowers() {
+   /**
+    * @return The IDs of this user's followers; read and changed under the
+    *         TwitterOperations lock.
+    */
+   public FollowerSet getFollowers() {
      return followers;
    }
  
-   public void setFollowers(List < String > followers) {
-     this.followers = followers;
+   public void setFollowers(Collection < String > followers) {
+     this.followers = followers instanceof FollowerSet ? (FollowerSet) followers : new FollowerSet(followers);
    }
  
-   public List < String > getFollowings() {
+   public SnapshotList < String > getFollowings() {
      return followings;
    }
  
    public void setFollowings(List < String > followings) {
-     this.followings = followings;
+     this.followings = SnapshotList.of(followings);
    }
  
-   public List < String > getNews() {
+   public SnapshotList < String > getNews() {
      return news;
    }
  
    public void setNews(List < String > news) {
-     this.news = news;
+     this.news = SnapshotList.of(news);
+     this.newsOffset = 0;
+   }
+ 
+   public long getNewsOffset() {
+     return newsOffset;
+   }
+ 
+   /**
+    * Removes the oldest entries of the news list, keeping positions of the rest stable.
+    *
+    * @param count The number of entries to remove from the front.
+    */
+   public void trimNews(int count) {
+     if (count <= 0)
+       return;
+     news.subList(0, count).clear();
+     newsOffset += count;
    }
  
    public String getUserGroup() {
@@ -120,11 +163,23 @@
     * @return true if the user was added successfully, false otherwise (currently always true).
     */
    public static Boolean addUser(User user) {
+     putUser(user);
+     Observers.dispatch("users", listObservers);
+     return true;
+   }
+ 
+   /**
+    * Adds a user to the global list and map without notifying observers.
+    * Used by bulk loaders, which notify once when the whole batch is in.
+    *
+    * @param user The User object to add.
+    */
+   static void putUser(User user) {
      users.add(user.getUid());
      usersMap.put(user.getUid(), user);
-     for (Runnable r: listObservers) //notifies observers
-       r.run();
-     return true;
+     SortedIdIndex.users.add(user.getUid());
+     MutationLog.addUser(user);
+     ReadView.publish();
    }
  
    /**
@@ -135,11 +190,73 @@
     * @return true if the following relationship was added successfully, false if it already exists or if trying to follow oneself.
     */
    public Boolean addFollowing(User user) {
-     if (!user.getUid().equals(getUid()) && !followings.contains(user.getUid())) {
+     EngineEvents.AddFollowing event = new EngineEvents.AddFollowing();
+     event.begin();
+     long start = TraceRecorder.shared.start();
+     boolean added = linkFollowing(user);
+     if (added) {
+       TimelineReader.invalidate(getUid());
+       Observers.dispatch("followers", followersObservers);
+     }
+     TraceRecorder.shared.record("addFollowing", getUid(), added ? 1 : 0, start);
+     if (event.shouldCommit()) {
+       event.follower = getUid();
+       event.followee = user.getUid();
+       event.added = added;
+       event.commit();
+     }
+     return added;
+   }
+ 
+   /**
+    * Adds a following relationship without notifying observers or invalidating
+    * cached feeds; callers are responsible for both.
+    *
+    * @param user The User object to follow.
+    * @return true if the relationship was added, false if it already exists or is a self-follow.
+    */
+   boolean linkFollowing(User user) {
+     // Checking the followee's follower set is O(log n), unlike the followings list
+     if (!user.getUid().equals(getUid()) && !user.followers.contains(getUid())) {
        followings.add(user.getUid());
        user.followers.add(getUid());
-       for (Runnable r: followersObservers) //notifies observers
-         r.run();
+       MutationLog.follow(this, user);
+       Leaderboards.onFollow(user);
+       RollingMetrics.onFollow(this);
+       return true;
+     } else return false;
+   }
+
+   /**
+    * Removes a following relationship between this user and another user and notifies
+    * the `followersObservers`.
+    *
+    * @param user The User object to stop following.
+    * @return true if the relationship was removed, false if it did not exist.
+    */
+   public Boolean removeFollowing(User user) {
+     long start = TraceRecorder.shared.start();
+     boolean removed = unlinkFollowing(user);
+     if (removed) {
+       TimelineReader.invalidate(getUid());
+       Observers.dispatch("followers", followersObservers);
+     }
+     TraceRecorder.shared.record("removeFollowing", getUid(), removed ? 1 : 0, start);
+     return removed;
+   }
+
+   /**
+    * Removes a following relationship without notifying observers or invalidating
+    * cached feeds; callers are responsible for both.
+    *
+    * @param user The User object to stop following.
+    * @return true if the relationship was removed, false if it did not exist.
+    */
+   boolean unlinkFollowing(User user) {
+     if (user.followers.remove(getUid())) {
+       followings.remove(user.getUid());
+       MutationLog.unfollow(this, user);
+       Leaderboards.onUnfollow(user);
        return true;
      } else return false;
    }
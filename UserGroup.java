@@ -3,19 +3,74 @@
  * Participates in the Composite pattern as a composite node (group) containing UserMembers (users or other groups).
  * Implements the VisitorValidation interface for validating group IDs using the Visitor pattern.
  * Employs the Observer pattern to notify UI components of changes in the group list.
+ *
+ * Users and subgroups can be moved between groups and a group can be deleted with its
+ * subgroups. Each group keeps its parent, its children by type and ID (users and groups
+ * have separate ID spaces, so a user and a group may share an ID) and the number of users
+ * and groups in its subtree, so these operations update the hierarchy in
+ * O(depth + moved size) without rebuilding it. Tree observers receive each change, so
+ * views can update only the affected nodes.
  */
-import javax.swing.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class UserGroup implements VisitorValidation {
 
   // Composite Pattern: List of all users and a map of user IDs to user objects
-  public static List < String > userGroups = new ArrayList < > ();
-  public static HashMap < String, UserGroup > userGroupMap = new HashMap < > ();
+  // Both may be read without the TwitterOperations lock; see ReadView
+  public static SnapshotList < String > userGroups = new SnapshotList < > ();
+  public static ConcurrentHashMap < String, UserGroup > userGroupMap = new ConcurrentHashMap < > ();
 
   // Observer Pattern: Lists of observers for list updates and followers update
   public static List < Runnable > listObservers = new ArrayList < > ();
 
+  // Observers of single changes to the hierarchy, e.g. to update a tree view in place
+  public static List < Consumer < TreeChange > > treeObservers = new ArrayList < > ();
+
+  /**
+   * One change to the hierarchy: a member was added to a group, moved between groups,
+   * or (for groups) deleted with its subtree. When a group is deleted, the users of its
+   * subtree are reported as moved to its parent first.
+   */
+  public static final class TreeChange {
+    public enum Kind { ADDED, MOVED, DELETED }
+
+    private final Kind kind;
+    private final UserMember member;
+    private final String oldParent;
+    private final String newParent;
+
+    TreeChange(Kind kind, UserMember member, String oldParent, String newParent) {
+      this.kind = kind;
+      this.member = member;
+      this.oldParent = oldParent;
+      this.newParent = newParent;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public UserMember getMember() {
+      return member;
+    }
+
+    /**
+     * @return The ID of the group the member was in, or null if it was added.
+     */
+    public String getOldParent() {
+      return oldParent;
+    }
+
+    /**
+     * @return The ID of the group the member is now in, or null if it was deleted.
+     */
+    public String getNewParent() {
+      return newParent;
+    }
+  }
+
   /**
    * Creates a "Root" group as the base level class for all
    * users and groups to fall under.
@@ -35,7 +90,15 @@ public class UserGroup implements VisitorValidation {
 
   private String name;
 
-  private List < UserMember > children;
+  // Children by memberKey in insertion order, changed only under the TwitterOperations lock
+  private LinkedHashMap < String, UserMember > children;
+  // The same members in the same order for readers, who take snapshots without locking
+  private volatile SnapshotList < UserMember > members = new SnapshotList < > ();
+
+  private UserGroup parent;
+  // Users in this group and all its subgroups, and the number of those subgroups
+  private int subtreeUsers;
+  private int subtreeGroups;
 
   private long creationTime;
 
@@ -48,7 +111,21 @@ public class UserGroup implements VisitorValidation {
   public UserGroup() {
     this.uid = UUID.randomUUID().toString();
     name = "";
-    children = new ArrayList < > ();
+    children = new LinkedHashMap < > ();
+    creationTime = System.currentTimeMillis();
+    lastUpdateTime = creationTime;
+  }
+
+  /**
+   * Creates a UserGroup with a known ID, skipping UUID generation.
+   * Used by bulk loaders that restore many groups at once.
+   *
+   * @param uid The ID of the group.
+   */
+  public UserGroup(String uid) {
+    this.uid = uid;
+    name = "";
+    children = new LinkedHashMap < > ();
     creationTime = System.currentTimeMillis();
     lastUpdateTime = creationTime;
   }
@@ -69,12 +146,61 @@ public class UserGroup implements VisitorValidation {
     this.name = name;
   }
 
+  /**
+   * @return An immutable list of the members of this group, in the order they joined.
+   */
   public List < UserMember > getChildren() {
-    return children;
+    return members.snapshot();
   }
 
+  /**
+   * Replaces the members of this group. Parents and subtree counts are not updated;
+   * loaders call rebuildIndex once all groups are in.
+   */
   public void setChildren(List < UserMember > children) {
-    this.children = children;
+    LinkedHashMap < String, UserMember > map = new LinkedHashMap < > (children.size() * 4 / 3 + 1);
+    for (UserMember i: children)
+      map.put(memberKey(i.getChildType(), i.getUid()), i);
+    this.children = map;
+    members = new SnapshotList < > (map.values());
+  }
+
+  /**
+   * @return The group containing this one, or null for Root.
+   */
+  public UserGroup getParent() {
+    return parent;
+  }
+
+  /**
+   * @return The number of direct members (users and groups) of this group.
+   */
+  public int getMemberCount() {
+    return members.size();
+  }
+
+  /**
+   * @return The number of users in this group and all of its subgroups.
+   */
+  public int getSubtreeUsers() {
+    return subtreeUsers;
+  }
+
+  /**
+   * @return The number of groups below this one.
+   */
+  public int getSubtreeGroups() {
+    return subtreeGroups;
+  }
+
+  /**
+   * @return true if this group is the given group or one of its subgroups.
+   */
+  public boolean isWithin(UserGroup group) {
+    for (UserGroup i = this; i != null; i = i.parent)
+      if (i == group)
+        return true;
+    return false;
   }
 
   public long getCreationTime() {
@@ -100,18 +226,30 @@ public class UserGroup implements VisitorValidation {
    * @return true if the user was added successfully, false if they already belong to a group.
    */
   public Boolean addUser(User user) {
-    if (user.getUserGroup() == null || user.getUserGroup().length() == 0) {
-      user.setUserGroup(getUid());
-      children.add(new UserMember(user.getUid(), UserMember.CHILD_TYPE.USER));
-      for (Runnable r: listObservers)
-        r.run();
+    if (attachUser(user)) {
+      notifyTree(new TreeChange(TreeChange.Kind.ADDED, new UserMember(user.getUid(), UserMember.CHILD_TYPE.USER), null, getUid()));
+      Observers.dispatch("groups", listObservers);
       return true;
     } else {
-      JOptionPane.showMessageDialog(null, "User already in a group :" + user.getUserGroup());
       return false;
     }
   }
 
+  /**
+   * Adds a User to this UserGroup without notifying observers.
+   *
+   * @param user The User object to add.
+   * @return true if the user was added, false if they already belong to a group.
+   */
+  boolean attachUser(User user) {
+    if (user.getUserGroup() == null || user.getUserGroup().length() == 0) {
+      linkUser(user);
+      MutationLog.attachUser(this, user);
+      return true;
+    }
+    return false;
+  }
+
   /**
    * Adds a subgroup (another UserGroup) to this UserGroup.
    *
@@ -119,12 +257,246 @@ public class UserGroup implements VisitorValidation {
    * @return true (always succeeds for now).
    */
   public Boolean addGroup(UserGroup userGroup) {
-    children.add(new UserMember(userGroup.getUid(), UserMember.CHILD_TYPE.GROUP));
-    for (Runnable r: listObservers)
-      r.run();
+    attachGroup(userGroup);
+    notifyTree(new TreeChange(TreeChange.Kind.ADDED, new UserMember(userGroup.getUid(), UserMember.CHILD_TYPE.GROUP), null, getUid()));
+    Observers.dispatch("groups", listObservers);
+    return true;
+  }
+
+  /**
+   * Adds a subgroup to this UserGroup without notifying observers. A group that already
+   * has a parent is moved here.
+   *
+   * @param userGroup The UserGroup to add as a subgroup.
+   */
+  void attachGroup(UserGroup userGroup) {
+    if (userGroup.parent != null)
+      userGroup.parent.unlinkGroup(userGroup);
+    linkGroup(userGroup);
+    MutationLog.attachGroup(this, userGroup);
+  }
+
+  // --- Moving and deleting ---
+
+  /**
+   * Moves a user from their current group into this one and notifies observers.
+   *
+   * @param user The user to move.
+   * @return false if the user is already in this group.
+   */
+  public Boolean moveUser(User user) {
+    String oldParent = user.getUserGroup();
+    if (!relocateUser(user))
+      return false;
+    notifyTree(new TreeChange(TreeChange.Kind.MOVED, new UserMember(user.getUid(), UserMember.CHILD_TYPE.USER), oldParent, getUid()));
+    Observers.dispatch("groups", listObservers);
+    return true;
+  }
+
+  /**
+   * Moves a user into this group without notifying observers, in O(depth).
+   *
+   * @param user The user to move.
+   * @return false if the user is already in this group.
+   */
+  boolean relocateUser(User user) {
+    if (getUid().equals(user.getUserGroup()))
+      return false;
+    UserGroup old = user.getUserGroup() == null ? null : userGroupMap.get(user.getUserGroup());
+    if (old != null)
+      old.unlinkUser(user);
+    linkUser(user);
+    MutationLog.moveUser(this, user);
+    return true;
+  }
+
+  /**
+   * Moves a group, with its subtree, into this one and notifies observers.
+   *
+   * @param userGroup The group to move.
+   * @return false if the group is already directly in this group.
+   * @throws IllegalArgumentException if the group is Root, this group, or one of its subgroups.
+   */
+  public Boolean moveGroup(UserGroup userGroup) {
+    UserGroup oldParent = userGroup.parent;
+    if (!relocateGroup(userGroup))
+      return false;
+    notifyTree(new TreeChange(TreeChange.Kind.MOVED, new UserMember(userGroup.getUid(), UserMember.CHILD_TYPE.GROUP), oldParent == null ? null : oldParent.getUid(), getUid()));
+    Observers.dispatch("groups", listObservers);
     return true;
   }
 
+  /**
+   * Moves a group into this one without notifying observers, in O(depth).
+   */
+  boolean relocateGroup(UserGroup userGroup) {
+    if (userGroup.parent == this)
+      return false;
+    if (userGroup.parent == null)
+      throw new IllegalArgumentException("Cannot move " + userGroup.getUid());
+    if (isWithin(userGroup))
+      throw new IllegalArgumentException("Cannot move a group into itself or its subgroups");
+    userGroup.parent.unlinkGroup(userGroup);
+    linkGroup(userGroup);
+    MutationLog.moveGroup(this, userGroup);
+    return true;
+  }
+
+  /**
+   * Deletes a group and all its subgroups and notifies observers. The users of the
+   * deleted groups are moved to the parent of the group.
+   *
+   * @param userGroup The group to delete.
+   * @throws IllegalArgumentException if the group is Root.
+   */
+  public static void deleteGroup(UserGroup userGroup) {
+    UserGroup parent = userGroup.parent;
+    Map < User, String > moved = removeGroup(userGroup);
+    for (Map.Entry < User, String > i: moved.entrySet())
+      notifyTree(new TreeChange(TreeChange.Kind.MOVED, new UserMember(i.getKey().getUid(), UserMember.CHILD_TYPE.USER), i.getValue(), parent.getUid()));
+    notifyTree(new TreeChange(TreeChange.Kind.DELETED, new UserMember(userGroup.getUid(), UserMember.CHILD_TYPE.GROUP), parent.getUid(), null));
+    Observers.dispatch("groups", listObservers);
+  }
+
+  /**
+   * Deletes a group and its subgroups without notifying observers, in O(depth + subtree
+   * size) plus one pass over the group list.
+   *
+   * @return The users that were moved to the parent of the group, with their old group IDs.
+   */
+  static Map < User, String > removeGroup(UserGroup userGroup) {
+    UserGroup parent = userGroup.parent;
+    if (parent == null)
+      throw new IllegalArgumentException("Cannot delete " + userGroup.getUid());
+    parent.unlinkGroup(userGroup);
+
+    HashSet < String > deleted = new HashSet < > ();
+    LinkedHashMap < User, String > moved = new LinkedHashMap < > ();
+    ArrayDeque < UserGroup > pending = new ArrayDeque < > ();
+    pending.add(userGroup);
+    while (!pending.isEmpty()) {
+      UserGroup group = pending.poll();
+      deleted.add(group.getUid());
+      for (UserMember i: group.children.values()) {
+        if (i.getChildType() == UserMember.CHILD_TYPE.GROUP)
+          pending.add(userGroupMap.get(i.getUid()));
+        else
+          moved.put(User.usersMap.get(i.getUid()), group.getUid());
+      }
+      group.children = new LinkedHashMap < > ();
+      group.members = new SnapshotList < > ();
+      group.parent = null;
+      group.subtreeUsers = group.subtreeGroups = 0;
+    }
+    for (User i: moved.keySet()) {
+      i.setUserGroup(null);
+      parent.linkUser(i);
+    }
+    for (String i: deleted)
+      userGroupMap.remove(i);
+    userGroups.removeIf(deleted::contains);
+    SortedIdIndex.groups.removeAll(deleted);
+    RollingMetrics.onDeleteGroups(deleted);
+    MutationLog.deleteGroup(userGroup);
+    ReadView.publish();
+    return moved;
+  }
+
+  // Key of a member in the children map; a user and a group with the same ID differ
+  private static String memberKey(UserMember.CHILD_TYPE type, String uid) {
+    return (type == UserMember.CHILD_TYPE.USER ? "u:" : "g:") + uid;
+  }
+
+  // Appending publishes the new member to readers in O(1); removing copies the members
+
+  private void addMember(UserMember member) {
+    UserMember old = children.put(memberKey(member.getChildType(), member.getUid()), member);
+    if (old != null)
+      members.set(members.indexOf(old), member);
+    else
+      members.add(member);
+  }
+
+  private void removeMember(UserMember.CHILD_TYPE type, String uid) {
+    UserMember old = children.remove(memberKey(type, uid));
+    if (old != null)
+      members.remove(old);
+  }
+
+  // Adds a member and updates the counts of this group and its ancestors
+
+  private void linkUser(User user) {
+    user.setUserGroup(getUid());
+    addMember(new UserMember(user.getUid(), UserMember.CHILD_TYPE.USER));
+    for (UserGroup i = this; i != null; i = i.parent)
+      i.subtreeUsers++;
+  }
+
+  private void unlinkUser(User user) {
+    removeMember(UserMember.CHILD_TYPE.USER, user.getUid());
+    user.setUserGroup(null);
+    for (UserGroup i = this; i != null; i = i.parent)
+      i.subtreeUsers--;
+  }
+
+  private void linkGroup(UserGroup group) {
+    addMember(new UserMember(group.getUid(), UserMember.CHILD_TYPE.GROUP));
+    group.parent = this;
+    for (UserGroup i = this; i != null; i = i.parent) {
+      i.subtreeUsers += group.subtreeUsers;
+      i.subtreeGroups += group.subtreeGroups + 1;
+    }
+  }
+
+  private void unlinkGroup(UserGroup group) {
+    removeMember(UserMember.CHILD_TYPE.GROUP, group.getUid());
+    group.parent = null;
+    for (UserGroup i = this; i != null; i = i.parent) {
+      i.subtreeUsers -= group.subtreeUsers;
+      i.subtreeGroups -= group.subtreeGroups + 1;
+    }
+  }
+
+  /**
+   * Recomputes the parents and subtree counts of all groups from their children, after
+   * a loader replaced the registries with setChildren. Callers must hold the
+   * TwitterOperations lock.
+   */
+  static void rebuildIndex() {
+    for (UserGroup i: userGroupMap.values()) {
+      i.parent = null;
+      i.subtreeUsers = i.subtreeGroups = 0;
+    }
+    for (UserGroup i: userGroupMap.values()) {
+      for (UserMember c: i.children.values()) {
+        if (c.getChildType() == UserMember.CHILD_TYPE.GROUP)
+          userGroupMap.get(c.getUid()).parent = i;
+        else
+          i.subtreeUsers++;
+      }
+    }
+    // Parents before children, so that walking the order backwards sums subtrees bottom up
+    List < UserGroup > order = new ArrayList < > (userGroupMap.size());
+    for (UserGroup i: userGroupMap.values())
+      if (i.parent == null)
+        order.add(i);
+    for (int n = 0; n < order.size(); n++)
+      for (UserMember c: order.get(n).children.values())
+        if (c.getChildType() == UserMember.CHILD_TYPE.GROUP)
+          order.add(userGroupMap.get(c.getUid()));
+    for (int n = order.size() - 1; n >= 0; n--) {
+      UserGroup i = order.get(n);
+      if (i.parent != null) {
+        i.parent.subtreeUsers += i.subtreeUsers;
+        i.parent.subtreeGroups += i.subtreeGroups + 1;
+      }
+    }
+  }
+
+  private static void notifyTree(TreeChange change) {
+    Observers.dispatch("tree", treeObservers, change);
+  }
+
   /**
    * Adds a new user group to the application.
    * Updates the global list and map of user groups and notifies observers.
@@ -132,10 +504,21 @@ public class UserGroup implements VisitorValidation {
    * @param userGroup The UserGroup object to add.
    */
   public static void addUserGroup(UserGroup userGroup) {
+    putUserGroup(userGroup);
+    Observers.dispatch("groups", listObservers);
+  }
+
+  /**
+   * Adds a user group to the global list and map without notifying observers.
+   *
+   * @param userGroup The UserGroup object to add.
+   */
+  static void putUserGroup(UserGroup userGroup) {
     userGroups.add(userGroup.getUid());
     userGroupMap.put(userGroup.getUid(), userGroup);
-    for (Runnable r: listObservers)
-      r.run();
+    SortedIdIndex.groups.add(userGroup.getUid());
+    MutationLog.addGroup(userGroup);
+    ReadView.publish();
   }
 
   
@@ -0,0 +1,68 @@
+/**
+ * Dictionary of dense int IDs for user IDs, so that large per-user structures such as
+ * FollowerSet can store 4-byte (or smaller, once compressed) numbers instead of string
+ * references.
+ *
+ * IDs are handed out in the order users are first seen, starting at 0, and are never
+ * reused or removed: a user ID keeps its number for the life of the process, across
+ * snapshot loads. Lookups in both directions are lock-free; assigning a new number is
+ * synchronized.
+ */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class UserIds {
+
+  private static final ConcurrentHashMap < String, Integer > ids = new ConcurrentHashMap < > ();
+  // uids[i] is the user ID numbered i; grown by copying, and written before the
+  // number is published in ids
+  private static volatile String[] uids = new String[1024];
+  private static int count;
+
+  /**
+   * @param uid A user ID.
+   * @return The number of the user ID, assigning the next free one if it has none.
+   */
+  public static int intern(String uid) {
+    Integer id = ids.get(uid);
+    return id != null ? id : assign(uid);
+  }
+
+  private static synchronized int assign(String uid) {
+    Integer id = ids.get(uid);
+    if (id != null)
+      return id;
+    String[] table = uids;
+    if (count == table.length)
+      uids = table = Arrays.copyOf(table, table.length * 2);
+    table[count] = uid;
+    // Republishing the array makes the new slot visible to readers of uids
+    uids = table;
+    ids.put(uid, count);
+    return count++;
+  }
+
+  /**
+   * @param uid A user ID.
+   * @return Its number, or -1 if it has none.
+   */
+  public static int find(String uid) {
+    Integer id = ids.get(uid);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param id A number returned by intern.
+   * @return The user ID with that number.
+   */
+  public static String uid(int id) {
+    return uids[id];
+  }
+
+  /**
+   * @return The number of user IDs numbered so far.
+   */
+  public static synchronized int size() {
+    return count;
+  }
+}
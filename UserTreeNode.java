@@ -0,0 +1,24 @@
+/**
+ * A tree node for a user within the JTree component, keeping the user's ID next to the
+ * name it displays.
+ */
+
+ import javax.swing.tree.DefaultMutableTreeNode;
+ 
+ public class UserTreeNode extends DefaultMutableTreeNode {
+ 
+   private String uid;
+ 
+   public UserTreeNode(String uid, String name) {
+     super(name);
+     this.uid = uid;
+     setAllowsChildren(false);
+   }
+ 
+   /**
+    * @return The ID of the user shown by this node.
+    */
+   public String getUid() {
+     return uid;
+   }
+ }
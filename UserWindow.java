@@ -1,10 +1,12 @@
 /**
  * The UserWindow class represents the individual view for a specific user in Mini Twitter.
  * It displays the user's information, following/followers, and news feed (tweets).
- * It also allows the user to follow other users and post new tweets.
+ * It also allows the user to follow and unfollow other users and post new tweets.
  * 
  * This class uses the Observer pattern to update the following list and news feed 
  * whenever there are changes in the data model (User or Message classes).
+ * Follows and posts run through UiCommands, off the Event Dispatch Thread, and so does
+ * loading the news feed.
  */
 import javax.swing.*;
 import java.awt.*;
@@ -12,6 +14,8 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
 
 public class UserWindow extends JFrame {
 
@@ -24,11 +28,13 @@ public class UserWindow extends JFrame {
 
   private JTextField userId;
   private JButton followUser;
+  private JButton unfollowUser;
 
   private JTextArea tweetMessage;
 
   private JLabel lastUpdated, created;
   private JButton postTweet;
+  private JButton replyTweet;
   private JList < String > followingList;
 
   // Observer pattern
@@ -61,8 +67,8 @@ public class UserWindow extends JFrame {
       @Override
       public void windowClosing(WindowEvent e) {
         super.windowClosing(e);
-        if (followingList != null)
-          User.followersObservers.remove(followingList);
+        if (followerObserver != null)
+          User.followersObservers.remove(followerObserver);
         if (newsObserver != null)
           Message.messageObservers.remove(newsObserver);
       }
@@ -74,6 +80,9 @@ public class UserWindow extends JFrame {
    * Refreshes the user interface by rebuilding the main panel and its components.
    */
   private void refreshViews() {
+    EngineEvents.RefreshViews event = new EngineEvents.RefreshViews();
+    event.begin();
+    long start = TraceRecorder.shared.start();
     if (mainPanel != null) {
       mainPanel.setVisible(false);
       remove(mainPanel);
@@ -88,6 +97,11 @@ public class UserWindow extends JFrame {
     addFollowingAndTweetPanel();
     addNewsFeedPanel();
     setupButtonListeners();
+    TraceRecorder.shared.record("refreshViews", user.getUid(), 0, start);
+    if (event.shouldCommit()) {
+      event.window = "UserWindow " + user.getUid();
+      event.commit();
+    }
   }
 
   private void setupButtonListeners() {
@@ -97,8 +111,37 @@ public class UserWindow extends JFrame {
         JOptionPane.showMessageDialog(null, "User Not Found");
         return;
       }
-      User myUser = User.usersMap.get(user_id);
-      user.addFollowing(myUser);
+      UiCommands.onEdt(UiCommands.follow(user.getUid(), user_id), followed -> {});
+    });
+
+    unfollowUser.addActionListener(e -> {
+      String user_id = userId.getText().trim();
+      if (!User.usersMap.containsKey(user_id)) {
+        JOptionPane.showMessageDialog(null, "User Not Found");
+        return;
+      }
+      UiCommands.onEdt(UiCommands.unfollow(user.getUid(), user_id), unfollowed -> {});
+    });
+
+    replyTweet.addActionListener(e -> {
+      int selected = newsFeed.getSelectedIndex();
+      if (selected < 0) {
+        JOptionPane.showMessageDialog(null, "Select a Message in the News Feed First");
+        return;
+      }
+      String messageText = tweetMessage.getText();
+      if (messageText.isEmpty()) {
+        JOptionPane.showMessageDialog(null, "Enter Message First");
+        return;
+      }
+      JTextArea field = tweetMessage;
+      field.setText("");
+      UiCommands.reply(user.getUid(), newsIds.get(selected), messageText).whenCompleteAsync((message, error) -> {
+        if (error != null) {
+          field.setText(messageText);
+          JOptionPane.showMessageDialog(null, error.getCause() != null ? error.getCause().getMessage() : error.getMessage());
+        }
+      }, UiCommands.EDT);
     });
 
     postTweet.addActionListener(e -> {
@@ -107,16 +150,21 @@ public class UserWindow extends JFrame {
         JOptionPane.showMessageDialog(null, "Enter Message First");
         return;
       }
-      Message message = new Message();
-      message.setText(messageText);
-      message.setFrom(user.getUid());
-      message.calculatePositivity();
-      Message.sendMessage(message, user.getFollowers());
-      tweetMessage.setText("");
+      // Cleared right away, and put back if the post is rejected
+      JTextArea field = tweetMessage;
+      field.setText("");
+      UiCommands.post(user.getUid(), messageText).whenCompleteAsync((message, error) -> {
+        if (error != null) {
+          field.setText(messageText);
+          JOptionPane.showMessageDialog(null, error.getCause() != null ? error.getCause().getMessage() : error.getMessage());
+        }
+      }, UiCommands.EDT);
     });
   }
 
   private JList < String > newsFeed;
+  // IDs of the messages listed in the news feed, in the same order
+  private List < String > newsIds = new ArrayList < > ();
 
   private void addNewsFeedPanel() {
     JPanel feed = new JPanel(new BorderLayout());
@@ -127,17 +175,16 @@ public class UserWindow extends JFrame {
     if (newsObserver != null)
       Message.messageObservers.remove(newsObserver);
 
-    newsObserver = () -> {
-      DefaultListModel < String > defaultListModel = new DefaultListModel < String > ();
-      for (String i: user.getNews()) {
-        Message message = Message.messageMap.get(i);
-        defaultListModel.addElement(" - " + message.getFrom() + " : " + message.getText());
-      }
-      newsFeed.setModel(defaultListModel);
-      lastUpdated.setText("<html><center><b style='color:blue'>Last Time Updated: </b>" + Utils.formatMyDate(user.getLastUpdateTime()) + "</html>");
-    };
+    // A cache miss takes the engine lock and texts may be read from the archive, so the
+    // page is built on UiCommands' read thread and only shown on the EDT
+    newsObserver = () -> UiCommands.onEdt(UiCommands.read(this::loadNews), page -> {
+      newsIds = page.ids;
+      newsFeed.setModel(page.model);
+      lastUpdated.setText("<html><center><b style='color:blue'>Last Time Updated: </b>" + Utils.formatMyDate(page.lastUpdateTime) + "</html>");
+    });
     newsObserver.run();
-    Message.messageObservers.add(newsObserver);
+    Runnable newsRefresh = newsObserver;
+    Message.messageObservers.add(newsObserver = EdtPublisher.coalescing(newsRefresh));
     feed.add(newsFeed, BorderLayout.CENTER);
     mainPanel.add(feed, BorderLayout.SOUTH);
 
@@ -145,6 +192,26 @@ public class UserWindow extends JFrame {
     mainPanel.setBackground(Color.WHITE);
   }
 
+  private static class NewsPage {
+    final DefaultListModel < String > model = new DefaultListModel < > ();
+    final List < String > ids = new ArrayList < > ();
+    long lastUpdateTime;
+  }
+
+  private NewsPage loadNews() {
+    NewsPage page = new NewsPage();
+    page.lastUpdateTime = user.getLastUpdateTime();
+    // Resolved newest first by the timeline cache; listed oldest first like the news list
+    List < TimelineCache.Entry > news = TimelineCache.shared.read(user, TimelineCache.PAGE_SIZE).getEntries();
+    for (int i = news.size() - 1; i >= 0; i--) {
+      ConversationIndex.Link link = ConversationIndex.getLink(news.get(i).getMessageId());
+      page.model.addElement((link == null ? " - " : "   ".repeat(Math.min(link.getDepth(), 4)) + " \u21b3 ") +
+        news.get(i).getFrom() + " : " + news.get(i).getText());
+      page.ids.add(news.get(i).getMessageId());
+    }
+    return page;
+  }
+
   private void addFollowingAndTweetPanel() {
 
     JPanel followingPanel = new JPanel();
@@ -152,16 +219,17 @@ public class UserWindow extends JFrame {
 
     followingPanel.add(new JLabel("Currently Following", JLabel.CENTER), BorderLayout.NORTH);
     followingList = new JList < > ();
-    if (followingList != null)
-      User.followersObservers.remove(followingList);
+    if (followerObserver != null)
+      User.followersObservers.remove(followerObserver);
     followerObserver = () -> {
       DefaultListModel < String > listModel = new DefaultListModel < > ();
-      for (String i: user.getFollowings())
+      for (String i: user.getFollowings().snapshot())
         listModel.addElement(" - " + i);
       followingList.setModel(listModel);
     };
     followerObserver.run();
-    User.followersObservers.add(followerObserver);
+    Runnable followerRefresh = followerObserver;
+    User.followersObservers.add(followerObserver = EdtPublisher.coalescing(followerRefresh));
 
     followingPanel.add(followingList, BorderLayout.CENTER);
 
@@ -177,7 +245,11 @@ public class UserWindow extends JFrame {
     tweetPanel.add(tweet, BorderLayout.CENTER);
 
     postTweet = new JButton("Post Tweet");
-    tweetPanel.add(postTweet, BorderLayout.EAST);
+    replyTweet = new JButton("Reply to Selected");
+    JPanel tweetButtons = new JPanel(new GridLayout(2, 1));
+    tweetButtons.add(postTweet);
+    tweetButtons.add(replyTweet);
+    tweetPanel.add(tweetButtons, BorderLayout.EAST);
 
     followingPanel.add(tweetPanel, BorderLayout.SOUTH);
     mainPanel.add(followingPanel, BorderLayout.CENTER);
@@ -191,6 +263,10 @@ public class UserWindow extends JFrame {
     userIdPanel.add(userId);
 
     followUser = new JButton("Follow User");
+    unfollowUser = new JButton("Unfollow User");
+    JPanel followButtons = new JPanel(new GridLayout(1, 2));
+    followButtons.add(followUser);
+    followButtons.add(unfollowUser);
 
     JPanel top = new JPanel();
     top.setLayout(new GridLayout(2, 2));
@@ -201,7 +277,7 @@ public class UserWindow extends JFrame {
     top.add(lastUpdated);
 
     top.add(userIdPanel);
-    top.add(followUser);
+    top.add(followButtons);
     mainPanel.add(top, BorderLayout.NORTH);
 
   }
@@ -44,6 +44,19 @@
      "Cool"
    };
  
+   /**
+    * Runs the given task on the Swing Event Dispatch Thread: immediately if called
+    * from the EDT, otherwise scheduled with SwingUtilities.invokeLater.
+    *
+    * @param task The UI work to run.
+    */
+   public static void runOnEdt(Runnable task) {
+     if (SwingUtilities.isEventDispatchThread())
+       task.run();
+     else
+       SwingUtilities.invokeLater(task);
+   }
+ 
    /**
     * Formats a given timestamp (milliseconds) into a human-readable date and time string.
     * Uses the format: "E, dd-MMM-yyyy HH:mm:ss" (e.g., "Mon, 24-Jun-2024 15:30:00").